@@ -0,0 +1,303 @@
+package com.work.LogParser.config;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.work.LogParser.config.DatabaseConfig.*;
+
+/**
+ * Пулы соединений по видам нагрузки вместо DriverManager.getConnection на каждый вызов:
+ * interactive - запросы интерфейса (короткие, с statement_timeout), ingest - COPY и запись при загрузке,
+ * maintenance - индексы, статистика и служебные операции. У каждого пула свой размер, ожидание
+ * соединения и параметры сессии (options при подключении, поэтому RESET возвращает к ним же).
+ * Соединения ingest и maintenance при возврате выполняют RESET ALL: их код меняет настройки сессии
+ * (SET maintenance_work_mem и т.п.), и следующий пользователь соединения не должен их получить.
+ * Соединения interactive, взятые потоком с привязанной областью (ConnectionScope), передаются ей
+ * при получении и возврате - так задачи QueryFanOutService задают таймаут и отменяют запросы
+ * сервисов, которые берут соединения сами. Пулы создаются при первом обращении.
+ */
+@Component
+public class ConnectionPools {
+
+    @Value("${logparser.pool.interactive.max-size:10}")
+    private int interactiveMaxSize;
+
+    @Value("${logparser.pool.interactive.min-idle:2}")
+    private int interactiveMinIdle;
+
+    @Value("${logparser.pool.interactive.connection-timeout-ms:10000}")
+    private long interactiveConnectionTimeoutMs;
+
+    // Параметры сессии пула (options подключения PostgreSQL)
+    @Value("${logparser.pool.interactive.session-options:-c statement_timeout=120000 -c idle_in_transaction_session_timeout=60000}")
+    private String interactiveSessionOptions;
+
+    @Value("${logparser.pool.ingest.max-size:32}")
+    private int ingestMaxSize;
+
+    @Value("${logparser.pool.ingest.connection-timeout-ms:300000}")
+    private long ingestConnectionTimeoutMs;
+
+    @Value("${logparser.pool.ingest.session-options:-c statement_timeout=0 -c lock_timeout=0 -c work_mem=64MB}")
+    private String ingestSessionOptions;
+
+    @Value("${logparser.pool.maintenance.max-size:6}")
+    private int maintenanceMaxSize;
+
+    @Value("${logparser.pool.maintenance.connection-timeout-ms:300000}")
+    private long maintenanceConnectionTimeoutMs;
+
+    @Value("${logparser.pool.maintenance.session-options:-c statement_timeout=0 -c lock_timeout=0}")
+    private String maintenanceSessionOptions;
+
+    /**
+     * Область соединений interactive потока: opened - сразу после получения соединения (ошибка
+     * возвращает его в пул и передается вызывающему), closing - перед возвратом в пул.
+     */
+    public interface ConnectionScope {
+        void opened(Connection conn) throws SQLException;
+
+        void closing(Connection conn);
+    }
+
+    private static final ThreadLocal<ConnectionScope> SCOPE = new ThreadLocal<>();
+
+    // Привязка области к текущему потоку; null снимает привязку
+    public static void bindScope(ConnectionScope scope) {
+        if (scope != null) {
+            SCOPE.set(scope);
+        } else {
+            SCOPE.remove();
+        }
+    }
+
+    private Pool interactive;
+    private Pool ingest;
+    private Pool maintenance;
+
+    // Счетчики ожидания соединений пула (их заполняет Hikari)
+    private static final class WaitMetrics implements IMetricsTracker {
+        private volatile PoolStats poolStats;
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquired.incrementAndGet();
+            waitNanos.addAndGet(elapsedAcquiredNanos);
+            maxWaitNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    private static final class Pool {
+        final HikariDataSource dataSource;
+        final DataSource connections;
+        final WaitMetrics metrics;
+
+        Pool(HikariDataSource dataSource, DataSource connections, WaitMetrics metrics) {
+            this.dataSource = dataSource;
+            this.connections = connections;
+            this.metrics = metrics;
+        }
+    }
+
+    public DataSource interactive() {
+        init();
+        return interactive.connections;
+    }
+
+    public DataSource ingest() {
+        init();
+        return ingest.connections;
+    }
+
+    public DataSource maintenance() {
+        init();
+        return maintenance.connections;
+    }
+
+    private synchronized void init() {
+        if (interactive == null) {
+            interactive = createPool("interactive", interactiveMaxSize, interactiveMinIdle,
+                    interactiveConnectionTimeoutMs, interactiveSessionOptions, false);
+            ingest = createPool("ingest", ingestMaxSize, 0,
+                    ingestConnectionTimeoutMs, ingestSessionOptions, true);
+            maintenance = createPool("maintenance", maintenanceMaxSize, 0,
+                    maintenanceConnectionTimeoutMs, maintenanceSessionOptions, true);
+        }
+    }
+
+    private Pool createPool(String name, int maxSize, int minIdle, long connectionTimeoutMs,
+                            String sessionOptions, boolean resetOnClose) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("logparser-" + name);
+        config.setJdbcUrl(DB_URL);
+        config.setUsername(DB_USERNAME);
+        config.setPassword(DB_PASSWORD);
+        config.setMaximumPoolSize(Math.max(1, maxSize));
+        config.setMinimumIdle(Math.max(0, Math.min(minIdle, maxSize)));
+        config.setConnectionTimeout(Math.max(250, connectionTimeoutMs));
+        config.setIdleTimeout(TimeUnit.MINUTES.toMillis(2));
+        // Пул создается и без доступной БД; ошибка подключения - при получении соединения
+        config.setInitializationFailTimeout(-1);
+        // Параметры сессии задаются при подключении: они же значения по умолчанию для RESET
+        config.addDataSourceProperty("ApplicationName", "logparser-" + name);
+        if (sessionOptions != null && !sessionOptions.isBlank()) {
+            config.addDataSourceProperty("options", sessionOptions.trim());
+        }
+
+        WaitMetrics metrics = new WaitMetrics();
+        config.setMetricsTrackerFactory((poolName, poolStats) -> {
+            metrics.poolStats = poolStats;
+            return metrics;
+        });
+
+        HikariDataSource dataSource = new HikariDataSource(config);
+        System.out.println("🔌 Пул соединений " + config.getPoolName() + ": до " + config.getMaximumPoolSize() +
+                " соединений, " + sessionOptions);
+        return new Pool(dataSource, resetOnClose ? new ResettingDataSource(dataSource) : new ScopedDataSource(dataSource),
+                metrics);
+    }
+
+    // Состояние пулов: занятые, свободные, ожидающие потоки и время ожидания соединения
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        init();
+        result.put("interactive", metrics(interactive));
+        result.put("ingest", metrics(ingest));
+        result.put("maintenance", metrics(maintenance));
+        return result;
+    }
+
+    private static Map<String, Object> metrics(Pool pool) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        WaitMetrics metrics = pool.metrics;
+        PoolStats stats = metrics.poolStats;
+        int max = pool.dataSource.getMaximumPoolSize();
+        int active = stats != null ? stats.getActiveConnections() : 0;
+        long acquired = metrics.acquired.get();
+
+        item.put("max_size", max);
+        item.put("active", active);
+        item.put("idle", stats != null ? stats.getIdleConnections() : 0);
+        item.put("total", stats != null ? stats.getTotalConnections() : 0);
+        item.put("waiting_threads", stats != null ? stats.getPendingThreads() : 0);
+        item.put("saturation", max > 0 ? Math.round(active * 1000.0 / max) / 1000.0 : 0);
+        item.put("acquired", acquired);
+        item.put("avg_wait_ms", acquired > 0
+                ? Math.round(metrics.waitNanos.get() / (double) acquired / 1_000.0) / 1_000.0 : 0);
+        item.put("max_wait_ms", Math.round(metrics.maxWaitNanos.get() / 1_000.0) / 1_000.0);
+        item.put("timeouts", metrics.timeouts.get());
+        return item;
+    }
+
+    // Выдает соединения пула, которые перед возвратом сбрасывают настройки сессии
+    private static final class ResettingDataSource extends DelegatingDataSource {
+
+        ResettingDataSource(DataSource target) {
+            super(target);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            Connection target = super.getConnection();
+            InvocationHandler handler = (proxy, method, args) -> {
+                if (method.getName().equals("close") && !target.isClosed()) {
+                    resetSession(target);
+                }
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(ConnectionPools.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, handler);
+        }
+
+        private static void resetSession(Connection conn) {
+            try {
+                // SET внутри незавершенной транзакции откатится вместе с ней - сброс после отката
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                try (Statement st = conn.createStatement()) {
+                    st.execute("RESET ALL");
+                }
+            } catch (SQLException e) {
+                // Соединение, скорее всего, разорвано - Hikari сам исключит его из пула
+                System.err.println("⚠️ Не удалось сбросить настройки соединения: " + e.getMessage());
+            }
+        }
+    }
+
+    // Выдает соединения с учетом области потока; без области - соединение пула как есть
+    private static final class ScopedDataSource extends DelegatingDataSource {
+
+        ScopedDataSource(DataSource target) {
+            super(target);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            ConnectionScope scope = SCOPE.get();
+            Connection target = super.getConnection();
+            if (scope == null) {
+                return target;
+            }
+            try {
+                scope.opened(target);
+            } catch (SQLException | RuntimeException e) {
+                target.close();
+                throw e;
+            }
+            InvocationHandler handler = (proxy, method, args) -> {
+                if (method.getName().equals("close") && !target.isClosed()) {
+                    scope.closing(target);
+                }
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(ConnectionPools.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, handler);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        for (Pool pool : new Pool[]{interactive, ingest, maintenance}) {
+            if (pool != null) {
+                pool.dataSource.close();
+            }
+        }
+    }
+}
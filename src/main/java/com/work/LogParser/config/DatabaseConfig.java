@@ -4,8 +4,6 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jdbc.core.JdbcTemplate;
 
-import javax.sql.DataSource;
-
 @Configuration
 public class DatabaseConfig {
 
@@ -25,9 +23,10 @@ public class DatabaseConfig {
             "uthgb123"
     );
 
+    // Запросы JdbcTemplate - интерактивные, на пуле interactive
     @Bean
-    public JdbcTemplate jdbcTemplate(DataSource dataSource) {
-        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    public JdbcTemplate jdbcTemplate(ConnectionPools connectionPools) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(connectionPools.interactive());
         jdbcTemplate.setFetchSize(1000);
         jdbcTemplate.setMaxRows(50000);
         return jdbcTemplate;
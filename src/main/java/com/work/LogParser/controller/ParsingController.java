@@ -1,7 +1,14 @@
 package com.work.LogParser.controller;
 
+import com.work.LogParser.config.ConnectionPools;
+import com.work.LogParser.service.ColumnarStoreService;
 import com.work.LogParser.service.FilterCacheService;
+import com.work.LogParser.service.LogCountService;
+import com.work.LogParser.service.LogDictionaryService;
+import com.work.LogParser.service.LogFollowService;
 import com.work.LogParser.service.LogParsingService;
+import com.work.LogParser.service.MultiFileScheduler;
+import com.work.LogParser.service.QueryFanOutService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -13,8 +20,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static com.work.LogParser.config.DatabaseConfig.*;
-
 @RestController
 @RequestMapping("/api")
 @CrossOrigin(origins = "*")
@@ -26,6 +31,16 @@ public class ParsingController {
     private LogParsingService logParsingService;
     @Autowired
     private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private LogFollowService logFollowService;
+    @Autowired
+    private LogDictionaryService dictionaryService;
+    @Autowired
+    private QueryFanOutService queryFanOutService;
+    @Autowired
+    private ConnectionPools connectionPools;
+    @Autowired
+    private ColumnarStoreService columnarStoreService;
 
     @PostMapping("/start-file-parsing")
     public ResponseEntity<?> startFileParsing(@RequestBody Map<String, String> request) {
@@ -43,17 +58,36 @@ public class ParsingController {
                 );
             }
 
-            // Проверяем существование файла
-            java.nio.file.Path path = java.nio.file.Paths.get(filePath);
-            if (!java.nio.file.Files.exists(path)) {
-                System.out.println("Ошибка: файл не найден - " + filePath);
+            if (MultiFileScheduler.isMultiFileInput(filePath)) {
+                // Каталог или маска - должен найтись хотя бы один файл
+                int found = MultiFileScheduler.resolveFiles(filePath).size();
+                if (found == 0) {
+                    System.out.println("Ошибка: файлы не найдены - " + filePath);
+                    return ResponseEntity.badRequest().body(
+                            Map.of("success", false, "error", "Файлы не найдены: " + filePath)
+                    );
+                }
+                System.out.println("Найдено файлов: " + found);
+            } else {
+                // Проверяем существование файла
+                java.nio.file.Path path = java.nio.file.Paths.get(filePath);
+                if (!java.nio.file.Files.exists(path)) {
+                    System.out.println("Ошибка: файл не найден - " + filePath);
+                    return ResponseEntity.badRequest().body(
+                            Map.of("success", false, "error", "Файл не найден: " + filePath)
+                    );
+                }
+
+                System.out.println("Файл найден, размер: " + java.nio.file.Files.size(path) + " байт");
+            }
+
+            if (logFollowService.isRunning()) {
+                System.out.println("Ошибка: включен режим слежения");
                 return ResponseEntity.badRequest().body(
-                        Map.of("success", false, "error", "Файл не найден: " + filePath)
+                        Map.of("success", false, "error", "Сначала остановите режим слежения")
                 );
             }
 
-            System.out.println("Файл найден, размер: " + java.nio.file.Files.size(path) + " байт");
-
             Map<String, Object> response = new HashMap<>();
 
             if (logParsingService.startParsing(filePath)) {
@@ -99,15 +133,17 @@ public class ParsingController {
         }
     }
 
+    // exact=true - точный COUNT(*) по всей таблице вместо числа из куба свертки или оценки
     @GetMapping("/check-data")
-    public ResponseEntity<?> checkData() {
+    public ResponseEntity<?> checkData(@RequestParam(defaultValue = "false") boolean exact) {
         boolean hasData = logParsingService.hasDataInDatabase();
-        long count = logParsingService.getLogCount();
+        LogCountService.Count count = logParsingService.getLogCount(exact);
 
         return ResponseEntity.ok(Map.of(
                 "success", true,
                 "hasData", hasData,
-                "count", count
+                "count", count.value,
+                "countExact", count.exact
         ));
     }
 
@@ -121,11 +157,18 @@ public class ParsingController {
             @RequestParam(required = false) String username,
             @RequestParam(required = false) String status,
             @RequestParam(required = false) String search,
-            @RequestParam(required = false) String action) {
+            @RequestParam(required = false) String action,
+            @RequestParam(required = false) String sort,
+            @RequestParam(required = false) String order,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) String direction,
+            @RequestParam(defaultValue = "false") boolean exactCount,
+            @RequestParam(defaultValue = "false") boolean wholeWord) {
 
         try {
             Map<String, Object> result = logParsingService.getLogsWithStats(
-                    page, size, dateFrom, dateTo, clientIp, username, status, search, action
+                    page, size, dateFrom, dateTo, clientIp, username, status, search, action,
+                    sort, order, cursor, direction, exactCount, wholeWord
             );
 
             Map<String, Object> response = new HashMap<>(result);
@@ -144,7 +187,12 @@ public class ParsingController {
     @GetMapping("/api/quick-logs")
     public Map<String, Object> getQuickLogs(
             @RequestParam(defaultValue = "1") int page,
-            @RequestParam(defaultValue = "50") int size) {
+            @RequestParam(defaultValue = "50") int size,
+            @RequestParam(required = false) String sort,
+            @RequestParam(required = false) String order,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) String direction,
+            @RequestParam(defaultValue = "false") boolean exactCount) {
 
         // Ограничиваем размер для безопасности
         size = Math.min(size, 100);
@@ -152,26 +200,20 @@ public class ParsingController {
         Map<String, Object> result = new HashMap<>();
 
         try {
-            int offset = (page - 1) * size;
-
-            // ТОЛЬКО данные, без статистики (для скорости)
-            String sql = "SELECT id, time, ip, username, url, status_code as statusCode, domain " +
-                    "FROM logs ORDER BY time DESC LIMIT " + size + " OFFSET " + offset;
+            // ТОЛЬКО данные, без статистики (для скорости); страницы - по курсору
+            Map<String, Object> logsPage = logParsingService.getQuickLogs(page, size, sort, order, cursor, direction);
 
-            List<Map<String, Object>> logs = jdbcTemplate.queryForList(sql);
+            // Быстрый подсчет общего количества: куб свертки или статистика таблицы
+            LogCountService.Count totalCount = logParsingService.getLogCount(exactCount);
 
-            // Быстрый подсчет общего количества
-            Long totalCount = jdbcTemplate.queryForObject(
-                    "SELECT COUNT(*) FROM logs", Long.class
-            );
-
-            int totalPages = (int) Math.ceil((double) (totalCount != null ? totalCount : 0) / size);
+            int totalPages = (int) Math.ceil((double) totalCount.value / size);
 
             result.put("success", true);
-            result.put("logs", logs);
+            result.putAll(logsPage);
             result.put("totalPages", totalPages);
             result.put("currentPage", page);
-            result.put("totalRecords", totalCount != null ? totalCount : 0);
+            result.put("totalRecords", totalCount.value);
+            result.put("countExact", totalCount.exact);
 
         } catch (Exception e) {
             result.put("success", false);
@@ -265,10 +307,20 @@ public class ParsingController {
             @RequestParam(required = false) String action) {
 
         try {
-            var topUrls = logParsingService.getTopUrlsWithFilters(urlLimit, dateFrom, dateTo,
-                    ip, username, status, action);
-            var topUsers = logParsingService.getTopUsersWithFilters(userLimit, dateFrom, dateTo,
-                    ip, username, status, action);
+            // Топы URL и пользователей независимы - считаются одновременно
+            List<Map<String, Object>> topUrls;
+            List<Map<String, Object>> topUsers;
+            try (QueryFanOutService.Batch batch = queryFanOutService.batch()) {
+                QueryFanOutService.Task<List<Map<String, Object>>> urlsTask = batch.submit("topUrls",
+                        () -> logParsingService.getTopUrlsWithFilters(urlLimit, dateFrom, dateTo,
+                                ip, username, status, action));
+                QueryFanOutService.Task<List<Map<String, Object>>> usersTask = batch.submit("topUsers",
+                        () -> logParsingService.getTopUsersWithFilters(userLimit, dateFrom, dateTo,
+                                ip, username, status, action));
+                batch.await();
+                topUrls = urlsTask.get();
+                topUsers = usersTask.get();
+            }
 
             return ResponseEntity.ok(Map.of(
                     "success", true,
@@ -367,7 +419,7 @@ public class ParsingController {
         try {
             List<Integer> statuses = new ArrayList<>();
 
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD)) {
+            try (Connection conn = connectionPools.interactive().getConnection()) {
                 // Сначала проверяем существование таблицы
                 boolean tableExists = false;
                 try (Statement stmt = conn.createStatement();
@@ -431,11 +483,7 @@ public class ParsingController {
         try {
             List<String> actions = new ArrayList<>();
 
-            String DB_URL = "jdbc:postgresql://localhost:5432/ParserLog";
-            String DB_USERNAME = "postgres";
-            String DB_PASSWORD = "uthgb123";
-
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD)) {
+            try (Connection conn = connectionPools.interactive().getConnection()) {
                 // Сначала проверяем существование таблицы
                 boolean tableExists = false;
                 try (Statement stmt = conn.createStatement();
@@ -516,6 +564,141 @@ public class ParsingController {
         }
     }
 
+    @PostMapping("/follow/start")
+    public ResponseEntity<?> startFollow(@RequestBody Map<String, String> request) {
+        System.out.println("=== ЗАПРОС НА СЛЕЖЕНИЕ ЗА ФАЙЛОМ ===");
+
+        String filePath = request.get("filePath");
+        if (filePath == null || filePath.isEmpty()) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("success", false, "error", "Путь к файлу не указан")
+            );
+        }
+        if (!java.nio.file.Files.exists(java.nio.file.Paths.get(filePath))) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("success", false, "error", "Файл не найден: " + filePath)
+            );
+        }
+
+        try {
+            logFollowService.start(filePath);
+            return ResponseEntity.ok(Map.of(
+                    "success", true,
+                    "message", "Слежение запущено",
+                    "filePath", filePath
+            ));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.ok(Map.of(
+                    "success", false,
+                    "error", e.getMessage()
+            ));
+        } catch (Exception e) {
+            System.err.println("Ошибка запуска слежения: " + e.getMessage());
+            return ResponseEntity.status(500).body(Map.of(
+                    "success", false,
+                    "error", "Ошибка запуска слежения: " + e.getMessage()
+            ));
+        }
+    }
+
+    @PostMapping("/follow/stop")
+    public ResponseEntity<?> stopFollow() {
+        if (logFollowService.stop()) {
+            return ResponseEntity.ok(Map.of(
+                    "success", true,
+                    "message", "Слежение остановлено"
+            ));
+        }
+        return ResponseEntity.ok(Map.of(
+                "success", false,
+                "error", "Слежение не запущено"
+        ));
+    }
+
+    @GetMapping("/follow/status")
+    public ResponseEntity<?> getFollowStatus() {
+        return ResponseEntity.ok(logFollowService.getStatus());
+    }
+
+    // Пулы соединений: занятость, ожидающие потоки и время ожидания соединения
+    @GetMapping("/db-pools")
+    public ResponseEntity<?> getDbPools() {
+        return ResponseEntity.ok(Map.of(
+                "success", true,
+                "pools", connectionPools.getMetrics()
+        ));
+    }
+
+    // Колоночное хранилище в памяти: строки, блоки, объем колонок, идет ли чтение logs
+    @GetMapping("/columnar")
+    public ResponseEntity<?> getColumnarInfo() {
+        return ResponseEntity.ok(Map.of(
+                "success", true,
+                "columnar", columnarStoreService.getInfo()
+        ));
+    }
+
+    // Заполнение колоночного хранилища чтением logs (в фоне; ход - в /columnar)
+    @PostMapping("/columnar/load")
+    public ResponseEntity<?> loadColumnar() {
+        if (!columnarStoreService.isEnabled()) {
+            return ResponseEntity.badRequest().body(Map.of("success", false,
+                    "error", "Колоночное хранилище отключено (logparser.columnar.enabled)"));
+        }
+        boolean started = columnarStoreService.startLoadFromDatabase();
+        return ResponseEntity.ok(Map.of(
+                "success", started,
+                "message", started ? "Чтение logs в колоночное хранилище запущено" : "Чтение logs уже выполняется"
+        ));
+    }
+
+    // Перезагрузка одного дня (секции, в которую он попадает) секционированной logs; ход - в /parsing-status
+    @PostMapping("/partitions/reload")
+    public ResponseEntity<?> reloadPartition(@RequestBody Map<String, String> request) {
+        System.out.println("=== ЗАПРОС НА ПЕРЕЗАГРУЗКУ СЕКЦИИ ===");
+
+        String filePath = request.get("filePath");
+        String day = request.get("day");
+        if (filePath == null || filePath.isEmpty() || day == null || day.isEmpty()) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("success", false, "error", "Укажите filePath и day (ГГГГ-ММ-ДД)")
+            );
+        }
+        if (!java.nio.file.Files.exists(java.nio.file.Paths.get(filePath))) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("success", false, "error", "Файл не найден: " + filePath)
+            );
+        }
+
+        java.time.LocalDateTime dayStart;
+        try {
+            dayStart = java.time.LocalDate.parse(day).atStartOfDay();
+        } catch (java.time.format.DateTimeParseException e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("success", false, "error", "Неверная дата: " + day)
+            );
+        }
+
+        if (logFollowService.isRunning()) {
+            return ResponseEntity.ok(Map.of(
+                    "success", false,
+                    "error", "Остановите слежение перед перезагрузкой секции"
+            ));
+        }
+        if (!logParsingService.startPartitionReload(filePath, dayStart)) {
+            return ResponseEntity.ok(Map.of(
+                    "success", false,
+                    "error", "Парсинг уже выполняется"
+            ));
+        }
+        return ResponseEntity.ok(Map.of(
+                "success", true,
+                "message", "Перезагрузка секции запущена",
+                "filePath", filePath,
+                "day", day
+        ));
+    }
+
     @PostMapping("/clear")
     public ResponseEntity<?> clearCache() {
         try {
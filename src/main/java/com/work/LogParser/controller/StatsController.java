@@ -1,11 +1,13 @@
 package com.work.LogParser.controller;
 
 import com.work.LogParser.service.AggregatedStatsService;
+import com.work.LogParser.service.DistinctCountService;
 import com.work.LogParser.service.PrecalculatedTopService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -20,6 +22,9 @@ public class StatsController {
     @Autowired
     private PrecalculatedTopService precalculatedTopService;
 
+    @Autowired
+    private DistinctCountService distinctCountService;
+
 
     // Принудительно пересчитать дефолтную статистику
     @PostMapping("/recalculate-default")
@@ -54,6 +59,32 @@ public class StatsController {
         }
     }
 
+    // Оценка различных IP и пользователей за период по часовым скетчам (даты как 2024-01-15T10:30)
+    @GetMapping("/distinct")
+    public ResponseEntity<?> getDistinctCounts(@RequestParam(required = false) String dateFrom,
+                                               @RequestParam(required = false) String dateTo) {
+        try {
+            LocalDateTime from = dateFrom != null && !dateFrom.isEmpty() ? LocalDateTime.parse(dateFrom) : null;
+            LocalDateTime to = dateTo != null && !dateTo.isEmpty() ? LocalDateTime.parse(dateTo) : null;
+            Map<String, Object> estimate = distinctCountService.estimate(from, to);
+            if (estimate == null) {
+                return ResponseEntity.ok(Map.of(
+                        "success", false,
+                        "message", "Скетчи не покрывают данные или период короче часа - используйте точный подсчет"
+                ));
+            }
+            return ResponseEntity.ok(Map.of(
+                    "success", true,
+                    "distinct", estimate
+            ));
+        } catch (Exception e) {
+            return ResponseEntity.status(500).body(Map.of(
+                    "success", false,
+                    "error", "Ошибка оценки различных значений: " + e.getMessage()
+            ));
+        }
+    }
+
     // Получить информацию об агрегированной статистике
     @GetMapping("/info")
     public ResponseEntity<?> getStatsInfo() {
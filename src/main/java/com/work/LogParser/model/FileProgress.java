@@ -0,0 +1,24 @@
+package com.work.LogParser.model;
+
+// Прогресс одного файла при загрузке нескольких файлов за один запуск
+public class FileProgress {
+    public final String filePath;
+    public final long sizeBytes;
+    public final boolean gzip;
+
+    public String state = "queued"; // queued, loading, done, failed
+    public long loadEnd = 0;        // до какого байта загружается файл (конец последней полной строки)
+    public long processedBytes = 0;
+    public long processedLines = 0;
+    public long records = 0;
+    public int chunks = 0;
+    public long startTime = 0;
+    public long finishTime = 0;
+    public String error = null;
+
+    public FileProgress(String filePath, long sizeBytes, boolean gzip) {
+        this.filePath = filePath;
+        this.sizeBytes = sizeBytes;
+        this.gzip = gzip;
+    }
+}
@@ -0,0 +1,17 @@
+package com.work.LogParser.model;
+
+// Прогресс построения одного индекса после загрузки
+public class IndexProgress {
+    public final String name;
+    public final int weight;
+
+    public String state = "queued"; // queued, building, done, failed, cancelled
+    public long startTime = 0;
+    public long finishTime = 0;
+    public String error = null;
+
+    public IndexProgress(String name, int weight) {
+        this.name = name;
+        this.weight = weight;
+    }
+}
@@ -0,0 +1,69 @@
+package com.work.LogParser.model;
+
+import java.nio.charset.StandardCharsets;
+
+// Разобранная строка лога. Экземпляр переиспользуется для каждой строки одного потока,
+// текстовые поля ссылаются на байты исходного буфера без создания строк
+public class LogRecord {
+    public long epochSeconds;
+    public int nanos;
+    public int responseTimeMs;
+    public long responseSizeBytes;
+    public int statusCode;
+
+    public final ByteSlice ip = new ByteSlice();
+    public final ByteSlice action = new ByteSlice();
+    public final ByteSlice url = new ByteSlice();
+    public final ByteSlice username = new ByteSlice();
+    public final ByteSlice domain = new ByteSlice();
+
+    public void reset() {
+        epochSeconds = 0;
+        nanos = 0;
+        responseTimeMs = 0;
+        responseSizeBytes = 0;
+        statusCode = 0;
+        ip.clear();
+        action.clear();
+        url.clear();
+        username.clear();
+        domain.clear();
+    }
+
+    // Ссылка на участок массива байт (UTF-8)
+    public static class ByteSlice {
+        public byte[] buf;
+        public int off;
+        public int len;
+
+        public void set(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+        }
+
+        public void set(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            set(bytes, 0, bytes.length);
+        }
+
+        public void clear() {
+            buf = null;
+            off = 0;
+            len = 0;
+        }
+
+        public boolean isEmpty() {
+            return buf == null || len == 0;
+        }
+
+        public byte at(int i) {
+            return buf[off + i];
+        }
+
+        @Override
+        public String toString() {
+            return buf == null ? null : new String(buf, off, len, StandardCharsets.UTF_8);
+        }
+    }
+}
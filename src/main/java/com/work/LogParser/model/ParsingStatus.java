@@ -1,5 +1,8 @@
 package com.work.LogParser.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ParsingStatus {
     // Существующие поля
     public boolean isParsing = false;
@@ -25,6 +28,11 @@ public class ParsingStatus {
 
     public long estimatedTimeRemaining = 0;
 
+    // Прогресс парсинга по байтам, прочитанным с канала файла (для gzip - сжатым байтам)
+    public long bytesProcessed = 0;
+    public long bytesTotal = 0;
+    public double bytesPerSecond = 0;
+
     // Фактическое время выполнения этапов (мс)
     public long actualParsingTime = 0;
     public long actualFinalizationTime = 0;
@@ -40,9 +48,17 @@ public class ParsingStatus {
     // Время начала текущего этапа
     public long stageStartTime = 0;
 
+    // Ожидание на передаче данных в COPY (мс): парсер ждал свободный буфер / COPY ждал данные
+    public long parserWaitMs = 0;
+    public long copyWaitMs = 0;
+
+    // Загрузка нескольких файлов (каталог или маска): прогресс по каждому файлу
+    public List<FileProgress> files = new ArrayList<>();
+
     // Для отслеживания прогресса индексации
     public int indexesCreated = 0;
     public int totalIndexes = 6; // Общее количество индексов
+    public List<IndexProgress> indexes = new ArrayList<>(); // Прогресс по каждому индексу
 
     // Для отслеживания прогресса статистики
     public String currentStatisticTask = "";
@@ -0,0 +1,72 @@
+package com.work.LogParser.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Курсор постраничного вывода logs по ключу (keyset): позиция - значения сортируемой колонки,
+ * time и id последней (или первой) строки страницы. Следующая страница выбирается условием
+ * (колонка, time, id) < (...) по составному индексу вместо OFFSET, поэтому глубокие страницы
+ * не требуют перебора пропущенных строк. Для клиента курсор непрозрачен (base64url).
+ */
+public final class LogCursor {
+
+    // Ключ сортировки в API (как data-sort в таблице) -> колонка logs; значения колонок не бывают NULL
+    public static final Map<String, String> SORT_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        SORT_COLUMNS.put("time", "time");
+        SORT_COLUMNS.put("statusCode", "status_code");
+        SORT_COLUMNS.put("responseTime", "response_time_ms");
+        SORT_COLUMNS.put("responseSize", "response_size_bytes");
+    }
+
+    final String sort;
+    final boolean descending;
+    final Long value;
+    final LocalDateTime time;
+    final long id;
+
+    LogCursor(String sort, boolean descending, Long value, LocalDateTime time, long id) {
+        this.sort = sort;
+        this.descending = descending;
+        this.value = value;
+        this.time = time;
+        this.id = id;
+    }
+
+    // Курсор на строку результата (time, id и, кроме сортировки по времени, sort_value)
+    static LogCursor of(String sort, boolean descending, Map<String, Object> row) {
+        Object value = row.get("sort_value");
+        return new LogCursor(sort, descending,
+                value instanceof Number ? ((Number) value).longValue() : null,
+                ((Timestamp) row.get("time")).toLocalDateTime(),
+                ((Number) row.get("id")).longValue());
+    }
+
+    String encode() {
+        String raw = sort + "|" + (descending ? "desc" : "asc") + "|" + (value != null ? value : "") + "|" + time + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static LogCursor decode(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|", -1);
+            if (parts.length != 5 || !SORT_COLUMNS.containsKey(parts[0])
+                    || (parts[2].isEmpty() != parts[0].equals("time"))) {
+                throw new IllegalArgumentException("Некорректный курсор страницы");
+            }
+            return new LogCursor(parts[0], "desc".equals(parts[1]),
+                    parts[2].isEmpty() ? null : Long.valueOf(parts[2]),
+                    LocalDateTime.parse(parts[3]),
+                    Long.parseLong(parts[4]));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Некорректный курсор страницы", e);
+        }
+    }
+}
@@ -1,36 +1,77 @@
 package com.work.LogParser.repository;
 
+import com.work.LogParser.config.ConnectionPools;
 import com.work.LogParser.config.DatabaseConfig;
+import com.work.LogParser.service.ColumnarStoreService;
+import com.work.LogParser.service.LogCountService;
+import com.work.LogParser.service.LogDictionaryService;
+import com.work.LogParser.service.QueryFanOutService;
 import com.work.LogParser.service.StatisticsService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ColumnMapRowMapper;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapperResultSetExtractor;
 import org.springframework.stereotype.Service;
 
 import java.sql.*;
 import java.util.*;
-
-import static com.work.LogParser.config.DatabaseConfig.*;
+import java.util.regex.Pattern;
 
 @Service
 public class LogDataRepository {
 
+    // Слова url в нижнем регистре - выражение индекса idx_logs_url_tokens
+    public static final String URL_TOKENS = "regexp_split_to_array(lower(url), '[^a-z0-9]+')";
+
+    private static final Pattern URL_TOKEN = Pattern.compile("[A-Za-z0-9]+");
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
     @Autowired
     private StatisticsService statisticsService;
 
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Autowired
+    private LogCountService logCountService;
+
+    @Autowired
+    private QueryFanOutService queryFanOutService;
+
+    @Autowired
+    private ColumnarStoreService columnarStoreService;
+
     public Map<String, Object> getLogsWithStats(int page, int size,
                                                 String dateFrom, String dateTo,
                                                 String clientIp, String username,
                                                 String status, String search, String action) {
+        return getLogsWithStats(page, size, dateFrom, dateTo, clientIp, username, status, search, action,
+                null, null, null, null, false, false);
+    }
+
+    /**
+     * Страница логов со статистикой. Страницы выбираются по курсору (cursor из nextCursor/prevCursor
+     * предыдущего ответа, direction - next или prev) с сортировкой sort/order; page без курсора
+     * поддерживается через OFFSET для совместимости. Число строк - из LogCountService (countExact - точное ли),
+     * exactCount - точный подсчет, даже если это проход по logs. wholeWord - search ищется как целое слово
+     * url без учета регистра (по индексу слов, если он построен), иначе подстрокой в url и домене.
+     */
+    public Map<String, Object> getLogsWithStats(int page, int size,
+                                                String dateFrom, String dateTo,
+                                                String clientIp, String username,
+                                                String status, String search, String action,
+                                                String sort, String order, String cursor, String direction,
+                                                boolean exactCount, boolean wholeWord) {
 
         Map<String, Object> result = new HashMap<>();
 
         try {
-            // Простая пагинация
-            int offset = (page - 1) * size;
-
             // Строим базовый запрос
             StringBuilder where = new StringBuilder("WHERE 1=1");
             if (dateFrom != null && !dateFrom.isEmpty()) {
@@ -43,33 +84,57 @@ public class LogDataRepository {
                 where.append(" AND ip = '").append(clientIp).append("'");
             }
             if (username != null && !username.isEmpty()) {
-                where.append(" AND username = '").append(username).append("'");
+                where.append(" AND ").append(dictionaryService.equalsLiteral("username", username));
             }
             if (status != null && !status.isEmpty()) {
                 where.append(" AND status_code = ").append(status);
             }
             if (search != null && !search.isEmpty()) {
-                where.append(" AND (url LIKE '%").append(search).append("%' OR domain LIKE '%").append(search).append("%')");
+                where.append(" AND ").append(searchCondition(search, wholeWord));
             }
             if (action != null && !action.isEmpty()) {
-                where.append(" AND action = '").append(action).append("'");
+                where.append(" AND ").append(dictionaryService.equalsLiteral("action", action));
             }
             // Получаем данные
-            String sql = "SELECT " +
+            String columns =
                     "id, " +
                     "time, " +
                     "ip, " +
-                    "username, " +
+                    dictionaryService.select("username") + ", " +
                     "url, " +
                     "COALESCE(status_code, 0) as statusCode, " +           // statusCode с заменой NULL на 0
-                    "domain, " +
+                    dictionaryService.select("domain") + ", " +
                     "COALESCE(response_time_ms, 0) as responseTime, " +    // responseTime с заменой NULL на 0
                     "COALESCE(response_size_bytes, 0) as responseSize, " + // responseSize с заменой NULL на 0
-                    "action " +
-                    "FROM logs " + where + " ORDER BY time DESC LIMIT " + size + " OFFSET " + offset;
+                    dictionaryService.select("action");
+
+            // Страница, число строк и статистика независимы - выполняются одновременно
+            String whereSql = where.toString();
+            Map<String, Object> logsPage;
+            LogCountService.Count totalCount;
+            Map<String, Object> stats;
+            try (QueryFanOutService.Batch batch = queryFanOutService.batch()) {
+                QueryFanOutService.Task<Map<String, Object>> pageTask = batch.query("page",
+                        conn -> getLogsPage(conn, columns, whereSql, page, size, sort, order, cursor, direction));
+                // Общее количество: точно по кубу свертки или оценка планировщика
+                QueryFanOutService.Task<LogCountService.Count> countTask = batch.query("count",
+                        conn -> logCountService.count(conn, whereSql, dateFrom, dateTo,
+                                clientIp, username, status, search, action, exactCount));
+                // Базовая статистика: без поиска - без прохода по logs (из памяти или куба свертки)
+                QueryFanOutService.Task<Map<String, Object>> statsTask = batch.submit("stats",
+                        () -> search == null || search.isEmpty()
+                                ? statisticsService.getBasicStats(whereSql, dateFrom, dateTo,
+                                        clientIp, username, status, action)
+                                : statisticsService.getBasicStats(whereSql));
+                batch.await();
+                logsPage = pageTask.get();
+                totalCount = countTask.get();
+                stats = statsTask.get();
+            }
 
-            System.out.println("SQL запрос для логов: " + sql);
-            List<Map<String, Object>> logs = jdbcTemplate.queryForList(sql);
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> logs = (List<Map<String, Object>>) logsPage.get("logs");
+            dictionaryService.resolveRows(logs, "username", "domain", "action");
 
             for (Map<String, Object> log : logs) {
                 // Приводим статус к Integer
@@ -109,17 +174,13 @@ public class LogDataRepository {
                 }
             }
 
-            // Общее количество
-            String countSql = "SELECT COUNT(*) FROM logs " + where;
-            Long totalCount = jdbcTemplate.queryForObject(countSql, Long.class);
-            int totalPages = (int) Math.ceil((double) (totalCount != null ? totalCount : 0) / size);
-
-            // Базовая статистика
-            Map<String, Object> stats = statisticsService.getBasicStats(where.toString());
+            int totalPages = (int) Math.ceil((double) totalCount.value / size);
 
-            result.put("logs", logs);
+            result.putAll(logsPage);
             result.put("stats", stats);
             result.put("totalPages", totalPages);
+            result.put("totalCount", totalCount.value);
+            result.put("countExact", totalCount.exact);
             result.put("currentPage", page);
 
         } catch (Exception e) {
@@ -136,6 +197,120 @@ public class LogDataRepository {
         return result;
     }
 
+    // Подстрока в url или домене (LIKE по триграммным индексам); wholeWord - одно слово url по индексу слов
+    // (домен входит в url). Слово из нескольких частей ищется подстрокой
+    private String searchCondition(String search, boolean wholeWord) {
+        if (wholeWord && URL_TOKEN.matcher(search).matches()) {
+            return URL_TOKENS + " @> ARRAY['" + search.toLowerCase() + "']";
+        }
+        return "(url LIKE '%" + search + "%' OR " + dictionaryService.containsLiteral("domain", search) + ")";
+    }
+
+    // Последние логи без статистики (быстрый просмотр) - та же постраничная выборка без фильтров
+    public Map<String, Object> getQuickLogs(int page, int size, String sort, String order,
+                                            String cursor, String direction) {
+        String columns = "id, time, ip, " + dictionaryService.select("username") +
+                ", url, status_code as statusCode, " + dictionaryService.select("domain");
+        Map<String, Object> logsPage = jdbcTemplate.execute((ConnectionCallback<Map<String, Object>>) conn ->
+                getLogsPage(conn, columns, "WHERE 1=1", page, size, sort, order, cursor, direction));
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> logs = (List<Map<String, Object>>) logsPage.get("logs");
+        dictionaryService.resolveRows(logs, "username", "domain");
+        return logsPage;
+    }
+
+    /**
+     * Страница logs по ключу сортировки (колонка, time, id). С курсором строки выбираются условием
+     * "(колонка, time, id) < курсор" (или >) по составному индексу; prev - обратный проход с разворотом
+     * результата. Без курсора - первая страница или, для page > 1, OFFSET. columns должны содержать id и time,
+     * where - начинаться с WHERE. В ответе logs, nextCursor и prevCursor (null - в эту сторону строк нет),
+     * sort и order.
+     */
+    private Map<String, Object> getLogsPage(Connection conn, String columns, String where, int page, int size,
+                                            String sort, String order, String cursor, String direction)
+            throws SQLException {
+        String sortKey = sort != null && LogCursor.SORT_COLUMNS.containsKey(sort) ? sort : "time";
+        String column = LogCursor.SORT_COLUMNS.get(sortKey);
+        boolean descending = !"asc".equalsIgnoreCase(order);
+        boolean byTime = column.equals("time");
+
+        LogCursor position = cursor != null && !cursor.isEmpty() ? LogCursor.decode(cursor) : null;
+        if (position != null && (!position.sort.equals(sortKey) || position.descending != descending)) {
+            // Сортировка сменилась - курсор относится к другому порядку, начинаем с первой страницы
+            position = null;
+        }
+        boolean backward = position != null && "prev".equalsIgnoreCase(direction);
+        String dir = descending != backward ? " DESC" : " ASC";
+
+        StringBuilder sql = new StringBuilder("SELECT ").append(columns);
+        if (!byTime) {
+            sql.append(", ").append(column).append(" AS sort_value");
+        }
+        sql.append(" FROM logs ").append(where);
+
+        List<Object> params = new ArrayList<>();
+        if (position != null) {
+            sql.append(byTime ? " AND (time, id)" : " AND (" + column + ", time, id)")
+                    .append(descending != backward ? " < " : " > ")
+                    .append(byTime ? "(?, ?)" : "(?, ?, ?)");
+            if (!byTime) {
+                params.add(position.value);
+            }
+            params.add(Timestamp.valueOf(position.time));
+            params.add(position.id);
+        }
+
+        sql.append(" ORDER BY ");
+        if (!byTime) {
+            sql.append(column).append(dir).append(", ");
+        }
+        sql.append("time").append(dir).append(", id").append(dir);
+        // Лишняя строка показывает, есть ли строки дальше
+        sql.append(" LIMIT ").append(size + 1);
+        if (position == null && page > 1) {
+            sql.append(" OFFSET ").append((long) (page - 1) * size);
+        }
+
+        System.out.println("SQL запрос для логов: " + sql);
+        List<Map<String, Object>> rows;
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                ps.setObject(i + 1, params.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                rows = new ArrayList<>(new RowMapperResultSetExtractor<>(new ColumnMapRowMapper()).extractData(rs));
+            }
+        }
+        boolean more = rows.size() > size;
+        if (more) {
+            rows.remove(rows.size() - 1);
+        }
+        if (backward) {
+            Collections.reverse(rows);
+        }
+
+        String nextCursor = null;
+        String prevCursor = null;
+        if (!rows.isEmpty()) {
+            String first = LogCursor.of(sortKey, descending, rows.get(0)).encode();
+            String last = LogCursor.of(sortKey, descending, rows.get(rows.size() - 1)).encode();
+            // Вперед строки есть, если лишняя строка нашлась или мы пришли назад; назад - наоборот
+            nextCursor = backward || more ? last : null;
+            prevCursor = backward ? (more ? first : null) : (position != null || page > 1 ? first : null);
+        }
+        for (Map<String, Object> row : rows) {
+            row.remove("sort_value");
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("logs", rows);
+        result.put("nextCursor", nextCursor);
+        result.put("prevCursor", prevCursor);
+        result.put("sort", sortKey);
+        result.put("order", descending ? "desc" : "asc");
+        return result;
+    }
+
     private void buildWhereClause(StringBuilder where, List<Object> params,
                                   String dateFrom, String dateTo,
                                   String clientIp, String username,
@@ -143,14 +318,16 @@ public class LogDataRepository {
 
         List<String> conditions = new ArrayList<>();
 
+        // Даты передаются как timestamp: сравнение с типизированным параметром позволяет
+        // отсечь секции logs, не попадающие в период
         if (dateFrom != null && !dateFrom.isEmpty()) {
             conditions.add("time >= ?");
-            params.add(dateFrom);
+            params.add(toTimestamp(dateFrom));
         }
 
         if (dateTo != null && !dateTo.isEmpty()) {
             conditions.add("time <= ?");
-            params.add(dateTo);
+            params.add(toTimestamp(dateTo));
         }
 
         if (clientIp != null && !clientIp.isEmpty()) {
@@ -159,8 +336,7 @@ public class LogDataRepository {
         }
 
         if (username != null && !username.isEmpty()) {
-            conditions.add("username = ?");
-            params.add(username);
+            conditions.add(dictionaryService.equalsParam("username", username, params));
         }
 
         if (status != null && !status.isEmpty()) {
@@ -169,8 +345,7 @@ public class LogDataRepository {
         }
 
         if (action != null && !action.isEmpty()) {
-            conditions.add("action = ?");
-            params.add(action);
+            conditions.add(dictionaryService.equalsParam("action", action, params));
         }
 
         for (int i = 0; i < conditions.size(); i++) {
@@ -179,6 +354,11 @@ public class LogDataRepository {
         }
     }
 
+    // Дата фильтра в формате 2024-01-15T10:30 или 2024-01-15 10:30[:00]
+    private Timestamp toTimestamp(String value) {
+        return Timestamp.valueOf(java.time.LocalDateTime.parse(value.trim().replace(' ', 'T')));
+    }
+
     public boolean hasDataInDatabase() {
         try {
             // Сначала проверяем существование таблицы
@@ -191,8 +371,7 @@ public class LogDataRepository {
                 return false;
             }
 
-            Long count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM logs LIMIT 1", Long.class);
-            return count != null && count > 0;
+            return logCountService.hasRows();
         } catch (Exception e) {
             System.err.println("Ошибка проверки наличия данных: " + e.getMessage());
             return false;
@@ -200,18 +379,22 @@ public class LogDataRepository {
     }
 
     public long getLogCount() {
+        return getLogCount(false).value;
+    }
+
+    // Число строк logs: точно по кубу свертки или оценка статистики таблицы; exact - полный подсчет
+    public LogCountService.Count getLogCount(boolean exact) {
         try {
-            Long count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM logs", Long.class);
-            return count != null ? count : 0;
+            return logCountService.countAll(exact);
         } catch (Exception e) {
-            return 0;
+            return new LogCountService.Count(0, false);
         }
     }
 
     public List<Integer> getAvailableStatuses() {
         List<Integer> statuses = new ArrayList<>();
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD)) {
+        try (Connection conn = connectionPools.interactive().getConnection()) {
             // Пробуем получить из таблицы статусов
             boolean hasStatusesTable = false;
             try (Statement stmt = conn.createStatement();
@@ -255,7 +438,7 @@ public class LogDataRepository {
     public List<String> getAvailableActions() {
         List<String> actions = new ArrayList<>();
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD)) {
+        try (Connection conn = connectionPools.interactive().getConnection()) {
             // Пробуем получить из таблицы actions
             boolean hasActionsTable = false;
             try (Statement stmt = conn.createStatement();
@@ -297,6 +480,13 @@ public class LogDataRepository {
                                                            String dateFrom, String dateTo,
                                                            String clientIp, String username,
                                                            String status, String action) {
+        // Колоночное хранилище в памяти - без GROUP BY по logs
+        List<Map<String, Object>> fromMemory = columnarStoreService.getTopUrls(limit, dateFrom, dateTo,
+                clientIp, username, status, action);
+        if (fromMemory != null) {
+            return fromMemory;
+        }
+
         List<Map<String, Object>> result = new ArrayList<>();
         StringBuilder whereClause = new StringBuilder();
         List<Object> params = new ArrayList<>();
@@ -306,7 +496,7 @@ public class LogDataRepository {
 
         String sql = "SELECT " +
                 "url, " +
-                "domain, " + // ДОБАВИТЬ domain в SELECT
+                dictionaryService.select("domain") + ", " + // ДОБАВИТЬ domain в SELECT
                 "COUNT(*)::BIGINT as request_count, " +
                 "ROUND(AVG(response_time_ms))::INTEGER as avg_response_time, " +
                 "SUM(response_size_bytes)::BIGINT as total_bytes, " +
@@ -314,7 +504,7 @@ public class LogDataRepository {
                 "FROM logs " +
                 "WHERE url IS NOT NULL AND url != '-' " + // ДОБАВИТЬ условия по url
                 (whereClause.length() > 0 ? " AND " + whereClause.toString() : "") +
-                " GROUP BY url, domain " + // ГРУППИРОВАТЬ по url и domain
+                " GROUP BY url, " + dictionaryService.column("domain") + " " + // ГРУППИРОВАТЬ по url и domain
                 " ORDER BY request_count DESC " +
                 " LIMIT ?";
 
@@ -325,7 +515,7 @@ public class LogDataRepository {
             for (Map<String, Object> row : rows) {
                 Map<String, Object> item = new HashMap<>();
                 item.put("url", row.get("url"));
-                item.put("domain", row.get("domain")); // ДОБАВИТЬ domain
+                item.put("domain", dictionaryService.resolve("domain", row.get("domain"))); // ДОБАВИТЬ domain
 
                 // Исправляем приведение типов:
                 Object countObj = row.get("request_count");
@@ -361,6 +551,12 @@ public class LogDataRepository {
                                                             String dateFrom, String dateTo,
                                                             String clientIp, String username,
                                                             String status, String action) {
+        List<Map<String, Object>> fromMemory = columnarStoreService.getTopUsers(limit, dateFrom, dateTo,
+                clientIp, username, status, action);
+        if (fromMemory != null) {
+            return fromMemory;
+        }
+
         List<Map<String, Object>> result = new ArrayList<>();
         StringBuilder whereClause = new StringBuilder();
         List<Object> params = new ArrayList<>();
@@ -369,7 +565,7 @@ public class LogDataRepository {
         buildWhereClause(whereClause, params, dateFrom, dateTo, clientIp, username, status, action);
 
         String sql = "SELECT " +
-                "username, " +
+                dictionaryService.select("username") + ", " +
                 "MIN(ip) as ip, " + // MIN(ip) вместо просто ip
                 "COUNT(*)::BIGINT as request_count, " +
                 "COUNT(DISTINCT ip)::BIGINT as unique_ips, " +
@@ -378,9 +574,9 @@ public class LogDataRepository {
                 "MIN(time) as first_seen, " + // ДОБАВИТЬ
                 "MAX(time) as last_seen " +   // ДОБАВИТЬ
                 "FROM logs " +
-                "WHERE username IS NOT NULL AND username != '-' " +
+                "WHERE " + dictionaryService.notDash("username") + " " +
                 (whereClause.length() > 0 ? " AND " + whereClause.toString() : "") +
-                " GROUP BY username " + // ГРУППИРОВАТЬ только по username
+                " GROUP BY " + dictionaryService.column("username") + " " + // ГРУППИРОВАТЬ только по username
                 " ORDER BY request_count DESC " +
                 " LIMIT ?";
 
@@ -390,7 +586,7 @@ public class LogDataRepository {
             List<Map<String, Object>> rows = jdbcTemplate.queryForList(sql, params.toArray());
             for (Map<String, Object> row : rows) {
                 Map<String, Object> item = new HashMap<>();
-                item.put("username", row.get("username"));
+                item.put("username", dictionaryService.resolve("username", row.get("username")));
                 item.put("ip", row.get("ip"));
 
                 // Исправляем приведение типов:
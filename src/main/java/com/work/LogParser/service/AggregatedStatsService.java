@@ -1,8 +1,10 @@
 package com.work.LogParser.service;
 
+import com.work.LogParser.config.ConnectionPools;
 import com.work.LogParser.config.DatabaseConfig;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.sql.*;
@@ -12,20 +14,42 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static com.work.LogParser.config.DatabaseConfig.*;
-
 @Service
 public class AggregatedStatsService {
 
+    @Autowired
+    private ConnectionPools connectionPools;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Autowired
+    private PrecalculatedTopService precalculatedTopService;
+
+    @Autowired
+    private DistinctCountService distinctCountService;
+
+    @Autowired
+    private StatsQueryEngine statsQueryEngine;
+
     // Сохраняет агрегированную статистику в БД
     public void saveAggregatedStats(Map<String, Object> stats,
                                     LocalDateTime periodStart,
                                     LocalDateTime periodEnd,
                                     boolean isDefault) {
-        try (Connection conn = DriverManager.getConnection(
-                DB_URL, DB_USERNAME, DB_PASSWORD)) {
+        saveAggregatedStats(stats, periodStart, periodEnd, isDefault, null, null);
+    }
+
+    // topUrls / topUsers - готовые топы (например, по скетчам загрузки); null - считаются запросами
+    private void saveAggregatedStats(Map<String, Object> stats,
+                                     LocalDateTime periodStart,
+                                     LocalDateTime periodEnd,
+                                     boolean isDefault,
+                                     List<Map<String, Object>> topUrls,
+                                     List<Map<String, Object>> topUsers) {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
 
             ensureStatsTableExists(conn);
 
@@ -38,8 +62,12 @@ public class AggregatedStatsService {
             String hourlyDistributionJson = convertArrayToJson((int[]) stats.get("hourly_distribution"));
 
             // Получаем и сохраняем топы
-            String topUrlsJson = getTopUrlsAsJson(conn, periodStart, periodEnd, 100);
-            String topUsersJson = getTopUsersAsJson(conn, periodStart, periodEnd, 10);
+            String topUrlsJson = topUrls != null
+                    ? objectMapper.writeValueAsString(topUrls)
+                    : getTopUrlsAsJson(conn, periodStart, periodEnd, 100);
+            String topUsersJson = topUsers != null
+                    ? objectMapper.writeValueAsString(topUsers)
+                    : getTopUsersAsJson(conn, periodStart, periodEnd, 10);
 
             // Сохраняем в БД
             String sql = "INSERT INTO aggregated_stats (" +
@@ -78,8 +106,7 @@ public class AggregatedStatsService {
 
     // Получает агрегированную статистику из БД по периоду
     public Map<String, Object> getAggregatedStats(LocalDateTime dateFrom, LocalDateTime dateTo) {
-        try (Connection conn = DriverManager.getConnection(
-                DB_URL, DB_USERNAME, DB_PASSWORD)) {
+        try (Connection conn = connectionPools.interactive().getConnection()) {
 
             if (!statsTableExists(conn)) {
                 return null;
@@ -235,8 +262,7 @@ public class AggregatedStatsService {
 
     // Вычисляет и сохраняет статистику по всем данным
     public void calculateAndSaveDefaultStats() {
-        try (Connection conn = DriverManager.getConnection(
-                DB_URL, DB_USERNAME, DB_PASSWORD)) {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
 
             System.out.println("📊 Вычисление дефолтной статистики по всем данным...");
 
@@ -269,124 +295,168 @@ public class AggregatedStatsService {
         }
     }
 
-    // Вычисляет статистику для периода
-    private Map<String, Object> calculateStatsForPeriod(LocalDateTime dateFrom, LocalDateTime dateTo, Connection conn)
-            throws SQLException {
-
-        StringBuilder where = new StringBuilder("WHERE 1=1");
+    /**
+     * Сохраняет дефолтную статистику, собранную при парсинге полной загрузки, без проходов по logs.
+     * Показатели те же, что у calculateStatsForPeriod. Если загрузка собрала скетчи частых значений,
+     * топы берутся из уже обновленных precalculated_tops, иначе считаются запросами.
+     */
+    public void saveDefaultStats(LoadStatsAccumulator collected) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("total_requests", collected.getRequests());
+        stats.put("error_requests", collected.getErrors());
+        stats.put("unique_ips", collected.getUniqueIps());
 
-        if (dateFrom != null) {
-            where.append(" AND time >= '").append(dateFrom.toString()).append("'");
-        }
-        if (dateTo != null) {
-            where.append(" AND time <= '").append(dateTo.toString()).append("'");
+        Map<String, Integer> statusDistribution = new HashMap<>();
+        for (Map.Entry<String, Long> group : collected.getStatusGroups().entrySet()) {
+            statusDistribution.put(group.getKey(), group.getValue().intValue());
         }
+        stats.put("status_distribution", statusDistribution);
 
-        Map<String, Object> stats = new HashMap<>();
-
-        try (Statement stmt = conn.createStatement()) {
-            // 1. Общее количество запросов
-            String countSql = "SELECT COUNT(*) FROM logs " + where;
-            Long totalRequests = executeCountQuery(countSql, stmt);
-            stats.put("total_requests", totalRequests != null ? totalRequests : 0L);
-
-            // 2. Ошибочные запросы
-            Long errorRequests = executeCountQuery(
-                    "SELECT COUNT(*) FROM logs " + where +
-                            " AND status_code >= 400", stmt);
-            stats.put("error_requests", errorRequests != null ? errorRequests : 0);
-
-            // 3. Уникальные IP
-            Long uniqueIps = executeCountQuery("SELECT COUNT(DISTINCT ip) FROM logs " + where, stmt);
-            stats.put("unique_ips", uniqueIps != null ? uniqueIps : 0);
-
-            // 4. Распределение HTTP статусов
-            Map<String, Integer> statusDistribution = getStatusDistribution(where.toString(), stmt);
-            stats.put("status_distribution", statusDistribution);
-
-            // 5. Распределение по часам
-            int[] hourlyDistribution = getHourlyDistribution(where.toString(), stmt);
-            stats.put("hourly_distribution", hourlyDistribution);
-
-            // 6. Среднее время ответа
-            Double avgResponseTime = executeDoubleQuery(
-                    "SELECT AVG(response_time_ms) FROM logs " + where +
-                            " AND response_time_ms > 0", stmt);
-            stats.put("avg_response_time", avgResponseTime != null ? Math.round(avgResponseTime) : 0);
-
-            // 7. Общий трафик в МБ
-            Long totalTrafficBytes = executeLongQuery(
-                    "SELECT COALESCE(SUM(response_size_bytes), 0) FROM logs " + where, stmt);
-            double totalTrafficMB = totalTrafficBytes != null ?
-                    totalTrafficBytes / (1024.0 * 1024.0) : 0;
-            stats.put("total_traffic_mb", Math.round(totalTrafficMB * 100.0) / 100.0);
+        int[] hourlyDistribution = new int[24];
+        long[] hourly = collected.getHourly();
+        for (int hour = 0; hour < 24; hour++) {
+            hourlyDistribution[hour] = (int) hourly[hour];
+        }
+        stats.put("hourly_distribution", hourlyDistribution);
+
+        stats.put("avg_response_time", collected.getResponseTimeSamples() > 0
+                ? Math.round((double) collected.getResponseTimeSum() / collected.getResponseTimeSamples()) : 0);
+
+        double totalTrafficMB = collected.getTrafficBytes() / (1024.0 * 1024.0);
+        stats.put("total_traffic_mb", Math.round(totalTrafficMB * 100.0) / 100.0);
+
+        List<Map<String, Object>> topUrls = null;
+        List<Map<String, Object>> topUsers = null;
+        if (collected.hasTopSketches()) {
+            topUrls = topItems(precalculatedTopService.getPrecalculatedTopUrls(100), "url");
+            topUsers = topItems(precalculatedTopService.getPrecalculatedTopUsers(10), "username");
+            // Топы не сохранились - считаем запросами
+            if (topUrls.isEmpty() || topUsers.isEmpty()) {
+                topUrls = null;
+                topUsers = null;
+            }
         }
 
-        return stats;
+        saveAggregatedStats(stats, collected.getMinTime(), collected.getMaxTime(), true, topUrls, topUsers);
+        System.out.printf("✅ Дефолтная статистика сохранена: %,d запросов, %,d уникальных IP%n",
+                collected.getRequests(), collected.getUniqueIps());
     }
 
-    // Вспомогательные методы для выполнения запросов
-    private Long executeCountQuery(String sql, Statement stmt) throws SQLException {
-        try (ResultSet rs = stmt.executeQuery(sql)) {
-            return rs.next() ? rs.getLong(1) : 0L;
+    // Элементы топа в формате top_*_json: {key, count}
+    private List<Map<String, Object>> topItems(List<Map<String, Object>> tops, String key) {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (Map<String, Object> top : tops) {
+            Map<String, Object> item = new HashMap<>();
+            item.put(key, top.get(key));
+            item.put("count", ((Number) top.getOrDefault("count", 0L)).longValue());
+            items.add(item);
         }
+        return items;
     }
 
-    private Double executeDoubleQuery(String sql, Statement stmt) throws SQLException {
-        try (ResultSet rs = stmt.executeQuery(sql)) {
-            return rs.next() ? rs.getDouble(1) : 0.0;
+    /**
+     * Добавляет микропорцию режима слежения к дефолтной статистике в переданном соединении
+     * (в одной транзакции с вставкой строк). Аддитивные показатели обновляются точно;
+     * среднее время ответа взвешивается по числу запросов. Уникальные IP и топы не аддитивны -
+     * они обновляются полным пересчетом calculateAndSaveDefaultStats с редкой периодичностью.
+     * Возвращает false, если дефолтной статистики еще нет.
+     */
+    public boolean applyBatchToDefaultStats(Connection conn, IngestBatchStats batch)
+            throws SQLException, JsonProcessingException {
+        if (batch.isEmpty() || !statsTableExists(conn)) {
+            return false;
         }
-    }
 
-    private Long executeLongQuery(String sql, Statement stmt) throws SQLException {
-        try (ResultSet rs = stmt.executeQuery(sql)) {
-            return rs.next() ? rs.getLong(1) : 0L;
-        }
-    }
+        String selectSql = "SELECT id, period_start, period_end, total_requests, avg_response_time, " +
+                "status_distribution_json, hourly_distribution_json " +
+                "FROM aggregated_stats WHERE is_default = true ORDER BY created_at DESC LIMIT 1 FOR UPDATE";
 
-    private Map<String, Integer> getStatusDistribution(String where, Statement stmt) throws SQLException {
-        Map<String, Integer> distribution = new HashMap<>();
-
-        String statusQuery = "SELECT " +
-                "CASE " +
-                "  WHEN status_code >= 200 AND status_code < 300 THEN '2xx (Успех)' " +
-                "  WHEN status_code >= 300 AND status_code < 400 THEN '3xx (Перенаправление)' " +
-                "  WHEN status_code >= 400 AND status_code < 500 THEN '4xx (Ошибка клиента)' " +
-                "  WHEN status_code >= 500 THEN '5xx (Ошибка сервера)' " +
-                "  ELSE 'Другие' " +
-                "END as status_group, " +
-                "COUNT(*) as count " +
-                "FROM logs " + where +
-                " GROUP BY status_group " +
-                " ORDER BY count DESC";
-
-        try (ResultSet rs = stmt.executeQuery(statusQuery)) {
-            while (rs.next()) {
-                distribution.put(rs.getString("status_group"), rs.getInt("count"));
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(selectSql)) {
+            if (!rs.next()) {
+                return false;
             }
-        }
 
-        return distribution;
-    }
+            long id = rs.getLong("id");
+            long totalRequests = rs.getLong("total_requests");
+            double avgResponseTime = rs.getDouble("avg_response_time");
 
-    private int[] getHourlyDistribution(String where, Statement stmt) throws SQLException {
-        int[] hourlyDistribution = new int[24];
+            Map<String, Integer> statusDistribution = new HashMap<>();
+            String statusJson = rs.getString("status_distribution_json");
+            if (statusJson != null && !statusJson.isEmpty()) {
+                statusDistribution.putAll(objectMapper.readValue(statusJson,
+                        objectMapper.getTypeFactory().constructMapType(HashMap.class, String.class, Integer.class)));
+            }
+            for (Map.Entry<String, Long> group : batch.getStatusGroups().entrySet()) {
+                statusDistribution.merge(group.getKey(), group.getValue().intValue(), Integer::sum);
+            }
 
-        String hourlyQuery = "SELECT EXTRACT(HOUR FROM time) as hour, COUNT(*) as count " +
-                "FROM logs " + where +
-                " GROUP BY EXTRACT(HOUR FROM time) ORDER BY hour";
+            int[] hourlyDistribution = new int[24];
+            String hourlyJson = rs.getString("hourly_distribution_json");
+            if (hourlyJson != null && !hourlyJson.isEmpty()) {
+                hourlyDistribution = objectMapper.readValue(hourlyJson, int[].class);
+            }
+            long[] batchHourly = batch.getHourly();
+            for (int hour = 0; hour < 24 && hour < hourlyDistribution.length; hour++) {
+                hourlyDistribution[hour] += (int) batchHourly[hour];
+            }
 
-        try (ResultSet rs = stmt.executeQuery(hourlyQuery)) {
-            while (rs.next()) {
-                int hour = rs.getInt("hour");
-                int count = rs.getInt("count");
-                if (hour >= 0 && hour < 24) {
-                    hourlyDistribution[hour] = count;
-                }
+            if (batch.getResponseTimeSamples() > 0) {
+                double batchAvg = (double) batch.getResponseTimeSum() / batch.getResponseTimeSamples();
+                avgResponseTime = Math.round((avgResponseTime * totalRequests + batchAvg * batch.getRequests())
+                        / (totalRequests + batch.getRequests()));
+            }
+
+            Timestamp periodStart = rs.getTimestamp("period_start");
+            Timestamp periodEnd = rs.getTimestamp("period_end");
+            Timestamp batchStart = Timestamp.valueOf(batch.getMinTime());
+            Timestamp batchEnd = Timestamp.valueOf(batch.getMaxTime());
+
+            String updateSql = "UPDATE aggregated_stats SET " +
+                    "period_start = ?, period_end = ?, " +
+                    "total_requests = total_requests + ?, error_requests = error_requests + ?, " +
+                    "avg_response_time = ?, " +
+                    "total_traffic_mb = ROUND((total_traffic_mb + ?)::numeric, 2), " +
+                    "status_distribution_json = ?, hourly_distribution_json = ? " +
+                    "WHERE id = ?";
+
+            try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
+                ps.setTimestamp(1, periodStart == null || batchStart.before(periodStart) ? batchStart : periodStart);
+                ps.setTimestamp(2, periodEnd == null || batchEnd.after(periodEnd) ? batchEnd : periodEnd);
+                ps.setLong(3, batch.getRequests());
+                ps.setLong(4, batch.getErrors());
+                ps.setDouble(5, avgResponseTime);
+                ps.setDouble(6, batch.getTrafficBytes() / (1024.0 * 1024.0));
+                ps.setString(7, convertMapToJson(statusDistribution));
+                ps.setString(8, convertArrayToJson(hourlyDistribution));
+                ps.setLong(9, id);
+                ps.executeUpdate();
             }
         }
+        return true;
+    }
 
-        return hourlyDistribution;
+    // Вычисляет статистику для периода
+    private Map<String, Object> calculateStatsForPeriod(LocalDateTime dateFrom, LocalDateTime dateTo, Connection conn)
+            throws SQLException {
+
+        StringBuilder where = new StringBuilder("WHERE 1=1");
+
+        if (dateFrom != null) {
+            where.append(" AND time >= '").append(dateFrom.toString()).append("'");
+        }
+        if (dateTo != null) {
+            where.append(" AND time <= '").append(dateTo.toString()).append("'");
+        }
+
+        // Все показатели одним проходом; различные IP - по часовым скетчам, если они покрывают logs
+        Map<String, Object> distinct = distinctCountService.estimate(dateFrom, dateTo);
+        Map<String, Object> stats = statsQueryEngine.calculate(conn, where.toString(), distinct == null);
+        if (distinct != null) {
+            stats.put("unique_ips", distinct.get("unique_ips"));
+        }
+
+        return stats;
     }
 
     private String getTopUrlsAsJson(Connection conn, LocalDateTime dateFrom,
@@ -458,11 +528,11 @@ public class AggregatedStatsService {
             params.add(Timestamp.valueOf(dateTo)); // ✅ Используем Timestamp
         }
 
-        String sql = "SELECT username, COUNT(*) as request_count " +
+        String sql = "SELECT " + dictionaryService.select("username") + ", COUNT(*) as request_count " +
                 "FROM logs " +
-                "WHERE username IS NOT NULL AND username != '-' " +
+                "WHERE " + dictionaryService.notDash("username") + " " +
                 where.toString() +
-                " GROUP BY username " +
+                " GROUP BY " + dictionaryService.column("username") + " " +
                 " ORDER BY request_count DESC " +
                 " LIMIT ?";
 
@@ -485,7 +555,7 @@ public class AggregatedStatsService {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     Map<String, Object> item = new HashMap<>();
-                    item.put("username", rs.getString("username"));
+                    item.put("username", dictionaryService.getString(rs, "username"));
                     Object countObj = rs.getObject("request_count");
                     item.put("count", countObj != null ?
                             ((Number) countObj).longValue() : 0L);
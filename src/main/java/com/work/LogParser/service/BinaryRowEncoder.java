@@ -0,0 +1,107 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+/**
+ * Запись LogRecord в бинарном формате COPY (FORMAT binary) PostgreSQL.
+ * Поля пишутся в порядке колонок LogFileParser.COPY_COLUMNS:
+ * time (timestamp), ip, username, url (text), status_code (int4), domain (text),
+ * response_time_ms (int4), response_size_bytes (int8), action (text).
+ * Пустые строки пишутся как '' (не NULL) - так же, как их загружал CSV с NULL '\N'.
+ * Со словарем (ids != null) вместо username, domain и action пишутся их id (int4) -
+ * порядок колонок LogFileParser.DICTIONARY_COPY_COLUMNS.
+ */
+public class BinaryRowEncoder implements CopyRowEncoder {
+
+    // "PGCOPY\n\377\r\n\0", затем флаги (int32) и длина расширения заголовка (int32)
+    private static final byte[] HEADER = {
+            'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0,
+            0, 0, 0, 0,
+            0, 0, 0, 0
+    };
+
+    private static final short FIELD_COUNT = 9;
+
+    // 2000-01-01 00:00:00 - начало отсчета timestamp в PostgreSQL
+    private static final long PG_EPOCH_SECONDS = 946_684_800L;
+
+    private final EpochTimestampConverter timestampConverter = new EpochTimestampConverter();
+    private final DictionaryIds ids;
+
+    public BinaryRowEncoder() {
+        this(null);
+    }
+
+    public BinaryRowEncoder(DictionaryIds ids) {
+        this.ids = ids;
+    }
+
+    @Override
+    public void writeHeader(ByteArrayBuilder out) {
+        out.append(HEADER, 0, HEADER.length);
+    }
+
+    @Override
+    public void encode(LogRecord rec, ByteArrayBuilder out) {
+        out.appendInt16(FIELD_COUNT);
+
+        out.appendInt32(8);
+        out.appendInt64(toPgMicros(rec.epochSeconds, rec.nanos));
+
+        appendText(rec.ip, out);
+        if (ids != null) {
+            appendInt(ids.username(rec), out);
+        } else {
+            appendText(rec.username, out);
+        }
+        appendText(rec.url, out);
+
+        out.appendInt32(4);
+        out.appendInt32(rec.statusCode);
+
+        if (ids != null) {
+            appendInt(ids.domain(rec), out);
+        } else {
+            appendText(rec.domain, out);
+        }
+
+        out.appendInt32(4);
+        out.appendInt32(rec.responseTimeMs);
+
+        out.appendInt32(8);
+        out.appendInt64(rec.responseSizeBytes);
+
+        if (ids != null) {
+            appendInt(ids.action(rec), out);
+        } else {
+            appendText(rec.action, out);
+        }
+    }
+
+    @Override
+    public void writeTrailer(ByteArrayBuilder out) {
+        out.appendInt16((short) -1);
+    }
+
+    private void appendInt(int value, ByteArrayBuilder out) {
+        out.appendInt32(4);
+        out.appendInt32(value);
+    }
+
+    private void appendText(LogRecord.ByteSlice value, ByteArrayBuilder out) {
+        if (value.isEmpty()) {
+            out.appendInt32(0);
+            return;
+        }
+        out.appendInt32(value.len);
+        out.append(value);
+    }
+
+    // Микросекунды от 2000-01-01 по локальному времени (колонка TIMESTAMP без зоны).
+    // Округление дробной части как у сервера при разборе текста: rint(доля секунды * 1e6)
+    long toPgMicros(long epochSeconds, int nanos) {
+        long localSeconds = timestampConverter.toLocalSeconds(epochSeconds) - PG_EPOCH_SECONDS;
+        long micros = (long) Math.rint(nanos / 1e9 * 1e6);
+        return localSeconds * 1_000_000L + micros;
+    }
+}
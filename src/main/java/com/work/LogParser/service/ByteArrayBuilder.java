@@ -0,0 +1,115 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Растущий массив байт для сборки данных COPY без промежуточных строк
+public class ByteArrayBuilder {
+
+    private byte[] data;
+    private int size;
+
+    public ByteArrayBuilder(int initialCapacity) {
+        this.data = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > data.length) {
+            byte[] bigger = new byte[Math.max(data.length * 2, size + extra)];
+            System.arraycopy(data, 0, bigger, 0, size);
+            data = bigger;
+        }
+    }
+
+    public void append(byte b) {
+        ensureCapacity(1);
+        data[size++] = b;
+    }
+
+    public void append(byte[] src, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(src, off, data, size, len);
+        size += len;
+    }
+
+    public void append(LogRecord.ByteSlice slice) {
+        append(slice.buf, slice.off, slice.len);
+    }
+
+    public void appendAscii(String s) {
+        int len = s.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            data[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    public void appendUtf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        append(bytes, 0, bytes.length);
+    }
+
+    // Десятичная запись числа (как Long.toString)
+    public void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            appendAscii("-9223372036854775808");
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            data[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = size + digits;
+        for (int i = end - 1; i >= size; i--) {
+            data[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        size = end;
+    }
+
+    // Числа в сетевом порядке байт (big-endian) для бинарного COPY
+    public void appendInt16(short value) {
+        ensureCapacity(2);
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) value;
+    }
+
+    public void appendInt32(int value) {
+        ensureCapacity(4);
+        data[size++] = (byte) (value >>> 24);
+        data[size++] = (byte) (value >>> 16);
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) value;
+    }
+
+    public void appendInt64(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            data[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, size);
+    }
+}
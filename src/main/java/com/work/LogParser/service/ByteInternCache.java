@@ -0,0 +1,90 @@
+package com.work.LogParser.service;
+
+import java.util.Arrays;
+
+/**
+ * Ограниченный кэш "байты ключа -> значение" с открытой адресацией.
+ * Повторный поиск - один хэш и обычно одна проба, без создания объектов.
+ * Когда кэш заполнен, новые ключи не добавляются (без вытеснения).
+ * Не потокобезопасен: у каждого потока парсинга свой экземпляр.
+ */
+public class ByteInternCache<V> {
+
+    private final int maxEntries;
+    private final int mask;
+    private final byte[][] keys;
+    private final int[] hashes;
+    private final Object[] values;
+    private int size;
+
+    private long lookups;
+    private long hits;
+
+    public ByteInternCache(int maxEntries) {
+        this.maxEntries = Math.max(16, maxEntries);
+        int capacity = Integer.highestOneBit(this.maxEntries * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.keys = new byte[capacity][];
+        this.hashes = new int[capacity];
+        this.values = new Object[capacity];
+    }
+
+    // Значение для buf[off, off+len) или null, если ключа нет
+    @SuppressWarnings("unchecked")
+    public V get(byte[] buf, int off, int len) {
+        lookups++;
+        int hash = hash(buf, off, len);
+        for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && Arrays.equals(keys[slot], 0, keys[slot].length, buf, off, off + len)) {
+                hits++;
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    // Добавляет ключ (копию байт); false - кэш заполнен
+    public boolean put(byte[] buf, int off, int len, V value) {
+        if (size >= maxEntries) {
+            return false;
+        }
+        int hash = hash(buf, off, len);
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && Arrays.equals(keys[slot], 0, keys[slot].length, buf, off, off + len)) {
+                values[slot] = value;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = Arrays.copyOfRange(buf, off, off + len);
+        hashes[slot] = hash;
+        values[slot] = value;
+        size++;
+        return true;
+    }
+
+    private static int hash(byte[] buf, int off, int len) {
+        int h = 1;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    public boolean isFull() {
+        return size >= maxEntries;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getLookups() {
+        return lookups;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+}
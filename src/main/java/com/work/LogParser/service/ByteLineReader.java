@@ -0,0 +1,99 @@
+package com.work.LogParser.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Чтение строк как диапазонов байт внутри общего буфера, без декодирования в String.
+// Строки разделяются '\n' или '\r' (как у BufferedReader.readLine), пустые строки пропускаются
+public class ByteLineReader implements Closeable {
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+    private long bytesRead;
+    private boolean eof;
+
+    public ByteLineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    // Переходит к следующей непустой строке; false - поток закончился
+    public boolean nextLine() throws IOException {
+        int scan = pos;
+
+        while (true) {
+            while (scan < limit) {
+                byte b = buf[scan];
+                if (b == '\n' || b == '\r') {
+                    if (scan > pos) {
+                        lineStart = pos;
+                        lineEnd = scan;
+                        pos = scan + 1;
+                        return true;
+                    }
+                    pos = ++scan;
+                    continue;
+                }
+                scan++;
+            }
+
+            if (eof) {
+                if (limit > pos) {
+                    lineStart = pos;
+                    lineEnd = limit;
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+
+            // Переносим незавершенную строку в начало буфера (или расширяем буфер для длинной строки)
+            int carried = limit - pos;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, carried);
+            } else if (carried == buf.length) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, bigger, 0, carried);
+                buf = bigger;
+            }
+            pos = 0;
+            limit = carried;
+            scan = carried;
+
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+                bytesRead += n;
+            }
+        }
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int lineStart() {
+        return lineStart;
+    }
+
+    public int lineEnd() {
+        return lineEnd;
+    }
+
+    // Сколько байт прочитано из источника
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,527 @@
+package com.work.LogParser.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Запросы к колоночному хранилищу: число строк, базовая статистика (те же ключи, что у StatsQueryEngine)
+ * и топы URL и пользователей (те же поля, что у запросов LogDataRepository) под фильтрами по периоду,
+ * IP, пользователю, статусу и action. Блоки делятся между потоками сканирования, у каждого потока свои
+ * частичные итоги, которые затем сливаются. Значения фильтров сравниваются точно, как в WHERE по logs.
+ */
+@Service
+public class ColumnarQueryEngine {
+
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+
+    // Потоков сканирования; 0 - по числу ядер
+    @Value("${logparser.columnar.scan-threads:0}")
+    private int scanThreads;
+
+    private ExecutorService executor;
+
+    /**
+     * Фильтр строк. Значение, которого нет в словаре хранилища, не совпадает ни с одной строкой (empty).
+     * Время сравнивается в микросекундах локального времени, как timestamp в logs.
+     */
+    static final class Filter {
+        long fromMicros = Long.MIN_VALUE;
+        long toMicros = Long.MAX_VALUE;
+        int ip = -1;
+        int user = -1;
+        int action = -1;
+        boolean hasStatus;
+        int status;
+        boolean empty;
+
+        // null и пустые строки - без фильтра; неразборные дата или статус - DateTimeParseException / NumberFormatException
+        static Filter of(ColumnarStore store, String dateFrom, String dateTo, String clientIp,
+                         String username, String status, String action) {
+            Filter filter = new Filter();
+            if (!isBlank(dateFrom)) {
+                filter.fromMicros = toMicros(parseDate(dateFrom));
+            }
+            if (!isBlank(dateTo)) {
+                filter.toMicros = toMicros(parseDate(dateTo));
+            }
+            if (!isBlank(status)) {
+                filter.hasStatus = true;
+                filter.status = Integer.parseInt(status.trim());
+            }
+            filter.ip = valueId(filter, store.ips, clientIp);
+            filter.user = valueId(filter, store.users, username);
+            filter.action = valueId(filter, store.actions, action);
+            return filter;
+        }
+
+        private static int valueId(Filter filter, ColumnarStore.ValueDictionary dictionary, String value) {
+            if (isBlank(value)) {
+                return -1;
+            }
+            Integer id = dictionary.idOf(value);
+            if (id == null) {
+                filter.empty = true;
+                return -1;
+            }
+            return id;
+        }
+
+        // Строки блока под фильтром - номера в rows; возвращает их число
+        int select(ColumnarStore.Chunk chunk, int[] rows) {
+            long chunkFrom = chunk.minSeconds * MICROS_PER_SECOND;
+            long chunkTo = chunk.maxSeconds * MICROS_PER_SECOND + MICROS_PER_SECOND - 1;
+            if (empty || chunkTo < fromMicros || chunkFrom > toMicros) {
+                return 0;
+            }
+            // Блок целиком внутри периода - время строк не проверяется
+            boolean checkTime = chunkFrom < fromMicros || chunkTo > toMicros;
+            int count = 0;
+            for (int row = 0; row < chunk.size; row++) {
+                if (checkTime) {
+                    long time = chunk.seconds[row] * MICROS_PER_SECOND + chunk.micros[row];
+                    if (time < fromMicros || time > toMicros) {
+                        continue;
+                    }
+                }
+                if ((ip >= 0 && chunk.ip[row] != ip)
+                        || (user >= 0 && chunk.user[row] != user)
+                        || (action >= 0 && chunk.action[row] != action)
+                        || (hasStatus && chunk.status[row] != status)) {
+                    continue;
+                }
+                rows[count++] = row;
+            }
+            return count;
+        }
+    }
+
+    public long count(ColumnarStore store, Filter filter) {
+        long total = 0;
+        for (long[] partial : scan(store, filter, () -> new long[1], (part, rows) -> part[0] += rows.count)) {
+            total += partial[0];
+        }
+        return total;
+    }
+
+    // Частичная статистика потока
+    private static final class StatsPartial {
+        long requests;
+        long errors;
+        long responseTimeSum;
+        long responseTimeSamples;
+        long bytes;
+        final long[] statusGroups = new long[LogStatsAccumulator.STATUS_GROUPS.length];
+        final long[] hourly = new long[24];
+        final BitSet ips = new BitSet();
+        final BitSet users = new BitSet();
+    }
+
+    public Map<String, Object> stats(ColumnarStore store, Filter filter) {
+        List<StatsPartial> partials = scan(store, filter, StatsPartial::new, (part, rows) -> {
+            ColumnarStore.Chunk chunk = rows.chunk;
+            for (int i = 0; i < rows.count; i++) {
+                int row = rows.rows[i];
+                int status = chunk.status[row];
+                int responseTime = chunk.responseTime[row];
+                part.requests++;
+                if (status >= 400) {
+                    part.errors++;
+                }
+                part.statusGroups[LogStatsAccumulator.statusGroup(status)]++;
+                if (responseTime > 0) {
+                    part.responseTimeSum += responseTime;
+                    part.responseTimeSamples++;
+                }
+                part.bytes += chunk.bytes[row];
+                part.hourly[Math.floorMod(chunk.seconds[row], LogStatsAccumulator.SECONDS_PER_DAY) / 3600]++;
+                part.ips.set(chunk.ip[row]);
+                part.users.set(chunk.user[row]);
+            }
+        });
+
+        StatsPartial total = new StatsPartial();
+        for (StatsPartial part : partials) {
+            total.requests += part.requests;
+            total.errors += part.errors;
+            total.responseTimeSum += part.responseTimeSum;
+            total.responseTimeSamples += part.responseTimeSamples;
+            total.bytes += part.bytes;
+            for (int i = 0; i < total.statusGroups.length; i++) {
+                total.statusGroups[i] += part.statusGroups[i];
+            }
+            for (int hour = 0; hour < 24; hour++) {
+                total.hourly[hour] += part.hourly[hour];
+            }
+            total.ips.or(part.ips);
+            total.users.or(part.users);
+        }
+
+        Map<String, Object> stats = new HashMap<>();
+        Map<String, Integer> statusDistribution = new HashMap<>();
+        for (int i = 0; i < total.statusGroups.length; i++) {
+            if (total.statusGroups[i] > 0) {
+                statusDistribution.put(LogStatsAccumulator.STATUS_GROUPS[i], (int) total.statusGroups[i]);
+            }
+        }
+        int[] hourlyDistribution = new int[24];
+        for (int hour = 0; hour < 24; hour++) {
+            hourlyDistribution[hour] = (int) total.hourly[hour];
+        }
+
+        stats.put("total_requests", total.requests);
+        stats.put("error_requests", total.errors);
+        stats.put("unique_ips", (long) total.ips.cardinality());
+        stats.put("unique_users", (long) total.users.cardinality());
+        stats.put("status_distribution", statusDistribution);
+        stats.put("hourly_distribution", hourlyDistribution);
+        stats.put("avg_response_time", total.responseTimeSamples > 0
+                ? Math.round((double) total.responseTimeSum / total.responseTimeSamples) : 0L);
+        stats.put("total_traffic_mb", Math.round(total.bytes / (1024.0 * 1024.0) * 100.0) / 100.0);
+        return stats;
+    }
+
+    // Топ URL (с доменом), кроме url '-': как GROUP BY url, domain в getTopUrlsWithFilters
+    public List<Map<String, Object>> topUrls(ColumnarStore store, Filter filter, int limit) {
+        Integer dash = store.urls.idOf("-");
+        int dashId = dash != null ? dash : -1;
+        List<GroupTable> partials = scan(store, filter, GroupTable::new, (table, rows) -> {
+            ColumnarStore.Chunk chunk = rows.chunk;
+            for (int i = 0; i < rows.count; i++) {
+                int row = rows.rows[i];
+                int url = chunk.url[row];
+                if (url != dashId) {
+                    table.add(((long) url << 32) | (chunk.domain[row] & 0xFFFFFFFFL), chunk, row);
+                }
+            }
+        });
+
+        GroupTable groups = GroupTable.mergeAll(partials);
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int group : groups.top(limit)) {
+            long key = groups.keys[group];
+            Map<String, Object> item = new HashMap<>();
+            item.put("url", store.urls.nameOf((int) (key >>> 32)));
+            item.put("domain", store.domains.nameOf((int) key));
+            item.put("count", groups.count[group]);
+            item.put("avg_response_time", Math.round((double) groups.responseTimeSum[group] / groups.count[group]));
+            item.put("total_bytes", groups.bytes[group]);
+            item.put("last_access", toTimestamp(groups.maxTime[group]));
+            item.put("total_mb", groups.bytes[group] > 0
+                    ? Math.round(groups.bytes[group] / (1024.0 * 1024.0) * 100.0) / 100.0 : 0.0);
+            result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * Топ пользователей, кроме '-': как GROUP BY username в getTopUsersWithFilters. Различные IP и
+     * наименьший IP считаются вторым проходом только по строкам попавших в топ пользователей.
+     */
+    public List<Map<String, Object>> topUsers(ColumnarStore store, Filter filter, int limit) {
+        Integer dash = store.users.idOf("-");
+        int dashId = dash != null ? dash : -1;
+        List<GroupTable> partials = scan(store, filter, GroupTable::new, (table, rows) -> {
+            ColumnarStore.Chunk chunk = rows.chunk;
+            for (int i = 0; i < rows.count; i++) {
+                int row = rows.rows[i];
+                int user = chunk.user[row];
+                if (user != dashId) {
+                    table.add(user, chunk, row);
+                }
+            }
+        });
+
+        GroupTable groups = GroupTable.mergeAll(partials);
+        int[] top = groups.top(limit);
+        if (top.length == 0) {
+            return new ArrayList<>();
+        }
+
+        // Номер пользователя в топе по id; пары (номер, ip) - различные IP пользователей топа
+        int[] topIndex = new int[store.users.size()];
+        Arrays.fill(topIndex, -1);
+        for (int i = 0; i < top.length; i++) {
+            topIndex[(int) groups.keys[top[i]]] = i;
+        }
+        List<GroupTable> pairPartials = scan(store, filter, GroupTable::new, (table, rows) -> {
+            ColumnarStore.Chunk chunk = rows.chunk;
+            for (int i = 0; i < rows.count; i++) {
+                int row = rows.rows[i];
+                int user = chunk.user[row];
+                int index = user < topIndex.length ? topIndex[user] : -1;
+                if (index >= 0) {
+                    table.add(((long) index << 32) | (chunk.ip[row] & 0xFFFFFFFFL), chunk, row);
+                }
+            }
+        });
+        GroupTable pairs = GroupTable.mergeAll(pairPartials);
+        long[] uniqueIps = new long[top.length];
+        String[] minIps = new String[top.length];
+        for (int pair = 0; pair < pairs.size; pair++) {
+            int index = (int) (pairs.keys[pair] >>> 32);
+            String ip = store.ips.nameOf((int) pairs.keys[pair]);
+            uniqueIps[index]++;
+            if (minIps[index] == null || ip.compareTo(minIps[index]) < 0) {
+                minIps[index] = ip;
+            }
+        }
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int i = 0; i < top.length; i++) {
+            int group = top[i];
+            Map<String, Object> item = new HashMap<>();
+            item.put("username", store.users.nameOf((int) groups.keys[group]));
+            item.put("ip", minIps[i]);
+            item.put("count", groups.count[group]);
+            item.put("unique_ips", uniqueIps[i]);
+            item.put("avg_response_time", Math.round((double) groups.responseTimeSum[group] / groups.count[group]));
+            item.put("total_bytes", groups.bytes[group]);
+            item.put("first_seen", toTimestamp(groups.minTime[group]));
+            item.put("last_seen", toTimestamp(groups.maxTime[group]));
+            item.put("total_mb", groups.bytes[group] > 0
+                    ? Math.round(groups.bytes[group] / (1024.0 * 1024.0) * 100.0) / 100.0 : 0.0);
+            result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * Группы по ключу long (открытая адресация, без упаковки ключей в объекты): число строк,
+     * сумма времени ответа, байты, наименьшее и наибольшее время. Не потокобезопасна.
+     */
+    private static final class GroupTable {
+        private int[] slots = new int[1024];
+        long[] keys = new long[512];
+        long[] count = new long[512];
+        long[] responseTimeSum = new long[512];
+        long[] bytes = new long[512];
+        long[] minTime = new long[512];
+        long[] maxTime = new long[512];
+        int size;
+
+        GroupTable() {
+            Arrays.fill(slots, -1);
+        }
+
+        void add(long key, ColumnarStore.Chunk chunk, int row) {
+            long time = chunk.seconds[row] * MICROS_PER_SECOND + chunk.micros[row];
+            add(key, 1, chunk.responseTime[row], chunk.bytes[row], time, time);
+        }
+
+        private void add(long key, long rows, long responseTime, long rowBytes, long fromTime, long toTime) {
+            int group = group(key);
+            count[group] += rows;
+            responseTimeSum[group] += responseTime;
+            bytes[group] += rowBytes;
+            if (fromTime < minTime[group]) {
+                minTime[group] = fromTime;
+            }
+            if (toTime > maxTime[group]) {
+                maxTime[group] = toTime;
+            }
+        }
+
+        private int group(long key) {
+            int mask = slots.length - 1;
+            int slot = hash(key) & mask;
+            while (slots[slot] >= 0) {
+                if (keys[slots[slot]] == key) {
+                    return slots[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                count = Arrays.copyOf(count, capacity);
+                responseTimeSum = Arrays.copyOf(responseTimeSum, capacity);
+                bytes = Arrays.copyOf(bytes, capacity);
+                minTime = Arrays.copyOf(minTime, capacity);
+                maxTime = Arrays.copyOf(maxTime, capacity);
+            }
+            int group = size++;
+            keys[group] = key;
+            minTime[group] = Long.MAX_VALUE;
+            maxTime[group] = Long.MIN_VALUE;
+            slots[slot] = group;
+            // Заполнение не больше половины
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return group;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            Arrays.fill(slots, -1);
+            int mask = slots.length - 1;
+            for (int group = 0; group < size; group++) {
+                int slot = hash(keys[group]) & mask;
+                while (slots[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = group;
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        // Слияние частичных таблиц потоков в самую большую
+        static GroupTable mergeAll(List<GroupTable> partials) {
+            GroupTable target = new GroupTable();
+            for (GroupTable table : partials) {
+                if (table.size > target.size) {
+                    target = table;
+                }
+            }
+            for (GroupTable table : partials) {
+                if (table == target) {
+                    continue;
+                }
+                for (int group = 0; group < table.size; group++) {
+                    target.add(table.keys[group], table.count[group], table.responseTimeSum[group],
+                            table.bytes[group], table.minTime[group], table.maxTime[group]);
+                }
+            }
+            return target;
+        }
+
+        // Номера limit групп с наибольшим числом строк, по убыванию (при равенстве - по ключу)
+        int[] top(int limit) {
+            Comparator<Integer> order = (a, b) -> count[a] != count[b]
+                    ? Long.compare(count[b], count[a]) : Long.compare(keys[a], keys[b]);
+            int length = Math.max(0, Math.min(limit, size));
+            if (length == 0) {
+                return new int[0];
+            }
+            // Куча из length лучших групп; ее вершина - худшая из них
+            PriorityQueue<Integer> best = new PriorityQueue<>(length + 1, order.reversed());
+            for (int group = 0; group < size; group++) {
+                if (best.size() < length) {
+                    best.add(group);
+                } else if (order.compare(group, best.peek()) < 0) {
+                    best.poll();
+                    best.add(group);
+                }
+            }
+            int[] result = new int[best.size()];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = best.poll();
+            }
+            return result;
+        }
+    }
+
+    // Строки блока под фильтром для обработчика сканирования
+    private static final class Selection {
+        final int[] rows = new int[ColumnarStore.CHUNK_ROWS];
+        ColumnarStore.Chunk chunk;
+        int count;
+    }
+
+    /**
+     * Сканирование снимка блоков: блоки делятся на непрерывные диапазоны по потокам, каждый поток ведет
+     * свой частичный результат; возвращаются частичные результаты всех потоков.
+     */
+    private <R> List<R> scan(ColumnarStore store, Filter filter, Supplier<R> partial,
+                             BiConsumer<R, Selection> consumer) {
+        ColumnarStore.Chunk[] chunks = store.snapshot();
+        int threads = threads();
+        int tasks = Math.max(1, Math.min(chunks.length, threads * 2));
+        List<Callable<R>> callables = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            int from = (int) ((long) chunks.length * t / tasks);
+            int to = (int) ((long) chunks.length * (t + 1) / tasks);
+            callables.add(() -> {
+                R result = partial.get();
+                Selection selection = new Selection();
+                for (int i = from; i < to; i++) {
+                    selection.chunk = chunks[i];
+                    selection.count = filter.select(chunks[i], selection.rows);
+                    if (selection.count > 0) {
+                        consumer.accept(result, selection);
+                    }
+                }
+                return result;
+            });
+        }
+
+        List<R> results = new ArrayList<>(tasks);
+        try {
+            for (Future<R> future : executor().invokeAll(callables)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Сканирование колоночного хранилища прервано", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Ошибка сканирования колоночного хранилища: " + e.getCause().getMessage(),
+                    e.getCause());
+        }
+        return results;
+    }
+
+    private int threads() {
+        return scanThreads > 0 ? scanThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads(), r -> {
+                Thread t = new Thread(r);
+                t.setName("columnar-scan-" + t.getId());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    // 2024-01-15T10:30 или 2024-01-15 10:30[:00] - как дата фильтра в LogDataRepository
+    private static LocalDateTime parseDate(String value) {
+        return LocalDateTime.parse(value.trim().replace(' ', 'T'));
+    }
+
+    private static long toMicros(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * MICROS_PER_SECOND + time.getNano() / 1000;
+    }
+
+    private static Timestamp toTimestamp(long micros) {
+        return Timestamp.valueOf(LocalDateTime.ofEpochSecond(Math.floorDiv(micros, MICROS_PER_SECOND),
+                (int) Math.floorMod(micros, MICROS_PER_SECOND) * 1000, ZoneOffset.UTC));
+    }
+}
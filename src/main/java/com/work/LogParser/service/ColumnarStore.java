@@ -0,0 +1,358 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Колоночная копия logs в памяти: строки лежат блоками по CHUNK_ROWS в массивах примитивов
+ * (время в локальных секундах и микросекундах, статус, время ответа, байты) и id словарей для IP,
+ * пользователя, action, домена и url. У блока есть границы времени - фильтр по периоду пропускает
+ * блоки целиком. Строки пишут Appender потоков разбора; опубликованные блоки не меняются,
+ * поэтому сканирование идет без блокировок по снимку массива блоков (snapshot).
+ * Строка занимает около 44 байт (без url - 40) плюс различные значения в словарях.
+ */
+public class ColumnarStore {
+
+    static final int CHUNK_ROWS = 1 << 16;
+
+    private static final int VALUE_CACHE_SIZE = 65536;
+
+    // Значения текстовой колонки с плотными id 0..size-1
+    static final class ValueDictionary {
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[1024];
+        private volatile int size;
+
+        Integer idOf(String value) {
+            return ids.get(value);
+        }
+
+        int assign(String value) {
+            Integer id = ids.get(value);
+            return id != null ? id : add(value);
+        }
+
+        private synchronized int add(String value) {
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            int next = size;
+            if (next == names.length) {
+                names = Arrays.copyOf(names, next * 2);
+            }
+            names[next] = value;
+            ids.put(value, next);
+            size = next + 1;
+            return next;
+        }
+
+        String nameOf(int id) {
+            return names[id];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    // Блок строк; после публикации только читается
+    static final class Chunk {
+        int[] seconds;
+        int[] micros;
+        int[] status;
+        int[] ip;
+        int[] user;
+        int[] action;
+        int[] domain;
+        int[] url;
+        int[] responseTime;
+        long[] bytes;
+        int size;
+        int minSeconds = Integer.MAX_VALUE;
+        int maxSeconds = Integer.MIN_VALUE;
+
+        Chunk(int capacity, boolean urls) {
+            seconds = new int[capacity];
+            micros = new int[capacity];
+            status = new int[capacity];
+            ip = new int[capacity];
+            user = new int[capacity];
+            action = new int[capacity];
+            domain = new int[capacity];
+            url = urls ? new int[capacity] : null;
+            responseTime = new int[capacity];
+            bytes = new long[capacity];
+        }
+
+        boolean isFull() {
+            return size == seconds.length;
+        }
+
+        void copyRow(Chunk from, int row) {
+            int i = size++;
+            seconds[i] = from.seconds[row];
+            micros[i] = from.micros[row];
+            status[i] = from.status[row];
+            ip[i] = from.ip[row];
+            user[i] = from.user[row];
+            action[i] = from.action[row];
+            domain[i] = from.domain[row];
+            if (url != null) {
+                url[i] = from.url[row];
+            }
+            responseTime[i] = from.responseTime[row];
+            bytes[i] = from.bytes[row];
+            updateBounds(seconds[i]);
+        }
+
+        void updateBounds(int value) {
+            if (value < minSeconds) {
+                minSeconds = value;
+            }
+            if (value > maxSeconds) {
+                maxSeconds = value;
+            }
+        }
+
+        // Неполный блок обрезается до числа строк перед публикацией
+        void trim() {
+            if (size == seconds.length) {
+                return;
+            }
+            seconds = Arrays.copyOf(seconds, size);
+            micros = Arrays.copyOf(micros, size);
+            status = Arrays.copyOf(status, size);
+            ip = Arrays.copyOf(ip, size);
+            user = Arrays.copyOf(user, size);
+            action = Arrays.copyOf(action, size);
+            domain = Arrays.copyOf(domain, size);
+            url = url != null ? Arrays.copyOf(url, size) : null;
+            responseTime = Arrays.copyOf(responseTime, size);
+            bytes = Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Строки одного потока разбора. Блоки копятся в нем и попадают в хранилище при публикации
+     * (ColumnarStoreService), поэтому откаченная порция в хранилище не видна. Не потокобезопасен.
+     */
+    public final class Appender {
+        private final List<Chunk> sealed = new ArrayList<>();
+        private Chunk current;
+        private long rows;
+        // Строку нельзя представить в колонках (время за пределами int) - хранилище не соответствует logs
+        private boolean broken;
+
+        private ByteInternCache<Integer> ipCache;
+        private ByteInternCache<Integer> userCache;
+        private ByteInternCache<Integer> actionCache;
+        private ByteInternCache<Integer> domainCache;
+        private ByteInternCache<Integer> urlCache;
+
+        public void add(LogRecord rec, long localSeconds) {
+            // Дробная часть - как ее округлит сервер в timestamp (микросекунды)
+            long micros = (long) Math.rint(rec.nanos / 1e9 * 1e6);
+            if (micros >= 1_000_000) {
+                localSeconds++;
+                micros -= 1_000_000;
+            }
+            if (localSeconds < Integer.MIN_VALUE || localSeconds > Integer.MAX_VALUE) {
+                broken = true;
+                return;
+            }
+            if (ipCache == null) {
+                ipCache = new ByteInternCache<>(VALUE_CACHE_SIZE);
+                userCache = new ByteInternCache<>(VALUE_CACHE_SIZE);
+                actionCache = new ByteInternCache<>(VALUE_CACHE_SIZE);
+                domainCache = new ByteInternCache<>(VALUE_CACHE_SIZE);
+                urlCache = urls != null ? new ByteInternCache<>(VALUE_CACHE_SIZE) : null;
+            }
+            if (current == null || current.isFull()) {
+                seal();
+                current = new Chunk(CHUNK_ROWS, urls != null);
+            }
+
+            Chunk chunk = current;
+            int i = chunk.size++;
+            chunk.seconds[i] = (int) localSeconds;
+            chunk.micros[i] = (int) micros;
+            chunk.status[i] = rec.statusCode;
+            chunk.ip[i] = intern(ips, ipCache, rec.ip);
+            chunk.user[i] = intern(users, userCache, rec.username);
+            chunk.action[i] = intern(actions, actionCache, rec.action);
+            chunk.domain[i] = intern(domains, domainCache, rec.domain);
+            if (chunk.url != null) {
+                chunk.url[i] = intern(urls, urlCache, rec.url);
+            }
+            chunk.responseTime[i] = rec.responseTimeMs;
+            chunk.bytes[i] = rec.responseSizeBytes;
+            chunk.updateBounds((int) localSeconds);
+            rows++;
+        }
+
+        // Пустое поле пишется в logs как '' - так же оно хранится и здесь
+        private int intern(ValueDictionary dictionary, ByteInternCache<Integer> cache, LogRecord.ByteSlice value) {
+            if (value.isEmpty()) {
+                return dictionary.assign("");
+            }
+            Integer id = cache.get(value.buf, value.off, value.len);
+            if (id != null) {
+                return id;
+            }
+            int assigned = dictionary.assign(value.toString());
+            cache.put(value.buf, value.off, value.len, assigned);
+            return assigned;
+        }
+
+        // Забирает блоки другого потока того же хранилища
+        public void merge(Appender other) {
+            other.seal();
+            sealed.addAll(other.sealed);
+            other.sealed.clear();
+            rows += other.rows;
+            other.rows = 0;
+            broken |= other.broken;
+        }
+
+        private void seal() {
+            if (current != null && current.size > 0) {
+                current.trim();
+                sealed.add(current);
+            }
+            current = null;
+        }
+
+        private List<Chunk> drain() {
+            seal();
+            List<Chunk> result = new ArrayList<>(sealed);
+            sealed.clear();
+            rows = 0;
+            return result;
+        }
+
+        public ColumnarStore getStore() {
+            return ColumnarStore.this;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public boolean isBroken() {
+            return broken;
+        }
+    }
+
+    final ValueDictionary ips = new ValueDictionary();
+    final ValueDictionary users = new ValueDictionary();
+    final ValueDictionary actions = new ValueDictionary();
+    final ValueDictionary domains = new ValueDictionary();
+    // null - url не хранятся, топ URL считается запросом
+    final ValueDictionary urls;
+
+    private volatile Chunk[] chunks = new Chunk[0];
+    private volatile long rows;
+
+    public ColumnarStore(boolean storeUrls) {
+        this.urls = storeUrls ? new ValueDictionary() : null;
+    }
+
+    public Appender newAppender() {
+        return new Appender();
+    }
+
+    // Публикация строк потока
+    synchronized void append(Appender appender) {
+        List<Chunk> added = appender.drain();
+        if (added.isEmpty()) {
+            return;
+        }
+        Chunk[] next = Arrays.copyOf(chunks, chunks.length + added.size());
+        long addedRows = 0;
+        for (int i = 0; i < added.size(); i++) {
+            next[chunks.length + i] = added.get(i);
+            addedRows += added.get(i).size;
+        }
+        chunks = next;
+        rows += addedRows;
+    }
+
+    /**
+     * Перезагрузка интервала [fromSeconds, toSeconds): строки интервала удаляются (затронутые блоки
+     * пересобираются без них), строки appender добавляются. Читатели видят старый или новый снимок целиком.
+     */
+    synchronized void replaceRange(long fromSeconds, long toSeconds, Appender appender) {
+        List<Chunk> next = new ArrayList<>(chunks.length);
+        long nextRows = 0;
+        Chunk rebuilt = null;
+        for (Chunk chunk : chunks) {
+            if (chunk.maxSeconds < fromSeconds || chunk.minSeconds >= toSeconds) {
+                next.add(chunk);
+                nextRows += chunk.size;
+                continue;
+            }
+            for (int row = 0; row < chunk.size; row++) {
+                int seconds = chunk.seconds[row];
+                if (seconds >= fromSeconds && seconds < toSeconds) {
+                    continue;
+                }
+                if (rebuilt == null || rebuilt.isFull()) {
+                    if (rebuilt != null) {
+                        next.add(rebuilt);
+                    }
+                    rebuilt = new Chunk(CHUNK_ROWS, urls != null);
+                }
+                rebuilt.copyRow(chunk, row);
+                nextRows++;
+            }
+        }
+        if (rebuilt != null && rebuilt.size > 0) {
+            rebuilt.trim();
+            next.add(rebuilt);
+        }
+        for (Chunk chunk : appender.drain()) {
+            next.add(chunk);
+            nextRows += chunk.size;
+        }
+        chunks = next.toArray(new Chunk[0]);
+        rows = nextRows;
+    }
+
+    Chunk[] snapshot() {
+        return chunks;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public boolean hasUrls() {
+        return urls != null;
+    }
+
+    // Оценка памяти колонок (без словарей)
+    public long getColumnBytes() {
+        return rows * (urls != null ? 44L : 40L);
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    public int getDistinctUrls() {
+        return urls != null ? urls.size() : 0;
+    }
+
+    public int getDistinctUsers() {
+        return users.size();
+    }
+
+    public int getDistinctIps() {
+        return ips.size();
+    }
+}
@@ -0,0 +1,310 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import com.work.LogParser.model.LogRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Колоночное хранилище logs в памяти (ColumnarStore) для фильтрованных счетчиков, статистики и топов
+ * без запросов к PostgreSQL, в том числе с фильтром по IP. Полная загрузка строит новое хранилище
+ * при разборе строк и подменяет им прежнее в конце; дозагрузка и слежение добавляют строки после
+ * фиксации транзакции, перезагрузка секции заменяет строки своего интервала. После перезапуска
+ * хранилище пустое, пока его не заполнит полная загрузка или чтение logs (POST /api/columnar/load,
+ * logparser.columnar.load-on-startup). Если хранилище может не соответствовать logs, оно снимается,
+ * и запросы снова идут в PostgreSQL. Поиск по url и domain хранилищем не обслуживается.
+ */
+@Service
+public class ColumnarStoreService {
+
+    private static final int FETCH_ROWS = 10000;
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Autowired
+    private ColumnarQueryEngine queryEngine;
+
+    @Value("${logparser.columnar.enabled:false}")
+    private boolean enabled;
+
+    // Хранить url (топ URL из памяти); без них строка на 4 байта меньше и нет словаря url
+    @Value("${logparser.columnar.urls:true}")
+    private boolean storeUrls;
+
+    // Заполнить хранилище из logs при старте приложения
+    @Value("${logparser.columnar.load-on-startup:false}")
+    private boolean loadOnStartup;
+
+    // null - хранилища нет, запросы идут в PostgreSQL
+    private volatile ColumnarStore store;
+
+    // Меняется при каждом изменении данных: чтение logs, во время которого данные менялись, не публикуется
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile boolean loading;
+    private volatile long loadingRows;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isLoaded() {
+        return store != null;
+    }
+
+    // Полная загрузка: строки накопителя пишутся в новое хранилище
+    public <T extends LogStatsAccumulator> T withNewStore(T stats) {
+        if (enabled) {
+            stats.enableColumnar(new ColumnarStore(storeUrls));
+        }
+        return stats;
+    }
+
+    // Дозагрузка, слежение, перезагрузка секции: строки накопителя пишутся в текущее хранилище, если оно есть
+    public <T extends LogStatsAccumulator> T withColumnar(T stats) {
+        ColumnarStore current = store;
+        if (current != null) {
+            stats.enableColumnar(current);
+        }
+        return stats;
+    }
+
+    public void invalidate() {
+        generation.incrementAndGet();
+        if (store != null) {
+            store = null;
+            System.out.println("🧊 Колоночное хранилище снято: данные logs изменились");
+        }
+    }
+
+    // Конец полной загрузки: хранилище из строк загрузки; null - загрузка без него (хранилище снимается)
+    public synchronized void replaceAll(ColumnarStore.Appender appender) {
+        generation.incrementAndGet();
+        if (appender == null || appender.isBroken()) {
+            store = null;
+            return;
+        }
+        ColumnarStore next = appender.getStore();
+        next.append(appender);
+        store = next;
+        printLoaded("после загрузки", next);
+    }
+
+    /**
+     * Строки дозагрузки или порции слежения после фиксации. null (строки загружены без разбора)
+     * или строки не для текущего хранилища снимают его.
+     */
+    public synchronized void append(ColumnarStore.Appender appender) {
+        generation.incrementAndGet();
+        ColumnarStore current = store;
+        if (current == null) {
+            return;
+        }
+        if (appender == null || appender.isBroken() || appender.getStore() != current) {
+            invalidate();
+            return;
+        }
+        current.append(appender);
+    }
+
+    // Перезагрузка секции [start, end): строки интервала заменяются строками appender
+    public synchronized void replaceRange(LocalDateTime start, LocalDateTime end, ColumnarStore.Appender appender) {
+        generation.incrementAndGet();
+        ColumnarStore current = store;
+        if (current == null) {
+            return;
+        }
+        if (appender == null || appender.isBroken() || appender.getStore() != current) {
+            invalidate();
+            return;
+        }
+        current.replaceRange(start.toEpochSecond(ZoneOffset.UTC), end.toEpochSecond(ZoneOffset.UTC), appender);
+    }
+
+    // Число строк под фильтрами; null - хранилища нет или значения фильтров не разбираются
+    public Long count(String dateFrom, String dateTo, String clientIp, String username,
+                      String status, String action) {
+        ColumnarStore current = store;
+        if (current != null && isBlank(dateFrom) && isBlank(dateTo) && isBlank(clientIp)
+                && isBlank(username) && isBlank(status) && isBlank(action)) {
+            return current.getRows();
+        }
+        ColumnarQueryEngine.Filter filter = filter(current, dateFrom, dateTo, clientIp, username, status, action);
+        return filter != null ? queryEngine.count(current, filter) : null;
+    }
+
+    // Базовая статистика (ключи StatsQueryEngine и unique_users); null - как у count
+    public Map<String, Object> getStats(String dateFrom, String dateTo, String clientIp, String username,
+                                        String status, String action) {
+        ColumnarStore current = store;
+        ColumnarQueryEngine.Filter filter = filter(current, dateFrom, dateTo, clientIp, username, status, action);
+        return filter != null ? queryEngine.stats(current, filter) : null;
+    }
+
+    // Топ URL; null - как у count или url не хранятся
+    public List<Map<String, Object>> getTopUrls(int limit, String dateFrom, String dateTo, String clientIp,
+                                                String username, String status, String action) {
+        ColumnarStore current = store;
+        if (current != null && !current.hasUrls()) {
+            return null;
+        }
+        ColumnarQueryEngine.Filter filter = filter(current, dateFrom, dateTo, clientIp, username, status, action);
+        return filter != null ? queryEngine.topUrls(current, filter, limit) : null;
+    }
+
+    public List<Map<String, Object>> getTopUsers(int limit, String dateFrom, String dateTo, String clientIp,
+                                                 String username, String status, String action) {
+        ColumnarStore current = store;
+        ColumnarQueryEngine.Filter filter = filter(current, dateFrom, dateTo, clientIp, username, status, action);
+        return filter != null ? queryEngine.topUsers(current, filter, limit) : null;
+    }
+
+    private static ColumnarQueryEngine.Filter filter(ColumnarStore current, String dateFrom, String dateTo,
+                                                     String clientIp, String username, String status, String action) {
+        if (current == null) {
+            return null;
+        }
+        try {
+            return ColumnarQueryEngine.Filter.of(current, dateFrom, dateTo, clientIp, username, status, action);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        if (enabled && loadOnStartup) {
+            startLoadFromDatabase();
+        }
+    }
+
+    // Чтение logs в новое хранилище в фоне; false - отключено или чтение уже идет
+    public synchronized boolean startLoadFromDatabase() {
+        if (!enabled || loading) {
+            return false;
+        }
+        loading = true;
+        loadingRows = 0;
+        Thread thread = new Thread(() -> {
+            try {
+                loadFromDatabase();
+            } finally {
+                loading = false;
+            }
+        }, "columnar-load");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private void loadFromDatabase() {
+        long startGeneration = generation.get();
+        long startTime = System.currentTimeMillis();
+        ColumnarStore next = new ColumnarStore(storeUrls);
+        ColumnarStore.Appender appender = next.newAppender();
+        LogRecord rec = new LogRecord();
+        System.out.println("🧊 Чтение logs в колоночное хранилище...");
+
+        String sql = "SELECT time, ip, " + dictionaryService.select("username") + ", url, status_code, " +
+                dictionaryService.select("domain") + ", response_time_ms, response_size_bytes, " +
+                dictionaryService.select("action") + " FROM logs";
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+            // Курсор с порциями по FETCH_ROWS строк вместо всего результата в памяти
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.setFetchSize(FETCH_ROWS);
+                try (ResultSet rs = st.executeQuery(sql)) {
+                    while (rs.next()) {
+                        Timestamp time = rs.getTimestamp(1);
+                        if (time == null) {
+                            System.err.println("❌ В logs есть строки без времени - колоночное хранилище не заполнено");
+                            return;
+                        }
+                        LocalDateTime local = time.toLocalDateTime();
+                        rec.nanos = local.getNano();
+                        rec.ip.set(text(rs.getString(2)));
+                        rec.username.set(text(dictionaryService.resolve("username", rs.getObject(3))));
+                        rec.url.set(text(rs.getString(4)));
+                        rec.statusCode = rs.getInt(5);
+                        rec.domain.set(text(dictionaryService.resolve("domain", rs.getObject(6))));
+                        rec.responseTimeMs = rs.getInt(7);
+                        rec.responseSizeBytes = rs.getLong(8);
+                        rec.action.set(text(dictionaryService.resolve("action", rs.getObject(9))));
+                        appender.add(rec, local.toEpochSecond(ZoneOffset.UTC));
+
+                        if (++loadingRows % 5_000_000 == 0) {
+                            System.out.printf("🧊 Прочитано %,d строк%n", loadingRows);
+                        }
+                    }
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            System.err.println("❌ Ошибка чтения logs в колоночное хранилище: " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (generation.get() != startGeneration || appender.isBroken()) {
+                System.out.println("⚠️ Данные logs менялись во время чтения - колоночное хранилище не опубликовано");
+                return;
+            }
+            next.append(appender);
+            store = next;
+        }
+        printLoaded("за " + (System.currentTimeMillis() - startTime) + " мс", next);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    private static String text(Object value) {
+        return value != null ? value.toString() : "";
+    }
+
+    private static void printLoaded(String when, ColumnarStore loaded) {
+        System.out.printf("🧊 Колоночное хранилище %s: %,d строк, %,d блоков, около %,d МБ колонок%n",
+                when, loaded.getRows(), loaded.getChunkCount(), loaded.getColumnBytes() / (1024 * 1024));
+    }
+
+    // Состояние хранилища для /api/columnar
+    public Map<String, Object> getInfo() {
+        ColumnarStore current = store;
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("enabled", enabled);
+        info.put("loaded", current != null);
+        info.put("loading", loading);
+        info.put("loading_rows", loadingRows);
+        if (current != null) {
+            info.put("rows", current.getRows());
+            info.put("chunks", current.getChunkCount());
+            info.put("column_mb", current.getColumnBytes() / (1024 * 1024));
+            info.put("stores_urls", current.hasUrls());
+            info.put("distinct_urls", current.getDistinctUrls());
+            info.put("distinct_users", current.getDistinctUsers());
+            info.put("distinct_ips", current.getDistinctIps());
+        }
+        return info;
+    }
+}
@@ -0,0 +1,169 @@
+package com.work.LogParser.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Передача данных COPY от потока парсинга к потоку COPY через фиксированный набор
+ * переиспользуемых буферов. Пустые буферы лежат в free, заполненные - в filled.
+ * Парсер блокируется, когда все буферы заполнены (COPY не успевает), COPY - когда
+ * заполненных нет (не успевает парсер); время ожидания каждой стороны накапливается.
+ */
+public class CopyBufferRing {
+
+    // Маркер конца потока в очереди filled
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private static final long POLL_TIMEOUT_MS = 200;
+
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final int bufferSize;
+    private final int bufferCount;
+
+    private final AtomicLong producerWaitNanos = new AtomicLong();
+    private final AtomicLong consumerWaitNanos = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+
+    private volatile boolean aborted = false;
+
+    // Сторона парсера: текущий заполняемый буфер
+    private ByteBuffer current;
+
+    public CopyBufferRing(long memoryBudgetBytes, int bufferSize, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.bufferCount = (int) Math.max(2, memoryBudgetBytes / bufferSize);
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        this.filled = new ArrayBlockingQueue<>(bufferCount + 1);
+
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+        }
+    }
+
+    // ===== Сторона парсера =====
+
+    public void write(byte[] src, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null) {
+                current = acquire();
+            }
+            int n = Math.min(len, current.remaining());
+            current.put(src, off, n);
+            off += n;
+            len -= n;
+
+            if (!current.hasRemaining()) {
+                publish();
+            }
+        }
+    }
+
+    // Отдает COPY частично заполненный буфер
+    public void flush() throws IOException {
+        if (current != null && current.position() > 0) {
+            publish();
+        }
+    }
+
+    // Конец данных: COPY дочитает оставшиеся буферы и завершится
+    public void close() throws IOException {
+        flush();
+        put(filled, END_OF_STREAM);
+    }
+
+    private ByteBuffer acquire() throws IOException {
+        long waitStart = System.nanoTime();
+        ByteBuffer buffer = take(free);
+        producerWaitNanos.addAndGet(System.nanoTime() - waitStart);
+        buffer.clear();
+        return buffer;
+    }
+
+    private void publish() throws IOException {
+        current.flip();
+        bytesTransferred.addAndGet(current.remaining());
+        put(filled, current);
+        current = null;
+    }
+
+    // ===== Сторона COPY =====
+
+    // Следующий заполненный буфер (в режиме чтения) или null, если данные закончились
+    public ByteBuffer next() throws IOException {
+        long waitStart = System.nanoTime();
+        ByteBuffer buffer = take(filled);
+        consumerWaitNanos.addAndGet(System.nanoTime() - waitStart);
+        return buffer == END_OF_STREAM ? null : buffer;
+    }
+
+    // Возврат прочитанного буфера в пул
+    public void release(ByteBuffer buffer) throws IOException {
+        put(free, buffer);
+    }
+
+    // ===== Общее =====
+
+    // Прерывание обеих сторон (отмена или ошибка COPY)
+    public void abort() {
+        aborted = true;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    private ByteBuffer take(BlockingQueue<ByteBuffer> queue) throws IOException {
+        try {
+            while (true) {
+                if (aborted) {
+                    throw new IOException("Передача данных COPY прервана");
+                }
+                ByteBuffer buffer = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Поток прерван при ожидании буфера COPY", e);
+        }
+    }
+
+    private void put(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) throws IOException {
+        try {
+            while (!queue.offer(buffer, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (aborted) {
+                    throw new IOException("Передача данных COPY прервана");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Поток прерван при передаче буфера COPY", e);
+        }
+    }
+
+    public long getProducerWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos.get());
+    }
+
+    public long getConsumerWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos.get());
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+}
@@ -0,0 +1,17 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+// Формат данных для COPY logs_unlogged: запись строк и служебные заголовок/завершение потока
+public interface CopyRowEncoder {
+
+    // Начало потока COPY (нужно только бинарному формату)
+    default void writeHeader(ByteArrayBuilder out) {
+    }
+
+    void encode(LogRecord rec, ByteArrayBuilder out);
+
+    // Завершение потока COPY (нужно только бинарному формату)
+    default void writeTrailer(ByteArrayBuilder out) {
+    }
+}
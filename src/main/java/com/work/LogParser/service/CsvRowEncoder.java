@@ -0,0 +1,84 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+// Запись LogRecord в CSV строку для COPY - байт в байт как formatAsCSV в LogFileParser.
+// Со словарем (ids != null) вместо username, domain и action пишутся их id
+public class CsvRowEncoder implements CopyRowEncoder {
+
+    private final EpochTimestampConverter timestampConverter = new EpochTimestampConverter();
+    private final DictionaryIds ids;
+
+    public CsvRowEncoder() {
+        this(null);
+    }
+
+    public CsvRowEncoder(DictionaryIds ids) {
+        this.ids = ids;
+    }
+
+    @Override
+    public void encode(LogRecord rec, ByteArrayBuilder out) {
+        timestampConverter.appendTimestamp(rec.epochSeconds, rec.nanos, out);
+        out.append((byte) ',');
+        appendField(rec.ip, out);
+        out.append((byte) ',');
+        if (ids != null) {
+            out.appendLong(ids.username(rec));
+        } else {
+            appendField(rec.username, out);
+        }
+        out.append((byte) ',');
+        appendField(rec.url, out);
+        out.append((byte) ',');
+        out.appendLong(rec.statusCode);
+        out.append((byte) ',');
+        if (ids != null) {
+            out.appendLong(ids.domain(rec));
+        } else {
+            appendField(rec.domain, out);
+        }
+        out.append((byte) ',');
+        out.appendLong(rec.responseTimeMs);
+        out.append((byte) ',');
+        out.appendLong(rec.responseSizeBytes);
+        out.append((byte) ',');
+        if (ids != null) {
+            out.appendLong(ids.action(rec));
+        } else {
+            appendField(rec.action, out);
+        }
+        out.append((byte) '\n');
+    }
+
+    // Экранирование как в formatAsCSV: значения с , " \n \r берутся в кавычки, кавычки удваиваются
+    private void appendField(LogRecord.ByteSlice value, ByteArrayBuilder out) {
+        if (value.isEmpty()) {
+            return;
+        }
+
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.len; i++) {
+            byte b = value.at(i);
+            if (b == ',' || b == '"' || b == '\n' || b == '\r') {
+                needsQuotes = true;
+                break;
+            }
+        }
+
+        if (!needsQuotes) {
+            out.append(value);
+            return;
+        }
+
+        out.append((byte) '"');
+        for (int i = 0; i < value.len; i++) {
+            byte b = value.at(i);
+            if (b == '"') {
+                out.append((byte) '"');
+            }
+            out.append(b);
+        }
+        out.append((byte) '"');
+    }
+}
@@ -1,19 +1,63 @@
 package com.work.LogParser.service;
 
+import com.work.LogParser.config.ConnectionPools;
 import com.work.LogParser.config.DatabaseConfig;
+import com.work.LogParser.model.IndexProgress;
 import com.work.LogParser.model.ParsingStatus;
+import com.work.LogParser.repository.LogCursor;
+import com.work.LogParser.repository.LogDataRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
-import static com.work.LogParser.config.DatabaseConfig.*;
-
 @Service
 public class DatabaseManager {
 
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Autowired
+    private LogPartitionService partitionService;
+
+    // Сколько индексов строится одновременно (каждый на своем соединении)
+    @Value("${logparser.index.build-workers:3}")
+    private int indexBuildWorkers;
+
+    // maintenance_work_mem для каждой сборки; память суммируется по одновременным сборкам
+    @Value("${logparser.index.maintenance-work-mem-mb:256}")
+    private int indexMaintenanceWorkMemMb;
+
+    // max_parallel_maintenance_workers для каждой сборки (0 - без параллельных воркеров PostgreSQL)
+    @Value("${logparser.index.parallel-maintenance-workers:2}")
+    private int indexParallelWorkers;
+
+    // Колонки, для которых строится индекс (колонка, time, id) под постраничный вывод с сортировкой
+    @Value("${logparser.index.sort-columns:status_code,response_time_ms,response_size_bytes}")
+    private List<String> indexSortColumns;
+
+    // GIN-индексы pg_trgm под поиск подстроки в url и domain (LIKE '%...%')
+    @Value("${logparser.search.trigram-index:true}")
+    private boolean searchTrigramIndex;
+
+    // GIN-индекс по словам url: поиск целого слова вместо подстроки, индекс заметно меньше триграммного
+    @Value("${logparser.search.token-index:false}")
+    private boolean searchTokenIndex;
+
     public void ensureLogsTableExists(Connection conn) throws SQLException {
         try (Statement stmt = conn.createStatement()) {
             // Проверяем существование таблицы logs
@@ -68,7 +112,7 @@ public class DatabaseManager {
 
             // Создаем только самые важные индексы для начала
             String[] indexQueries = {
-                    "CREATE INDEX IF NOT EXISTS idx_logs_time ON logs(time)",
+                    "CREATE INDEX IF NOT EXISTS idx_logs_time_id ON logs(time, id)",
                     "CREATE INDEX IF NOT EXISTS idx_logs_ip ON logs(ip)",
                     "CREATE INDEX IF NOT EXISTS idx_logs_username ON logs(username)",
                     "CREATE INDEX IF NOT EXISTS idx_logs_status ON logs(status_code)",
@@ -93,22 +137,46 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Индексы после загрузки строятся параллельно, каждый на своем соединении из ограниченного пула.
+     * Все индексы обычные (без CONCURRENTLY): CONCURRENTLY-сборки на одной таблице ждут друг друга,
+     * а данные в logs до конца загрузки никто не меняет. Отмена снимает все выполняющиеся сборки.
+     */
     public void createIndexesWithProgressTracking(Connection conn, Consumer<Integer> progressCallback,
                                                   ParsingStatus status) throws SQLException, InterruptedException {
 
         System.out.println("Создание индексов с отслеживанием прогресса...");
 
-        IndexTask[] indexTasks = {
-                new IndexTask("CREATE INDEX IF NOT EXISTS idx_logs_time ON logs(time)", 1, false),
-                new IndexTask("CREATE INDEX IF NOT EXISTS idx_logs_username ON logs(username)", 1, false),
-                new IndexTask("CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_logs_active_users ON logs(username) WHERE username != '-'", 2, true),
-                new IndexTask("CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_logs_error_status ON logs(status_code, time) WHERE status_code >= 400", 2, true),
-                new IndexTask("CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_logs_ip_filter ON logs(ip) WHERE ip IS NOT NULL", 2, true),
-                new IndexTask("CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_logs_large_files ON logs(response_size_bytes, url) WHERE response_size_bytes > 1048576", 3, true)
-        };
-
-        int totalWeight = Arrays.stream(indexTasks).mapToInt(task -> task.weight).sum();
-        final int[] currentWeight = {0};
+        // В словарном формате индексы строятся по username_id
+        String username = dictionaryService.column("username");
+
+        List<IndexTask> tasks = new ArrayList<>(List.of(
+                // (time, id) - фильтры по периоду и курсор страниц логов по умолчанию
+                new IndexTask("idx_logs_time_id", "ON logs(time, id)", 1),
+                new IndexTask("idx_logs_username", "ON logs(" + username + ")", 1),
+                new IndexTask("idx_logs_active_users", "ON logs(" + username + ") " +
+                        "WHERE " + dictionaryService.notDash("username"), 2),
+                new IndexTask("idx_logs_error_status", "ON logs(status_code, time) WHERE status_code >= 400", 2),
+                new IndexTask("idx_logs_ip_filter", "ON logs(ip) WHERE ip IS NOT NULL", 2),
+                new IndexTask("idx_logs_large_files", "ON logs(response_size_bytes, url) WHERE response_size_bytes > 1048576", 3)
+        ));
+        for (String column : indexSortColumns) {
+            String sortColumn = column.trim();
+            if (!sortColumn.equals("time") && LogCursor.SORT_COLUMNS.containsValue(sortColumn)) {
+                tasks.add(new IndexTask("idx_logs_sort_" + sortColumn, "ON logs(" + sortColumn + ", time, id)", 2));
+            }
+        }
+        if (searchTrigramIndex && enableTrigramSearch()) {
+            tasks.add(new IndexTask("idx_logs_url_trgm", "ON logs USING gin (url gin_trgm_ops)", 3));
+            // В словарном формате подстрока домена ищется по справочнику, а в logs - по id
+            tasks.add(dictionaryService.isLogsEncoded()
+                    ? new IndexTask("idx_logs_domain_id", "ON logs(domain_id)", 1)
+                    : new IndexTask("idx_logs_domain_trgm", "ON logs USING gin (domain gin_trgm_ops)", 3));
+        }
+        if (searchTokenIndex) {
+            tasks.add(new IndexTask("idx_logs_url_tokens", "ON logs USING gin (" + LogDataRepository.URL_TOKENS + ")", 3));
+        }
+        IndexTask[] indexTasks = tasks.toArray(new IndexTask[0]);
 
         // Проверка отмены
         if (status != null && status.isCancelled) {
@@ -116,119 +184,188 @@ public class DatabaseManager {
             return;
         }
 
-        // Создаем простые индексы
-        for (IndexTask task : indexTasks) {
-            if (status != null && status.isCancelled) {
-                throw new InterruptedException("Отменено пользователем");
-            }
+        releaseIndexNames(conn, indexTasks);
 
-            if (!task.concurrent) {
-                try (Statement st = conn.createStatement()) {
-                    System.out.println("Создание индекса: " + task.sql);
-                    long startTime = System.currentTimeMillis();
+        int totalWeight = Arrays.stream(indexTasks).mapToInt(task -> task.weight).sum();
+        AtomicInteger currentWeight = new AtomicInteger(0);
+
+        List<IndexProgress> progressList = new ArrayList<>();
+        for (IndexTask task : indexTasks) {
+            progressList.add(new IndexProgress(task.name, task.weight));
+        }
+        if (status != null) {
+            status.indexes = progressList;
+            status.totalIndexes = indexTasks.length;
+            status.indexesCreated = 0;
+        }
 
-                    st.execute(task.sql);
+        // Выполняющиеся сборки: при отмене каждой отправляется cancel на ее соединение
+        Set<Statement> running = ConcurrentHashMap.newKeySet();
 
-                    long endTime = System.currentTimeMillis();
-                    System.out.println("Индекс создан за " + ((endTime - startTime) / 1000.0) + " сек");
+        int threads = Math.max(1, Math.min(indexBuildWorkers, indexTasks.length));
+        System.out.println("Параллельных сборок индексов: " + threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r);
+            t.setName("index-builder-" + t.getId());
+            t.setDaemon(true);
+            return t;
+        });
 
-                    currentWeight[0] += task.weight;
-                    int progress = (currentWeight[0] * 100) / totalWeight;
-                    if (progressCallback != null) {
-                        progressCallback.accept(progress);
+        try {
+            // Тяжелые индексы первыми, чтобы не остались последними в одиночку
+            Integer[] order = new Integer[indexTasks.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> indexTasks[b].weight - indexTasks[a].weight);
+
+            for (int i : order) {
+                IndexTask task = indexTasks[i];
+                IndexProgress item = progressList.get(i);
+                pool.submit(() -> {
+                    if (buildIndex(task, item, running, status)) {
+                        int progress = currentWeight.addAndGet(task.weight) * 100 / totalWeight;
+                        if (status != null) {
+                            synchronized (status) {
+                                status.indexesCreated++;
+                            }
+                        }
+                        if (progressCallback != null) {
+                            progressCallback.accept(progress);
+                        }
                     }
+                });
+            }
+            pool.shutdown();
+
+            while (!pool.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+                if (status != null && status.isCancelled) {
+                    throw new InterruptedException("Отменено пользователем");
                 }
             }
+        } catch (InterruptedException e) {
+            cancelIndexBuilds(running);
+            throw e;
+        } finally {
+            pool.shutdownNow();
         }
 
-        // Проверка отмены
         if (status != null && status.isCancelled) {
             throw new InterruptedException("Отменено пользователем");
         }
 
-        // Создаем конкурентные индексы в фоне с поддержкой отмены
-        Thread backgroundIndexing = new Thread(() -> {
-            try (Connection bgConn = DriverManager.getConnection(
-                    DB_URL,
-                    DB_USERNAME,
-                    DB_PASSWORD)) {
-
-                bgConn.setAutoCommit(true);
+        long failed = progressList.stream().filter(item -> "failed".equals(item.state)).count();
+        System.out.println("Создание индексов завершено" + (failed > 0 ? ", с ошибками: " + failed : ""));
+    }
 
-                for (IndexTask task : indexTasks) {
-                    // Проверка отмены
-                    if (status != null && status.isCancelled) {
-                        System.out.println("Конкурентная индексация отменена");
-                        return;
-                    }
+    // Одна сборка на собственном соединении со своими настройками памяти и параллельных воркеров
+    private boolean buildIndex(IndexTask task, IndexProgress item, Set<Statement> running, ParsingStatus status) {
+        if (status != null && status.isCancelled) {
+            item.state = "cancelled";
+            return false;
+        }
 
-                    if (task.concurrent) {
-                        try (Statement bgStmt = bgConn.createStatement()) {
-                            // Устанавливаем таймаут на создание индекса
-                            bgStmt.setQueryTimeout(300); // 5 минут
+        try (Connection conn = connectionPools.maintenance().getConnection();
+             Statement st = conn.createStatement()) {
+            st.execute("SET maintenance_work_mem = '" + indexMaintenanceWorkMemMb + "MB'");
+            st.execute("SET max_parallel_maintenance_workers = " + indexParallelWorkers);
+
+            String sql = "CREATE INDEX IF NOT EXISTS " + task.name + " " + task.definition;
+            System.out.println("Создание индекса: " + sql);
+            item.startTime = System.currentTimeMillis();
+            item.state = "building";
+
+            running.add(st);
+            try {
+                st.execute(sql);
+            } finally {
+                running.remove(st);
+            }
 
-                            System.out.println("Создание конкурентного индекса: " + task.sql);
-                            long startTime = System.currentTimeMillis();
+            item.finishTime = System.currentTimeMillis();
+            item.state = "done";
+            System.out.println("Индекс " + task.name + " создан за " +
+                    ((item.finishTime - item.startTime) / 1000.0) + " сек");
+            return true;
+        } catch (SQLException e) {
+            item.finishTime = System.currentTimeMillis();
+            if (status != null && status.isCancelled) {
+                item.state = "cancelled";
+                return false;
+            }
+            item.state = "failed";
+            item.error = e.getMessage();
+            System.err.println("⚠ Ошибка создания индекса " + task.name + ": " + e.getMessage());
+            return false;
+        }
+    }
 
-                            bgStmt.execute(task.sql);
+    // pg_trgm и триграммный индекс справочника доменов; false - расширение недоступно, поиск без индекса
+    private boolean enableTrigramSearch() {
+        try (Connection conn = connectionPools.maintenance().getConnection();
+             Statement st = conn.createStatement()) {
+            st.execute("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+            if (dictionaryService.isLogsEncoded()) {
+                st.execute("CREATE INDEX IF NOT EXISTS idx_log_domains_trgm ON log_domains USING gin (domain gin_trgm_ops)");
+            }
+            return true;
+        } catch (SQLException e) {
+            System.err.println("⚠ pg_trgm недоступен, поиск по url и domain будет без индекса: " + e.getMessage());
+            return false;
+        }
+    }
 
-                            long endTime = System.currentTimeMillis();
-                            System.out.println("Конкурентный индекс создан за " + ((endTime - startTime) / 1000.0) + " сек");
+    // Statement.cancel отправляет запрос отмены на соединение сборки, а не на текущее
+    private void cancelIndexBuilds(Set<Statement> running) {
+        for (Statement st : running) {
+            try {
+                st.cancel();
+            } catch (SQLException ignored) {
+            }
+        }
+        if (!running.isEmpty()) {
+            System.out.println("🚫 Отменено сборок индексов: " + running.size());
+        }
+    }
 
-                            currentWeight[0] += task.weight;
-                            int progress = (currentWeight[0] * 100) / totalWeight;
-                            if (progressCallback != null) {
-                                progressCallback.accept(progress);
-                            }
-                        } catch (SQLException e) {
-                            if (status != null && status.isCancelled) {
-                                System.out.println("Конкурентная индексация прервана");
-                                return;
-                            }
-                            System.err.println("⚠ Ошибка создания конкурентного индекса: " + e.getMessage());
-                        }
+    /**
+     * Имена индексов общие для схемы: после замены таблицы они остаются за logs_old,
+     * и CREATE INDEX IF NOT EXISTS для новой logs молча пропускался бы.
+     * Такие индексы переименовываются в *_old и уходят вместе с logs_old.
+     */
+    private void releaseIndexNames(Connection conn, IndexTask[] tasks) throws SQLException {
+        String sql = "SELECT tablename FROM pg_indexes WHERE schemaname = current_schema() AND indexname = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (IndexTask task : tasks) {
+                ps.setString(1, task.name);
+                String owner = null;
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        owner = rs.getString(1);
                     }
                 }
-            } catch (Exception e) {
-                if (status != null && !status.isCancelled) {
-                    System.err.println("❌ Ошибка в фоновом создании индексов: " + e.getMessage());
+                if (owner == null || owner.equals("logs")) {
+                    continue;
                 }
-            }
-        });
-
-        backgroundIndexing.start();
-
-        // Ожидаем завершения с проверкой отмены
-        try {
-            while (backgroundIndexing.isAlive()) {
-                if (status != null && status.isCancelled) {
-                    backgroundIndexing.interrupt();
-                    // Отменяем операции в БД
-                    try (Statement cancelStmt = conn.createStatement()) {
-                        cancelStmt.execute("SELECT pg_cancel_backend(pg_backend_pid())");
-                    }
-                    throw new InterruptedException("Отменено пользователем");
+                try (Statement st = conn.createStatement()) {
+                    st.execute("DROP INDEX IF EXISTS " + task.name + "_old");
+                    st.execute("ALTER INDEX " + task.name + " RENAME TO " + task.name + "_old");
+                    System.out.println("Индекс " + task.name + " таблицы " + owner + " переименован в " + task.name + "_old");
                 }
-                backgroundIndexing.join(1000);
             }
-        } catch (InterruptedException e) {
-            backgroundIndexing.interrupt();
-            throw e;
         }
-
-        System.out.println("Создание индексов завершено");
     }
 
     // Вспомогательный класс для задания на создание индекса
     private static class IndexTask {
-        String sql;
-        int weight; // Вес индекса (сложность создания, 1-3)
-        boolean concurrent; // Создается ли конкурентно
+        final String name;
+        final String definition; // Часть после имени: ON logs(...) [WHERE ...]
+        final int weight; // Вес индекса (сложность создания, 1-3)
 
-        IndexTask(String sql, int weight, boolean concurrent) {
-            this.sql = sql;
+        IndexTask(String name, String definition, int weight) {
+            this.name = name;
+            this.definition = definition;
             this.weight = weight;
-            this.concurrent = concurrent;
         }
     }
 
@@ -252,24 +389,31 @@ public class DatabaseManager {
         }
     }
 
-    public void createUnloggedTable(Connection conn) throws SQLException {
+    // Колонки logs_unlogged и новой logs (без первичного ключа).
+    // encoded - словарный формат: id из log_users, log_domains и log_actions вместо текста
+    static String logColumnsSql(boolean encoded) {
+        return "id BIGSERIAL," +
+                "time TIMESTAMP NOT NULL," +
+                "ip TEXT," +
+                (encoded ? "username_id INT," : "username TEXT,") +
+                "url TEXT," +
+                "status_code INT," +
+                (encoded ? "domain_id INT," : "domain TEXT,") +
+                "response_time_ms INT," +          // Время ответа
+                "response_size_bytes BIGINT," +     // Размер ответа
+                (encoded ? "action_id INT" : "action TEXT"); // Действие proxy
+    }
+
+    public void createUnloggedTable(Connection conn, boolean encoded) throws SQLException {
         try (Statement st = conn.createStatement()) {
             st.execute("DROP TABLE IF EXISTS logs_unlogged");
 
             String createTableSQL = "CREATE UNLOGGED TABLE logs_unlogged (" +
-                    "id BIGSERIAL PRIMARY KEY," +
-                    "time TIMESTAMP NOT NULL," +
-                    "ip TEXT," +
-                    "username TEXT," +
-                    "url TEXT," +
-                    "status_code INT," +
-                    "domain TEXT," +
-                    "response_time_ms INT," +          // Время ответа
-                    "response_size_bytes BIGINT," +     // Размер ответа
-                    "action TEXT" +                     // Действие proxy
-                    ")";
+                    logColumnsSql(encoded) + ", PRIMARY KEY (id))";
             st.execute(createTableSQL);
-            System.out.println("Создана таблица logs_unlogged с колонкой action");
+            System.out.println(encoded
+                    ? "Создана таблица logs_unlogged со словарными колонками username_id, domain_id, action_id"
+                    : "Создана таблица logs_unlogged с колонкой action");
         }
     }
 
@@ -284,6 +428,12 @@ public class DatabaseManager {
             return;
         }
 
+        // Секционированная logs: секции заполняются из logs_unlogged параллельно, без SET LOGGED всей таблицы
+        if (partitionService.isEnabled()) {
+            partitionService.finalizePartitioned(conn, status, checkpointCallback);
+            return;
+        }
+
         boolean originalAutoCommit = conn.getAutoCommit();
 
         try (Statement st = conn.createStatement()) {
@@ -474,7 +624,10 @@ public class DatabaseManager {
             System.out.println("Добавлено статусов: " + count);
         }
 
-        // 2. Заполняем действия
+        // 2. Заполняем действия (в словарном формате log_actions уже пополнен при загрузке)
+        if (dictionaryService.isLogsEncoded()) {
+            return;
+        }
         try (Statement st = conn.createStatement();
              ResultSet rs = st.executeQuery(
                      "SELECT DISTINCT action FROM logs WHERE action IS NOT NULL AND action != '-'"
@@ -0,0 +1,58 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Id словарных колонок для одного потока парсинга. Повторяющиеся значения находятся
+ * в локальном кэше по байтам поля без создания строк; промах идет в общий словарь.
+ * Не потокобезопасен, как и ByteInternCache.
+ */
+public class DictionaryIds {
+
+    private final LogDictionaryService.Dictionary users;
+    private final LogDictionaryService.Dictionary domains;
+    private final LogDictionaryService.Dictionary actions;
+
+    private final ByteInternCache<Integer> userCache;
+    private final ByteInternCache<Integer> domainCache;
+    private final ByteInternCache<Integer> actionCache;
+
+    DictionaryIds(LogDictionaryService.Dictionary users, LogDictionaryService.Dictionary domains,
+                  LogDictionaryService.Dictionary actions, int cacheSize) {
+        this.users = users;
+        this.domains = domains;
+        this.actions = actions;
+        this.userCache = new ByteInternCache<>(cacheSize);
+        this.domainCache = new ByteInternCache<>(cacheSize);
+        this.actionCache = new ByteInternCache<>(Math.min(cacheSize, 1024));
+    }
+
+    public int username(LogRecord rec) {
+        return idOf(rec.username, userCache, users);
+    }
+
+    public int domain(LogRecord rec) {
+        return idOf(rec.domain, domainCache, domains);
+    }
+
+    public int action(LogRecord rec) {
+        return idOf(rec.action, actionCache, actions);
+    }
+
+    private int idOf(LogRecord.ByteSlice value, ByteInternCache<Integer> cache,
+                     LogDictionaryService.Dictionary dictionary) {
+        Integer id = cache.get(value.buf, value.off, value.len);
+        if (id != null) {
+            return id;
+        }
+        String text = new String(value.buf, value.off, value.len, StandardCharsets.UTF_8);
+        id = dictionary.idOf(text);
+        if (id == null) {
+            id = dictionary.assign(text);
+        }
+        cache.put(value.buf, value.off, value.len, id);
+        return id;
+    }
+}
@@ -0,0 +1,374 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Число различных IP и пользователей за период без COUNT(DISTINCT) по logs.
+ * При загрузке строятся HyperLogLog по часам; в log_distinct_sketches хранятся часовые (h)
+ * и суточные (d) корзины. Период собирается из суточных корзин, по краям - из часовых, а неполные
+ * часы на границах дочитываются из logs по индексу времени и добавляются в тот же скетч.
+ * Оценка имеет относительную ошибку около 1.04 / sqrt(2^precision) (1.6% при precision 12).
+ * Полная загрузка заменяет все корзины; дозагрузка и слежение сливают свои корзины с сохраненными,
+ * перезагрузка секции заменяет корзины своего интервала. Если корзины не соответствуют logs
+ * (скетчи отключены, часть строк загружена без разбора), покрытие снимается и используется SQL.
+ */
+@Service
+public class DistinctCountService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    private static final String HOUR = "h";
+    private static final String DAY = "d";
+
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Value("${logparser.stats.distinct-sketches:true}")
+    private boolean enabled;
+
+    // 2^precision регистров на корзину; от точности зависит ошибка и размер корзины
+    @Value("${logparser.stats.hll-precision:12}")
+    private int precision;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    // Включает скетчи в накопителе строк, если они не отключены настройкой
+    public <T extends LogStatsAccumulator> T withSketches(T stats) {
+        if (enabled) {
+            stats.enableDistinctSketches(precision);
+        }
+        return stats;
+    }
+
+    private void ensureTables(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            // Нулевые регистры разреженных корзин хорошо сжимает TOAST
+            st.execute("CREATE TABLE IF NOT EXISTS log_distinct_sketches (" +
+                    "granularity CHAR(1) NOT NULL," +
+                    "bucket_start TIMESTAMP NOT NULL," +
+                    "ip_hll BYTEA NOT NULL," +
+                    "user_hll BYTEA NOT NULL," +
+                    "PRIMARY KEY (granularity, bucket_start))");
+            st.execute("CREATE TABLE IF NOT EXISTS log_distinct_coverage (" +
+                    "id INT PRIMARY KEY," +
+                    "complete BOOLEAN NOT NULL," +
+                    "hll_precision INT NOT NULL," +
+                    "updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+        }
+    }
+
+    // ===== ЗАПИСЬ =====
+
+    // Полная загрузка: корзины заменяются целиком; null - скетчей нет, покрытие снимается
+    public void replaceAll(DistinctSketchBuckets buckets) throws SQLException {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+            ensureTables(conn);
+            conn.setAutoCommit(false);
+            try {
+                try (Statement st = conn.createStatement()) {
+                    st.execute("TRUNCATE log_distinct_sketches");
+                }
+                if (buckets != null) {
+                    write(conn, buckets, false);
+                }
+                setCoverage(conn, buckets != null, buckets != null ? buckets.getPrecision() : precision);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        if (buckets != null) {
+            System.out.printf("✅ Скетчи различных IP и пользователей сохранены: %,d часов%n",
+                    buckets.getIpHours().size());
+        }
+    }
+
+    // Корзины больше не соответствуют logs - запросы переходят на COUNT(DISTINCT)
+    public void invalidate() {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+            invalidate(conn);
+        } catch (SQLException e) {
+            System.err.println("❌ Ошибка сброса скетчей различных значений: " + e.getMessage());
+        }
+    }
+
+    public void invalidate(Connection conn) throws SQLException {
+        ensureTables(conn);
+        setCoverage(conn, false, precision);
+    }
+
+    /**
+     * Дозагрузка и слежение: корзины порции сливаются с сохраненными в транзакции переданного соединения.
+     * null (скетчи отключены) или другая точность снимают покрытие.
+     */
+    public void mergeBuckets(Connection conn, DistinctSketchBuckets buckets) throws SQLException {
+        ensureTables(conn);
+        Integer storedPrecision = coveredPrecision(conn);
+        if (storedPrecision == null) {
+            return;
+        }
+        if (buckets == null || buckets.getPrecision() != storedPrecision) {
+            setCoverage(conn, false, storedPrecision);
+            return;
+        }
+        write(conn, buckets, true);
+    }
+
+    // Перезагрузка секции [start, end): корзины интервала (по границам суток) заменяются новыми
+    public void replaceRange(LocalDateTime start, LocalDateTime end, DistinctSketchBuckets buckets) throws SQLException {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+            ensureTables(conn);
+            Integer storedPrecision = coveredPrecision(conn);
+            if (storedPrecision == null) {
+                return;
+            }
+            if (buckets == null || buckets.getPrecision() != storedPrecision) {
+                setCoverage(conn, false, storedPrecision);
+                return;
+            }
+
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "DELETE FROM log_distinct_sketches WHERE bucket_start >= ? AND bucket_start < ?")) {
+                    ps.setTimestamp(1, Timestamp.valueOf(start));
+                    ps.setTimestamp(2, Timestamp.valueOf(end));
+                    ps.executeUpdate();
+                }
+                write(conn, buckets, false);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Часовые корзины и суточные, собранные из них; merge - слить с уже сохраненными
+    private void write(Connection conn, DistinctSketchBuckets buckets, boolean merge) throws SQLException {
+        Map<LocalDateTime, HyperLogLog> ipHours = buckets.getIpHours();
+        Map<LocalDateTime, HyperLogLog> userHours = buckets.getUserHours();
+
+        Map<LocalDateTime, HyperLogLog> ipDays = new HashMap<>();
+        Map<LocalDateTime, HyperLogLog> userDays = new HashMap<>();
+        for (LocalDateTime hour : ipHours.keySet()) {
+            LocalDateTime day = hour.truncatedTo(ChronoUnit.DAYS);
+            ipDays.computeIfAbsent(day, d -> new HyperLogLog(buckets.getPrecision())).merge(ipHours.get(hour));
+            userDays.computeIfAbsent(day, d -> new HyperLogLog(buckets.getPrecision())).merge(userHours.get(hour));
+        }
+
+        upsert(conn, HOUR, ipHours, userHours, merge);
+        upsert(conn, DAY, ipDays, userDays, merge);
+    }
+
+    private void upsert(Connection conn, String granularity, Map<LocalDateTime, HyperLogLog> ips,
+                        Map<LocalDateTime, HyperLogLog> users, boolean merge) throws SQLException {
+        if (ips.isEmpty()) {
+            return;
+        }
+
+        if (merge) {
+            String sql = "SELECT bucket_start, ip_hll, user_hll FROM log_distinct_sketches " +
+                    "WHERE granularity = ? AND bucket_start = ANY(?) FOR UPDATE";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, granularity);
+                Timestamp[] starts = ips.keySet().stream().map(Timestamp::valueOf).toArray(Timestamp[]::new);
+                ps.setArray(2, conn.createArrayOf("timestamp", starts));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        LocalDateTime start = rs.getTimestamp(1).toLocalDateTime();
+                        ips.get(start).merge(HyperLogLog.fromBytes(rs.getBytes(2)));
+                        users.get(start).merge(HyperLogLog.fromBytes(rs.getBytes(3)));
+                    }
+                }
+            }
+        }
+
+        String sql = "INSERT INTO log_distinct_sketches (granularity, bucket_start, ip_hll, user_hll) " +
+                "VALUES (?, ?, ?, ?) " +
+                "ON CONFLICT (granularity, bucket_start) DO UPDATE SET " +
+                "ip_hll = EXCLUDED.ip_hll, user_hll = EXCLUDED.user_hll";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<LocalDateTime, HyperLogLog> entry : ips.entrySet()) {
+                ps.setString(1, granularity);
+                ps.setTimestamp(2, Timestamp.valueOf(entry.getKey()));
+                ps.setBytes(3, entry.getValue().toBytes());
+                ps.setBytes(4, users.get(entry.getKey()).toBytes());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private void setCoverage(Connection conn, boolean complete, int hllPrecision) throws SQLException {
+        String sql = "INSERT INTO log_distinct_coverage (id, complete, hll_precision, updated_at) " +
+                "VALUES (1, ?, ?, CURRENT_TIMESTAMP) " +
+                "ON CONFLICT (id) DO UPDATE SET complete = EXCLUDED.complete, " +
+                "hll_precision = EXCLUDED.hll_precision, updated_at = EXCLUDED.updated_at";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setBoolean(1, complete);
+            ps.setInt(2, hllPrecision);
+            ps.executeUpdate();
+        }
+    }
+
+    // Точность сохраненных корзин, если они покрывают всю logs; иначе null
+    private Integer coveredPrecision(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT complete, hll_precision FROM log_distinct_coverage WHERE id = 1")) {
+            return rs.next() && rs.getBoolean(1) ? rs.getInt(2) : null;
+        }
+    }
+
+    // ===== ОЦЕНКА =====
+
+    /**
+     * Различные IP и пользователи за [dateFrom, dateTo] (null - без границы) по скетчам.
+     * Возвращает null, если скетчи не покрывают logs или период короче полного часа - тогда
+     * точный COUNT(DISTINCT) по индексу времени дешевле.
+     */
+    public Map<String, Object> estimate(LocalDateTime dateFrom, LocalDateTime dateTo) {
+        if (!enabled) {
+            return null;
+        }
+
+        // Полные часы [firstHour, lastHour) и полные сутки [firstDay, lastDay) внутри периода
+        LocalDateTime firstHour = dateFrom != null ? ceil(dateFrom, ChronoUnit.HOURS) : null;
+        LocalDateTime lastHour = dateTo != null ? dateTo.truncatedTo(ChronoUnit.HOURS) : null;
+        if (firstHour != null && lastHour != null && !firstHour.isBefore(lastHour)) {
+            return null;
+        }
+        LocalDateTime firstDay = firstHour != null ? ceil(firstHour, ChronoUnit.DAYS) : null;
+        LocalDateTime lastDay = lastHour != null ? lastHour.truncatedTo(ChronoUnit.DAYS) : null;
+
+        try (Connection conn = connectionPools.interactive().getConnection()) {
+            ensureTables(conn);
+            Integer storedPrecision = coveredPrecision(conn);
+            if (storedPrecision == null) {
+                return null;
+            }
+
+            HyperLogLog ips = new HyperLogLog(storedPrecision);
+            HyperLogLog users = new HyperLogLog(storedPrecision);
+            int buckets = 0;
+
+            if (firstDay == null || lastDay == null || firstDay.isBefore(lastDay)) {
+                buckets += mergeBuckets(conn, DAY, firstDay, lastDay, ips, users);
+                if (firstHour != null && firstHour.isBefore(firstDay)) {
+                    buckets += mergeBuckets(conn, HOUR, firstHour, firstDay, ips, users);
+                }
+                if (lastHour != null && lastDay.isBefore(lastHour)) {
+                    buckets += mergeBuckets(conn, HOUR, lastDay, lastHour, ips, users);
+                }
+            } else {
+                buckets += mergeBuckets(conn, HOUR, firstHour, lastHour, ips, users);
+            }
+
+            // Неполные часы на краях периода - точные значения из logs
+            if (dateFrom != null && dateFrom.isBefore(firstHour)) {
+                addExact(conn, dateFrom, firstHour, false, ips, users);
+            }
+            if (dateTo != null) {
+                addExact(conn, lastHour, dateTo, true, ips, users);
+            }
+
+            Map<String, Object> result = new HashMap<>();
+            result.put("unique_ips", ips.estimate());
+            result.put("unique_users", users.estimate());
+            result.put("relative_error", Math.round(HyperLogLog.relativeError(storedPrecision) * 10000) / 100.0);
+            result.put("buckets", buckets);
+            result.put("approximate", true);
+            return result;
+
+        } catch (SQLException e) {
+            System.err.println("❌ Ошибка оценки различных значений по скетчам: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static LocalDateTime ceil(LocalDateTime value, ChronoUnit unit) {
+        LocalDateTime truncated = value.truncatedTo(unit);
+        return truncated.equals(value) ? value : truncated.plus(1, unit);
+    }
+
+    // [from, to) корзин одной гранулярности; null - без границы
+    private int mergeBuckets(Connection conn, String granularity, LocalDateTime from, LocalDateTime to,
+                             HyperLogLog ips, HyperLogLog users) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT ip_hll, user_hll FROM log_distinct_sketches WHERE granularity = ?");
+        List<Object> params = new ArrayList<>();
+        params.add(granularity);
+        if (from != null) {
+            sql.append(" AND bucket_start >= ?");
+            params.add(Timestamp.valueOf(from));
+        }
+        if (to != null) {
+            sql.append(" AND bucket_start < ?");
+            params.add(Timestamp.valueOf(to));
+        }
+
+        int merged = 0;
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                ps.setObject(i + 1, params.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ips.merge(HyperLogLog.fromBytes(rs.getBytes(1)));
+                    users.merge(HyperLogLog.fromBytes(rs.getBytes(2)));
+                    merged++;
+                }
+            }
+        }
+        return merged;
+    }
+
+    // Значения из logs за [from, to) или [from, to] - хэшируются так же, как при разборе строк
+    private void addExact(Connection conn, LocalDateTime from, LocalDateTime to, boolean inclusive,
+                          HyperLogLog ips, HyperLogLog users) throws SQLException {
+        String range = "time >= ? AND time " + (inclusive ? "<=" : "<") + " ?";
+        String ipSql = "SELECT DISTINCT ip FROM logs WHERE " + range + " AND ip IS NOT NULL";
+        String userSql = "SELECT DISTINCT " + dictionaryService.select("username") + " FROM logs WHERE " + range +
+                " AND " + dictionaryService.notDash("username");
+
+        for (String sql : new String[]{ipSql, userSql}) {
+            boolean userColumn = sql == userSql;
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setTimestamp(1, Timestamp.valueOf(from));
+                ps.setTimestamp(2, Timestamp.valueOf(to));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String value = userColumn ? dictionaryService.getString(rs, "username") : rs.getString(1);
+                        if (value != null && !value.isEmpty()) {
+                            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                            (userColumn ? users : ips).add(bytes, 0, bytes.length);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HyperLogLog различных IP и пользователей по часовым корзинам локального времени
+ * (как колонка time). Заполняется при разборе строк, сливается с корзинами других потоков,
+ * сохраняется DistinctCountService. Пустой IP и пользователь "-" не учитываются,
+ * как в COUNT(DISTINCT ip) и фильтрах по пользователю. Не потокобезопасен.
+ */
+public class DistinctSketchBuckets {
+
+    private static final int SECONDS_PER_HOUR = 3600;
+
+    private final int precision;
+
+    // Номер часа (локальные секунды / 3600) -> скетчи IP и пользователей
+    private final Map<Long, HyperLogLog> ips = new HashMap<>();
+    private final Map<Long, HyperLogLog> users = new HashMap<>();
+
+    // Последняя корзина: строки идут почти по порядку времени, поиск в карте - только на смене часа
+    private long lastHour = Long.MIN_VALUE;
+    private HyperLogLog lastIps;
+    private HyperLogLog lastUsers;
+
+    public DistinctSketchBuckets(int precision) {
+        this.precision = precision;
+    }
+
+    public void add(LogRecord rec, long localSeconds) {
+        long hour = Math.floorDiv(localSeconds, SECONDS_PER_HOUR);
+        if (hour != lastHour) {
+            lastHour = hour;
+            lastIps = ips.computeIfAbsent(hour, h -> new HyperLogLog(precision));
+            lastUsers = users.computeIfAbsent(hour, h -> new HyperLogLog(precision));
+        }
+
+        if (!rec.ip.isEmpty()) {
+            lastIps.add(rec.ip.buf, rec.ip.off, rec.ip.len);
+        }
+        LogRecord.ByteSlice username = rec.username;
+        if (!username.isEmpty() && !(username.len == 1 && username.at(0) == '-')) {
+            lastUsers.add(username.buf, username.off, username.len);
+        }
+    }
+
+    public void merge(DistinctSketchBuckets other) {
+        mergeInto(ips, other.ips);
+        mergeInto(users, other.users);
+        lastHour = Long.MIN_VALUE;
+    }
+
+    private void mergeInto(Map<Long, HyperLogLog> target, Map<Long, HyperLogLog> source) {
+        for (Map.Entry<Long, HyperLogLog> entry : source.entrySet()) {
+            HyperLogLog existing = target.get(entry.getKey());
+            if (existing == null) {
+                existing = new HyperLogLog(precision);
+                target.put(entry.getKey(), existing);
+            }
+            existing.merge(entry.getValue());
+        }
+    }
+
+    public boolean isEmpty() {
+        return ips.isEmpty();
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    // Часовые корзины: начало часа -> скетч
+    public Map<LocalDateTime, HyperLogLog> getIpHours() {
+        return byStart(ips);
+    }
+
+    public Map<LocalDateTime, HyperLogLog> getUserHours() {
+        return byStart(users);
+    }
+
+    private static Map<LocalDateTime, HyperLogLog> byStart(Map<Long, HyperLogLog> buckets) {
+        Map<LocalDateTime, HyperLogLog> result = new HashMap<>();
+        for (Map.Entry<Long, HyperLogLog> entry : buckets.entrySet()) {
+            result.put(LocalDateTime.ofEpochSecond(entry.getKey() * SECONDS_PER_HOUR, 0, ZoneOffset.UTC),
+                    entry.getValue());
+        }
+        return result;
+    }
+}
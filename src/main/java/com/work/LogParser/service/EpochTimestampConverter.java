@@ -0,0 +1,131 @@
+package com.work.LogParser.service;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Перевод epoch секунд в локальное время без создания объектов на каждую строку.
+ * Смещение зоны кэшируется на интервал между соседними переходами (DST), поэтому
+ * результат совпадает с LocalDateTime.ofInstant(..., ZoneId.systemDefault()).
+ * Не потокобезопасен: у каждого потока парсинга свой экземпляр.
+ */
+public class EpochTimestampConverter {
+
+    private static final int SECONDS_PER_DAY = 86400;
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+
+    // Интервал [validFrom, validUntil) epoch секунд, на котором действует offsetSeconds
+    private int offsetSeconds;
+    private long validFrom = Long.MAX_VALUE;
+    private long validUntil = Long.MIN_VALUE;
+
+    public EpochTimestampConverter() {
+        this(ZoneId.systemDefault());
+    }
+
+    public EpochTimestampConverter(ZoneId zone) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+    }
+
+    // Локальное время в секундах от 1970-01-01T00:00 (как LocalDateTime.toEpochSecond(ZoneOffset.UTC))
+    public long toLocalSeconds(long epochSeconds) {
+        if (epochSeconds < validFrom || epochSeconds >= validUntil) {
+            loadOffset(epochSeconds);
+        }
+        return epochSeconds + offsetSeconds;
+    }
+
+    private void loadOffset(long epochSeconds) {
+        Instant instant = Instant.ofEpochSecond(epochSeconds);
+        ZoneOffset offset = rules.getOffset(instant);
+        offsetSeconds = offset.getTotalSeconds();
+
+        if (rules.isFixedOffset()) {
+            validFrom = Long.MIN_VALUE;
+            validUntil = Long.MAX_VALUE;
+            return;
+        }
+
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        validUntil = next != null ? next.getInstant().getEpochSecond() : Long.MAX_VALUE;
+
+        ZoneOffsetTransition previous = rules.previousTransition(instant);
+        validFrom = previous != null && previous.getOffsetAfter().equals(offset)
+                ? previous.getInstant().getEpochSecond()
+                : epochSeconds;
+    }
+
+    /**
+     * Текст времени как Timestamp.valueOf(LocalDateTime).toString():
+     * yyyy-MM-dd HH:mm:ss.f, дробная часть без хвостовых нулей (минимум ".0").
+     */
+    public void appendTimestamp(long epochSeconds, int nanos, ByteArrayBuilder out) {
+        long localSeconds = toLocalSeconds(epochSeconds);
+        long days = Math.floorDiv(localSeconds, SECONDS_PER_DAY);
+        int secondOfDay = Math.floorMod(localSeconds, SECONDS_PER_DAY);
+
+        // Дата по номеру дня (алгоритм civil_from_days, пролептический григорианский календарь)
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        // Годы вне 1000..9999 Timestamp печатает по своим правилам - отдаем ему
+        if (year < 1000 || year > 9999) {
+            LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSeconds, nanos), zone);
+            out.appendAscii(Timestamp.valueOf(dateTime).toString());
+            return;
+        }
+
+        appendDigits(out, (int) year, 4);
+        out.append((byte) '-');
+        appendDigits(out, month, 2);
+        out.append((byte) '-');
+        appendDigits(out, day, 2);
+        out.append((byte) ' ');
+        appendDigits(out, secondOfDay / 3600, 2);
+        out.append((byte) ':');
+        appendDigits(out, secondOfDay / 60 % 60, 2);
+        out.append((byte) ':');
+        appendDigits(out, secondOfDay % 60, 2);
+        out.append((byte) '.');
+
+        if (nanos == 0) {
+            out.append((byte) '0');
+            return;
+        }
+        int digits = 9;
+        while (nanos % 10 == 0) {
+            nanos /= 10;
+            digits--;
+        }
+        appendDigits(out, nanos, digits);
+    }
+
+    private static void appendDigits(ByteArrayBuilder out, int value, int width) {
+        for (int divisor = pow10(width - 1); divisor > 0; divisor /= 10) {
+            out.append((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static int pow10(int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+}
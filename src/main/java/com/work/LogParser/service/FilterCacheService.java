@@ -9,6 +9,8 @@ import org.springframework.cache.annotation.Caching;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -273,4 +275,71 @@ public class FilterCacheService {
 
         System.out.println("🔄 Кэш фильтров обновлен после изменения данных");
     }
-}
\ No newline at end of file
+
+    /**
+     * Точечная инвалидация после микропорции режима слежения: удаляются только записи,
+     * фильтры которых могут включать хотя бы одну строку порции (пересечение дат по дням,
+     * IP, пользователь, статус и action встречались в порции или не заданы).
+     */
+    public int invalidateForBatch(IngestBatchStats batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        int removed = 0;
+        for (String key : memoryCache.keySet()) {
+            if (isTouchedByBatch(key, batch) && memoryCache.remove(key) != null) {
+                removed++;
+            }
+        }
+
+        for (String cacheName : List.of("filteredResults", "topUrls", "topUsers")) {
+            Cache cache = cacheManager.getCache(cacheName);
+            if (cache != null && cache.getNativeCache() instanceof Map<?, ?> nativeCache) {
+                for (Object key : List.copyOf(nativeCache.keySet())) {
+                    if (key instanceof String && isTouchedByBatch((String) key, batch)) {
+                        cache.evict(key);
+                    }
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    // Ключ filter:dateFrom:dateTo:ip:user:status:action или top:type:<filter-ключ>:limit
+    private boolean isTouchedByBatch(String cacheKey, IngestBatchStats batch) {
+        String[] parts = cacheKey.split(":", -1);
+        int first;
+        if (cacheKey.startsWith("filter:") && parts.length == 7) {
+            first = 1;
+        } else if (cacheKey.startsWith("top:") && parts.length == 10 && "filter".equals(parts[2])) {
+            first = 3;
+        } else {
+            return true; // Незнакомый формат - удаляем на всякий случай
+        }
+
+        String dateFrom = parts[first];
+        String dateTo = parts[first + 1];
+        String ip = parts[first + 2];
+        String username = parts[first + 3];
+        String status = parts[first + 4];
+        String action = parts[first + 5];
+
+        try {
+            if (!dateFrom.isEmpty() && LocalDate.parse(dateFrom).isAfter(batch.getMaxDate())) {
+                return false;
+            }
+            if (!dateTo.isEmpty() && LocalDate.parse(dateTo).isBefore(batch.getMinDate())) {
+                return false;
+            }
+        } catch (DateTimeParseException e) {
+            return true;
+        }
+
+        return (ip.isEmpty() || batch.mayContainIp(ip)) &&
+                (username.isEmpty() || batch.mayContainUser(username)) &&
+                (status.isEmpty() || batch.mayContainStatus(status)) &&
+                (action.isEmpty() || batch.mayContainAction(action));
+    }
+}
@@ -0,0 +1,228 @@
+package com.work.LogParser.service;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Распаковка gzip отдельной стадией конвейера: собственный поток читает сжатые данные и пишет
+ * распакованные байты в кольцо буферов, а читатель получает их как обычный InputStream.
+ * Распаковка и разбор строк идут параллельно на разных ядрах, без промежуточного файла на диске.
+ * Файлы из нескольких склеенных gzip-членов поддерживаются (GZIPInputStream читает их подряд).
+ */
+public class GzipDecompressStage extends InputStream {
+
+    private static final int RING_MEMORY = 8 * 1024 * 1024;
+    private static final int RING_BUFFER_SIZE = 256 * 1024;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    // Проверка кандидата в начало gzip-члена: сколько сжатых байт распаковать и сколько строк ждать
+    private static final int PROBE_COMPRESSED_BYTES = 256 * 1024;
+    private static final int PROBE_OUTPUT_BYTES = 64 * 1024;
+
+    // Насколько назад от границы искать начало предыдущего члена
+    private static final long MEMBER_LOOKBACK = 1024 * 1024;
+
+    private final InputStream compressed;
+    private final CopyBufferRing ring;
+    private final Thread thread;
+    private volatile Throwable failure;
+
+    private ByteBuffer current;
+    private boolean finished;
+
+    public GzipDecompressStage(InputStream compressed, String name) {
+        this.compressed = compressed;
+        this.ring = new CopyBufferRing(RING_MEMORY, RING_BUFFER_SIZE, false);
+        this.thread = new Thread(this::decompress, "gzip-" + name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Поток распаковки: сжатый поток -> кольцо буферов
+    private void decompress() {
+        try (GZIPInputStream gzip = new GZIPInputStream(compressed, INFLATE_BUFFER_SIZE)) {
+            byte[] chunk = new byte[INFLATE_BUFFER_SIZE];
+            int n;
+            while ((n = gzip.read(chunk)) > 0) {
+                ring.write(chunk, 0, n);
+            }
+            ring.close();
+        } catch (Throwable e) {
+            if (!ring.isAborted()) {
+                failure = e;
+                ring.abort();
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                ring.release(current);
+                current = null;
+            }
+            if (finished) {
+                return -1;
+            }
+            current = nextBuffer();
+            if (current == null) {
+                finished = true;
+                return -1;
+            }
+        }
+
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    private ByteBuffer nextBuffer() throws IOException {
+        try {
+            return ring.next();
+        } catch (IOException e) {
+            if (failure != null) {
+                throw new IOException("Ошибка распаковки gzip: " + failure.getMessage(), failure);
+            }
+            throw e;
+        }
+    }
+
+    // Остановка стадии (в том числе досрочная - после выборки строк или при отмене)
+    @Override
+    public void close() throws IOException {
+        ring.abort();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compressed.close();
+    }
+
+    // gzip определяется по сигнатуре 1f 8b, а не по расширению
+    public static boolean isGzip(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+            }
+            return magic.position() == 2 && (magic.get(0) & 0xFF) == 0x1f && (magic.get(1) & 0xFF) == 0x8b;
+        }
+    }
+
+    /**
+     * Позиция заголовка gzip-члена (1f 8b 08, зарезервированные флаги 0), начиная с from, или -1.
+     * Такие байты могут случайно встретиться и внутри сжатых данных - кандидата проверяет isMemberStart.
+     */
+    static long findHeaderCandidate(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(64 * 1024);
+        long pos = from;
+        while (pos < to) {
+            probe.clear();
+            int read = channel.read(probe, pos);
+            if (read < 4) {
+                return -1;
+            }
+            for (int i = 0; i + 3 < read; i++) {
+                if ((probe.get(i) & 0xFF) == 0x1f && (probe.get(i + 1) & 0xFF) == 0x8b
+                        && probe.get(i + 2) == 8 && (probe.get(i + 3) & 0xE0) == 0) {
+                    return pos + i < to ? pos + i : -1;
+                }
+            }
+            pos += read - 3; // заголовок мог попасть на стык блоков
+        }
+        return -1;
+    }
+
+    // С позиции начинается настоящий gzip-член: распаковка начала проходит без ошибок и дает строки текста
+    static boolean isMemberStart(FileChannel channel, long position) throws IOException {
+        channel.position(position);
+        // Закрытие выборки не должно закрывать общий канал файла
+        InputStream bounded = new FilterInputStream(new ParallelChunkLoader.BoundedInputStream(
+                Channels.newInputStream(channel), PROBE_COMPRESSED_BYTES)) {
+            @Override
+            public void close() {
+            }
+        };
+
+        byte[] output = new byte[PROBE_OUTPUT_BYTES];
+        int produced = 0;
+        try (GZIPInputStream gzip = new GZIPInputStream(bounded, INFLATE_BUFFER_SIZE)) {
+            int n;
+            while (produced < output.length && (n = gzip.read(output, produced, output.length - produced)) > 0) {
+                produced += n;
+            }
+        } catch (ZipException e) {
+            return false;
+        } catch (EOFException e) {
+            // Выборка обрезана посреди члена - проверяем то, что успели распаковать
+        }
+
+        boolean hasLineBreak = false;
+        for (int i = 0; i < produced; i++) {
+            if (output[i] == 0) {
+                return false; // в логе нет нулевых байт - это мусор от ложного заголовка
+            }
+            hasLineBreak |= output[i] == '\n';
+        }
+        return hasLineBreak;
+    }
+
+    /**
+     * Начало последнего gzip-члена перед position: ближайший проверенный заголовок не дальше MEMBER_LOOKBACK,
+     * иначе rangeStart (начало диапазона - тоже начало члена, но распаковывать от него дольше).
+     */
+    static long previousMemberStart(FileChannel channel, long rangeStart, long position) throws IOException {
+        long best = rangeStart;
+        long candidate = findHeaderCandidate(channel, Math.max(rangeStart, position - MEMBER_LOOKBACK), position);
+        while (candidate >= 0) {
+            if (candidate > best && isMemberStart(channel, candidate)) {
+                best = candidate;
+            }
+            candidate = findHeaderCandidate(channel, candidate + 1, position);
+        }
+        return best;
+    }
+
+    // Члены [from, to) распаковываются целиком, и последний распакованный байт - '\n'
+    static boolean endsWithLineBreak(FileChannel channel, long from, long to) throws IOException {
+        channel.position(from);
+        InputStream bounded = new FilterInputStream(new ParallelChunkLoader.BoundedInputStream(
+                Channels.newInputStream(channel), to - from)) {
+            @Override
+            public void close() {
+            }
+        };
+
+        byte[] output = new byte[INFLATE_BUFFER_SIZE];
+        byte last = 0;
+        try (GZIPInputStream gzip = new GZIPInputStream(bounded, INFLATE_BUFFER_SIZE)) {
+            int n;
+            while ((n = gzip.read(output)) > 0) {
+                last = output[n - 1];
+            }
+        } catch (ZipException | EOFException e) {
+            // to не граница члена - делить здесь нельзя
+            return false;
+        }
+        return last == '\n';
+    }
+}
@@ -0,0 +1,250 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Самые частые значения одной колонки в ограниченной памяти.
+ * Count-Min (DEPTH строк по width счетчиков, индексы из 64-битного хэша байт значения) дает оценку
+ * частоты любого значения сверху, а набор из capacity кандидатов хранит значения с оценкой выше порога.
+ * Строка создается только при входе значения в кандидаты, повтор кандидата - поиск по хэшу.
+ * Оценка завышена не больше чем на e/width * N с вероятностью 1 - e^-DEPTH (N - число добавленных значений);
+ * observed - точное число появлений с момента входа в кандидаты, то есть нижняя граница.
+ * Накопители одинаковой ширины сливаются через merge. Не потокобезопасен.
+ */
+public class HeavyHitterSketch {
+
+    private static final int DEPTH = 4;
+
+    // Кандидат в топ; показатели кроме estimate считаются с момента входа в кандидаты
+    public static class Candidate {
+        public final String value;
+        public final String extra; // сопутствующее значение (домен URL)
+        final long hash;
+
+        long estimate;
+        long observed;
+        long bytes;
+        long responseTimeSum;
+        long responseTimeSamples;
+        long firstLocalSeconds = Long.MAX_VALUE;
+        long lastLocalSeconds = Long.MIN_VALUE;
+
+        Candidate(String value, String extra, long hash) {
+            this.value = value;
+            this.extra = extra;
+            this.hash = hash;
+        }
+
+        public long getEstimate() {
+            return estimate;
+        }
+
+        public long getObserved() {
+            return observed;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getAvgResponseTime() {
+            return responseTimeSamples > 0 ? Math.round((double) responseTimeSum / responseTimeSamples) : 0;
+        }
+
+        public Timestamp getFirstSeen() {
+            return toTimestamp(firstLocalSeconds);
+        }
+
+        public Timestamp getLastSeen() {
+            return toTimestamp(lastLocalSeconds);
+        }
+
+        private static Timestamp toTimestamp(long localSeconds) {
+            return localSeconds == Long.MAX_VALUE || localSeconds == Long.MIN_VALUE ? null
+                    : Timestamp.valueOf(LocalDateTime.ofEpochSecond(localSeconds, 0, ZoneOffset.UTC));
+        }
+    }
+
+    private final int capacity;
+    private final int width;
+    private final int mask;
+    private final int[] counts;
+    private final Map<Long, Candidate> candidates = new HashMap<>();
+
+    // Не больше наименьшей оценки среди кандидатов: значение с оценкой не выше порога в кандидаты не входит
+    private long threshold = 0;
+    private long total;
+
+    // width округляется вверх до степени двойки
+    public HeavyHitterSketch(int capacity, int width) {
+        this.capacity = Math.max(1, capacity);
+        this.width = Integer.highestOneBit(Math.max(1024, width) * 2 - 1);
+        this.mask = this.width - 1;
+        this.counts = new int[DEPTH * this.width];
+    }
+
+    public void add(LogRecord.ByteSlice value, LogRecord.ByteSlice extra, LogRecord rec, long localSeconds) {
+        long hash = hash(value.buf, value.off, value.len);
+        long estimate = increment(hash);
+        total++;
+
+        // Кандидат всегда проходит: его оценка выросла с последнего обновления, а порог ее не превышал
+        if (estimate <= threshold) {
+            return;
+        }
+
+        Candidate candidate = candidates.get(hash);
+        if (candidate == null) {
+            if (candidates.size() >= capacity) {
+                shrink(capacity - Math.max(1, capacity / 10));
+            }
+            candidate = new Candidate(value.toString(), extra != null && !extra.isEmpty() ? extra.toString() : null, hash);
+            candidates.put(hash, candidate);
+        }
+
+        candidate.estimate = estimate;
+        candidate.observed++;
+        candidate.bytes += rec.responseSizeBytes;
+        if (rec.responseTimeMs > 0) {
+            candidate.responseTimeSum += rec.responseTimeMs;
+            candidate.responseTimeSamples++;
+        }
+        candidate.firstLocalSeconds = Math.min(candidate.firstLocalSeconds, localSeconds);
+        candidate.lastLocalSeconds = Math.max(candidate.lastLocalSeconds, localSeconds);
+    }
+
+    // Прибавляет счетчики и кандидатов другого накопителя той же ширины
+    public void merge(HeavyHitterSketch other) {
+        if (other.width != width) {
+            throw new IllegalArgumentException("Разная ширина Count-Min: " + width + " и " + other.width);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+
+        for (Candidate theirs : other.candidates.values()) {
+            Candidate ours = candidates.get(theirs.hash);
+            if (ours == null) {
+                ours = new Candidate(theirs.value, theirs.extra, theirs.hash);
+                candidates.put(theirs.hash, ours);
+            }
+            ours.observed += theirs.observed;
+            ours.bytes += theirs.bytes;
+            ours.responseTimeSum += theirs.responseTimeSum;
+            ours.responseTimeSamples += theirs.responseTimeSamples;
+            ours.firstLocalSeconds = Math.min(ours.firstLocalSeconds, theirs.firstLocalSeconds);
+            ours.lastLocalSeconds = Math.max(ours.lastLocalSeconds, theirs.lastLocalSeconds);
+        }
+
+        // Оценки по слитым счетчикам; лишние кандидаты - с наименьшими оценками
+        for (Candidate candidate : candidates.values()) {
+            candidate.estimate = estimate(candidate.hash);
+        }
+        if (candidates.size() > capacity) {
+            shrink(capacity);
+        }
+    }
+
+    // Кандидаты по убыванию оценки
+    public List<Candidate> top(int limit) {
+        List<Candidate> sorted = sortedByEstimate();
+        return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+    }
+
+    /**
+     * Значения, которые могут входить в истинный топ limit: оценка сверху не ниже
+     * limit-й по величине нижней границы. Точный пересчет по ним дает тот же топ, что и полный GROUP BY,
+     * если только истинный участник топа ни разу не был кандидатом.
+     */
+    public List<Candidate> candidatesFor(int limit) {
+        List<Long> lowerBounds = new ArrayList<>();
+        for (Candidate candidate : candidates.values()) {
+            lowerBounds.add(candidate.observed);
+        }
+        lowerBounds.sort(Comparator.reverseOrder());
+        long cutoff = lowerBounds.size() >= limit ? lowerBounds.get(limit - 1) : 0;
+
+        List<Candidate> result = new ArrayList<>();
+        for (Candidate candidate : sortedByEstimate()) {
+            if (candidate.estimate >= cutoff) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    // Граница завышения оценки (e/width * N), выполняется с вероятностью 1 - e^-DEPTH
+    public long errorBound() {
+        return (long) Math.ceil(Math.E / width * total);
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public int size() {
+        return candidates.size();
+    }
+
+    private List<Candidate> sortedByEstimate() {
+        List<Candidate> sorted = new ArrayList<>(candidates.values());
+        sorted.sort(Comparator.comparingLong((Candidate c) -> c.estimate).reversed());
+        return sorted;
+    }
+
+    // Оставляет keep кандидатов с наибольшими оценками; порог поднимается до лучшей вытесненной оценки
+    private void shrink(int keep) {
+        List<Candidate> sorted = sortedByEstimate();
+        for (int i = keep; i < sorted.size(); i++) {
+            Candidate evicted = sorted.get(i);
+            candidates.remove(evicted.hash);
+            threshold = Math.max(threshold, evicted.estimate);
+        }
+    }
+
+    private long increment(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1; // нечетный шаг - строки не совпадают по индексам
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = row * width + ((h1 + row * h2) & mask);
+            min = Math.min(min, ++counts[index]);
+        }
+        return min;
+    }
+
+    private long estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1; // нечетный шаг - строки не совпадают по индексам
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counts[row * width + ((h1 + row * h2) & mask)]);
+        }
+        return min;
+    }
+
+    // FNV-1a с финальным перемешиванием (fmix64), чтобы обе половины хэша были равномерны
+    static long hash(byte[] buf, int off, int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = off; i < off + len; i++) {
+            h ^= buf[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,188 @@
+package com.work.LogParser.service;
+
+/**
+ * HyperLogLog: оценка числа различных значений по 2^precision регистрам (64-битный хэш,
+ * старшие precision бит - номер регистра, регистр хранит наибольшую длину серии нулей + 1).
+ * Относительная ошибка около 1.04 / sqrt(2^precision): при precision 12 - 1.6%, при 14 - 0.8%.
+ * Пока заполнено мало регистров, они хранятся разреженно (открытая адресация "регистр -> ранг"),
+ * так что редкие часовые корзины занимают меньше плотного массива. Сливается взятием максимума
+ * по регистрам. Не потокобезопасен.
+ */
+public class HyperLogLog {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private final int precision;
+    private final int registerCount;
+
+    // Плотные регистры; null, пока значения хранятся разреженно
+    private byte[] registers;
+
+    // Разреженные регистры: 0 - пусто, иначе (номер + 1) << 8 | ранг
+    private int[] sparse = new int[16];
+    private int sparseSize;
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Точность HyperLogLog вне диапазона " +
+                    MIN_PRECISION + "-" + MAX_PRECISION + ": " + precision);
+        }
+        this.precision = precision;
+        this.registerCount = 1 << precision;
+    }
+
+    // Плотные регистры из БД; точность определяется длиной массива
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        int precision = Integer.numberOfTrailingZeros(bytes.length);
+        if (bytes.length != 1 << precision) {
+            throw new IllegalArgumentException("Длина регистров HyperLogLog не степень двойки: " + bytes.length);
+        }
+        HyperLogLog hll = new HyperLogLog(precision);
+        hll.registers = bytes.clone();
+        hll.sparse = null;
+        return hll;
+    }
+
+    public void add(byte[] buf, int off, int len) {
+        addHash(HeavyHitterSketch.hash(buf, off, len));
+    }
+
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // Ограничивающий бит: ранг не больше 64 - precision + 1
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        set(index, rank);
+    }
+
+    private void set(int index, int rank) {
+        if (registers != null) {
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+            return;
+        }
+
+        int mask = sparse.length - 1;
+        int slot = (index * 0x9E3779B1) >>> 1 & mask;
+        while (sparse[slot] != 0) {
+            if ((sparse[slot] >>> 8) - 1 == index) {
+                if (rank > (sparse[slot] & 0xff)) {
+                    sparse[slot] = (index + 1) << 8 | rank;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        sparse[slot] = (index + 1) << 8 | rank;
+        sparseSize++;
+
+        // Разреженная таблица при заполнении 1/2 занимает не больше плотного массива до registerCount / 8 записей
+        if (sparseSize > registerCount / 8) {
+            toDense();
+        } else if (sparseSize * 2 > sparse.length) {
+            growSparse();
+        }
+    }
+
+    private void growSparse() {
+        int[] old = sparse;
+        sparse = new int[old.length * 2];
+        sparseSize = 0;
+        for (int entry : old) {
+            if (entry != 0) {
+                set((entry >>> 8) - 1, entry & 0xff);
+            }
+        }
+    }
+
+    private void toDense() {
+        byte[] dense = new byte[registerCount];
+        for (int entry : sparse) {
+            if (entry != 0) {
+                int index = (entry >>> 8) - 1;
+                dense[index] = (byte) Math.max(dense[index], entry & 0xff);
+            }
+        }
+        registers = dense;
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Разная точность HyperLogLog: " + precision + " и " + other.precision);
+        }
+        if (other.registers == null) {
+            for (int entry : other.sparse) {
+                if (entry != 0) {
+                    set((entry >>> 8) - 1, entry & 0xff);
+                }
+            }
+            return;
+        }
+        if (registers == null) {
+            toDense();
+        }
+        for (int i = 0; i < registerCount; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        if (registers != null) {
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+        } else {
+            zeros = registerCount - sparseSize;
+            sum = zeros;
+            for (int entry : sparse) {
+                if (entry != 0) {
+                    sum += 1.0 / (1L << (entry & 0xff));
+                }
+            }
+        }
+
+        double m = registerCount;
+        double alpha = registerCount >= 128 ? 0.7213 / (1 + 1.079 / m)
+                : registerCount == 64 ? 0.709 : registerCount == 32 ? 0.697 : 0.673;
+        double estimate = alpha * m * m / sum;
+
+        // Малые значения - линейный подсчет по пустым регистрам
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log(m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    // Плотные регистры для хранения (нулевые регистры хорошо сжимаются TOAST)
+    public byte[] toBytes() {
+        if (registers != null) {
+            return registers.clone();
+        }
+        byte[] dense = new byte[registerCount];
+        for (int entry : sparse) {
+            if (entry != 0) {
+                dense[(entry >>> 8) - 1] = (byte) (entry & 0xff);
+            }
+        }
+        return dense;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    // Стандартная относительная ошибка оценки
+    public static double relativeError(int precision) {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+}
@@ -0,0 +1,103 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Сводка одной микропорции режима слежения: приращения дефолтной статистики (LogStatsAccumulator) и
+ * значения фильтров (даты, IP, пользователи, статусы, action), по которым определяется,
+ * какие записи кэша затронуты. Наборы значений ограничены; при переполнении набор
+ * считается "любым значением" и соответствующий фильтр кэша всегда считается затронутым.
+ * Не потокобезопасен: заполняется потоком слежения.
+ */
+public class IngestBatchStats extends LogStatsAccumulator {
+
+    private static final int MAX_TRACKED_VALUES = 4096;
+
+    // Значения фильтров кэша в том виде, в каком они попадают в ключ (FilterCacheService.generateCacheKey)
+    private final TrackedValues ips = new TrackedValues();
+    private final TrackedValues users = new TrackedValues();
+    private final TrackedValues actions = new TrackedValues();
+    private final Set<String> statuses = new HashSet<>();
+    private final boolean[] seenStatuses = new boolean[1000];
+
+    @Override
+    public void add(LogRecord rec) {
+        super.add(rec);
+
+        ips.add(rec.ip);
+        users.add(rec.username);
+        actions.add(rec.action);
+        if (rec.statusCode < 0 || rec.statusCode >= seenStatuses.length || !seenStatuses[rec.statusCode]) {
+            if (rec.statusCode >= 0 && rec.statusCode < seenStatuses.length) {
+                seenStatuses[rec.statusCode] = true;
+            }
+            statuses.add(Integer.toString(rec.statusCode));
+        }
+    }
+
+    // Различные значения одного поля. Повтор - один хэш-поиск по байтам без создания строки
+    private static class TrackedValues {
+        final ByteInternCache<String> seen = new ByteInternCache<>(MAX_TRACKED_VALUES);
+        final Set<String> normalized = new HashSet<>();
+        final List<String> original = new ArrayList<>();
+        boolean overflow;
+
+        void add(LogRecord.ByteSlice value) {
+            if (value.isEmpty() || overflow || seen.get(value.buf, value.off, value.len) != null) {
+                return;
+            }
+            String text = value.toString();
+            if (!seen.put(value.buf, value.off, value.len, text)) {
+                overflow = true;
+                return;
+            }
+            original.add(text);
+            normalized.add(text.trim().toLowerCase());
+        }
+
+        boolean mayContain(String value) {
+            return overflow || normalized.contains(value);
+        }
+    }
+
+    public LocalDate getMinDate() {
+        return isEmpty() ? null : LocalDate.ofEpochDay(Math.floorDiv(getMinLocalSeconds(), SECONDS_PER_DAY));
+    }
+
+    public LocalDate getMaxDate() {
+        return isEmpty() ? null : LocalDate.ofEpochDay(Math.floorDiv(getMaxLocalSeconds(), SECONDS_PER_DAY));
+    }
+
+    public Set<String> getStatusCodes() {
+        return statuses;
+    }
+
+    // Значение фильтра (уже нормализованное как в ключе кэша) могло встретиться в порции
+    public boolean mayContainIp(String ip) {
+        return ips.mayContain(ip);
+    }
+
+    public boolean mayContainUser(String username) {
+        return users.mayContain(username);
+    }
+
+    public boolean mayContainAction(String action) {
+        return actions.mayContain(action);
+    }
+
+    public boolean mayContainStatus(String status) {
+        return statuses.contains(status);
+    }
+
+    // Различные action порции в исходном виде - для справочника log_actions
+    public Collection<String> getActionValues() {
+        return actions.original;
+    }
+}
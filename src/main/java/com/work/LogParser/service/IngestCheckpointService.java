@@ -0,0 +1,217 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.HexFormat;
+
+/**
+ * Контрольные точки загрузки: для каждого файла хранится смещение последнего загруженного байта
+ * и отпечаток начала файла. По ним решается, можно ли дозагрузить только новый хвост файла.
+ */
+@Service
+public class IngestCheckpointService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    // Сколько байт начала файла входит в отпечаток
+    private static final int HEAD_BYTES = 64 * 1024;
+
+    public enum Mode {
+        FULL,        // полная перезагрузка
+        APPEND,      // дозагрузка хвоста [startOffset, endOffset)
+        UP_TO_DATE   // новых строк нет
+    }
+
+    public static class Checkpoint {
+        public final String filePath;
+        public final long byteOffset;
+        public final int headLength;
+        public final String headFingerprint;
+
+        Checkpoint(String filePath, long byteOffset, int headLength, String headFingerprint) {
+            this.filePath = filePath;
+            this.byteOffset = byteOffset;
+            this.headLength = headLength;
+            this.headFingerprint = headFingerprint;
+        }
+    }
+
+    public static class IngestPlan {
+        public final Mode mode;
+        public final String filePath;     // канонический путь - ключ контрольной точки
+        public final long startOffset;
+        public final long endOffset;      // конец последней полной строки на момент проверки
+        public final boolean hasCheckpoint;
+        public final String reason;
+
+        IngestPlan(Mode mode, String filePath, long startOffset, long endOffset, boolean hasCheckpoint, String reason) {
+            this.mode = mode;
+            this.filePath = filePath;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.hasCheckpoint = hasCheckpoint;
+            this.reason = reason;
+        }
+    }
+
+    public void ensureCheckpointTableExists(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ingest_checkpoints (" +
+                    "file_path TEXT PRIMARY KEY," +
+                    "byte_offset BIGINT NOT NULL," +
+                    "head_length INT NOT NULL," +
+                    "head_fingerprint TEXT NOT NULL," +
+                    "updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP" +
+                    ")");
+        }
+    }
+
+    // Решает, как загружать файл, по сохраненной контрольной точке и текущему состоянию файла
+    public IngestPlan plan(Connection conn, String filePath) throws SQLException, IOException {
+        ensureCheckpointTableExists(conn);
+
+        String key = canonicalPath(filePath);
+        long endOffset = lastLineBoundary(filePath);
+        Checkpoint checkpoint = load(conn, key);
+
+        if (checkpoint == null) {
+            return new IngestPlan(Mode.FULL, key, 0, endOffset, false, "контрольной точки нет");
+        }
+
+        long fileSize = new File(filePath).length();
+        if (fileSize < checkpoint.byteOffset) {
+            return new IngestPlan(Mode.FULL, key, 0, endOffset, true,
+                    String.format("файл уменьшился (%,d < %,d байт) - усечение или ротация", fileSize, checkpoint.byteOffset));
+        }
+
+        String fingerprint = fingerprint(filePath, checkpoint.headLength);
+        if (!checkpoint.headFingerprint.equals(fingerprint)) {
+            return new IngestPlan(Mode.FULL, key, 0, endOffset, true, "начало файла изменилось - ротация");
+        }
+
+        if (endOffset <= checkpoint.byteOffset) {
+            return new IngestPlan(Mode.UP_TO_DATE, key, checkpoint.byteOffset, checkpoint.byteOffset, true,
+                    "новых строк нет");
+        }
+
+        return new IngestPlan(Mode.APPEND, key, checkpoint.byteOffset, endOffset, true,
+                String.format("файл вырос на %,d байт", endOffset - checkpoint.byteOffset));
+    }
+
+    public Checkpoint load(Connection conn, String key) throws SQLException {
+        String sql = "SELECT byte_offset, head_length, head_fingerprint FROM ingest_checkpoints WHERE file_path = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, key);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return new Checkpoint(key, rs.getLong("byte_offset"),
+                            rs.getInt("head_length"), rs.getString("head_fingerprint"));
+                }
+            }
+        }
+        return null;
+    }
+
+    // Сохраняет контрольную точку в переданном соединении (можно в одной транзакции с данными)
+    public void save(Connection conn, String key, String filePath, long byteOffset) throws SQLException, IOException {
+        ensureCheckpointTableExists(conn);
+
+        int headLength = (int) Math.min(HEAD_BYTES, byteOffset);
+        String fingerprint = fingerprint(filePath, headLength);
+
+        String sql = "INSERT INTO ingest_checkpoints (file_path, byte_offset, head_length, head_fingerprint, updated_at) " +
+                "VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP) " +
+                "ON CONFLICT (file_path) DO UPDATE SET byte_offset = EXCLUDED.byte_offset, " +
+                "head_length = EXCLUDED.head_length, head_fingerprint = EXCLUDED.head_fingerprint, " +
+                "updated_at = EXCLUDED.updated_at";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, key);
+            ps.setLong(2, byteOffset);
+            ps.setInt(3, headLength);
+            ps.setString(4, fingerprint);
+            ps.executeUpdate();
+        }
+        System.out.printf("💾 Контрольная точка %s: %,d байт%n", key, byteOffset);
+    }
+
+    // Сохранение в отдельном соединении - после полной загрузки
+    public void save(String key, String filePath, long byteOffset) {
+        try (Connection conn = connectionPools.ingest().getConnection()) {
+            save(conn, key, filePath, byteOffset);
+        } catch (Exception e) {
+            System.err.println("⚠ Не удалось сохранить контрольную точку: " + e.getMessage());
+        }
+    }
+
+    // Полная перезагрузка очищает logs, поэтому все контрольные точки становятся недействительными
+    public void clearAll(Connection conn) throws SQLException {
+        ensureCheckpointTableExists(conn);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM ingest_checkpoints");
+        }
+    }
+
+    public String canonicalPath(String filePath) throws IOException {
+        return new File(filePath).getCanonicalPath();
+    }
+
+    /**
+     * Позиция сразу после последнего '\n' в файле. Незавершенная последняя строка
+     * (ее еще дописывают) не загружается и попадет в следующую дозагрузку целиком.
+     */
+    public long lastLineBoundary(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer probe = ByteBuffer.allocate(64 * 1024);
+
+            long blockEnd = size;
+            while (blockEnd > 0) {
+                long blockStart = Math.max(0, blockEnd - probe.capacity());
+                probe.clear();
+                probe.limit((int) (blockEnd - blockStart));
+                int read = 0;
+                while (probe.hasRemaining()) {
+                    int n = channel.read(probe, blockStart + read);
+                    if (n < 0) break;
+                    read += n;
+                }
+                for (int i = read - 1; i >= 0; i--) {
+                    if (probe.get(i) == '\n') {
+                        return blockStart + i + 1;
+                    }
+                }
+                blockEnd = blockStart;
+            }
+            return 0;
+        }
+    }
+
+    // SHA-256 первых headLength байт файла
+    public String fingerprint(String filePath, int headLength) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(headLength);
+            while (head.hasRemaining()) {
+                if (channel.read(head, head.position()) < 0) break;
+            }
+            head.flip();
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(head);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.work.LogParser.service;
+
+// Суммарная статистика кэшей пользователей и доменов по всем потокам парсинга одного запуска
+public class InternCacheStats {
+
+    private long usernameLookups;
+    private long usernameHits;
+    private long domainLookups;
+    private long domainHits;
+
+    public synchronized void add(long usernameLookups, long usernameHits, long domainLookups, long domainHits) {
+        this.usernameLookups += usernameLookups;
+        this.usernameHits += usernameHits;
+        this.domainLookups += domainLookups;
+        this.domainHits += domainHits;
+    }
+
+    public synchronized String summary() {
+        return String.format("Кэш пользователей: %.1f%% попаданий (%,d запросов), кэш доменов: %.1f%% попаданий (%,d запросов)",
+                hitRate(usernameHits, usernameLookups), usernameLookups,
+                hitRate(domainHits, domainLookups), domainLookups);
+    }
+
+    private static double hitRate(long hits, long lookups) {
+        return lookups > 0 ? hits * 100.0 / lookups : 0;
+    }
+}
@@ -0,0 +1,126 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Дефолтная статистика полной загрузки, собираемая по ходу парсинга: у каждого потока свой накопитель,
+ * который в конце его COPY сливается в общий. Кроме аддитивных показателей хранит точный набор
+ * различных IP (повторный IP - один хэш-поиск по байтам без создания строки) и, если заданы кандидаты,
+ * скетчи частых URL и пользователей для прерассчитанных топов.
+ * Сливать в общий накопитель нужно под его монитором (mergeFrom).
+ */
+public class LoadStatsAccumulator extends LogStatsAccumulator {
+
+    private static final int IP_CACHE_SIZE = 65536;
+
+    private final Set<String> ips = new HashSet<>();
+    private ByteInternCache<Boolean> seenIps;
+
+    // Часть строк загружена без разбора в LogRecord - статистику нужно считать запросами
+    private volatile boolean incomplete;
+
+    // Частые URL (с доменом) и пользователи; null - топы считаются запросами
+    private final int topCandidates;
+    private final int sketchWidth;
+    private final HeavyHitterSketch urls;
+    private final HeavyHitterSketch users;
+
+    public LoadStatsAccumulator() {
+        this(0, 0);
+    }
+
+    // topCandidates - кандидатов в каждом скетче (0 - без скетчей), sketchWidth - ширина Count-Min
+    public LoadStatsAccumulator(int topCandidates, int sketchWidth) {
+        this.topCandidates = topCandidates;
+        this.sketchWidth = sketchWidth;
+        this.urls = topCandidates > 0 ? new HeavyHitterSketch(topCandidates, sketchWidth) : null;
+        this.users = topCandidates > 0 ? new HeavyHitterSketch(topCandidates, sketchWidth) : null;
+    }
+
+    // Накопитель потока с теми же настройками скетчей
+    public LoadStatsAccumulator newLocal() {
+        LoadStatsAccumulator local = new LoadStatsAccumulator(topCandidates, sketchWidth);
+        if (getDistinct() != null) {
+            local.enableDistinctSketches(getDistinct().getPrecision());
+        }
+        if (getRollup() != null) {
+            local.enableRollup(getRollup().getBucketMinutes());
+        }
+        if (getColumnar() != null) {
+            local.enableColumnar(getColumnar().getStore());
+        }
+        return local;
+    }
+
+    @Override
+    protected void add(LogRecord rec, long localSeconds) {
+        super.add(rec, localSeconds);
+
+        if (urls != null) {
+            // Как в запросах топов: url IS NOT NULL AND url != '-', то же для username
+            if (!isDash(rec.url)) {
+                urls.add(rec.url, rec.domain, rec, localSeconds);
+            }
+            if (!isDash(rec.username)) {
+                users.add(rec.username, null, rec, localSeconds);
+            }
+        }
+
+        LogRecord.ByteSlice ip = rec.ip;
+        if (ip.isEmpty()) {
+            return;
+        }
+        if (seenIps == null) {
+            seenIps = new ByteInternCache<>(IP_CACHE_SIZE);
+        }
+        if (seenIps.get(ip.buf, ip.off, ip.len) != null) {
+            return;
+        }
+        ips.add(ip.toString());
+        seenIps.put(ip.buf, ip.off, ip.len, Boolean.TRUE);
+    }
+
+    private static boolean isDash(LogRecord.ByteSlice value) {
+        return value.isEmpty() || (value.len == 1 && value.at(0) == '-');
+    }
+
+    // Слияние накопителя потока в общий
+    public synchronized void mergeFrom(LoadStatsAccumulator local) {
+        merge(local);
+        ips.addAll(local.ips);
+        if (urls != null && local.urls != null) {
+            urls.merge(local.urls);
+            users.merge(local.users);
+        }
+        if (local.incomplete) {
+            incomplete = true;
+        }
+    }
+
+    public void markIncomplete() {
+        incomplete = true;
+    }
+
+    public boolean isComplete() {
+        return !incomplete;
+    }
+
+    public synchronized long getUniqueIps() {
+        return ips.size();
+    }
+
+    public boolean hasTopSketches() {
+        return urls != null;
+    }
+
+    public HeavyHitterSketch getUrlSketch() {
+        return urls;
+    }
+
+    public HeavyHitterSketch getUserSketch() {
+        return users;
+    }
+}
@@ -0,0 +1,163 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Число строк logs для пагинации и счетчиков без COUNT(*) по всей таблице на каждый запрос.
+ * Точно - из колоночного хранилища в памяти, если оно есть и нет поиска, или из куба свертки,
+ * если фильтры только по периоду, пользователю, статусу и action;
+ * иначе по оценке планировщика (EXPLAIN), а небольшие результаты (меньше exact-threshold)
+ * пересчитываются COUNT(*), это дешево. Полный COUNT(*) для больших результатов - только по запросу (exact).
+ * Признак exact в ответе показывает, точное ли число.
+ */
+@Service
+public class LogCountService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    private static final Pattern PLAN_ROWS = Pattern.compile("\"Plan Rows\":\\s*(\\d+)");
+
+    @Autowired
+    private RollupService rollupService;
+
+    @Autowired
+    private ColumnarStoreService columnarStoreService;
+
+    // Оценки меньше порога пересчитываются точно
+    @Value("${logparser.count.exact-threshold:100000}")
+    private long exactThreshold;
+
+    // Число строк и признак точности
+    public static class Count {
+        public final long value;
+        public final boolean exact;
+
+        public Count(long value, boolean exact) {
+            this.value = value;
+            this.exact = exact;
+        }
+    }
+
+    /**
+     * Строки под фильтрами (значения - как в параметрах запроса); where - то же условие строкой для
+     * COUNT(*) и EXPLAIN на соединении conn. exact - считать точно, даже если это полный проход.
+     */
+    public Count count(Connection conn, String where, String dateFrom, String dateTo, String clientIp,
+                       String username, String status, String search, String action, boolean exact)
+            throws SQLException {
+        if (isBlank(search)) {
+            Long fromMemory = columnarStoreService.count(dateFrom, dateTo, clientIp, username, status, action);
+            if (fromMemory != null) {
+                return new Count(fromMemory, true);
+            }
+        }
+        if (!exact && isBlank(clientIp) && isBlank(search)) {
+            Long fromRollup = countFromRollup(conn, dateFrom, dateTo, username, status, action);
+            if (fromRollup != null) {
+                return new Count(fromRollup, true);
+            }
+        }
+
+        if (!exact) {
+            long estimate = planRows(conn, where);
+            if (estimate >= exactThreshold) {
+                return new Count(estimate, false);
+            }
+        }
+        return new Count(exactCount(conn, where), true);
+    }
+
+    // Все строки logs: колоночное хранилище, куб свертки, иначе статистика таблицы (сумма по секциям), небольшие - точно
+    public Count countAll(boolean exact) throws SQLException {
+        Long fromMemory = columnarStoreService.count(null, null, null, null, null, null);
+        if (fromMemory != null) {
+            return new Count(fromMemory, true);
+        }
+        if (!exact) {
+            Long fromRollup = rollupService.countRequests(null, null, null, null, null);
+            if (fromRollup != null) {
+                return new Count(fromRollup, true);
+            }
+        }
+
+        try (Connection conn = connectionPools.interactive().getConnection()) {
+            if (!exact) {
+                long estimate = tableRows(conn);
+                if (estimate >= exactThreshold) {
+                    return new Count(estimate, false);
+                }
+            }
+            return new Count(exactCount(conn, ""), true);
+        }
+    }
+
+    // Есть ли хоть одна строка - без подсчета
+    public boolean hasRows() throws SQLException {
+        try (Connection conn = connectionPools.interactive().getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT EXISTS (SELECT 1 FROM logs)")) {
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    // Куб свертки на том же соединении conn - запрос не берет второе соединение пула
+    private Long countFromRollup(Connection conn, String dateFrom, String dateTo, String username,
+                                 String status, String action) {
+        try {
+            return rollupService.countRequests(conn,
+                    isBlank(dateFrom) ? null : LocalDateTime.parse(dateFrom.trim().replace(' ', 'T')),
+                    isBlank(dateTo) ? null : LocalDateTime.parse(dateTo.trim().replace(' ', 'T')),
+                    isBlank(username) ? null : username,
+                    isBlank(status) ? null : Integer.valueOf(status.trim()),
+                    isBlank(action) ? null : action);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    private long exactCount(Connection conn, String where) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM logs " + where)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    // Оценка планировщика для условия; запрос не выполняется
+    private long planRows(Connection conn, String where) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("EXPLAIN (FORMAT JSON) SELECT 1 FROM logs " + where)) {
+            if (rs.next()) {
+                Matcher matcher = PLAN_ROWS.matcher(rs.getString(1));
+                if (matcher.find()) {
+                    return Long.parseLong(matcher.group(1));
+                }
+            }
+        }
+        return 0;
+    }
+
+    // reltuples таблицы или сумма по секциям (у секционированной logs своей оценки нет)
+    private long tableRows(Connection conn) throws SQLException {
+        String sql = "SELECT COALESCE(SUM(GREATEST(c.reltuples, 0)), 0)::bigint FROM pg_class c " +
+                "WHERE c.oid = 'logs'::regclass " +
+                "OR c.oid IN (SELECT inhrelid FROM pg_inherits WHERE inhparent = 'logs'::regclass)";
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
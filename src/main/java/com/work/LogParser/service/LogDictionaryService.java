@@ -0,0 +1,366 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Словарное кодирование повторяющихся текстовых колонок logs (username, domain, action).
+ * При загрузке каждому значению выдается целый id (в памяти, общий для всех потоков парсинга),
+ * новые значения дописываются в справочники log_users, log_domains и log_actions (колонка id),
+ * а в logs пишутся только username_id, domain_id и action_id.
+ * При чтении фильтры переводятся в id, а id в результатах - обратно в имена через те же словари,
+ * так что ответы API не меняются. Id 0 всегда означает "-" и в справочники не пишется.
+ */
+@Service
+public class LogDictionaryService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    public static final int DASH_ID = 0;
+    private static final String DASH = "-";
+
+    // Больше совпавших значений - подстрока ищется подзапросом к справочнику
+    private static final int CONTAINS_IDS_LIMIT = 10000;
+
+    // Кодировать ли колонки при полной загрузке; дозагрузка и слежение следуют формату существующей logs
+    @Value("${logparser.ingest.dictionary-encoding:false}")
+    private boolean enabled;
+
+    // Словарь одной колонки: значение -> id и обратно
+    static class Dictionary {
+        final String column;      // логическая колонка logs
+        final String table;       // справочник
+        final String valueColumn; // колонка значения в справочнике
+
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private final Map<Integer, String> names = new ConcurrentHashMap<>();
+        private int nextId = DASH_ID + 1;
+        private int persistedUpTo = DASH_ID;
+
+        Dictionary(String column, String table, String valueColumn) {
+            this.column = column;
+            this.table = table;
+            this.valueColumn = valueColumn;
+            ids.put(DASH, DASH_ID);
+            names.put(DASH_ID, DASH);
+        }
+
+        Integer idOf(String value) {
+            return ids.get(value);
+        }
+
+        // Id значений, содержащих подстроку; null - совпадений больше limit
+        List<Integer> idsContaining(String search, int limit) {
+            List<Integer> found = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+                if (entry.getKey().contains(search)) {
+                    if (found.size() == limit) {
+                        return null;
+                    }
+                    found.add(entry.getValue());
+                }
+            }
+            return found;
+        }
+
+        String nameOf(int id) {
+            return names.get(id);
+        }
+
+        // Новое значение получает следующий id; повторы разных потоков дают один id
+        synchronized int assign(String value) {
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            int assigned = nextId++;
+            names.put(assigned, value);
+            ids.put(value, assigned);
+            return assigned;
+        }
+
+        synchronized void loaded(int id, String value) {
+            ids.put(value, id);
+            names.put(id, value);
+            nextId = Math.max(nextId, id + 1);
+            persistedUpTo = Math.max(persistedUpTo, id);
+        }
+    }
+
+    private final Dictionary users = new Dictionary("username", "log_users", "username");
+    private final Dictionary domains = new Dictionary("domain", "log_domains", "domain");
+    private final Dictionary actions = new Dictionary("action", "log_actions", "action");
+
+    private volatile boolean loaded = false;
+    private volatile Boolean logsEncoded = null;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // ===== ЗАГРУЗКА =====
+
+    // Словари из справочников; до первой выдачи id, чтобы новые id не пересеклись с сохраненными
+    public void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            try (Connection conn = connectionPools.ingest().getConnection()) {
+                ensureDictionaryTables(conn);
+                for (Dictionary dictionary : new Dictionary[]{users, domains, actions}) {
+                    String sql = "SELECT id, " + dictionary.valueColumn + " FROM " + dictionary.table +
+                            " WHERE id IS NOT NULL";
+                    try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+                        while (rs.next()) {
+                            dictionary.loaded(rs.getInt(1), rs.getString(2));
+                        }
+                    }
+                }
+            }
+            loaded = true;
+            System.out.printf("Словари загружены: пользователей %,d, доменов %,d, действий %,d%n",
+                    users.persistedUpTo, domains.persistedUpTo, actions.persistedUpTo);
+        }
+    }
+
+    private void ensureDictionaryTables(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS log_users (id INT PRIMARY KEY, username TEXT NOT NULL UNIQUE)");
+            st.execute("CREATE TABLE IF NOT EXISTS log_domains (id INT PRIMARY KEY, domain TEXT NOT NULL UNIQUE)");
+            // log_actions остается списком действий для фильтра; id заполняется только в словарном режиме
+            st.execute("CREATE TABLE IF NOT EXISTS log_actions (" +
+                    "action TEXT PRIMARY KEY, created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            st.execute("ALTER TABLE log_actions ADD COLUMN IF NOT EXISTS id INT UNIQUE");
+        }
+    }
+
+    // Кодировщик id для одного потока парсинга; словари должны быть загружены (ensureLoaded)
+    public DictionaryIds newIds(int cacheSize) {
+        if (!loaded) {
+            throw new IllegalStateException("Словари не загружены");
+        }
+        return new DictionaryIds(users, domains, actions, cacheSize);
+    }
+
+    /**
+     * Дописывает в справочники значения, получившие id после прошлой записи.
+     * Выполняется в собственной транзакции до фиксации строк logs с этими id,
+     * поэтому в справочнике нет пропусков, а лишние значения после отката безвредны.
+     */
+    public synchronized void persistNew() throws SQLException {
+        if (!loaded) {
+            return;
+        }
+        try (Connection conn = connectionPools.ingest().getConnection()) {
+            int written = 0;
+            for (Dictionary dictionary : new Dictionary[]{users, domains, actions}) {
+                written += persistNew(conn, dictionary);
+            }
+            if (written > 0) {
+                System.out.println("Справочники дополнены новыми значениями: " + written);
+            }
+        }
+    }
+
+    private int persistNew(Connection conn, Dictionary dictionary) throws SQLException {
+        int upTo;
+        synchronized (dictionary) {
+            upTo = dictionary.nextId - 1;
+        }
+        if (upTo <= dictionary.persistedUpTo) {
+            return 0;
+        }
+
+        String sql = dictionary == actions
+                ? "INSERT INTO log_actions (action, id) VALUES (?, ?) " +
+                  "ON CONFLICT (action) DO UPDATE SET id = EXCLUDED.id WHERE log_actions.id IS NULL"
+                : "INSERT INTO " + dictionary.table + " (" + dictionary.valueColumn + ", id) VALUES (?, ?) " +
+                  "ON CONFLICT (id) DO NOTHING";
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int id = dictionary.persistedUpTo + 1; id <= upTo; id++) {
+                ps.setString(1, dictionary.nameOf(id));
+                ps.setInt(2, id);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        int written = upTo - dictionary.persistedUpTo;
+        dictionary.persistedUpTo = upTo;
+        return written;
+    }
+
+    // ===== ФОРМАТ ТАБЛИЦЫ =====
+
+    // Хранит ли таблица id вместо текста (по наличию колонки username_id)
+    public boolean isEncoded(Connection conn, String table) throws SQLException {
+        String sql = "SELECT EXISTS (SELECT FROM information_schema.columns " +
+                "WHERE table_name = ? AND column_name = 'username_id')";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    // Формат текущей logs для запросов чтения; сбрасывается после замены таблицы
+    public boolean isLogsEncoded() {
+        Boolean encoded = logsEncoded;
+        if (encoded == null) {
+            try (Connection conn = connectionPools.interactive().getConnection()) {
+                encoded = isEncoded(conn, "logs");
+                if (encoded) {
+                    ensureLoaded();
+                }
+            } catch (SQLException e) {
+                System.err.println("Не удалось определить формат logs: " + e.getMessage());
+                return false;
+            }
+            logsEncoded = encoded;
+        }
+        return encoded;
+    }
+
+    public void refreshLayout() {
+        logsEncoded = null;
+    }
+
+    // ===== ЧТЕНИЕ =====
+
+    private Dictionary dictionary(String column) {
+        switch (column) {
+            case "username":
+                return users;
+            case "domain":
+                return domains;
+            case "action":
+                return actions;
+            default:
+                throw new IllegalArgumentException("Колонка без словаря: " + column);
+        }
+    }
+
+    // Физическая колонка logs
+    public String column(String column) {
+        return isLogsEncoded() ? column + "_id" : column;
+    }
+
+    // Колонка для SELECT под логическим именем; значения переводятся в имена через resolveRows
+    public String select(String column) {
+        return isLogsEncoded() ? column + "_id AS " + column : column;
+    }
+
+    // Условие "значение задано и не '-'"
+    public String notDash(String column) {
+        return isLogsEncoded()
+                ? column + "_id IS NOT NULL AND " + column + "_id <> " + DASH_ID
+                : column + " IS NOT NULL AND " + column + " != '-'";
+    }
+
+    // Равенство для WHERE, собираемого строкой
+    public String equalsLiteral(String column, String value) {
+        if (!isLogsEncoded()) {
+            return column + " = '" + value + "'";
+        }
+        Integer id = dictionary(column).idOf(value);
+        return id != null ? column + "_id = " + id : "FALSE";
+    }
+
+    // Равенство с параметром; неизвестное словарю значение не совпадет ни с одной строкой
+    public String equalsParam(String column, String value, List<Object> params) {
+        if (!isLogsEncoded()) {
+            params.add(value);
+            return column + " = ?";
+        }
+        Integer id = dictionary(column).idOf(value);
+        if (id == null) {
+            return "FALSE";
+        }
+        params.add(id);
+        return column + "_id = ?";
+    }
+
+    // Массив значений для "колонка = ANY(?)" (колонка - column(...)); неизвестные словарю значения пропускаются
+    public Array anyArray(Connection conn, String column, Collection<String> values) throws SQLException {
+        if (!isLogsEncoded()) {
+            return conn.createArrayOf("text", values.toArray());
+        }
+        Dictionary dictionary = dictionary(column);
+        List<Integer> ids = new ArrayList<>();
+        for (String value : values) {
+            Integer id = dictionary.idOf(value);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        return conn.createArrayOf("int4", ids.toArray());
+    }
+
+    // Поиск подстроки: в словарном режиме LIKE выполняется по справочнику, а не по каждой строке logs
+    public String containsLiteral(String column, String search) {
+        if (!isLogsEncoded()) {
+            return column + " LIKE '%" + search + "%'";
+        }
+        Dictionary dictionary = dictionary(column);
+        // Подстрока без шаблонных символов LIKE ищется по словарю в памяти: список id дает logs
+        // индексное условие, которое планировщик объединяет с индексом url (BitmapOr)
+        if (search.indexOf('%') < 0 && search.indexOf('_') < 0 && search.indexOf('\\') < 0) {
+            List<Integer> ids = dictionary.idsContaining(search, CONTAINS_IDS_LIMIT);
+            if (ids != null) {
+                if (ids.isEmpty()) {
+                    return "FALSE";
+                }
+                StringBuilder list = new StringBuilder();
+                for (Integer id : ids) {
+                    list.append(list.length() > 0 ? "," : "").append(id);
+                }
+                return column + "_id = ANY('{" + list + "}'::int[])";
+            }
+        }
+        return column + "_id IN (SELECT id FROM " + dictionary.table +
+                " WHERE " + dictionary.valueColumn + " LIKE '%" + search + "%')";
+    }
+
+    // Id в строках результата -> имена (строки без словарного формата не меняются)
+    public void resolveRows(List<Map<String, Object>> rows, String... columns) {
+        if (!isLogsEncoded()) {
+            return;
+        }
+        for (Map<String, Object> row : rows) {
+            for (String column : columns) {
+                row.put(column, resolve(column, row.get(column)));
+            }
+        }
+    }
+
+    public Object resolve(String column, Object value) {
+        if (!(value instanceof Number)) {
+            return value;
+        }
+        return dictionary(column).nameOf(((Number) value).intValue());
+    }
+
+    // Значение колонки из ResultSet с учетом формата
+    public String getString(ResultSet rs, String column) throws SQLException {
+        if (!isLogsEncoded()) {
+            return rs.getString(column);
+        }
+        int id = rs.getInt(column);
+        return rs.wasNull() ? null : dictionary(column).nameOf(id);
+    }
+}
@@ -1,13 +1,19 @@
 package com.work.LogParser.service;
 
+import com.work.LogParser.config.ConnectionPools;
 import com.work.LogParser.config.DatabaseConfig;
+import com.work.LogParser.model.FileProgress;
+import com.work.LogParser.model.LogRecord;
 import com.work.LogParser.model.ParsingStatus;
+import org.postgresql.copy.CopyIn;
 import org.postgresql.copy.CopyManager;
 import org.postgresql.core.BaseConnection;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
@@ -15,16 +21,21 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
-
-import static com.work.LogParser.config.DatabaseConfig.*;
+import java.util.zip.GZIPInputStream;
 
 @Service
 public class LogFileParser {
 
+    @Autowired
+    private ConnectionPools connectionPools;
+
     @Autowired
     private DatabaseManager databaseManager;
 
@@ -39,16 +50,104 @@ public class LogFileParser {
     @Autowired
     private AggregatedStatsService aggregatedStatsService;
 
-    private static final int MEMORY_BUFFER_SIZE = 100 * 1024 * 1024; // 100 MB
+    @Autowired
+    private ParallelChunkLoader parallelChunkLoader;
+
+    @Autowired
+    private IngestCheckpointService ingestCheckpointService;
+
+    @Autowired
+    private MultiFileScheduler multiFileScheduler;
+
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Autowired
+    private LogPartitionService partitionService;
+
+    @Autowired
+    private DistinctCountService distinctCountService;
+
+    @Autowired
+    private RollupService rollupService;
+
+    @Autowired
+    private ColumnarStoreService columnarStoreService;
+
+    // Количество потоков парсинга: 0 - по числу ядер, 1 - однопоточный режим
+    @Value("${logparser.parser.workers:0}")
+    private int parserWorkers;
+
+    // Разбор строк: bytes - побайтовый токенизатор, regex - прежний разбор через LOG_PATTERN
+    @Value("${logparser.parser.tokenizer:bytes}")
+    private String tokenizerMode;
+
+    private static final int TOKENIZER_SAMPLE_LINES = 20000;
+
+    // Максимум записей в кэшах пользователей и доменов каждого потока парсинга (0 - без кэшей)
+    @Value("${logparser.parser.intern-cache-size:65536}")
+    private int internCacheSize;
+
+    // Буферы между потоком парсинга и потоком COPY: общий объем и размер одного буфера
+    @Value("${logparser.copy.ring-memory-mb:32}")
+    private int copyRingMemoryMb;
+
+    @Value("${logparser.copy.ring-buffer-kb:512}")
+    private int copyRingBufferKb;
+
+    @Value("${logparser.copy.direct-buffers:false}")
+    private boolean copyDirectBuffers;
+
+    // Формат потока COPY: binary - PGCOPY из разобранных значений, csv - прежний текстовый CSV
+    @Value("${logparser.copy.format:binary}")
+    private String copyFormat;
+
+    // Дозагрузка хвоста файла по контрольной точке вместо полной перезагрузки
+    @Value("${logparser.ingest.append-mode:true}")
+    private boolean appendMode;
+
+    // Дефолтная статистика полной загрузки собирается при парсинге, а не отдельными проходами по logs
+    @Value("${logparser.stats.in-stream:true}")
+    private boolean inStreamStats;
+
+    // Кандидатов в скетчах частых URL и пользователей (0 - топы считаются GROUP BY по logs)
+    @Value("${logparser.tops.sketch-candidates:1000}")
+    private int topSketchCandidates;
+
+    // Ширина Count-Min скетча топов: погрешность оценки около e/ширина от числа строк
+    @Value("${logparser.tops.sketch-width:65536}")
+    private int topSketchWidth;
+
+    static final String COPY_COLUMNS = "(time, ip, username, url, status_code, domain, " +
+            "response_time_ms, response_size_bytes, action) ";
+
+    // Словарный формат logs: id вместо username, domain и action
+    static final String DICTIONARY_COPY_COLUMNS = "(time, ip, username_id, url, status_code, domain_id, " +
+            "response_time_ms, response_size_bytes, action_id) ";
+
+    static final String COPY_CSV_OPTIONS = "FROM STDIN WITH (" +
+            "FORMAT CSV, " +
+            "DELIMITER ',', " +
+            "NULL '\\N', " +
+            "ENCODING 'UTF8', " +
+            "ESCAPE '\\', " +
+            "QUOTE '\"')";
+
+    static final String COPY_BINARY_OPTIONS = "FROM STDIN WITH (FORMAT binary)";
+
     private static final int COPY_BUFFER_SIZE = 64 * 1024; // 64 KB для COPY
 
     private Thread copyThread;
-    private PipedOutputStream pos;
-    private PipedInputStream pis;
-    private BufferedReader reader;
+    private CopyBufferRing copyRing;
+    private InternCacheStats cacheStats = new InternCacheStats();
+    private ByteLineReader reader;
     private volatile boolean cleanupDone = false;
+    // Текущая полная загрузка пишет logs_unlogged в словарном формате
+    private volatile boolean encodeDictionary = false;
+    // Статистика текущей полной загрузки, собранная потоками парсинга (null - считать запросами)
+    private volatile LoadStatsAccumulator loadStats;
 
-    private static final Pattern LOG_PATTERN = Pattern.compile(
+    static final Pattern LOG_PATTERN = Pattern.compile(
             "^" +
                     "(\\d+\\.\\d+)\\s+" +              // 1. timestamp
                     "(\\d+)\\s+" +                     // 2. response_time_ms
@@ -62,33 +161,225 @@ public class LogFileParser {
                     "(\\S+)"                           // 11. content_type
     );
 
-    private BufferedReader createOptimizedReader(String filePath) throws IOException {
+    private ByteLineReader createOptimizedReader(String filePath) throws IOException {
+        return createOptimizedReader(filePath, 0, Long.MAX_VALUE);
+    }
+
+    private ByteLineReader createOptimizedReader(String filePath, long start, long end) throws IOException {
+        return createOptimizedReader(filePath, start, end, null);
+    }
+
+    // Reader для диапазона байт [start, end) файла; gzip распаковывается отдельной стадией.
+    // bytesRead (если задан) считает байты, прочитанные с канала файла - по ним считается прогресс
+    private ByteLineReader createOptimizedReader(String filePath, long start, long end, AtomicLong bytesRead)
+            throws IOException {
         System.out.println("Создание оптимизированного reader для файла: " + filePath);
 
+        boolean gzip = GzipDecompressStage.isGzip(filePath);
         FileChannel channel = FileChannel.open(
                 Paths.get(filePath),
                 StandardOpenOption.READ
         );
+        channel.position(start);
 
-        // Используем прямой буфер для максимальной скорости
-        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(2 * 1024 * 1024); // 2MB
+        InputStream input = Channels.newInputStream(channel);
+        if (end != Long.MAX_VALUE || bytesRead != null) {
+            input = new ParallelChunkLoader.BoundedInputStream(input, end - start, bytesRead);
+        }
+        if (gzip) {
+            input = new GzipDecompressStage(input, "reader");
+        }
 
-        return new BufferedReader(
-                new InputStreamReader(
-                        Channels.newInputStream(channel),
-                        StandardCharsets.UTF_8
-                ),
+        // Строки читаются как байты, без декодирования в String
+        return new ByteLineReader(
+                input,
                 4 * 1024 * 1024 // 4MB буфер чтения
         );
     }
 
+    // Преобразование строки лога в строку для COPY; у каждого потока парсинга свой экземпляр
+    interface LineEncoder {
+        boolean encode(byte[] buf, int start, int end, ByteArrayBuilder out);
+
+        // Начало и конец одного потока COPY
+        default void begin(ByteArrayBuilder out) {
+        }
+
+        default void finish(ByteArrayBuilder out) {
+        }
+    }
+
+    boolean isBinaryCopy() {
+        return !"csv".equalsIgnoreCase(copyFormat);
+    }
+
+    boolean isRegexTokenizer() {
+        return "regex".equalsIgnoreCase(tokenizerMode);
+    }
+
+    SquidLineTokenizer newTokenizer() {
+        return new SquidLineTokenizer(logParserUtils, internCacheSize);
+    }
+
+    String copySql() {
+        return copySql("logs_unlogged", encodeDictionary);
+    }
+
+    String copySql(String table, boolean encoded) {
+        return "COPY " + table + (encoded ? DICTIONARY_COPY_COLUMNS : COPY_COLUMNS) +
+                (isBinaryCopy() ? COPY_BINARY_OPTIONS : COPY_CSV_OPTIONS);
+    }
+
+    // Запись разобранных строк; для словарного формата у каждого потока свой кэш id
+    CopyRowEncoder newRowEncoder(boolean binary, boolean encoded) {
+        DictionaryIds ids = encoded ? dictionaryService.newIds(internCacheSize) : null;
+        return binary ? new BinaryRowEncoder(ids) : new CsvRowEncoder(ids);
+    }
+
+    LineEncoder newLineEncoder(boolean useRegex) {
+        return newLineEncoder(useRegex, isBinaryCopy(), encodeDictionary, Long.MIN_VALUE, Long.MAX_VALUE, loadStats);
+    }
+
+    LineEncoder newLineEncoder(boolean useRegex, boolean binary) {
+        return newLineEncoder(useRegex, binary, false);
+    }
+
+    LineEncoder newLineEncoder(boolean useRegex, boolean binary, boolean encoded) {
+        return newLineEncoder(useRegex, binary, encoded, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // [fromEpoch, toEpoch) - в COPY идут только строки с временем из этого интервала (перезагрузка секции)
+    LineEncoder newLineEncoder(boolean useRegex, boolean binary, boolean encoded, long fromEpoch, long toEpoch) {
+        return newLineEncoder(useRegex, binary, encoded, fromEpoch, toEpoch, null);
+    }
+
+    // statsSink - общий накопитель статистики загрузки; у кодировщика свой, сливается в общий в конце его COPY
+    LineEncoder newLineEncoder(boolean useRegex, boolean binary, boolean encoded, long fromEpoch, long toEpoch,
+                               LoadStatsAccumulator statsSink) {
+        boolean windowed = fromEpoch != Long.MIN_VALUE || toEpoch != Long.MAX_VALUE;
+        if (useRegex && !binary && !encoded && !windowed) {
+            // Строка сразу превращается в CSV без LogRecord - показатели этой загрузки посчитают запросы
+            if (statsSink != null) {
+                statsSink.markIncomplete();
+            }
+            return (buf, start, end, out) -> {
+                String csvLine = parseLineToCSV(new String(buf, start, end - start, StandardCharsets.UTF_8));
+                if (csvLine == null) {
+                    return false;
+                }
+                out.appendUtf8(csvLine);
+                out.append((byte) '\n');
+                return true;
+            };
+        }
+
+        SquidLineTokenizer tokenizer = newTokenizer();
+        InternCacheStats stats = cacheStats;
+        CopyRowEncoder rowEncoder = newRowEncoder(binary, encoded);
+        LogRecord record = new LogRecord();
+        LoadStatsAccumulator localStats = statsSink != null ? statsSink.newLocal() : null;
+        return new LineEncoder() {
+            @Override
+            public boolean encode(byte[] buf, int start, int end, ByteArrayBuilder out) {
+                boolean parsed = useRegex
+                        ? tokenizer.parseWithPattern(new String(buf, start, end - start, StandardCharsets.UTF_8), record)
+                        : tokenizer.tokenize(buf, start, end, record);
+                if (!parsed || record.epochSeconds < fromEpoch || record.epochSeconds >= toEpoch) {
+                    return false;
+                }
+                rowEncoder.encode(record, out);
+                if (localStats != null) {
+                    localStats.add(record);
+                }
+                return true;
+            }
+
+            @Override
+            public void begin(ByteArrayBuilder out) {
+                rowEncoder.writeHeader(out);
+            }
+
+            @Override
+            public void finish(ByteArrayBuilder out) {
+                rowEncoder.writeTrailer(out);
+                tokenizer.reportCacheStats(stats);
+                if (localStats != null) {
+                    statsSink.mergeFrom(localStats);
+                }
+            }
+        };
+    }
+
+    // Формат полной загрузки - по настройке; словари читаются до выдачи первых id
+    private void beginDictionaryLoad() throws SQLException {
+        encodeDictionary = dictionaryService.isEnabled();
+        if (encodeDictionary) {
+            dictionaryService.ensureLoaded();
+        }
+    }
+
+    // Новый общий накопитель статистики на полную загрузку (до создания кодировщиков).
+    // Скетчи различных значений и куб свертки до конца загрузки не соответствуют logs
+    private void beginLoadStats() {
+        // Прежнее колоночное хранилище снимается до заполнения нового - в памяти не держатся оба
+        columnarStoreService.invalidate();
+        loadStats = inStreamStats
+                ? columnarStoreService.withNewStore(rollupService.withRollup(distinctCountService.withSketches(
+                        new LoadStatsAccumulator(topSketchCandidates, topSketchWidth))))
+                : null;
+        distinctCountService.invalidate();
+        rollupService.invalidate();
+    }
+
+    // Сверка побайтового токенизатора с LOG_PATTERN на первых строках файла.
+    // При любом расхождении файл загружается прежним путем через регулярку
+    private boolean verifyTokenizerOnSample(String filePath) {
+        return verifyTokenizerOnSample(filePath, 0, Long.MAX_VALUE);
+    }
+
+    // То же на первых строках диапазона [start, end) - дозагрузка сверяет только новый хвост
+    private boolean verifyTokenizerOnSample(String filePath, long start, long end) {
+        LineEncoder regexEncoder = newLineEncoder(true, false);
+        LineEncoder byteEncoder = newLineEncoder(false, false);
+        ByteArrayBuilder expected = new ByteArrayBuilder(4096);
+        ByteArrayBuilder actual = new ByteArrayBuilder(4096);
+
+        long checked = 0;
+        long mismatches = 0;
+
+        try (ByteLineReader sample = createOptimizedReader(filePath, start, end)) {
+            while (checked < TOKENIZER_SAMPLE_LINES && sample.nextLine()) {
+                checked++;
+                expected.reset();
+                actual.reset();
+
+                boolean expectedOk = regexEncoder.encode(sample.buffer(), sample.lineStart(), sample.lineEnd(), expected);
+                boolean actualOk = byteEncoder.encode(sample.buffer(), sample.lineStart(), sample.lineEnd(), actual);
+
+                if (expectedOk != actualOk || !Arrays.equals(
+                        expected.array(), 0, expected.size(), actual.array(), 0, actual.size())) {
+                    mismatches++;
+                    if (mismatches <= 3) {
+                        System.err.println("⚠ Расхождение токенизатора со строкой: " + new String(sample.buffer(),
+                                sample.lineStart(), sample.lineEnd() - sample.lineStart(), StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка сверки токенизатора: " + e.getMessage());
+            return false;
+        }
+
+        System.out.printf("Сверка токенизатора: %,d строк, расхождений: %,d%n", checked, mismatches);
+        return mismatches == 0;
+    }
+
     public void parseWithHybridCopy(String filePath, ParsingStatus currentStatus) {
         long startTime = System.currentTimeMillis();
         long totalRecords = 0;
         long totalLines = 0;
         long parsingStageDuration = 0;
 
-        final double COUNTING_WEIGHT = 0.0044;
         final double PARSING_WEIGHT = 386.5 / 1226.5;
         final double FINALIZATION_WEIGHT = 450 / 1226.5;
         final double INDEXING_WEIGHT = 220 / 1226.5;
@@ -99,14 +390,11 @@ public class LogFileParser {
         // Сбрасываем флаги очистки
         cleanupDone = false;
         copyThread = null;
-        pos = null;
-        pis = null;
+        copyRing = null;
+        cacheStats = new InternCacheStats();
         reader = null;
 
-        try (Connection conn = DriverManager.getConnection(
-                DB_URL,
-                DB_USERNAME,
-                DB_PASSWORD)) {
+        try (Connection conn = connectionPools.ingest().getConnection()) {
 
             // Устанавливаем таймаут на соединение
             conn.setNetworkTimeout(null, 60000); // 60 секунд
@@ -128,8 +416,41 @@ public class LogFileParser {
                 return;
             }
 
-            if (!shouldParseLogs(conn, filePath)) {
+            // 2. Контрольная точка: дозагрузка хвоста, если файл тот же и вырос.
+            // Смещения в сжатом gzip не соответствуют строкам - такие файлы всегда загружаются целиком
+            boolean gzip = GzipDecompressStage.isGzip(filePath);
+            IngestCheckpointService.IngestPlan plan = null;
+            if (gzip) {
+                System.out.println("Файл сжат gzip - распаковка на лету, без контрольной точки");
+            } else if (appendMode) {
+                plan = ingestCheckpointService.plan(conn, filePath);
+                System.out.println("Контрольная точка: " + plan.mode + " (" + plan.reason + ")");
+
+                if (plan.mode == IngestCheckpointService.Mode.UP_TO_DATE) {
+                    System.out.println("Парсинг не требуется: новых строк нет");
+                    currentStatus.isParsing = false;
+                    currentStatus.progress = 100;
+                    currentStatus.stageProgress = 100;
+                    currentStatus.stageName = "Готово";
+                    return;
+                }
+
+                if (plan.mode == IngestCheckpointService.Mode.APPEND) {
+                    appendFromCheckpoint(conn, filePath, plan, currentStatus, startTime);
+                    return;
+                }
+            }
+
+            // Без контрольной точки - прежняя проверка по дате первой записи;
+            // ротация или усечение файла с контрольной точкой всегда ведут к полной перезагрузке
+            if ((plan == null || !plan.hasCheckpoint) && !shouldParseLogs(conn, filePath)) {
                 System.out.println("Парсинг не требуется");
+                if (plan != null) {
+                    adoptLoadedData(conn, filePath, plan);
+                } else {
+                    System.out.println("Дозагрузка не включается: " +
+                            (gzip ? "файл сжат gzip" : "logparser.ingest.append-mode=false"));
+                }
                 currentStatus.isParsing = false;
                 currentStatus.progress = 100;
                 currentStatus.stageProgress = 100;
@@ -137,152 +458,167 @@ public class LogFileParser {
                 return;
             }
 
-            // ===== ПОДСЧЕТ СТРОК =====
-            currentStatus.stageName = "📊 Подсчет строк";
+            // 3. Очистка и создание таблицы (контрольные точки теряют смысл вместе с данными)
+            if (appendMode) {
+                ingestCheckpointService.clearAll(conn);
+            }
+            databaseManager.clearLogsTable(conn);
+            beginDictionaryLoad();
+            beginLoadStats();
+            databaseManager.createUnloggedTable(conn, encodeDictionary);
+
+            // 4. Оптимизация настроек БД перед COPY
+            databaseManager.prepareConnectionForCopy(conn);
+
+            // Выбор разбора строк: побайтовый токенизатор используется, только если совпал с регуляркой на выборке
+            boolean useRegex = isRegexTokenizer() || !verifyTokenizerOnSample(filePath);
+            System.out.println("Разбор строк: " + (useRegex ? "LOG_PATTERN" : "побайтовый токенизатор") +
+                    ", формат COPY: " + (isBinaryCopy() ? "binary" : "csv") +
+                    (encodeDictionary ? ", словарные колонки" : ""));
+
+            // 5. Параллельная загрузка по диапазонам файла, если есть больше одного потока
+            // Полная загрузка читает до конца последней полной строки - с этого места продолжит дозагрузка
+            final long loadEnd = plan != null ? plan.endOffset : new File(filePath).length();
+
+            // Прогресс, скорость и оставшееся время - по байтам, прочитанным с канала файла:
+            // размер известен заранее, отдельный проход подсчета строк не нужен
+            currentStatus.stageName = "🚀 Парсинг данных";
             currentStatus.stageProgress = 0;
             currentStatus.progress = 0;
-            currentStatus.status = "Подсчет строк...";
+            currentStatus.status = String.format("Парсинг %,d байт...", loadEnd);
+            currentStatus.bytesTotal = loadEnd;
+            currentStatus.parsingStageStartTime = System.currentTimeMillis();
 
-            // Запускаем подсчет строк с поддержкой отмены
-            final long[] lineCount = new long[1];
-            Thread countThread = new Thread(() -> {
-                try {
-                    lineCount[0] = estimateLineCountWithNIO(filePath);
-                } catch (Exception e) {
-                    if (!currentStatus.isCancelled) {
-                        System.err.println("Ошибка подсчета строк: " + e.getMessage());
-                    }
-                    lineCount[0] = 1000000;
-                }
-            });
+            int workers = parallelChunkLoader.effectiveWorkers(loadEnd, parserWorkers);
 
-            countThread.start();
+            // gzip делится только по границам склеенных членов; обычный gzip из одного члена - одна стадия распаковки
+            List<ParallelChunkLoader.FileChunk> gzipChunks = null;
+            if (gzip && workers > 1) {
+                gzipChunks = parallelChunkLoader.splitByGzipMembers(filePath, workers);
+                System.out.println("Gzip: найдено диапазонов по границам членов: " + gzipChunks.size());
+                workers = gzipChunks.size();
+            }
 
-            // Ждем максимум 10 секунд с проверкой отмены
-            try {
-                long waitStart = System.currentTimeMillis();
-                while (countThread.isAlive() && !currentStatus.isCancelled) {
-                    if (System.currentTimeMillis() - waitStart > 10000) {
-                        countThread.interrupt();
-                        break;
-                    }
-                    Thread.sleep(100);
+            if (workers > 1) {
+                ParallelChunkLoader.ProgressListener onProgress = (lines, bytes) ->
+                        updateParsingProgress(currentStatus, lines, bytes, PARSING_WEIGHT);
+
+                totalRecords = gzipChunks != null
+                        ? parallelChunkLoader.load(filePath, gzipChunks, true, copySql(), () -> newLineEncoder(useRegex),
+                                currentStatus, onProgress)
+                        : parallelChunkLoader.load(filePath, loadEnd, workers, copySql(), () -> newLineEncoder(useRegex),
+                                currentStatus, onProgress);
+
+                totalLines = currentStatus.processed;
+                currentStatus.total = totalLines;
+                parsingStageDuration = System.currentTimeMillis() - currentStatus.parsingStageStartTime;
+                System.out.println("Параллельный парсинг завершен за " + (parsingStageDuration / 1000.0) + " сек");
+                if (!useRegex) {
+                    System.out.println(cacheStats.summary());
                 }
+
+                currentStatus.actualParsingTime = parsingStageDuration;
+                currentStatus.parsingDuration = parsingStageDuration;
+                currentStatus.parsingCompleted = !currentStatus.isCancelled;
+
                 if (currentStatus.isCancelled) {
-                    countThread.interrupt();
                     finishWithCancellation(currentStatus);
                     return;
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
 
-            totalLines = lineCount[0] > 0 ? lineCount[0] : 1000000;
-            currentStatus.total = totalLines;
-
-            currentStatus.stageProgress = 100;
-            currentStatus.progress = (int) (COUNTING_WEIGHT * 100);
-            currentStatus.status = "Подсчет строк завершен: " + String.format("%,d", totalLines) + " строк";
+                currentStatus.stageProgress = 100;
+                currentStatus.progress = (int) (PARSING_WEIGHT * 100);
 
-            currentStatus.stageName = "🚀 Парсинг данных";
-            currentStatus.stageProgress = 0;
-            currentStatus.parsingStageStartTime = System.currentTimeMillis();
+                databaseManager.restoreConnectionSettings(conn);
 
-            // Проверка отмены после подсчета строк
-            if (currentStatus.isCancelled) {
-                finishWithCancellation(currentStatus);
+                if (totalRecords > 0) {
+                    completeProcessing(conn, currentStatus, startTime, totalLines, totalRecords,
+                            PARSING_WEIGHT, FINALIZATION_WEIGHT,
+                            INDEXING_WEIGHT, STATISTICS_WEIGHT, parsingStageDuration);
+                    if (plan != null && !currentStatus.isCancelled) {
+                        ingestCheckpointService.save(plan.filePath, filePath, loadEnd);
+                    }
+                } else {
+                    finishWithNoData(currentStatus);
+                }
                 return;
             }
 
-            // 3. Очистка и создание таблицы
-            databaseManager.clearLogsTable(conn);
-            databaseManager.createUnloggedTable(conn);
-
-            // 4. Оптимизация настроек БД перед COPY
-            databaseManager.prepareConnectionForCopy(conn);
-
             // 5. Гибридная загрузка
             System.out.println("Начало гибридной загрузки с оптимизированным чтением...");
 
-            // Создаем Piped потоки с таймаутом
-            pos = new PipedOutputStream();
-            pis = new PipedInputStream(pos, MEMORY_BUFFER_SIZE);
+            // Кольцо переиспользуемых буферов между парсером и COPY (ограниченный объем памяти)
+            CopyBufferRing ring = new CopyBufferRing(
+                    (long) copyRingMemoryMb * 1024 * 1024, copyRingBufferKb * 1024, copyDirectBuffers);
+            copyRing = ring;
+            System.out.printf("Буферы COPY: %d x %d KB%n", ring.getBufferCount(), ring.getBufferSize() / 1024);
 
             // Запускаем COPY в отдельном потоке
-            final InputStream dataStreamForCopy = pis;
             copyThread = new Thread(() -> {
-                performStreamingCopyWithOptimization(conn, dataStreamForCopy, currentStatus);
+                performStreamingCopyWithOptimization(conn, ring, currentStatus);
             });
             copyThread.start();
 
             // Основной поток: парсинг с оптимизированным чтением
             try {
-                reader = createOptimizedReader(filePath);
-                BufferedWriter writer = new BufferedWriter(
-                        new OutputStreamWriter(pos, StandardCharsets.UTF_8),
-                        COPY_BUFFER_SIZE);
+                AtomicLong bytesRead = new AtomicLong();
+                reader = createOptimizedReader(filePath, 0, loadEnd, bytesRead);
+                LineEncoder encoder = newLineEncoder(useRegex);
+                ByteArrayBuilder rows = new ByteArrayBuilder(COPY_BUFFER_SIZE + 4096);
+                encoder.begin(rows);
 
-                String line;
                 long lineNumber = 0;
                 long recordsInBatch = 0;
 
-                while ((line = reader.readLine()) != null) {
+                while (reader.nextLine()) {
                     lineNumber++;
 
                     // Проверка отмены на каждой итерации
                     if (currentStatus.isCancelled) {
                         System.out.println("🚫 Парсинг прерван пользователем на строке " + lineNumber);
-                        writer.flush();
-                        writer.close();
-                        pos.close();
+                        ring.abort();
                         break;
                     }
 
-                    String csvLine = parseLineToCSV(line);
-                    if (csvLine != null) {
-                        writer.write(csvLine);
-                        writer.write('\n');
+                    if (encoder.encode(reader.buffer(), reader.lineStart(), reader.lineEnd(), rows)) {
                         totalRecords++;
                         recordsInBatch++;
 
-                        if (lineNumber % 5000 == 0) {
-                            currentStatus.processed = lineNumber;
-
-                            long currentTime = System.currentTimeMillis();
-                            if (currentStatus.parsingStageStartTime > 0) {
-                                long elapsedSeconds = (currentTime - currentStatus.parsingStageStartTime) / 1000;
-                                if (elapsedSeconds > 0) {
-                                    currentStatus.parsingSpeed = (double) lineNumber / elapsedSeconds;
-                                }
-                            }
-
-                            double stageProgress = (lineNumber * 100.0) / totalLines;
-                            double overallProgress = COUNTING_WEIGHT * 100 +
-                                    (PARSING_WEIGHT * 100 * stageProgress / 100.0);
-
-                            currentStatus.stageProgress = (int) stageProgress;
-                            currentStatus.progress = (int) overallProgress;
+                        if (rows.size() >= COPY_BUFFER_SIZE) {
+                            ring.write(rows.array(), 0, rows.size());
+                            rows.reset();
                         }
                     }
+
+                    if (lineNumber % 5000 == 0) {
+                        updateParsingProgress(currentStatus, lineNumber, bytesRead.get(), PARSING_WEIGHT);
+                    }
                 }
+                totalLines = lineNumber;
 
                 // Если не было отмены, финализируем запись
                 if (!currentStatus.isCancelled) {
-                    writer.flush();
-                    writer.close();
+                    encoder.finish(rows);
+                    ring.write(rows.array(), 0, rows.size());
+                    ring.close();
                 }
 
                 // Замеряем время парсинга
                 parsingStageDuration = System.currentTimeMillis() - currentStatus.parsingStageStartTime;
                 System.out.println("Парсинг завершен за " + (parsingStageDuration / 1000.0) + " сек");
+                if (!useRegex) {
+                    System.out.println(cacheStats.summary());
+                }
 
                 currentStatus.actualParsingTime = parsingStageDuration;
                 currentStatus.parsingDuration = parsingStageDuration;
                 currentStatus.parsingCompleted = !currentStatus.isCancelled;
 
                 if (!currentStatus.isCancelled) {
+                    updateParsingProgress(currentStatus, lineNumber, bytesRead.get(), PARSING_WEIGHT);
+                    currentStatus.total = lineNumber;
                     currentStatus.stageProgress = 100;
-                    currentStatus.progress = (int) (COUNTING_WEIGHT * 100 + PARSING_WEIGHT * 100);
+                    currentStatus.progress = (int) (PARSING_WEIGHT * 100);
                 }
 
             } catch (IOException e) {
@@ -309,6 +645,12 @@ public class LogFileParser {
                 }
             }
 
+            // Кто кого ждал: долгое ожидание парсера - узкое место в PostgreSQL, ожидание COPY - в парсинге
+            currentStatus.parserWaitMs = ring.getProducerWaitMs();
+            currentStatus.copyWaitMs = ring.getConsumerWaitMs();
+            System.out.printf("Передано в COPY: %,d байт. Парсер ждал свободный буфер %.1f сек, COPY ждал данные %.1f сек%n",
+                    ring.getBytesTransferred(), currentStatus.parserWaitMs / 1000.0, currentStatus.copyWaitMs / 1000.0);
+
             // Если была отмена, не выполняем дальнейшие этапы
             if (currentStatus.isCancelled) {
                 finishWithCancellation(currentStatus);
@@ -321,8 +663,11 @@ public class LogFileParser {
             // 7. Финализация если есть данные
             if (totalRecords > 0 && !currentStatus.isCancelled) {
                 completeProcessing(conn, currentStatus, startTime, totalLines, totalRecords,
-                        COUNTING_WEIGHT, PARSING_WEIGHT, FINALIZATION_WEIGHT,
+                        PARSING_WEIGHT, FINALIZATION_WEIGHT,
                         INDEXING_WEIGHT, STATISTICS_WEIGHT, parsingStageDuration);
+                if (plan != null && !currentStatus.isCancelled) {
+                    ingestCheckpointService.save(plan.filePath, filePath, loadEnd);
+                }
             } else {
                 finishWithNoData(currentStatus);
             }
@@ -339,117 +684,180 @@ public class LogFileParser {
         }
     }
 
-    private long estimateLineCountWithNIO(String filePath) throws IOException {
-        File file = new File(filePath);
-        long fileSize = file.length();
+    /**
+     * Пакетная загрузка нескольких файлов (каталог или маска) в один набор данных:
+     * все файлы идут в одну промежуточную таблицу, финализация, индексы и статистика - один раз.
+     */
+    public void parseFilesWithHybridCopy(List<String> filePaths, ParsingStatus currentStatus) {
+        long startTime = System.currentTimeMillis();
+        long totalRecords;
+        long totalLines;
+        long totalBytes = 0;
+        long parsingStageDuration;
 
-        // Порог для быстрой оценки
-        if (fileSize > 50_000_000) { // > 50MB
-            int SAMPLE_COUNT = 10;
-            int SAMPLE_SIZE = 65536; // 64KB каждый
+        final double PARSING_WEIGHT = 386.5 / 1226.5;
+        final double FINALIZATION_WEIGHT = 450 / 1226.5;
+        final double INDEXING_WEIGHT = 220 / 1226.5;
+        final double STATISTICS_WEIGHT = 170 / 1226.5;
 
-            try (RandomAccessFile raf = new RandomAccessFile(filePath, "r")) {
-                byte[][] samples = new byte[SAMPLE_COUNT][SAMPLE_SIZE];
-                long[] positions = new long[SAMPLE_COUNT];
+        System.out.println("Начало пакетной загрузки: " + filePaths.size() + " файлов");
 
-                // Рассчитываем позиции для равномерного распределения
-                for (int i = 0; i < SAMPLE_COUNT; i++) {
-                    positions[i] = (fileSize * i) / SAMPLE_COUNT;
-                }
+        cleanupDone = false;
+        copyThread = null;
+        copyRing = null;
+        cacheStats = new InternCacheStats();
+        reader = null;
 
-                // Читаем образцы
-                for (int i = 0; i < SAMPLE_COUNT; i++) {
-                    long pos = positions[i];
-                    // Корректируем позицию чтобы не выйти за границы
-                    if (pos + SAMPLE_SIZE > fileSize) {
-                        pos = fileSize - SAMPLE_SIZE;
-                    }
-                    if (pos < 0) pos = 0;
+        try (Connection conn = connectionPools.ingest().getConnection()) {
 
-                    raf.seek(pos);
-                    raf.read(samples[i]);
-                }
+            conn.setNetworkTimeout(null, 60000);
 
-                // Считаем строки во всех образцах
-                double totalLines = 0;
-                for (byte[] sample : samples) {
-                    totalLines += countLinesInBuffer(sample);
-                }
+            currentStatus.parsingSpeed = 1000;
+            currentStatus.parsingStageStartTime = System.currentTimeMillis();
+            currentStatus.lastProgressUpdateTime = System.currentTimeMillis();
+            currentStatus.lastProcessedCount = 0;
 
-                // Среднее значение строк на 64KB
-                double avgLinesPerSample = totalLines / SAMPLE_COUNT;
+            // 1. Подготовка БД
+            databaseManager.ensureLogsTableExists(conn);
+            databaseManager.createStatusesTable(conn);
+            databaseManager.createActionsTable(conn);
 
-                // Оценка общего количества строк
-                long estimatedLines = (long) ((fileSize / (double)SAMPLE_SIZE) * avgLinesPerSample);
+            List<FileProgress> files = new ArrayList<>();
+            for (String path : filePaths) {
+                File file = new File(path);
+                FileProgress progress = new FileProgress(path, file.length(), GzipDecompressStage.isGzip(path));
+                // Полная загрузка читает до конца последней полной строки - с этого места продолжит дозагрузка
+                progress.loadEnd = progress.gzip ? file.length() : ingestCheckpointService.lastLineBoundary(path);
+                totalBytes += progress.loadEnd;
+                files.add(progress);
+            }
+            currentStatus.files = files;
 
-                System.out.printf("Точная оценка (10 образцов): %,d строк (файл: %,d bytes, %.1f строк/64KB)%n",
-                        estimatedLines, fileSize, avgLinesPerSample);
+            if (currentStatus.isCancelled) {
+                finishWithCancellation(currentStatus);
+                return;
+            }
 
-                return estimatedLines;
+            // 2. Очистка и создание таблицы (контрольные точки теряют смысл вместе с данными)
+            if (appendMode) {
+                ingestCheckpointService.clearAll(conn);
             }
-        }
+            databaseManager.clearLogsTable(conn);
+            beginDictionaryLoad();
+            beginLoadStats();
+            databaseManager.createUnloggedTable(conn, encodeDictionary);
 
-        // Для маленьких файлов считаем точно
-        return countLinesAccurately(filePath);
-    }
+            // 3. Оптимизация настроек БД перед COPY
+            databaseManager.prepareConnectionForCopy(conn);
 
-    private long countLinesInBuffer(byte[] buffer) {
-        long lines = 0;
-        for (int i = 0; i < buffer.length; i++) {
-            if (buffer[i] == '\n') {
-                lines++;
-                // Учитываем \r\n для Windows
-                if (i > 0 && buffer[i-1] == '\r') {
-                    // Уже учли как \n, ничего не делаем
+            // Побайтовый токенизатор - только если он совпал с регуляркой на выборке каждого файла
+            boolean useRegex = isRegexTokenizer();
+            for (int i = 0; i < files.size() && !useRegex; i++) {
+                useRegex = !verifyTokenizerOnSample(files.get(i).filePath);
+            }
+            final boolean regex = useRegex;
+            System.out.println("Разбор строк: " + (regex ? "LOG_PATTERN" : "побайтовый токенизатор") +
+                    ", формат COPY: " + (isBinaryCopy() ? "binary" : "csv") +
+                    (encodeDictionary ? ", словарные колонки" : ""));
+
+            // 4. Загрузка всех файлов общим планировщиком; прогресс - по байтам всех файлов
+            currentStatus.stageName = "🚀 Парсинг данных";
+            currentStatus.stageProgress = 0;
+            currentStatus.progress = 0;
+            currentStatus.status = String.format("Парсинг %d файлов, %,d байт...", files.size(), totalBytes);
+            currentStatus.bytesTotal = totalBytes;
+            currentStatus.parsingStageStartTime = System.currentTimeMillis();
+
+            totalRecords = multiFileScheduler.loadAll(files, copySql(), () -> newLineEncoder(regex), currentStatus,
+                    (lines, bytes) -> updateParsingProgress(currentStatus, lines, bytes, PARSING_WEIGHT));
+
+            totalLines = currentStatus.processed;
+            currentStatus.total = totalLines;
+            parsingStageDuration = System.currentTimeMillis() - currentStatus.parsingStageStartTime;
+            System.out.println("Пакетный парсинг завершен за " + (parsingStageDuration / 1000.0) + " сек");
+            if (!regex) {
+                System.out.println(cacheStats.summary());
+            }
+
+            currentStatus.actualParsingTime = parsingStageDuration;
+            currentStatus.parsingDuration = parsingStageDuration;
+            currentStatus.parsingCompleted = !currentStatus.isCancelled;
+
+            if (currentStatus.isCancelled) {
+                finishWithCancellation(currentStatus);
+                return;
+            }
+
+            currentStatus.stageProgress = 100;
+            currentStatus.progress = (int) (PARSING_WEIGHT * 100);
+
+            // 5. Восстановление настроек БД
+            databaseManager.restoreConnectionSettings(conn);
+
+            // 6. Финализация, индексы и статистика - один раз на весь пакет
+            if (totalRecords > 0) {
+                completeProcessing(conn, currentStatus, startTime, totalLines, totalRecords,
+                        PARSING_WEIGHT, FINALIZATION_WEIGHT,
+                        INDEXING_WEIGHT, STATISTICS_WEIGHT, parsingStageDuration);
+                if (appendMode && !currentStatus.isCancelled) {
+                    for (FileProgress file : files) {
+                        if (!file.gzip) {
+                            ingestCheckpointService.save(ingestCheckpointService.canonicalPath(file.filePath),
+                                    file.filePath, file.loadEnd);
+                        }
+                    }
                 }
+            } else {
+                finishWithNoData(currentStatus);
+            }
+
+        } catch (Exception e) {
+            if (!currentStatus.isCancelled) {
+                handleParsingError(currentStatus, e);
+            } else {
+                System.out.println("Пакетная загрузка отменена, ошибка игнорируется: " + e.getMessage());
+                finishWithCancellation(currentStatus);
             }
+        } finally {
+            cleanup();
         }
-        return lines;
     }
 
-    private long countLinesAccurately(String filePath) throws IOException {
-        try (LineNumberReader lnr = new LineNumberReader(
-                new InputStreamReader(
-                        new java.io.FileInputStream(filePath),
-                        StandardCharsets.UTF_8
-                )
-        )) {
-            lnr.skip(Long.MAX_VALUE);
-            return lnr.getLineNumber() + 1;
+    // Прогресс этапа парсинга по байтам, прочитанным с канала файла: доля файла известна точно с первой порции,
+    // общее число строк экстраполируется по средней длине уже прочитанных строк
+    private void updateParsingProgress(ParsingStatus status, long lines, long bytes, double parsingWeight) {
+        status.processed = lines;
+        status.bytesProcessed = bytes;
+
+        long elapsedMs = System.currentTimeMillis() - status.parsingStageStartTime;
+        if (elapsedMs > 0) {
+            status.parsingSpeed = lines * 1000.0 / elapsedMs;
+            status.bytesPerSecond = bytes * 1000.0 / elapsedMs;
+        }
+
+        double fraction = status.bytesTotal > 0 ? Math.min(1.0, (double) bytes / status.bytesTotal) : 0;
+        if (fraction > 0) {
+            status.total = Math.max(lines, Math.round(lines / fraction));
         }
+        status.stageProgress = (int) (fraction * 100);
+        status.progress = (int) (parsingWeight * 100 * fraction);
     }
 
-    private void performStreamingCopyWithOptimization(Connection conn, InputStream dataStream, ParsingStatus status) {
+    private void performStreamingCopyWithOptimization(Connection conn, CopyBufferRing ring, ParsingStatus status) {
         System.out.println("Запуск оптимизированного потокового COPY...");
-        final InputStream localDataStream = dataStream;
 
         try {
             // Проверка отмены перед началом
             if (status.isCancelled || Thread.currentThread().isInterrupted()) {
                 System.out.println("COPY отменен перед запуском");
-                try {
-                    localDataStream.close();
-                } catch (IOException ignored) {
-                }
+                ring.abort();
                 return;
             }
 
             // Устанавливаем таймаут на соединение
-            if (conn instanceof BaseConnection) {
-                ((BaseConnection) conn).setNetworkTimeout(null, 30000); // 30 секунд
-            }
-
-            CopyManager copyManager = new CopyManager((BaseConnection) conn);
+            conn.setNetworkTimeout(null, 30000); // 30 секунд
 
-            String copySql = "COPY logs_unlogged(time, ip, username, url, status_code, domain, " +
-                    "response_time_ms, response_size_bytes, action) " +
-                    "FROM STDIN WITH (" +
-                    "FORMAT CSV, " +
-                    "DELIMITER ',', " +
-                    "NULL '\\N', " +
-                    "ENCODING 'UTF8', " +
-                    "ESCAPE '\\', " +
-                    "QUOTE '\"')";
+            CopyManager copyManager = new CopyManager(conn.unwrap(BaseConnection.class));
 
             long startCopyTime = System.currentTimeMillis();
 
@@ -459,9 +867,10 @@ public class LogFileParser {
 
             Thread copyExecutor = new Thread(() -> {
                 try {
-                    rowsImported[0] = copyManager.copyIn(copySql, localDataStream, 65536);
+                    rowsImported[0] = copyFromRing(copyManager, ring);
                 } catch (Exception e) {
                     copyError[0] = e;
+                    ring.abort(); // освобождаем парсер, ожидающий свободный буфер
                 }
             });
 
@@ -471,6 +880,7 @@ public class LogFileParser {
             while (copyExecutor.isAlive()) {
                 if (status.isCancelled || Thread.currentThread().isInterrupted()) {
                     System.out.println("🚫 COPY отменен пользователем");
+                    ring.abort();
                     copyExecutor.interrupt();
 
                     // Прерываем операцию COPY через БД
@@ -506,10 +916,37 @@ public class LogFileParser {
                 System.err.println("Ошибка при выполнении COPY: " + e.getMessage());
                 throw new RuntimeException("COPY failed", e);
             }
+        }
+    }
+
+    // Отправка буферов из кольца в COPY; буфер возвращается в пул сразу после отправки
+    private long copyFromRing(CopyManager copyManager, CopyBufferRing ring) throws SQLException, IOException {
+        CopyIn copyIn = copyManager.copyIn(copySql());
+        byte[] scratch = null;
+
+        try {
+            ByteBuffer buffer;
+            while ((buffer = ring.next()) != null) {
+                int length = buffer.remaining();
+                if (buffer.hasArray()) {
+                    copyIn.writeToCopy(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                } else {
+                    // Прямой буфер: pgjdbc принимает только byte[], копируем через общий массив
+                    if (scratch == null) {
+                        scratch = new byte[ring.getBufferSize()];
+                    }
+                    buffer.get(scratch, 0, length);
+                    copyIn.writeToCopy(scratch, 0, length);
+                }
+                ring.release(buffer);
+            }
+            return copyIn.endCopy();
         } finally {
-            try {
-                localDataStream.close();
-            } catch (IOException ignored) {
+            if (copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                } catch (SQLException ignored) {
+                }
             }
         }
     }
@@ -542,22 +979,10 @@ public class LogFileParser {
             reader = null;
         }
 
-        // Закрываем выходной поток
-        if (pos != null) {
-            try {
-                pos.close();
-            } catch (IOException ignored) {
-            }
-            pos = null;
-        }
-
-        // Закрываем входной поток
-        if (pis != null) {
-            try {
-                pis.close();
-            } catch (IOException ignored) {
-            }
-            pis = null;
+        // Останавливаем передачу буферов в COPY
+        if (copyRing != null) {
+            copyRing.abort();
+            copyRing = null;
         }
 
         // Прерываем COPY поток
@@ -575,9 +1000,8 @@ public class LogFileParser {
 
     private void completeProcessing(Connection conn, ParsingStatus status,
                                     long startTime, long totalLines, long totalRecords,
-                                    double countingWeight, double parsingWeight,
-                                    double finalizationWeight, double indexingWeight,
-                                    double statisticsWeight, long parsingDuration)
+                                    double parsingWeight, double finalizationWeight,
+                                    double indexingWeight, double statisticsWeight, long parsingDuration)
             throws SQLException, InterruptedException {
 
         System.out.println("Завершающая обработка данных...");
@@ -617,10 +1041,12 @@ public class LogFileParser {
 
         long currentTime = System.currentTimeMillis();
 
-        try (Connection finalizeConn = DriverManager.getConnection(
-                DB_URL,
-                DB_USERNAME,
-                DB_PASSWORD)){
+        // Новые значения словарей должны оказаться в справочниках до того, как logs станет видна
+        if (encodeDictionary) {
+            dictionaryService.persistNew();
+        }
+
+        try (Connection finalizeConn = connectionPools.ingest().getConnection()){
             // === ЭТАП ФИНАЛИЗАЦИИ ===
             // ✅ ПРОВЕРКА ОТМЕНЫ
             if (status.isCancelled) {
@@ -639,6 +1065,7 @@ public class LogFileParser {
                 try {
                     long finalizationStartTime = System.currentTimeMillis();
                     databaseManager.finalizeTable(finalizeConn, null, status);
+                    dictionaryService.refreshLayout();
                     long finalizationEndTime = System.currentTimeMillis();
                     actualFinalizationTime.set(finalizationEndTime - finalizationStartTime);
                     finalizationCompleted.set(true);
@@ -675,7 +1102,7 @@ public class LogFileParser {
                         status.estimatedIndexingTime +
                         status.estimatedStatisticsTime;
 
-                double overallProgress = (countingWeight + parsingWeight) * 100 +
+                double overallProgress = (parsingWeight) * 100 +
                         (finalizationWeight * 100 * stageProgress / 100.0);
 
                 status.stageProgress = (int) stageProgress;
@@ -693,7 +1120,7 @@ public class LogFileParser {
 
             // Завершение финализации
             status.stageProgress = 100;
-            status.progress = (int) ((countingWeight + parsingWeight + finalizationWeight) * 100);
+            status.progress = (int) ((parsingWeight + finalizationWeight) * 100);
             status.status = "Финализация таблицы завершена";
             status.actualFinalizationTime = actualFinalizationTime.get();
             status.finalizationCompleted = true;
@@ -701,10 +1128,7 @@ public class LogFileParser {
             try { if (conn != null && !conn.isClosed()) conn.close(); } catch (Exception ignored) {}
 
 // Создаём НОВОЕ соединение
-            try (Connection populateConn = DriverManager.getConnection(
-                    DB_URL,
-                    DB_USERNAME,
-                    DB_PASSWORD)) {
+            try (Connection populateConn = connectionPools.ingest().getConnection()) {
                 databaseManager.populateStatusesAndActions(populateConn);
                 System.out.println("✅ Статусы и действия успешно заполнены");
             } catch (Exception e) {
@@ -724,10 +1148,7 @@ public class LogFileParser {
         Thread.sleep(300);
         currentTime = System.currentTimeMillis();
 
-        try (Connection indexConn  = DriverManager.getConnection(
-                DB_URL,
-                DB_USERNAME,
-                DB_PASSWORD)) {
+        try (Connection indexConn  = connectionPools.maintenance().getConnection()) {
             // === ЭТАП ИНДЕКСАЦИИ ===
             // ✅ ПРОВЕРКА ОТМЕНЫ
             if (status.isCancelled) {
@@ -741,7 +1162,7 @@ public class LogFileParser {
 
             AtomicBoolean indexingCompleted = new AtomicBoolean(false);
             final int[] currentIndexProgress = {0};
-            final int totalIndexWeight = 11;
+            // Доля построенных индексов с учетом веса, 0-100
             AtomicInteger currentIndexWeight = new AtomicInteger(0);
 
             Thread indexingThread = new Thread(() -> {
@@ -767,13 +1188,9 @@ public class LogFileParser {
                 // ✅ ПРОВЕРКА ОТМЕНЫ
                 if (status.isCancelled) {
                     System.out.println("🚫 Отмена во время индексации");
+                    // Прерывание потока индексации отменяет все выполняющиеся сборки на их соединениях
                     indexingThread.interrupt();
-
-                    // Отменяем операции создания индексов в БД
-                    try (Statement cancelStmt = conn.createStatement()) {
-                        cancelStmt.execute("SELECT pg_cancel_backend(pg_backend_pid())");
-                    } catch (SQLException ignored) {
-                    }
+                    indexingThread.join(5000);
 
                     status.estimatedTimeRemaining = status.estimatedStatisticsTime;
                     throw new InterruptedException("Отменено пользователем");
@@ -783,14 +1200,14 @@ public class LogFileParser {
 
                 double timeBasedProgress = Math.min(99, (elapsedIndexingTime * 100.0) /
                         Math.max(1, status.estimatedIndexingTime));
-                double indexBasedProgress = Math.min(99, (currentIndexWeight.get() * 100.0) / totalIndexWeight);
+                double indexBasedProgress = Math.min(99, currentIndexWeight.get());
                 double stageProgress = Math.min(99, (timeBasedProgress * 0.5) + (indexBasedProgress * 0.5));
 
                 // ✅ ИСПРАВЛЕНИЕ: Обновляем общее оставшееся время
                 long remainingIndexing = (long) (status.estimatedIndexingTime * (100 - stageProgress) / 100.0);
                 status.estimatedTimeRemaining = remainingIndexing + status.estimatedStatisticsTime;
 
-                double overallProgress = (countingWeight + parsingWeight + finalizationWeight) * 100 +
+                double overallProgress = (parsingWeight + finalizationWeight) * 100 +
                         (indexingWeight * 100 * stageProgress / 100.0);
 
                 status.stageProgress = (int) stageProgress;
@@ -808,7 +1225,7 @@ public class LogFileParser {
 
             // Завершение индексации
             status.stageProgress = 100;
-            status.progress = (int) ((countingWeight + parsingWeight + finalizationWeight + indexingWeight) * 100);
+            status.progress = (int) ((parsingWeight + finalizationWeight + indexingWeight) * 100);
             status.status = "Создание индексов завершено";
             status.actualIndexingTime = System.currentTimeMillis() - indexingStartTime;
             status.indexingCompleted = true;
@@ -820,10 +1237,7 @@ public class LogFileParser {
             currentTime = System.currentTimeMillis();
         }
 
-        try (Connection statsConn   = DriverManager.getConnection(
-                DB_URL,
-                DB_USERNAME,
-                DB_PASSWORD)) {
+        try (Connection statsConn   = connectionPools.maintenance().getConnection()) {
             // === ЭТАП СТАТИСТИКИ ===
             // ✅ ПРОВЕРКА ОТМЕНЫ
             if (status.isCancelled) {
@@ -855,8 +1269,31 @@ public class LogFileParser {
                         return;
                     }
 
-                    System.out.println("📊 Вычисление и сохранение агрегированной статистики...");
-                    aggregatedStatsService.calculateAndSaveDefaultStats();
+                    LoadStatsAccumulator collected = loadStats;
+                    loadStats = null;
+                    boolean inStream = collected != null && collected.isComplete() && !collected.isEmpty();
+                    boolean sketchTops = inStream && collected.hasTopSketches();
+
+                    // Часовые скетчи различных IP и пользователей; без них оценки периода считаются запросами
+                    distinctCountService.replaceAll(inStream ? collected.getDistinct() : null);
+                    // Куб свертки для фильтрованной статистики
+                    rollupService.replaceAll(inStream ? collected.getRollup() : null);
+                    // Колоночное хранилище для статистики и топов из памяти
+                    columnarStoreService.replaceAll(inStream ? collected.getColumnar() : null);
+
+                    // Топы из скетчей - первыми: дефолтная строка aggregated_stats берет их из precalculated_tops
+                    if (sketchTops) {
+                        System.out.println("🔄 Обновление прерассчитанных топов по скетчам парсинга...");
+                        precalculatedTopService.updatePrecalculatedTops(collected);
+                    }
+
+                    if (inStream) {
+                        System.out.println("📊 Сохранение агрегированной статистики, собранной при парсинге...");
+                        aggregatedStatsService.saveDefaultStats(collected);
+                    } else {
+                        System.out.println("📊 Вычисление и сохранение агрегированной статистики...");
+                        aggregatedStatsService.calculateAndSaveDefaultStats();
+                    }
 
                     // ✅ ПРОВЕРКА ОТМЕНЫ
                     if (status.isCancelled) {
@@ -864,8 +1301,10 @@ public class LogFileParser {
                         return;
                     }
 
-                    System.out.println("🔄 Обновление прерассчитанных топов...");
-                    precalculatedTopService.updatePrecalculatedTops();
+                    if (!sketchTops) {
+                        System.out.println("🔄 Обновление прерассчитанных топов...");
+                        precalculatedTopService.updatePrecalculatedTops();
+                    }
 
                     long statsEndTime = System.currentTimeMillis();
                     System.out.println("Статистика обновлена за " + ((statsEndTime - statsStartTime) / 1000.0) + " сек");
@@ -899,7 +1338,7 @@ public class LogFileParser {
                 long remainingStatistics = (long) (status.estimatedStatisticsTime * (100 - stageProgress) / 100.0);
                 status.estimatedTimeRemaining = remainingStatistics;
 
-                double overallProgress = (countingWeight + parsingWeight + finalizationWeight + indexingWeight) * 100 +
+                double overallProgress = (parsingWeight + finalizationWeight + indexingWeight) * 100 +
                         (statisticsWeight * 100 * stageProgress / 100.0);
 
                 status.stageProgress = (int) stageProgress;
@@ -951,6 +1390,223 @@ public class LogFileParser {
         }
     }
 
+    // Дозагрузка нового хвоста файла прямо в logs без пересоздания таблицы и индексов.
+    // Строки и новая контрольная точка фиксируются одной транзакцией
+    private void appendFromCheckpoint(Connection conn, String filePath, IngestCheckpointService.IngestPlan plan,
+                                      ParsingStatus currentStatus, long startTime) throws Exception {
+        long bytesToLoad = plan.endOffset - plan.startOffset;
+        System.out.printf("➕ Дозагрузка %s: байты %,d - %,d (%,d байт)%n",
+                filePath, plan.startOffset, plan.endOffset, bytesToLoad);
+
+        currentStatus.stageName = "➕ Дозагрузка новых строк";
+        currentStatus.stageProgress = 0;
+        currentStatus.progress = 0;
+        currentStatus.status = String.format("Дозагрузка %,d байт с позиции %,d", bytesToLoad, plan.startOffset);
+        currentStatus.bytesTotal = bytesToLoad;
+        currentStatus.parsingStageStartTime = System.currentTimeMillis();
+
+        boolean useRegex = isRegexTokenizer() || !verifyTokenizerOnSample(filePath, plan.startOffset, plan.endOffset);
+        // Дозагрузка пишет в формате существующей logs, независимо от настройки
+        boolean encoded = dictionaryService.isEncoded(conn, "logs");
+        if (encoded) {
+            dictionaryService.ensureLoaded();
+        }
+        LoadStatsAccumulator appendStats = columnarStoreService.withColumnar(rollupService.withRollup(
+                distinctCountService.withSketches(new LoadStatsAccumulator())));
+        LineEncoder encoder = newLineEncoder(useRegex, isBinaryCopy(), encoded, Long.MIN_VALUE, Long.MAX_VALUE, appendStats);
+        ByteArrayBuilder batch = new ByteArrayBuilder(COPY_BUFFER_SIZE + 4096);
+        partitionService.ensureCurrentPartitions();
+
+        long lines = 0;
+        long rows;
+
+        conn.setAutoCommit(false);
+        CopyIn copyIn = new CopyManager(conn.unwrap(BaseConnection.class)).copyIn(copySql("logs", encoded));
+        AtomicLong bytesRead = new AtomicLong();
+        try (ByteLineReader tail = createOptimizedReader(filePath, plan.startOffset, plan.endOffset, bytesRead)) {
+            encoder.begin(batch);
+
+            while (tail.nextLine()) {
+                lines++;
+
+                if (currentStatus.isCancelled) {
+                    System.out.println("🚫 Дозагрузка прервана пользователем на строке " + lines);
+                    copyIn.cancelCopy();
+                    conn.rollback();
+                    finishWithCancellation(currentStatus);
+                    return;
+                }
+
+                if (encoder.encode(tail.buffer(), tail.lineStart(), tail.lineEnd(), batch)
+                        && batch.size() >= COPY_BUFFER_SIZE) {
+                    copyIn.writeToCopy(batch.array(), 0, batch.size());
+                    batch.reset();
+                }
+
+                if (lines % 5000 == 0) {
+                    updateParsingProgress(currentStatus, lines, bytesRead.get(), 0.9);
+                }
+            }
+
+            encoder.finish(batch);
+            if (batch.size() > 0) {
+                copyIn.writeToCopy(batch.array(), 0, batch.size());
+            }
+            rows = copyIn.endCopy();
+
+            if (encoded) {
+                dictionaryService.persistNew();
+            }
+            ingestCheckpointService.save(conn, plan.filePath, filePath, plan.endOffset);
+            distinctCountService.mergeBuckets(conn, appendStats.isComplete() ? appendStats.getDistinct() : null);
+            rollupService.mergeCube(conn, appendStats.isComplete() ? appendStats.getRollup() : null);
+            conn.commit();
+        } catch (Exception e) {
+            if (copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                } catch (SQLException ignored) {
+                }
+            }
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        // Строки дозагрузки видны в колоночном хранилище только после фиксации
+        columnarStoreService.append(appendStats.isComplete() ? appendStats.getColumnar() : null);
+
+        long parsingDuration = System.currentTimeMillis() - currentStatus.parsingStageStartTime;
+        currentStatus.processed = lines;
+        currentStatus.total = lines;
+        currentStatus.actualParsingTime = parsingDuration;
+        currentStatus.parsingDuration = parsingDuration;
+        currentStatus.parsingCompleted = true;
+        System.out.printf("Дозагрузка завершена за %.1f сек: %,d строк, %,d записей%n",
+                parsingDuration / 1000.0, lines, rows);
+        if (!useRegex) {
+            System.out.println(cacheStats.summary());
+        }
+
+        // Индексы уже есть и обновились при вставке; пересчитываем только производные данные
+        if (rows > 0) {
+            currentStatus.stageName = "📊 Обновление статистики";
+            currentStatus.stageStartTime = System.currentTimeMillis();
+            currentStatus.stageProgress = 0;
+            currentStatus.progress = 90;
+
+            databaseManager.populateStatusesAndActions(conn);
+            filterCacheService.invalidateCacheAfterDataChange();
+            aggregatedStatsService.calculateAndSaveDefaultStats();
+            precalculatedTopService.updatePrecalculatedTops();
+            currentStatus.actualStatisticsTime = System.currentTimeMillis() - currentStatus.stageStartTime;
+        }
+        currentStatus.statisticsCompleted = true;
+
+        currentStatus.stageProgress = 100;
+        currentStatus.progress = 100;
+        currentStatus.isParsing = false;
+        currentStatus.stageName = "✅ Завершено";
+        currentStatus.status = String.format(
+                "Дозагрузка завершена за %.1f мин\n" +
+                        "Обработано: %,d новых строк\n" +
+                        "Добавлено: %,d записей",
+                (System.currentTimeMillis() - startTime) / 60000.0, lines, rows);
+    }
+
+    /**
+     * Перезагрузка одной секции секционированной logs: из файла берутся только строки интервала,
+     * в который попадает day, и загружаются COPY в отдельную таблицу; затем она подменяет старую секцию.
+     * Остальные секции, индексы на них и контрольные точки не меняются.
+     */
+    public void reloadPartition(String filePath, LocalDateTime day, ParsingStatus currentStatus) {
+        long startTime = System.currentTimeMillis();
+        LogPartitionService.Bucket bucket = partitionService.bucketOf(day);
+        System.out.println("=== ПЕРЕЗАГРУЗКА СЕКЦИИ " + bucket.name + " ИЗ " + filePath + " ===");
+
+        try (Connection conn = connectionPools.ingest().getConnection()) {
+            if (!partitionService.isPartitioned(conn, "logs")) {
+                throw new IllegalStateException("Таблица logs не секционирована - включите " +
+                        "logparser.storage.partition-interval и выполните полную загрузку");
+            }
+
+            boolean encoded = dictionaryService.isEncoded(conn, "logs");
+            if (encoded) {
+                dictionaryService.ensureLoaded();
+            }
+            String table = partitionService.createReplacement(conn, bucket);
+
+            boolean gzip = GzipDecompressStage.isGzip(filePath);
+            long loadEnd = gzip ? new File(filePath).length() : ingestCheckpointService.lastLineBoundary(filePath);
+            boolean useRegex = isRegexTokenizer() || !verifyTokenizerOnSample(filePath);
+
+            currentStatus.stageName = "🚀 Парсинг данных";
+            currentStatus.stageProgress = 0;
+            currentStatus.progress = 0;
+            currentStatus.status = String.format("Перезагрузка %s: парсинг %,d байт...", bucket.name, loadEnd);
+            currentStatus.bytesTotal = loadEnd;
+            currentStatus.parsingStageStartTime = System.currentTimeMillis();
+
+            int workers = parallelChunkLoader.effectiveWorkers(loadEnd, parserWorkers);
+            List<ParallelChunkLoader.FileChunk> chunks = gzip
+                    ? parallelChunkLoader.splitByGzipMembers(filePath, workers)
+                    : parallelChunkLoader.splitByLines(filePath, workers, loadEnd);
+            long from = bucket.startEpoch();
+            long to = bucket.endEpoch();
+            LoadStatsAccumulator bucketStats = columnarStoreService.withColumnar(rollupService.withRollup(
+                    distinctCountService.withSketches(new LoadStatsAccumulator())));
+
+            long records = parallelChunkLoader.load(filePath, chunks, gzip, copySql(table, encoded),
+                    () -> newLineEncoder(useRegex, isBinaryCopy(), encoded, from, to, bucketStats), currentStatus,
+                    (lines, bytes) -> updateParsingProgress(currentStatus, lines, bytes, 0.8));
+
+            if (currentStatus.isCancelled) {
+                partitionService.dropReplacement(conn, bucket);
+                finishWithCancellation(currentStatus);
+                return;
+            }
+
+            currentStatus.stageName = "🗃️ Замена секции";
+            currentStatus.stageStartTime = System.currentTimeMillis();
+            currentStatus.progress = 80;
+            if (encoded) {
+                dictionaryService.persistNew();
+            }
+            partitionService.swapPartition(conn, bucket);
+            distinctCountService.replaceRange(bucket.start, bucket.end, bucketStats.getDistinct());
+            rollupService.replaceRange(bucket.start, bucket.end, bucketStats.getRollup());
+            columnarStoreService.replaceRange(bucket.start, bucket.end,
+                    bucketStats.isComplete() ? bucketStats.getColumnar() : null);
+
+            currentStatus.stageName = "📊 Обновление статистики";
+            currentStatus.stageStartTime = System.currentTimeMillis();
+            currentStatus.progress = 90;
+            databaseManager.populateStatusesAndActions(conn);
+            filterCacheService.invalidateCacheAfterDataChange();
+            aggregatedStatsService.calculateAndSaveDefaultStats();
+            precalculatedTopService.updatePrecalculatedTops();
+
+            currentStatus.processed = records;
+            currentStatus.total = records;
+            currentStatus.stageProgress = 100;
+            currentStatus.progress = 100;
+            currentStatus.isParsing = false;
+            currentStatus.stageName = "✅ Завершено";
+            currentStatus.status = String.format(
+                    "Секция %s перезагружена за %.1f мин\n" +
+                            "Загружено: %,d записей",
+                    bucket.name, (System.currentTimeMillis() - startTime) / 60000.0, records);
+            System.out.println(currentStatus.status);
+
+        } catch (Exception e) {
+            try (Connection conn = connectionPools.ingest().getConnection()) {
+                partitionService.dropReplacement(conn, bucket);
+            } catch (SQLException ignored) {
+            }
+            handleParsingError(currentStatus, e);
+        }
+    }
+
     private void finishWithNoData(ParsingStatus status) {
         status.isParsing = false;
         status.status = "❌ Не удалось добавить записи в БД";
@@ -1012,7 +1668,11 @@ public class LogFileParser {
             }
 
             // Быстро читаем начало файла
-            try (BufferedReader br = new BufferedReader(new java.io.FileReader(filePath))) {
+            InputStream fileStream = new java.io.FileInputStream(filePath);
+            if (GzipDecompressStage.isGzip(filePath)) {
+                fileStream = new GZIPInputStream(fileStream);
+            }
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fileStream))) {
                 String line;
                 while ((line = br.readLine()) != null) {
                     try {
@@ -1046,6 +1706,88 @@ public class LogFileParser {
         return true;
     }
 
+    /**
+     * Данные загружены раньше, а контрольной точки нет (загрузка до ее появления или с выключенной
+     * дозагрузкой). Точка ставится на конец последней полной строки, только если строка этого файла
+     * (последняя из загружаемых) есть в logs с тем же временем, IP и url. Проверка по MAX(time) не годится:
+     * logs может хранить другой файл того же месяца (access.log вместо access.log.1).
+     */
+    private void adoptLoadedData(Connection conn, String filePath, IngestCheckpointService.IngestPlan plan) {
+        try {
+            java.util.regex.Matcher last = lastLoadedLine(filePath, plan.endOffset);
+            LocalDateTime lastTime = last != null ? logParserUtils.convertTimestamp(last.group(1)) : null;
+            if (lastTime == null) {
+                System.out.println("Дозагрузка не включается: последняя строка файла не разобрана");
+                return;
+            }
+
+            // Допуск в 1 мс: время файла приходит через double и может отличаться в последних знаках
+            boolean present;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT EXISTS (SELECT 1 FROM logs WHERE time BETWEEN ? AND ? AND ip = ? AND url = ?)")) {
+                ps.setTimestamp(1, Timestamp.valueOf(lastTime.minusNanos(1_000_000)));
+                ps.setTimestamp(2, Timestamp.valueOf(lastTime.plusNanos(1_000_000)));
+                ps.setString(3, last.group(3));
+                ps.setString(4, last.group(8));
+                try (ResultSet rs = ps.executeQuery()) {
+                    present = rs.next() && rs.getBoolean(1);
+                }
+            }
+
+            if (!present) {
+                System.out.println("Дозагрузка не включается: последней строки файла (" + lastTime + ", " +
+                        last.group(3) + ") нет в БД - в logs другой файл или не весь этот, нужна полная загрузка");
+                return;
+            }
+
+            ingestCheckpointService.save(conn, plan.filePath, filePath, plan.endOffset);
+            System.out.printf("Контрольная точка поставлена по загруженным данным: %,d байт%n", plan.endOffset);
+        } catch (Exception e) {
+            System.err.println("Ошибка постановки контрольной точки: " + e.getMessage());
+        }
+    }
+
+    // Последняя строка перед границей endOffset, которая попадает в logs (просмотр до 64 КБ с конца)
+    private java.util.regex.Matcher lastLoadedLine(String filePath, long endOffset) throws IOException {
+        int length = (int) Math.min(64 * 1024, endOffset);
+        byte[] tail = new byte[length];
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(tail);
+            long position = endOffset - length;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    return null;
+                }
+            }
+        }
+
+        int lineEnd = length;
+        while (lineEnd > 0) {
+            if (tail[lineEnd - 1] == '\n') {
+                lineEnd--;
+            }
+            int lineStart = lineEnd;
+            while (lineStart > 0 && tail[lineStart - 1] != '\n') {
+                lineStart--;
+            }
+            // Первая строка окна может быть обрезана - разбирается, только если окно начинается с начала файла
+            if (lineStart == 0 && endOffset > length) {
+                return null;
+            }
+            String line = new String(tail, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+            // Строки, которые разбор пропускает (например, без пользователя), в logs не попадают
+            if (parseLineToCSV(line) != null) {
+                java.util.regex.Matcher m = LOG_PATTERN.matcher(line);
+                if (m.find()) {
+                    return m;
+                }
+            }
+            lineEnd = lineStart;
+        }
+        return null;
+    }
+
     private String parseLineToCSV(String line) {
         try {
             java.util.regex.Matcher m = LOG_PATTERN.matcher(line);
@@ -0,0 +1,577 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import com.work.LogParser.model.LogRecord;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Режим слежения за растущим access.log (как tail -F): новые полные строки разбираются по мере
+ * появления и пишутся прямо в logs микропорциями - по времени или по объему. Строки порции,
+ * контрольная точка и приращение дефолтной статистики фиксируются одной транзакцией.
+ * Индексы не пересоздаются; уникальные IP и топы пересчитываются полностью с редкой периодичностью.
+ * Ротация (по пути появился другой файл) и усечение (copytruncate) отслеживаются: старый файл
+ * дочитывается до конца, затем чтение продолжается с начала нового.
+ */
+@Service
+public class LogFollowService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    @Autowired
+    private LogFileParser logFileParser;
+
+    @Autowired
+    private LogParsingService logParsingService;
+
+    @Autowired
+    private IngestCheckpointService ingestCheckpointService;
+
+    @Autowired
+    private AggregatedStatsService aggregatedStatsService;
+
+    @Autowired
+    private PrecalculatedTopService precalculatedTopService;
+
+    @Autowired
+    private FilterCacheService filterCacheService;
+
+    @Autowired
+    private DatabaseManager databaseManager;
+
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Autowired
+    private LogPartitionService partitionService;
+
+    @Autowired
+    private DistinctCountService distinctCountService;
+
+    @Autowired
+    private RollupService rollupService;
+
+    @Autowired
+    private ColumnarStoreService columnarStoreService;
+
+    // Пауза между проверками файла, когда новых строк нет
+    @Value("${logparser.follow.poll-interval-ms:500}")
+    private long pollIntervalMs;
+
+    // Порция отправляется, когда первой строке в ней столько миллисекунд или когда набран объем
+    @Value("${logparser.follow.batch-interval-ms:2000}")
+    private long batchIntervalMs;
+
+    @Value("${logparser.follow.batch-max-kb:1024}")
+    private int batchMaxKb;
+
+    // Полный пересчет неаддитивной статистики (уникальные IP, топы)
+    @Value("${logparser.follow.stats-refresh-interval-ms:300000}")
+    private long statsRefreshIntervalMs;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final long RETRY_DELAY_MS = 5000;
+
+    private volatile boolean running = false;
+    private Thread followThread;
+
+    // Состояние для /api/follow/status
+    private volatile String filePath;
+    private volatile long committedOffset;
+    private volatile long batches;
+    private volatile long totalRows;
+    private volatile long totalLines;
+    private volatile long rotations;
+    private volatile long lastBatchRows;
+    private volatile long lastBatchMs;
+    private volatile long lastBatchAt;
+    private volatile long startedAt;
+    private volatile long statsRefreshedAt;
+    private volatile String lastError;
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Запускает слежение. Позиция начала берется из контрольной точки файла; если ее нет,
+     * слежение начинается с текущего конца файла (историю загружает обычный парсинг).
+     */
+    public synchronized void start(String filePath) throws SQLException, IOException {
+        if (running) {
+            throw new IllegalStateException("Слежение уже запущено для " + this.filePath);
+        }
+        if (logParsingService.isParsing()) {
+            throw new IllegalStateException("Дождитесь завершения парсинга");
+        }
+        if (GzipDecompressStage.isGzip(filePath)) {
+            throw new IllegalStateException("Сжатый gzip файл не растет - загрузите его обычным парсингом");
+        }
+
+        long startOffset;
+        String checkpointKey;
+        try (Connection conn = connectionPools.ingest().getConnection()) {
+            if (!logsTableExists(conn)) {
+                throw new IllegalStateException("Таблица logs не найдена - сначала выполните загрузку файла");
+            }
+
+            IngestCheckpointService.IngestPlan plan = ingestCheckpointService.plan(conn, filePath);
+            checkpointKey = plan.filePath;
+            if (plan.mode != IngestCheckpointService.Mode.FULL) {
+                startOffset = plan.startOffset;
+            } else if (plan.hasCheckpoint) {
+                startOffset = 0; // ротация или усечение с прошлой загрузки - это уже новый файл
+            } else {
+                startOffset = plan.endOffset;
+            }
+            System.out.printf("👁 Слежение за %s с позиции %,d (%s)%n", filePath, startOffset, plan.reason);
+        }
+
+        this.filePath = filePath;
+        this.committedOffset = startOffset;
+        this.batches = 0;
+        this.totalRows = 0;
+        this.totalLines = 0;
+        this.rotations = 0;
+        this.lastBatchRows = 0;
+        this.lastBatchMs = 0;
+        this.lastBatchAt = 0;
+        this.lastError = null;
+        this.startedAt = System.currentTimeMillis();
+        this.statsRefreshedAt = startedAt;
+        this.running = true;
+
+        followThread = new Thread(() -> follow(filePath, checkpointKey, startOffset), "log-follow");
+        followThread.setDaemon(true);
+        followThread.start();
+    }
+
+    // Останавливает слежение; накопленная порция отправляется перед выходом
+    @PreDestroy
+    public synchronized boolean stop() {
+        if (!running) {
+            return false;
+        }
+        running = false;
+        try {
+            followThread.join(60000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("⏹ Слежение остановлено: " + filePath);
+        return true;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("running", running);
+        result.put("filePath", filePath);
+        result.put("offset", committedOffset);
+        result.put("batches", batches);
+        result.put("rows", totalRows);
+        result.put("lines", totalLines);
+        result.put("rotations", rotations);
+        result.put("lastBatchRows", lastBatchRows);
+        result.put("lastBatchMs", lastBatchMs);
+        result.put("lastBatchAt", lastBatchAt);
+        result.put("statsRefreshedAt", statsRefreshedAt);
+        result.put("lastError", lastError);
+
+        long elapsed = System.currentTimeMillis() - startedAt;
+        result.put("rowsPerSecond", running && elapsed > 0 ? totalRows * 1000 / elapsed : 0);
+        return result;
+    }
+
+    private boolean logsTableExists(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                     "SELECT EXISTS (SELECT FROM information_schema.tables WHERE table_name = 'logs')")) {
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    private void follow(String filePath, String checkpointKey, long startOffset) {
+        FollowState state = new FollowState(filePath, checkpointKey, startOffset);
+        try {
+            state.prepareEncoder();
+            state.open();
+            while (running) {
+                try {
+                    boolean progressed = state.readAvailable();
+
+                    if (!progressed && state.isRotated()) {
+                        state.switchToNewFile();
+                        continue;
+                    }
+
+                    if (state.batchDue()) {
+                        state.flush(true);
+                    }
+                    state.refreshStatsIfDue(false);
+
+                    if (!progressed) {
+                        Thread.sleep(pollIntervalMs);
+                    }
+                } catch (SQLException e) {
+                    // Порция откатилась вместе с контрольной точкой - перечитываем с последней зафиксированной позиции
+                    lastError = e.getMessage();
+                    System.err.println("❌ Ошибка записи порции, повтор через " + RETRY_DELAY_MS + " мс: " + e.getMessage());
+                    state.rewind();
+                    Thread.sleep(RETRY_DELAY_MS);
+                }
+            }
+
+            state.flush(true);
+            state.refreshStatsIfDue(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            System.err.println("❌ Слежение остановлено из-за ошибки: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            running = false;
+            state.close();
+        }
+    }
+
+    // Состояние потока слежения: открытый файл, непрочитанный хвост строки и текущая порция
+    private class FollowState {
+        private final String filePath;
+        private final String checkpointKey;
+        private final Path path;
+
+        private FileChannel channel;
+        private Object fileIdentity;
+        private Connection conn;
+
+        // Позиция файла, соответствующая buffer[0]; в буфере лежит незавершенная строка длиной carry
+        private long position;
+        private byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private int carry;
+
+        private final SquidLineTokenizer tokenizer = logFileParser.newTokenizer();
+        private final boolean useRegex = logFileParser.isRegexTokenizer();
+        // Формат строк - как у существующей logs (обычный или словарный), задается в prepareEncoder
+        private boolean encoded;
+        private CopyRowEncoder rowEncoder;
+        private String copySql;
+        private final LogRecord record = new LogRecord();
+
+        private final ByteArrayBuilder rows = new ByteArrayBuilder(batchMaxKb * 1024 + 4096);
+        private IngestBatchStats stats = newBatchStats();
+        private long batchLines;
+        private long batchStartedAt;
+        private long batchEndOffset;
+
+        private final Set<String> knownStatuses = new HashSet<>();
+        private final Set<String> knownActions = new HashSet<>();
+        private long rowsSinceRefresh;
+        private boolean defaultStatsMissing;
+
+        FollowState(String filePath, String checkpointKey, long startOffset) {
+            this.filePath = filePath;
+            this.checkpointKey = checkpointKey;
+            this.path = Paths.get(filePath);
+            this.position = startOffset;
+            this.batchEndOffset = startOffset;
+        }
+
+        void prepareEncoder() throws SQLException {
+            encoded = dictionaryService.isEncoded(connection(), "logs");
+            if (encoded) {
+                dictionaryService.ensureLoaded();
+            }
+            rowEncoder = logFileParser.newRowEncoder(logFileParser.isBinaryCopy(), encoded);
+            copySql = logFileParser.copySql("logs", encoded);
+        }
+
+        void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            fileIdentity = identity(path);
+        }
+
+        // Читает доступные байты и разбирает полные строки; true - что-то прочитано
+        boolean readAvailable() throws IOException, SQLException {
+            if (channel.size() < position + carry) {
+                System.out.printf("✂ Файл %s усечен (%,d < %,d байт) - чтение с начала%n",
+                        filePath, channel.size(), position + carry);
+                flush(true);
+                position = 0;
+                carry = 0;
+                batchEndOffset = 0;
+                rotations++;
+            }
+
+            if (carry == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2); // строка длиннее буфера
+            }
+
+            int read = channel.read(ByteBuffer.wrap(buffer, carry, buffer.length - carry), position + carry);
+            if (read <= 0) {
+                return false;
+            }
+            consumeLines(carry + read);
+            return true;
+        }
+
+        // Разбирает полные строки buffer[0, end), незавершенный хвост переносит в начало буфера
+        private void consumeLines(int end) throws SQLException {
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                byte b = buffer[i];
+                if (b != '\n' && b != '\r') {
+                    continue;
+                }
+                if (i > lineStart) {
+                    encodeLine(lineStart, i);
+                }
+                lineStart = i + 1;
+                batchEndOffset = position + lineStart;
+
+                if (rows.size() >= batchMaxKb * 1024L) {
+                    flush(true);
+                }
+            }
+
+            carry = end - lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, carry);
+            position += lineStart;
+        }
+
+        private void encodeLine(int start, int end) {
+            batchLines++;
+            boolean parsed = useRegex
+                    ? tokenizer.parseWithPattern(new String(buffer, start, end - start, StandardCharsets.UTF_8), record)
+                    : tokenizer.tokenize(buffer, start, end, record);
+            if (!parsed) {
+                return;
+            }
+            if (stats.isEmpty()) {
+                rowEncoder.writeHeader(rows);
+                batchStartedAt = System.currentTimeMillis();
+            }
+            rowEncoder.encode(record, rows);
+            stats.add(record);
+        }
+
+        boolean batchDue() {
+            return !stats.isEmpty() && System.currentTimeMillis() - batchStartedAt >= batchIntervalMs;
+        }
+
+        /**
+         * Отправляет порцию одной транзакцией: COPY в logs, контрольная точка, приращение статистики.
+         * Затем регистрирует новые статусы/action и сбрасывает только затронутые записи кэша.
+         */
+        void flush(boolean saveCheckpoint) throws SQLException {
+            if (stats.isEmpty()) {
+                totalLines += batchLines;
+                batchLines = 0;
+                return;
+            }
+
+            long flushStart = System.currentTimeMillis();
+            rowEncoder.writeTrailer(rows);
+
+            partitionService.ensureCurrentPartitions();
+            Connection db = connection();
+            db.setAutoCommit(false);
+            CopyIn copyIn = null;
+            long inserted;
+            boolean statsApplied;
+            try {
+                copyIn = new CopyManager(db.unwrap(BaseConnection.class)).copyIn(copySql);
+                copyIn.writeToCopy(rows.array(), 0, rows.size());
+                inserted = copyIn.endCopy();
+
+                // Справочник фиксируется отдельно и раньше строк, ссылающихся на новые id
+                if (encoded) {
+                    dictionaryService.persistNew();
+                }
+                if (saveCheckpoint) {
+                    ingestCheckpointService.save(db, checkpointKey, filePath, batchEndOffset);
+                }
+                statsApplied = aggregatedStatsService.applyBatchToDefaultStats(db, stats);
+                distinctCountService.mergeBuckets(db, stats.getDistinct());
+                rollupService.mergeCube(db, stats.getRollup());
+                db.commit();
+            } catch (Exception e) {
+                if (copyIn != null && copyIn.isActive()) {
+                    try {
+                        copyIn.cancelCopy();
+                    } catch (SQLException ignored) {
+                    }
+                }
+                closeConnection();
+                throw e instanceof SQLException ? (SQLException) e : new SQLException(e.getMessage(), e);
+            } finally {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
+                }
+            }
+
+            columnarStoreService.append(stats.getColumnar());
+            registerStatusesAndActions(db);
+            int evicted = filterCacheService.invalidateForBatch(stats);
+
+            if (saveCheckpoint) {
+                committedOffset = batchEndOffset;
+            }
+            batches++;
+            totalRows += inserted;
+            totalLines += batchLines;
+            lastBatchRows = inserted;
+            lastBatchAt = System.currentTimeMillis();
+            lastBatchMs = lastBatchAt - flushStart;
+            lastError = null;
+            rowsSinceRefresh += inserted;
+            defaultStatsMissing |= !statsApplied;
+
+            System.out.printf("📥 Порция: %,d записей за %d мс, позиция %,d, сброшено записей кэша: %d%n",
+                    inserted, lastBatchMs, batchEndOffset, evicted);
+            resetBatch();
+        }
+
+        // Сводка порции со скетчами различных значений, кубом свертки и строками колоночного хранилища
+        private IngestBatchStats newBatchStats() {
+            return columnarStoreService.withColumnar(
+                    rollupService.withRollup(distinctCountService.withSketches(new IngestBatchStats())));
+        }
+
+        private void resetBatch() {
+            rows.reset();
+            stats = newBatchStats();
+            batchLines = 0;
+        }
+
+        // После отката порции: перечитать файл с последней зафиксированной позиции
+        void rewind() {
+            resetBatch();
+            position = committedOffset;
+            batchEndOffset = committedOffset;
+            carry = 0;
+        }
+
+        private void registerStatusesAndActions(Connection conn) {
+            for (String status : stats.getStatusCodes()) {
+                if (knownStatuses.add(status)) {
+                    databaseManager.saveStatusIfNotExists(conn, Integer.parseInt(status));
+                }
+            }
+            for (String action : stats.getActionValues()) {
+                if (knownActions.add(action)) {
+                    databaseManager.saveActionIfNotExists(conn, action);
+                }
+            }
+        }
+
+        // Уникальные IP и топы не складываются по порциям - пересчитываем их целиком, но редко
+        void refreshStatsIfDue(boolean force) {
+            if (rowsSinceRefresh == 0) {
+                return;
+            }
+            boolean due = defaultStatsMissing
+                    || System.currentTimeMillis() - statsRefreshedAt >= statsRefreshIntervalMs;
+            if (!force && !due) {
+                return;
+            }
+
+            System.out.printf("📊 Пересчет статистики и топов после %,d новых записей%n", rowsSinceRefresh);
+            aggregatedStatsService.calculateAndSaveDefaultStats();
+            precalculatedTopService.updatePrecalculatedTops();
+            filterCacheService.invalidateCacheAfterDataChange();
+            statsRefreshedAt = System.currentTimeMillis();
+            rowsSinceRefresh = 0;
+            defaultStatsMissing = false;
+        }
+
+        // По пути лежит другой файл (ротация переименованием)
+        boolean isRotated() throws IOException {
+            Object current = identity(path);
+            return current != null && !current.equals(fileIdentity);
+        }
+
+        // Дочитывает старый файл, отправляет его последнюю порцию и переходит к новому файлу с начала
+        void switchToNewFile() throws IOException, SQLException {
+            while (readAvailable()) {
+                // старый файл могли дописать между чтением и проверкой ротации
+            }
+            if (carry > 0) {
+                encodeLine(0, carry); // старый файл больше не растет - последняя строка без '\n' тоже полная
+                carry = 0;
+            }
+
+            // Контрольная точка ведет по пути, а по нему уже новый файл - для хвоста старого ее не сохраняем
+            flush(false);
+
+            channel.close();
+            open();
+            position = 0;
+            batchEndOffset = 0;
+            committedOffset = 0;
+            rotations++;
+            System.out.println("🔄 Ротация " + filePath + ": чтение нового файла с начала");
+        }
+
+        private Object identity(Path path) throws IOException {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                // fileKey (устройство и inode) есть не на всех платформах
+                return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+            } catch (NoSuchFileException e) {
+                return null; // старый файл переименован, новый еще не создан
+            }
+        }
+
+        private Connection connection() throws SQLException {
+            if (conn == null || conn.isClosed()) {
+                conn = connectionPools.ingest().getConnection();
+            }
+            return conn;
+        }
+
+        private void closeConnection() {
+            if (conn != null) {
+                try {
+                    conn.rollback();
+                    conn.close();
+                } catch (SQLException ignored) {
+                }
+                conn = null;
+            }
+        }
+
+        void close() {
+            closeConnection();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -16,6 +16,8 @@ public class LogParserUtils {
             "^(?:https?://)?([^/:]+)(?::\\d+)?(?:/.*)?$"
     );
 
+    private static final Pattern TIMESTAMP_PATTERN = Pattern.compile("\\d+(\\.\\d+)?");
+
     public boolean isValidUsername(String username) {
         if (username == null || username.isEmpty()) return false;
         if (username.toLowerCase().contains("user")) return true;
@@ -41,7 +43,7 @@ public class LogParserUtils {
 
     public LocalDateTime convertTimestamp(String rawTimestamp) {
         try {
-            if (rawTimestamp.matches("\\d+(\\.\\d+)?")) {
+            if (TIMESTAMP_PATTERN.matcher(rawTimestamp).matches()) {
                 double epochSeconds = Double.parseDouble(rawTimestamp);
                 long seconds = (long) epochSeconds;
                 long nanos = (long) ((epochSeconds - seconds) * 1_000_000_000);
@@ -1,6 +1,9 @@
 package com.work.LogParser.service;
 
+import com.work.LogParser.config.ConnectionPools;
 import com.work.LogParser.config.DatabaseConfig;
+import com.work.LogParser.model.FileProgress;
+import com.work.LogParser.model.IndexProgress;
 import com.work.LogParser.model.ParsingStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -9,6 +12,7 @@ import com.work.LogParser.repository.LogDataRepository;
 
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -20,6 +24,9 @@ import static com.work.LogParser.config.DatabaseConfig.*;
 
 @Service
 public class LogParsingService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
     @Autowired
     private LogFileParser logFileParser;
 
@@ -68,7 +75,22 @@ public class LogParsingService {
 
         parsingTask = executor.submit(() -> {
             try {
-                logFileParser.parseWithHybridCopy(filePath, currentStatus);
+                if (MultiFileScheduler.isMultiFileInput(filePath)) {
+                    // Каталог или маска: один файл грузится обычным путем, несколько - пакетом
+                    List<String> files = MultiFileScheduler.resolveFiles(filePath);
+                    System.out.println("Сервис: найдено файлов: " + files.size());
+                    if (files.size() == 1) {
+                        currentStatus.filePath = files.get(0);
+                        logFileParser.parseWithHybridCopy(files.get(0), currentStatus);
+                    } else if (files.isEmpty()) {
+                        currentStatus.isParsing = false;
+                        currentStatus.status = "❌ Файлы не найдены: " + filePath;
+                    } else {
+                        logFileParser.parseFilesWithHybridCopy(files, currentStatus);
+                    }
+                } else {
+                    logFileParser.parseWithHybridCopy(filePath, currentStatus);
+                }
             } catch (Exception e) {
                 System.err.println("Сервис: ошибка в потоке парсинга: " + e.getMessage());
                 e.printStackTrace();
@@ -80,6 +102,33 @@ public class LogParsingService {
         return true;
     }
 
+    // Перезагрузка одной секции logs (интервала, в который попадает day) в том же потоке и статусе, что и парсинг
+    public boolean startPartitionReload(String filePath, LocalDateTime day) {
+        if (currentStatus.isParsing) {
+            System.out.println("Сервис: парсинг уже выполняется, отказ");
+            return false;
+        }
+
+        currentStatus = new ParsingStatus();
+        currentStatus.isParsing = true;
+        currentStatus.status = "Начало перезагрузки секции";
+        currentStatus.filePath = filePath;
+        currentStatus.startTime = System.currentTimeMillis();
+        currentStatus.lastProgressUpdateTime = System.currentTimeMillis();
+
+        parsingTask = executor.submit(() -> {
+            try {
+                logFileParser.reloadPartition(filePath, day, currentStatus);
+            } catch (Exception e) {
+                System.err.println("Сервис: ошибка перезагрузки секции: " + e.getMessage());
+                currentStatus.isParsing = false;
+                currentStatus.status = "❌ Ошибка: " + e.getMessage();
+            }
+        });
+
+        return true;
+    }
+
     public Map<String, Object> getParsingStatus() {
         Map<String, Object> status = new HashMap<>();
 
@@ -151,6 +200,63 @@ public class LogParsingService {
 
                 // ===== ИНФОРМАЦИЯ О СКОРОСТИ =====
                 status.put("parsingSpeed", currentStatus.parsingSpeed);
+                status.put("bytesProcessed", currentStatus.bytesProcessed);
+                status.put("bytesTotal", currentStatus.bytesTotal);
+                status.put("bytesPerSecond", currentStatus.bytesPerSecond);
+
+                // ===== ОЖИДАНИЕ МЕЖДУ ПАРСЕРОМ И COPY =====
+                status.put("parserWaitMs", currentStatus.parserWaitMs);
+                status.put("copyWaitMs", currentStatus.copyWaitMs);
+            }
+
+            // ===== ПРОГРЕСС ПО ФАЙЛАМ (пакетная загрузка) =====
+            if (!currentStatus.files.isEmpty()) {
+                List<Map<String, Object>> files = new ArrayList<>();
+                int completed = 0;
+                for (FileProgress file : currentStatus.files) {
+                    Map<String, Object> item = new HashMap<>();
+                    item.put("path", file.filePath);
+                    item.put("sizeBytes", file.sizeBytes);
+                    item.put("state", file.state);
+                    item.put("processed", file.processedLines);
+                    item.put("processedBytes", file.processedBytes);
+                    item.put("records", file.records);
+                    item.put("progress", "done".equals(file.state) ? 100 :
+                            (int) Math.min(99, file.processedBytes * 100 / Math.max(1, file.loadEnd)));
+                    if (file.error != null) {
+                        item.put("error", file.error);
+                    }
+                    files.add(item);
+                    if ("done".equals(file.state)) {
+                        completed++;
+                    }
+                }
+                status.put("files", files);
+                status.put("filesTotal", files.size());
+                status.put("filesCompleted", completed);
+            }
+
+            // ===== ПРОГРЕСС ПО ИНДЕКСАМ =====
+            if (!currentStatus.indexes.isEmpty()) {
+                List<Map<String, Object>> indexes = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                for (IndexProgress index : currentStatus.indexes) {
+                    Map<String, Object> item = new HashMap<>();
+                    item.put("name", index.name);
+                    item.put("weight", index.weight);
+                    item.put("state", index.state);
+                    if (index.startTime > 0) {
+                        long end = index.finishTime > 0 ? index.finishTime : now;
+                        item.put("elapsedMs", end - index.startTime);
+                    }
+                    if (index.error != null) {
+                        item.put("error", index.error);
+                    }
+                    indexes.add(item);
+                }
+                status.put("indexes", indexes);
+                status.put("indexesCreated", currentStatus.indexesCreated);
+                status.put("totalIndexes", currentStatus.totalIndexes);
             }
 
         } catch (Exception e) {
@@ -188,14 +294,9 @@ public class LogParsingService {
         if (status.actualParsingTime > 0) {
             baseParsingTime = status.actualParsingTime;
         }
-        // Если парсинг в процессе - рассчитываем на основе скорости
-        else if (status.parsingSpeed > 0.001 && status.total > 0) {
-            double speed = status.parsingSpeed;
-            // Защита от слишком маленькой скорости
-            if (speed < 1) speed = 1000; // минимум 1000 строк/сек
-
-            long totalLines = Math.max(1, status.total);
-            baseParsingTime = (long) ((totalLines / speed) * 1000);
+        // Если парсинг в процессе - рассчитываем по скорости чтения байт (размер файла известен точно)
+        else if (status.bytesPerSecond > 0 && status.bytesTotal > 0) {
+            baseParsingTime = (long) (status.bytesTotal * 1000.0 / status.bytesPerSecond);
 
             // Ограничиваем разумными пределами (от 1 секунды до 24 часов)
             baseParsingTime = Math.max(1000, Math.min(baseParsingTime, 24 * 60 * 60 * 1000));
@@ -224,14 +325,10 @@ public class LogParsingService {
 
         // ЭТАП ПАРСИНГА
         if (!status.parsingCompleted) {
-            if (stage.contains("Подсчет строк") || stage.contains("📊 Подсчет")) {
-                // Этап подсчета строк - быстрая оценка
-                totalRemaining += 5000; // 5 секунд на подсчет
-            } else if (status.total > 0 && status.processed > 0 && status.parsingSpeed > 0.001) {
-                // Нормальный парсинг с прогрессом
-                long remainingLines = Math.max(0, status.total - status.processed);
-                double speed = Math.max(1, status.parsingSpeed);
-                long parsingRemainingMs = (long) ((remainingLines / speed) * 1000);
+            if (status.bytesTotal > 0 && status.bytesProcessed > 0 && status.bytesPerSecond > 0) {
+                // Нормальный парсинг с прогрессом: оставшиеся байты файла по текущей скорости чтения
+                long remainingBytes = Math.max(0, status.bytesTotal - status.bytesProcessed);
+                long parsingRemainingMs = (long) (remainingBytes * 1000.0 / status.bytesPerSecond);
                 totalRemaining += Math.max(1000, Math.min(parsingRemainingMs, 60 * 60 * 1000));
             } else {
                 // Нет данных о прогрессе - добавляем половину от базового времени
@@ -325,18 +422,11 @@ public class LogParsingService {
         long now = System.currentTimeMillis();
 
         try {
-            // ===== СПЕЦИАЛЬНАЯ ОБРАБОТКА ДЛЯ ПОДСЧЕТА СТРОК =====
-            if (stage.contains("Подсчет строк") || stage.contains("📊 Подсчет")) {
-                // Для подсчета строк - быстрая фиксированная оценка
-                remainingSeconds = 5; // максимум 5 секунд на подсчет
-                remainingText = "~5 сек";
-            }
             // ===== ЭТАП ПАРСИНГА =====
-            else if (stage.contains("Парсинг") || stage.contains("🚀 Парсинг")) {
-                if (status.parsingSpeed > 0.001 && status.total > 0 && status.processed > 0) {
-                    long remainingLines = Math.max(0, status.total - status.processed);
-                    double speed = Math.max(1, status.parsingSpeed); // минимум 1 стр/сек
-                    remainingSeconds = (long) (remainingLines / speed);
+            if (stage.contains("Парсинг") || stage.contains("🚀 Парсинг")) {
+                if (status.bytesPerSecond > 0 && status.bytesTotal > 0 && status.bytesProcessed > 0) {
+                    long remainingBytes = Math.max(0, status.bytesTotal - status.bytesProcessed);
+                    remainingSeconds = (long) (remainingBytes / status.bytesPerSecond);
 
                     // Ограничиваем разумными пределами
                     remainingSeconds = Math.max(1, Math.min(remainingSeconds, 3600)); // макс 1 час
@@ -440,6 +530,26 @@ public class LogParsingService {
                                                 String dateFrom, String dateTo,
                                                 String clientIp, String username,
                                                 String status, String search, String action) {
+        return getLogsWithStats(page, size, dateFrom, dateTo, clientIp, username, status, search, action,
+                null, null, null, null, false, false);
+    }
+
+    public Map<String, Object> getLogsWithStats(int page, int size,
+                                                String dateFrom, String dateTo,
+                                                String clientIp, String username,
+                                                String status, String search, String action,
+                                                String sort, String order, String cursor, String direction,
+                                                boolean exactCount, boolean wholeWord) {
+
+        // Кэш хранит первую страницу в порядке по умолчанию; остальные страницы выбираются по курсору
+        boolean firstPage = page <= 1 && (cursor == null || cursor.isEmpty())
+                && (sort == null || sort.isEmpty() || sort.equals("time"))
+                && (order == null || order.isEmpty() || order.equalsIgnoreCase("desc"))
+                && (search == null || search.isEmpty()) && !exactCount;
+        if (!firstPage) {
+            return logDataRepository.getLogsWithStats(page, size, dateFrom, dateTo,
+                    clientIp, username, status, search, action, sort, order, cursor, direction, exactCount, wholeWord);
+        }
 
         String cacheKey = filterCacheService.generateCacheKey(dateFrom, dateTo, clientIp,
                 username, status, action);
@@ -453,6 +563,11 @@ public class LogParsingService {
         }, dateFrom, dateTo, clientIp, username, status, action);
     }
 
+    public Map<String, Object> getQuickLogs(int page, int size, String sort, String order,
+                                            String cursor, String direction) {
+        return logDataRepository.getQuickLogs(page, size, sort, order, cursor, direction);
+    }
+
     public List<Map<String, Object>> getTopUrlsWithFilters(int limit,
                                                            String dateFrom, String dateTo,
                                                            String clientIp, String username,
@@ -517,6 +632,14 @@ public class LogParsingService {
         return logDataRepository.getLogCount();
     }
 
+    public LogCountService.Count getLogCount(boolean exact) {
+        return logDataRepository.getLogCount(exact);
+    }
+
+    public boolean isParsing() {
+        return currentStatus.isParsing;
+    }
+
     public boolean cancelParsing() {
         if (!currentStatus.isParsing) {
             System.out.println("Отмена: парсинг не выполняется");
@@ -540,10 +663,7 @@ public class LogParsingService {
 
         // 3. Прерываем активные соединения с БД
         new Thread(() -> {
-            try (Connection cancelConn = DriverManager.getConnection(
-                    DB_URL,
-                    DB_USERNAME,
-                    DB_PASSWORD)) {
+            try (Connection cancelConn = connectionPools.maintenance().getConnection()) {
 
                 // Находим и прерываем наш бэкенд процесс
                 String findPidSql = "SELECT pid FROM pg_stat_activity " +
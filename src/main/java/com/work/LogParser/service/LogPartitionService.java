@@ -0,0 +1,386 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import com.work.LogParser.model.ParsingStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.sql.*;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Секционирование logs по времени (RANGE по time: день, неделя или месяц).
+ * Полная загрузка по-прежнему идет через logs_unlogged, но вместо SET LOGGED и переименования всей таблицы
+ * каждая секция заполняется из нее отдельным соединением и подключается к новой logs, как только готова.
+ * Строки дозагрузки и слежения за пределами существующих секций попадают в секцию по умолчанию logs_default.
+ * Отдельный день (его секцию) можно перезагрузить из файла, не трогая остальные.
+ */
+@Service
+public class LogPartitionService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    // none - обычная таблица, day / week / month - интервал секции
+    @Value("${logparser.storage.partition-interval:none}")
+    private String partitionInterval;
+
+    // Сколько секций заполняется одновременно (отдельные соединения)
+    @Value("${logparser.storage.partition-workers:4}")
+    private int partitionWorkers;
+
+    static final String DEFAULT_PARTITION = "logs_default";
+    private static final String NEW_SUFFIX = "_new";
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter BOUND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Граница, до которой секции "на сегодня и завтра" уже проверены (для дозагрузки и слежения)
+    private volatile LocalDateTime checkedUntil;
+
+    // Одна секция: [start, end)
+    public static class Bucket {
+        public final LocalDateTime start;
+        public final LocalDateTime end;
+        public final String name;
+
+        Bucket(LocalDateTime start, LocalDateTime end) {
+            this.start = start;
+            this.end = end;
+            this.name = "logs_p" + start.format(NAME_FORMAT);
+        }
+
+        String bounds() {
+            return "FROM ('" + start.format(BOUND_FORMAT) + "') TO ('" + end.format(BOUND_FORMAT) + "')";
+        }
+
+        String condition() {
+            return "time >= '" + start.format(BOUND_FORMAT) + "' AND time < '" + end.format(BOUND_FORMAT) + "'";
+        }
+
+        // Границы в epoch секундах - для отбора строк при разборе (время в logs локальное)
+        public long startEpoch() {
+            return start.atZone(ZoneId.systemDefault()).toEpochSecond();
+        }
+
+        public long endEpoch() {
+            return end.atZone(ZoneId.systemDefault()).toEpochSecond();
+        }
+    }
+
+    public boolean isEnabled() {
+        return !"none".equalsIgnoreCase(partitionInterval);
+    }
+
+    // Интервал для новых секций; у уже секционированной logs при выключенной настройке - день
+    private String unit() {
+        String unit = partitionInterval.toLowerCase();
+        return unit.equals("week") || unit.equals("month") ? unit : "day";
+    }
+
+    public Bucket bucketOf(LocalDateTime time) {
+        LocalDateTime day = time.toLocalDate().atStartOfDay();
+        switch (unit()) {
+            case "week":
+                LocalDateTime monday = day.with(DayOfWeek.MONDAY);
+                return new Bucket(monday, monday.plusWeeks(1));
+            case "month":
+                LocalDateTime first = day.withDayOfMonth(1);
+                return new Bucket(first, first.plusMonths(1));
+            default:
+                return new Bucket(day, day.plusDays(1));
+        }
+    }
+
+    public boolean isPartitioned(Connection conn, String table) throws SQLException {
+        String sql = "SELECT EXISTS (SELECT FROM pg_partitioned_table pt " +
+                "JOIN pg_class c ON c.oid = pt.partrelid WHERE c.relname = ?)";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    // ===== ПОЛНАЯ ЗАГРУЗКА =====
+
+    /**
+     * Замена logs секционированной таблицей из logs_unlogged.
+     * Секции заполняются параллельно (BRIN индекс по time позволяет каждой читать только свои блоки),
+     * подключаются к logs_new по мере готовности, затем logs_new атомарно становится logs.
+     */
+    public void finalizePartitioned(Connection conn, ParsingStatus status, Consumer<Integer> progressCallback)
+            throws SQLException, InterruptedException {
+
+        boolean encoded = dictionaryService.isEncoded(conn, "logs_unlogged");
+        List<Bucket> buckets = new ArrayList<>();
+
+        try (Statement st = conn.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT DISTINCT date_trunc('day', time) FROM logs_unlogged ORDER BY 1")) {
+                while (rs.next()) {
+                    Bucket bucket = bucketOf(rs.getTimestamp(1).toLocalDateTime());
+                    if (buckets.isEmpty() || !buckets.get(buckets.size() - 1).start.equals(bucket.start)) {
+                        buckets.add(bucket);
+                    }
+                }
+            }
+            checkCancelled(status);
+
+            st.execute("CREATE INDEX IF NOT EXISTS logs_unlogged_time_brin ON logs_unlogged USING brin (time)");
+
+            st.execute("DROP TABLE IF EXISTS logs_new");
+            st.execute("CREATE TABLE logs_new (" + DatabaseManager.logColumnsSql(encoded) + ", PRIMARY KEY (id, time)) " +
+                    "PARTITION BY RANGE (time)");
+            st.execute("DROP TABLE IF EXISTS " + DEFAULT_PARTITION + NEW_SUFFIX);
+            st.execute("CREATE TABLE " + DEFAULT_PARTITION + NEW_SUFFIX + " PARTITION OF logs_new DEFAULT");
+        }
+        System.out.printf("Секционирование по интервалу '%s': %d секций, потоков: %d%n",
+                unit(), buckets.size(), Math.min(partitionWorkers, Math.max(1, buckets.size())));
+
+        fillPartitions(buckets, status, progressCallback);
+        checkCancelled(status);
+
+        boolean originalAutoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            // Нумерация id продолжается с конца загруженных строк
+            st.execute("SELECT setval(pg_get_serial_sequence('logs_new', 'id'), " +
+                    "(SELECT COALESCE(MAX(id), 0) + 1 FROM logs_unlogged), false)");
+
+            st.execute("DROP TABLE IF EXISTS logs_old");
+            if (tableExists(conn, "logs")) {
+                List<String> oldPartitions = partitionsOf(conn, "logs");
+                st.execute("ALTER TABLE logs RENAME TO logs_old");
+                for (String partition : oldPartitions) {
+                    st.execute("ALTER TABLE " + partition + " RENAME TO " + partition + "_old");
+                }
+            }
+
+            st.execute("ALTER TABLE logs_new RENAME TO logs");
+            for (Bucket bucket : buckets) {
+                st.execute("ALTER TABLE " + bucket.name + NEW_SUFFIX + " RENAME TO " + bucket.name);
+            }
+            st.execute("ALTER TABLE " + DEFAULT_PARTITION + NEW_SUFFIX + " RENAME TO " + DEFAULT_PARTITION);
+            st.execute("DROP TABLE logs_unlogged");
+
+            conn.commit();
+            checkedUntil = null;
+            System.out.println("Таблица logs заменена секционированной: " + buckets.size() + " секций");
+        } catch (Exception e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    private void fillPartitions(List<Bucket> buckets, ParsingStatus status, Consumer<Integer> progressCallback)
+            throws SQLException, InterruptedException {
+        if (buckets.isEmpty()) {
+            return;
+        }
+
+        int threads = Math.max(1, Math.min(partitionWorkers, buckets.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r);
+            t.setName("partition-" + t.getId());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger done = new AtomicInteger();
+        Object attachLock = new Object();
+
+        List<Future<Long>> futures = new ArrayList<>();
+        try {
+            for (Bucket bucket : buckets) {
+                futures.add(pool.submit(() -> {
+                    if (status != null && status.isCancelled) {
+                        return 0L;
+                    }
+                    long rows = fillPartition(bucket, attachLock);
+                    int progress = done.incrementAndGet() * 100 / buckets.size();
+                    if (progressCallback != null) {
+                        progressCallback.accept(progress);
+                    }
+                    return rows;
+                }));
+            }
+            pool.shutdown();
+
+            for (Future<Long> future : futures) {
+                while (true) {
+                    checkCancelled(status);
+                    try {
+                        future.get(500, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException ignored) {
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause.getMessage(), cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Секция заполняется как отдельная таблица: CHECK по диапазону избавляет ATTACH от проверочного прохода
+    private long fillPartition(Bucket bucket, Object attachLock) throws SQLException {
+        String table = bucket.name + NEW_SUFFIX;
+        long start = System.currentTimeMillis();
+
+        try (Connection conn = connectionPools.ingest().getConnection();
+             Statement st = conn.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS " + table);
+            st.execute("CREATE TABLE " + table + " (LIKE logs_new INCLUDING DEFAULTS)");
+            st.execute("ALTER TABLE " + table + " ADD CONSTRAINT " + table + "_range CHECK (" + bucket.condition() + ")");
+            long rows = st.executeUpdate("INSERT INTO " + table + " SELECT * FROM logs_unlogged WHERE " + bucket.condition());
+            st.execute("ALTER TABLE " + table + " ADD PRIMARY KEY (id, time)");
+
+            synchronized (attachLock) {
+                st.execute("ALTER TABLE logs_new ATTACH PARTITION " + table + " FOR VALUES " + bucket.bounds());
+            }
+            System.out.printf("Секция %s: %,d строк за %.1f сек%n", bucket.name, rows,
+                    (System.currentTimeMillis() - start) / 1000.0);
+            return rows;
+        }
+    }
+
+    // ===== ДОЗАГРУЗКА И СЛЕЖЕНИЕ =====
+
+    /**
+     * Секции текущего и следующего интервала, чтобы новые строки не копились в logs_default.
+     * Проверка идет собственным соединением и не чаще одного раза за интервал.
+     */
+    public void ensureCurrentPartitions() {
+        LocalDateTime now = LocalDateTime.now();
+        if (checkedUntil != null && now.isBefore(checkedUntil)) {
+            return;
+        }
+
+        try (Connection conn = connectionPools.ingest().getConnection()) {
+            Bucket current = bucketOf(now);
+            if (isPartitioned(conn, "logs")) {
+                for (Bucket bucket : new Bucket[]{current, bucketOf(current.end)}) {
+                    if (tableExists(conn, bucket.name)) {
+                        continue;
+                    }
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("CREATE TABLE " + bucket.name + " PARTITION OF logs FOR VALUES " + bucket.bounds());
+                        System.out.println("Создана секция " + bucket.name);
+                    } catch (SQLException e) {
+                        // В logs_default уже есть строки этого интервала - они останутся там до перезагрузки дня
+                        System.err.println("⚠ Секция " + bucket.name + " не создана: " + e.getMessage());
+                    }
+                }
+            }
+            checkedUntil = current.end;
+        } catch (SQLException e) {
+            System.err.println("Не удалось проверить секции logs: " + e.getMessage());
+        }
+    }
+
+    // ===== ПЕРЕЗАГРУЗКА ОДНОЙ СЕКЦИИ =====
+
+    // Пустая таблица для новой версии секции, в нее идет COPY строк нужного интервала
+    public String createReplacement(Connection conn, Bucket bucket) throws SQLException {
+        String table = bucket.name + NEW_SUFFIX;
+        try (Statement st = conn.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS " + table);
+            st.execute("CREATE TABLE " + table + " (LIKE logs INCLUDING DEFAULTS)");
+            st.execute("ALTER TABLE " + table + " ADD CONSTRAINT " + table + "_range CHECK (" + bucket.condition() + ")");
+        }
+        return table;
+    }
+
+    /**
+     * Подмена секции одной транзакцией: старая секция отключается и удаляется, строки интервала
+     * из logs_default удаляются, новая секция подключается под прежним именем. Остальные секции не затрагиваются.
+     */
+    public void swapPartition(Connection conn, Bucket bucket) throws SQLException {
+        String table = bucket.name + NEW_SUFFIX;
+        try (Statement st = conn.createStatement()) {
+            st.execute("ALTER TABLE " + table + " ADD PRIMARY KEY (id, time)");
+        }
+
+        boolean originalAutoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            if (partitionsOf(conn, "logs").contains(bucket.name)) {
+                st.execute("ALTER TABLE logs DETACH PARTITION " + bucket.name);
+                st.execute("DROP TABLE " + bucket.name);
+            }
+            if (tableExists(conn, DEFAULT_PARTITION)) {
+                int moved = st.executeUpdate("DELETE FROM " + DEFAULT_PARTITION + " WHERE " + bucket.condition());
+                if (moved > 0) {
+                    System.out.printf("Из %s удалено %,d строк интервала %s%n", DEFAULT_PARTITION, moved, bucket.name);
+                }
+            }
+            st.execute("ALTER TABLE logs ATTACH PARTITION " + table + " FOR VALUES " + bucket.bounds());
+            st.execute("ALTER TABLE " + table + " RENAME TO " + bucket.name);
+            conn.commit();
+            System.out.println("Секция " + bucket.name + " заменена");
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    public void dropReplacement(Connection conn, Bucket bucket) {
+        try (Statement st = conn.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS " + bucket.name + NEW_SUFFIX);
+        } catch (SQLException e) {
+            System.err.println("Не удалось удалить " + bucket.name + NEW_SUFFIX + ": " + e.getMessage());
+        }
+    }
+
+    // ===== ВСПОМОГАТЕЛЬНЫЕ =====
+
+    private List<String> partitionsOf(Connection conn, String parent) throws SQLException {
+        String sql = "SELECT c.relname FROM pg_inherits i " +
+                "JOIN pg_class c ON c.oid = i.inhrelid " +
+                "JOIN pg_class p ON p.oid = i.inhparent " +
+                "WHERE p.relname = ?";
+        List<String> partitions = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, parent);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    partitions.add(rs.getString(1));
+                }
+            }
+        }
+        return partitions;
+    }
+
+    private boolean tableExists(Connection conn, String table) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT EXISTS (SELECT FROM information_schema.tables WHERE table_name = ?)")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    private void checkCancelled(ParsingStatus status) throws InterruptedException {
+        if (status != null && status.isCancelled) {
+            throw new InterruptedException("Отменено пользователем");
+        }
+    }
+}
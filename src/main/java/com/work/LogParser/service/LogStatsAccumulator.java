@@ -0,0 +1,204 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Аддитивные показатели дефолтной статистики по разобранным строкам: число запросов и ошибок,
+ * время ответа, трафик, группы статусов, распределение по часам и границы времени; по запросу -
+ * HyperLogLog различных IP и пользователей по часам (enableDistinctSketches) и куб свертки
+ * для фильтрованной статистики (enableRollup), строки колоночного хранилища (enableColumnar).
+ * Накопители разных потоков сливаются через merge. Не потокобезопасен.
+ */
+public class LogStatsAccumulator {
+
+    static final int SECONDS_PER_DAY = 86400;
+
+    // Группы как в AggregatedStatsService.getStatusDistribution
+    static final String[] STATUS_GROUPS = {
+            "2xx (Успех)", "3xx (Перенаправление)", "4xx (Ошибка клиента)", "5xx (Ошибка сервера)", "Другие"
+    };
+
+    private final EpochTimestampConverter timestampConverter = new EpochTimestampConverter();
+
+    private long requests;
+    private long errors;
+    private long responseTimeSum;
+    private long responseTimeSamples;
+    private long trafficBytes;
+    private final long[] statusGroups = new long[STATUS_GROUPS.length];
+    private final long[] hourly = new long[24];
+    private long minLocalSeconds = Long.MAX_VALUE;
+    private long maxLocalSeconds = Long.MIN_VALUE;
+    private int minNanos;
+    private int maxNanos;
+    private DistinctSketchBuckets distinct;
+    private RollupCube rollup;
+    private ColumnarStore.Appender columnar;
+
+    // Включает часовые скетчи различных IP и пользователей (до первой строки)
+    public void enableDistinctSketches(int precision) {
+        distinct = new DistinctSketchBuckets(precision);
+    }
+
+    // null - скетчи не включены
+    public DistinctSketchBuckets getDistinct() {
+        return distinct;
+    }
+
+    // Включает куб свертки с интервалом bucketMinutes (до первой строки)
+    public void enableRollup(int bucketMinutes) {
+        rollup = new RollupCube(bucketMinutes);
+    }
+
+    // null - куб не включен
+    public RollupCube getRollup() {
+        return rollup;
+    }
+
+    // Строки пишутся в колоночное хранилище store (до первой строки)
+    public void enableColumnar(ColumnarStore store) {
+        columnar = store.newAppender();
+    }
+
+    // null - колоночное хранилище не включено
+    public ColumnarStore.Appender getColumnar() {
+        return columnar;
+    }
+
+    public void add(LogRecord rec) {
+        add(rec, timestampConverter.toLocalSeconds(rec.epochSeconds));
+    }
+
+    // localSeconds - время строки в локальной зоне (как оно попадает в колонку time)
+    protected void add(LogRecord rec, long localSeconds) {
+        requests++;
+        if (rec.statusCode >= 400) {
+            errors++;
+        }
+        statusGroups[statusGroup(rec.statusCode)]++;
+        if (rec.responseTimeMs > 0) {
+            responseTimeSum += rec.responseTimeMs;
+            responseTimeSamples++;
+        }
+        trafficBytes += rec.responseSizeBytes;
+
+        hourly[Math.floorMod(localSeconds, SECONDS_PER_DAY) / 3600]++;
+        updateBounds(localSeconds, rec.nanos, localSeconds, rec.nanos);
+        if (distinct != null) {
+            distinct.add(rec, localSeconds);
+        }
+        if (rollup != null) {
+            rollup.add(rec, localSeconds);
+        }
+        if (columnar != null) {
+            columnar.add(rec, localSeconds);
+        }
+    }
+
+    // Прибавляет показатели другого накопителя (например, другого потока парсинга)
+    public void merge(LogStatsAccumulator other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        requests += other.requests;
+        errors += other.errors;
+        responseTimeSum += other.responseTimeSum;
+        responseTimeSamples += other.responseTimeSamples;
+        trafficBytes += other.trafficBytes;
+        for (int i = 0; i < statusGroups.length; i++) {
+            statusGroups[i] += other.statusGroups[i];
+        }
+        for (int hour = 0; hour < hourly.length; hour++) {
+            hourly[hour] += other.hourly[hour];
+        }
+        updateBounds(other.minLocalSeconds, other.minNanos, other.maxLocalSeconds, other.maxNanos);
+        if (distinct != null && other.distinct != null) {
+            distinct.merge(other.distinct);
+        }
+        if (rollup != null && other.rollup != null) {
+            rollup.merge(other.rollup);
+        }
+        if (columnar != null && other.columnar != null) {
+            columnar.merge(other.columnar);
+        }
+    }
+
+    private void updateBounds(long fromSeconds, int fromNanos, long toSeconds, int toNanos) {
+        if (fromSeconds < minLocalSeconds || (fromSeconds == minLocalSeconds && fromNanos < minNanos)) {
+            minLocalSeconds = fromSeconds;
+            minNanos = fromNanos;
+        }
+        if (toSeconds > maxLocalSeconds || (toSeconds == maxLocalSeconds && toNanos > maxNanos)) {
+            maxLocalSeconds = toSeconds;
+            maxNanos = toNanos;
+        }
+    }
+
+    static int statusGroup(int statusCode) {
+        if (statusCode >= 200 && statusCode < 300) return 0;
+        if (statusCode >= 300 && statusCode < 400) return 1;
+        if (statusCode >= 400 && statusCode < 500) return 2;
+        if (statusCode >= 500) return 3;
+        return 4;
+    }
+
+    public boolean isEmpty() {
+        return requests == 0;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getResponseTimeSum() {
+        return responseTimeSum;
+    }
+
+    public long getResponseTimeSamples() {
+        return responseTimeSamples;
+    }
+
+    public long getTrafficBytes() {
+        return trafficBytes;
+    }
+
+    public long[] getHourly() {
+        return hourly;
+    }
+
+    // Ненулевые группы статусов
+    public Map<String, Long> getStatusGroups() {
+        Map<String, Long> groups = new LinkedHashMap<>();
+        for (int i = 0; i < STATUS_GROUPS.length; i++) {
+            if (statusGroups[i] > 0) {
+                groups.put(STATUS_GROUPS[i], statusGroups[i]);
+            }
+        }
+        return groups;
+    }
+
+    public LocalDateTime getMinTime() {
+        return isEmpty() ? null : LocalDateTime.ofEpochSecond(minLocalSeconds, minNanos, ZoneOffset.UTC);
+    }
+
+    public LocalDateTime getMaxTime() {
+        return isEmpty() ? null : LocalDateTime.ofEpochSecond(maxLocalSeconds, maxNanos, ZoneOffset.UTC);
+    }
+
+    long getMinLocalSeconds() {
+        return minLocalSeconds;
+    }
+
+    long getMaxLocalSeconds() {
+        return maxLocalSeconds;
+    }
+}
@@ -0,0 +1,266 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.FileProgress;
+import com.work.LogParser.model.ParsingStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Загрузка нескольких файлов (каталог или маска) в один набор данных. Каждый файл делится на
+ * диапазоны (по строкам или по gzip-членам), все диапазоны всех файлов выполняются общим пулом.
+ * Одновременно работает не больше db-slots COPY соединений и не больше cpu-slots занятых ядер
+ * (диапазон gzip занимает два: распаковка и разбор).
+ */
+@Service
+public class MultiFileScheduler {
+
+    @Autowired
+    private ParallelChunkLoader parallelChunkLoader;
+
+    // 0 - по числу ядер
+    @Value("${logparser.batch.cpu-slots:0}")
+    private int cpuSlots;
+
+    @Value("${logparser.batch.db-slots:4}")
+    private int dbSlots;
+
+    // Один диапазон одного файла
+    private static class Unit {
+        final int fileIndex;
+        final ParallelChunkLoader.FileChunk chunk;
+
+        Unit(int fileIndex, ParallelChunkLoader.FileChunk chunk) {
+            this.fileIndex = fileIndex;
+            this.chunk = chunk;
+        }
+    }
+
+    // Каталог или маска (*, ?, [], {}) вместо одного файла
+    public static boolean isMultiFileInput(String pathOrGlob) {
+        return hasGlob(pathOrGlob) || Files.isDirectory(Paths.get(pathOrGlob));
+    }
+
+    private static boolean hasGlob(String pathOrGlob) {
+        return pathOrGlob.matches(".*[*?\\[{].*");
+    }
+
+    /**
+     * Файлы каталога (без вложенных и скрытых) или файлы, подходящие под маску в имени.
+     * Маска действует только на последнюю часть пути: /var/log/squid/access.log*
+     */
+    public static List<String> resolveFiles(String pathOrGlob) throws IOException {
+        Path dir;
+        PathMatcher matcher;
+
+        if (hasGlob(pathOrGlob)) {
+            int separator = Math.max(pathOrGlob.lastIndexOf('/'), pathOrGlob.lastIndexOf('\\'));
+            dir = separator >= 0 ? Paths.get(pathOrGlob.substring(0, separator + 1)) : Paths.get(".");
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pathOrGlob.substring(separator + 1));
+        } else {
+            dir = Paths.get(pathOrGlob);
+            matcher = name -> true;
+        }
+
+        List<String> files = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(dir)) {
+            entries.filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().startsWith("."))
+                    .filter(p -> matcher.matches(p.getFileName()))
+                    .sorted()
+                    .forEach(p -> files.add(p.toString()));
+        }
+        return files;
+    }
+
+    /**
+     * Загружает все файлы в logs_unlogged. Возвращает количество записей, отправленных в COPY.
+     * Прогресс каждого файла пишется в его FileProgress, onProgress получает сумму строк и байт по всем файлам.
+     */
+    public long loadAll(List<FileProgress> files, String copySql,
+                        Supplier<LogFileParser.LineEncoder> encoderFactory,
+                        ParsingStatus status, ParallelChunkLoader.ProgressListener onProgress) throws Exception {
+
+        int cpu = cpuSlots > 0 ? cpuSlots : Runtime.getRuntime().availableProcessors();
+        int db = Math.max(1, dbSlots);
+
+        // Диапазоны всех файлов; крупные идут первыми, чтобы в конце не остался один длинный
+        List<Unit> units = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            FileProgress file = files.get(i);
+            List<ParallelChunkLoader.FileChunk> chunks = file.gzip
+                    ? parallelChunkLoader.splitByGzipMembers(file.filePath, cpu)
+                    : parallelChunkLoader.splitByLines(file.filePath,
+                    parallelChunkLoader.effectiveWorkers(file.loadEnd, cpu), file.loadEnd);
+            file.chunks = chunks.size();
+            if (chunks.isEmpty()) {
+                file.state = "done";
+            }
+            for (ParallelChunkLoader.FileChunk chunk : chunks) {
+                units.add(new Unit(i, chunk));
+            }
+        }
+        units.sort(Comparator.comparingLong((Unit u) -> u.chunk.length()).reversed());
+
+        int threads = Math.max(1, Math.min(Math.min(cpu, db), units.size()));
+        System.out.printf("Пакетная загрузка: %d файлов, %d диапазонов, %d потоков (ядер: %d, соединений: %d)%n",
+                files.size(), units.size(), threads, cpu, db);
+
+        Semaphore cpuPermits = new Semaphore(cpu);
+        AtomicLong[] fileLines = new AtomicLong[files.size()];
+        AtomicLong[] fileBytes = new AtomicLong[files.size()];
+        AtomicLong[] fileRecords = new AtomicLong[files.size()];
+        AtomicInteger[] unitsLeft = new AtomicInteger[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            fileLines[i] = new AtomicLong();
+            fileBytes[i] = new AtomicLong();
+            fileRecords[i] = new AtomicLong();
+            unitsLeft[i] = new AtomicInteger(files.get(i).chunks);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r);
+            t.setName("file-loader-" + t.getId());
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<Future<Long>> futures = new ArrayList<>();
+        try {
+            for (Unit unit : units) {
+                FileProgress file = files.get(unit.fileIndex);
+                int cpuCost = Math.min(cpu, file.gzip ? 2 : 1);
+                futures.add(pool.submit(() -> loadUnit(file, unit, copySql, encoderFactory, status, cpuPermits, cpuCost,
+                        fileLines[unit.fileIndex], fileBytes[unit.fileIndex], fileRecords[unit.fileIndex],
+                        unitsLeft[unit.fileIndex])));
+            }
+            pool.shutdown();
+
+            // Мониторим пул: прогресс по файлам и общий, отмена и ошибки
+            while (!pool.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+                publishProgress(files, fileLines, fileBytes, fileRecords, onProgress);
+
+                if (status.isCancelled) {
+                    System.out.println("🚫 Пакетная загрузка отменена, ожидаем остановки потоков");
+                    break;
+                }
+
+                int failed = firstFailed(futures);
+                if (failed >= 0) {
+                    pool.shutdownNow();
+                    futures.get(failed).get(); // пробрасывает исключение потока
+                }
+            }
+
+            long rows = 0;
+            for (Future<Long> future : futures) {
+                try {
+                    rows += future.get();
+                } catch (ExecutionException e) {
+                    if (!status.isCancelled) {
+                        throw e;
+                    }
+                }
+            }
+
+            publishProgress(files, fileLines, fileBytes, fileRecords, onProgress);
+            if (!status.isCancelled) {
+                System.out.printf("Пакетная загрузка завершена: %,d строк в БД из %d файлов%n", rows, files.size());
+            }
+
+            long totalRecords = 0;
+            for (AtomicLong records : fileRecords) {
+                totalRecords += records.get();
+            }
+            return totalRecords;
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    // Один диапазон: ядра берутся из общего лимита, соединение - поток пула (их не больше db-slots)
+    private long loadUnit(FileProgress file, Unit unit, String copySql,
+                          Supplier<LogFileParser.LineEncoder> encoderFactory, ParsingStatus status,
+                          Semaphore cpuPermits, int cpuCost,
+                          AtomicLong fileLines, AtomicLong fileBytes, AtomicLong fileRecords,
+                          AtomicInteger unitsLeft) throws Exception {
+        if (status.isCancelled) {
+            return 0;
+        }
+
+        cpuPermits.acquire(cpuCost);
+        try {
+            synchronized (file) {
+                if ("queued".equals(file.state)) {
+                    file.state = "loading";
+                    file.startTime = System.currentTimeMillis();
+                }
+            }
+
+            long rows = parallelChunkLoader.loadChunk(file.filePath, unit.chunk, file.gzip, copySql,
+                    encoderFactory.get(), status, fileLines, fileBytes, fileRecords);
+
+            if (unitsLeft.decrementAndGet() == 0 && !status.isCancelled) {
+                file.processedLines = fileLines.get();
+                file.processedBytes = fileBytes.get();
+                file.records = fileRecords.get();
+                file.finishTime = System.currentTimeMillis();
+                file.state = "done";
+                System.out.printf("✅ Файл загружен: %s (%,d записей, %.1f сек)%n", file.filePath, file.records,
+                        (file.finishTime - file.startTime) / 1000.0);
+            }
+            return rows;
+
+        } catch (Exception e) {
+            file.state = "failed";
+            file.error = e.getMessage();
+            throw e;
+        } finally {
+            cpuPermits.release(cpuCost);
+        }
+    }
+
+    private void publishProgress(List<FileProgress> files, AtomicLong[] fileLines, AtomicLong[] fileBytes,
+                                 AtomicLong[] fileRecords, ParallelChunkLoader.ProgressListener onProgress) {
+        long lines = 0;
+        long bytes = 0;
+        for (int i = 0; i < files.size(); i++) {
+            files.get(i).processedLines = fileLines[i].get();
+            files.get(i).processedBytes = fileBytes[i].get();
+            files.get(i).records = fileRecords[i].get();
+            lines += fileLines[i].get();
+            bytes += fileBytes[i].get();
+        }
+        onProgress.update(lines, bytes);
+    }
+
+    private int firstFailed(List<Future<Long>> futures) {
+        for (int i = 0; i < futures.size(); i++) {
+            Future<Long> future = futures.get(i);
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,381 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import com.work.LogParser.model.ParsingStatus;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Параллельная загрузка: файл делится на диапазоны байт по границам строк,
+// каждый диапазон парсится своим потоком и пишется в logs_unlogged через отдельное COPY соединение
+@Service
+public class ParallelChunkLoader {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    @Autowired
+    private DatabaseManager databaseManager;
+
+    private static final long MIN_CHUNK_SIZE = 16L * 1024 * 1024; // 16 MB - меньшие куски не окупают отдельное соединение
+    private static final int COPY_FLUSH_SIZE = 256 * 1024;        // 256 KB за один writeToCopy
+    private static final int PROGRESS_LINES = 5000;
+
+    // Прогресс загрузки: строки и байты, прочитанные с каналов файла (по всем потокам)
+    interface ProgressListener {
+        void update(long processedLines, long processedBytes);
+    }
+
+    // Диапазон байт файла [start, end), начинается с начала строки
+    static class FileChunk {
+        final int index;
+        final long start;
+        final long end;
+
+        FileChunk(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start;
+        }
+    }
+
+    // Сколько потоков реально имеет смысл запускать для файла такого размера
+    public int effectiveWorkers(long fileSize, int requestedWorkers) {
+        int workers = requestedWorkers > 0 ? requestedWorkers : Runtime.getRuntime().availableProcessors();
+        long byChunkSize = Math.max(1, fileSize / MIN_CHUNK_SIZE);
+        return (int) Math.max(1, Math.min(workers, byChunkSize));
+    }
+
+    // Делит первые endOffset байт файла на chunkCount диапазонов, сдвигая каждую границу до начала следующей строки
+    List<FileChunk> splitByLines(String filePath, int chunkCount, long endOffset) throws IOException {
+        List<FileChunk> chunks = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long fileSize = Math.min(channel.size(), endOffset);
+            long approxSize = fileSize / chunkCount;
+            ByteBuffer probe = ByteBuffer.allocate(64 * 1024);
+
+            long start = 0;
+            for (int i = 0; i < chunkCount && start < fileSize; i++) {
+                long end = (i == chunkCount - 1) ? fileSize : nextLineStart(channel, probe, start + approxSize, fileSize);
+                if (end > start) {
+                    chunks.add(new FileChunk(chunks.size(), start, end));
+                }
+                start = end;
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Делит gzip файл из нескольких склеенных членов на диапазоны по границам членов: от каждой
+     * точки деления ищется ближайший заголовок, который действительно начинает член. Каждый диапазон
+     * распаковывается независимо, поэтому граница принимается, только если предыдущий член заканчивается
+     * переводом строки: bgzip и блочные компрессоры режут члены по числу байт, и строка на стыке иначе
+     * разорвалась бы между потоками. Если граница не найдена (обычный gzip из одного члена), диапазон один.
+     */
+    List<FileChunk> splitByGzipMembers(String filePath, int chunkCount) throws IOException {
+        List<FileChunk> chunks = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long approxSize = fileSize / chunkCount;
+
+            long start = 0;
+            for (int i = 1; i < chunkCount && start < fileSize; i++) {
+                long candidate = nextMemberStart(channel, Math.max(start + 1, approxSize * i), fileSize);
+                // Начало члена, который заканчивается на candidate
+                long memberStart = candidate > 0
+                        ? GzipDecompressStage.previousMemberStart(channel, start, candidate) : -1;
+                while (candidate > 0 && !GzipDecompressStage.endsWithLineBreak(channel, memberStart, candidate)) {
+                    // Строка продолжается в следующем члене - граница уходит дальше, член остается в диапазоне
+                    memberStart = candidate;
+                    candidate = nextMemberStart(channel, candidate + 1, fileSize);
+                }
+                if (candidate <= 0) {
+                    break;
+                }
+                chunks.add(new FileChunk(chunks.size(), start, candidate));
+                start = candidate;
+            }
+            chunks.add(new FileChunk(chunks.size(), start, fileSize));
+        }
+
+        return chunks;
+    }
+
+    // Ближайшее к from настоящее начало gzip-члена или -1
+    private static long nextMemberStart(FileChannel channel, long from, long fileSize) throws IOException {
+        long candidate = GzipDecompressStage.findHeaderCandidate(channel, from, fileSize);
+        while (candidate > 0 && !GzipDecompressStage.isMemberStart(channel, candidate)) {
+            candidate = GzipDecompressStage.findHeaderCandidate(channel, candidate + 1, fileSize);
+        }
+        return candidate;
+    }
+
+    // Позиция сразу после ближайшего '\n' начиная с position (или конец файла)
+    private long nextLineStart(FileChannel channel, ByteBuffer probe, long position, long fileSize) throws IOException {
+        long pos = position;
+        while (pos < fileSize) {
+            probe.clear();
+            int read = channel.read(probe, pos);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return fileSize;
+    }
+
+    /**
+     * Загружает первые endOffset байт файла параллельно. Возвращает количество записей, отправленных в COPY.
+     * onProgress получает суммарное число обработанных строк и прочитанных байт по всем потокам.
+     */
+    public long load(String filePath, long endOffset, int workers, String copySql,
+                     Supplier<LogFileParser.LineEncoder> encoderFactory,
+                     ParsingStatus status, ProgressListener onProgress) throws Exception {
+        return load(filePath, splitByLines(filePath, workers, endOffset), false, copySql, encoderFactory, status, onProgress);
+    }
+
+    // Загрузка готовых диапазонов; gzip - каждый диапазон состоит из целых gzip-членов и распаковывается своей стадией
+    long load(String filePath, List<FileChunk> chunks, boolean gzip, String copySql,
+              Supplier<LogFileParser.LineEncoder> encoderFactory,
+              ParsingStatus status, ProgressListener onProgress) throws Exception {
+
+        System.out.printf("Параллельная загрузка: %d диапазонов, %d потоков%s%n",
+                chunks.size(), chunks.size(), gzip ? " (gzip)" : "");
+
+        AtomicLong processedLines = new AtomicLong();
+        AtomicLong processedBytes = new AtomicLong();
+        AtomicLong totalRecords = new AtomicLong();
+
+        ExecutorService pool = Executors.newFixedThreadPool(chunks.size(), r -> {
+            Thread t = new Thread(r);
+            t.setName("chunk-loader-" + t.getId());
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<Future<Long>> futures = new ArrayList<>();
+        try {
+            for (FileChunk chunk : chunks) {
+                futures.add(pool.submit(() ->
+                        loadChunk(filePath, chunk, gzip, copySql, encoderFactory.get(), status,
+                                processedLines, processedBytes, totalRecords)));
+            }
+            pool.shutdown();
+
+            // Мониторим потоки: сводим прогресс в ParsingStatus и следим за отменой/ошибками
+            while (!pool.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+                onProgress.update(processedLines.get(), processedBytes.get());
+
+                if (status.isCancelled) {
+                    System.out.println("🚫 Параллельная загрузка отменена, ожидаем остановки потоков");
+                    break;
+                }
+
+                Future<Long> failed = firstFailed(futures);
+                if (failed != null) {
+                    pool.shutdownNow();
+                    failed.get(); // пробрасывает исключение потока
+                }
+            }
+
+            long rows = 0;
+            for (Future<Long> future : futures) {
+                try {
+                    rows += future.get();
+                } catch (ExecutionException e) {
+                    if (!status.isCancelled) {
+                        throw e;
+                    }
+                }
+            }
+
+            onProgress.update(processedLines.get(), processedBytes.get());
+            if (!status.isCancelled) {
+                System.out.printf("Параллельный COPY завершен: %,d строк в БД (%,d записей отправлено)%n",
+                        rows, totalRecords.get());
+            }
+            return totalRecords.get();
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private Future<Long> firstFailed(List<Future<Long>> futures) {
+        for (Future<Long> future : futures) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    return future;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Парсинг одного диапазона в собственное COPY соединение
+    long loadChunk(String filePath, FileChunk chunk, boolean gzip, String copySql,
+                   LogFileParser.LineEncoder encoder, ParsingStatus status,
+                   AtomicLong processedLines, AtomicLong processedBytes, AtomicLong totalRecords) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+
+        try (Connection conn = connectionPools.ingest().getConnection();
+             FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+
+            conn.setNetworkTimeout(null, 60000);
+            databaseManager.prepareConnectionForCopy(conn);
+
+            channel.position(chunk.start);
+            InputStream input = new BoundedInputStream(Channels.newInputStream(channel), chunk.length(), processedBytes);
+            if (gzip) {
+                input = new GzipDecompressStage(input, "chunk-" + chunk.index);
+            }
+            ByteLineReader reader = new ByteLineReader(input, 4 * 1024 * 1024);
+
+            CopyManager copyManager = new CopyManager(conn.unwrap(BaseConnection.class));
+            CopyIn copyIn = copyManager.copyIn(copySql);
+
+            ByteArrayBuilder batch = new ByteArrayBuilder(COPY_FLUSH_SIZE + 4096);
+            long lines = 0;
+            long records = 0;
+            long reportedLines = 0;
+            encoder.begin(batch);
+
+            try {
+                while (reader.nextLine()) {
+                    lines++;
+
+                    if (status.isCancelled) {
+                        copyIn.cancelCopy();
+                        System.out.println("🚫 Диапазон " + chunk.index + " прерван на строке " + lines);
+                        return 0;
+                    }
+
+                    if (encoder.encode(reader.buffer(), reader.lineStart(), reader.lineEnd(), batch)) {
+                        records++;
+
+                        if (batch.size() >= COPY_FLUSH_SIZE) {
+                            copyIn.writeToCopy(batch.array(), 0, batch.size());
+                            batch.reset();
+                        }
+                    }
+
+                    if (lines % PROGRESS_LINES == 0) {
+                        processedLines.addAndGet(lines - reportedLines);
+                        reportedLines = lines;
+                    }
+                }
+
+                encoder.finish(batch);
+                if (batch.size() > 0) {
+                    copyIn.writeToCopy(batch.array(), 0, batch.size());
+                }
+                long rows = copyIn.endCopy();
+
+                processedLines.addAndGet(lines - reportedLines);
+                totalRecords.addAndGet(records);
+
+                System.out.printf("Диапазон %d (%,d байт) загружен за %.1f сек: %,d строк, %,d записей%n",
+                        chunk.index, chunk.length(), (System.currentTimeMillis() - startTime) / 1000.0,
+                        lines, rows);
+                return rows;
+
+            } catch (Exception e) {
+                if (copyIn.isActive()) {
+                    try {
+                        copyIn.cancelCopy();
+                    } catch (SQLException ignored) {
+                    }
+                }
+                throw e;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    // InputStream, отдающий не больше limit байт из исходного потока;
+    // прочитанные байты прибавляются к общему счетчику прогресса, если он задан
+    static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+        private final AtomicLong consumed;
+
+        BoundedInputStream(InputStream in, long limit) {
+            this(in, limit, null);
+        }
+
+        BoundedInputStream(InputStream in, long limit, AtomicLong consumed) {
+            super(in);
+            this.remaining = limit;
+            this.consumed = consumed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b >= 0) advance(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) advance(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            advance(skipped);
+            return skipped;
+        }
+
+        private void advance(long n) {
+            remaining -= n;
+            if (consumed != null) {
+                consumed.addAndGet(n);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
@@ -1,21 +1,33 @@
 package com.work.LogParser.service;
 
+import com.work.LogParser.config.ConnectionPools;
 import com.work.LogParser.config.DatabaseConfig;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.*;
 
-import static com.work.LogParser.config.DatabaseConfig.*;
-
 @Service
 public class PrecalculatedTopService {
 
+    @Autowired
+    private ConnectionPools connectionPools;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    // Топы по скетчам загрузки: точный пересчет по множеству кандидатов вместо оценок скетча.
+    // Индекса по url нет, поэтому пересчет - полный проход по logs; по умолчанию выключен
+    @Value("${logparser.tops.exact-recount:false}")
+    private boolean exactRecount;
+
     // Получает прерассчитанные топ URL
     public List<Map<String, Object>> getPrecalculatedTopUrls(int limit) {
         return getPrecalculatedTops("urls", limit);
@@ -28,8 +40,7 @@ public class PrecalculatedTopService {
 
     // Общая логика получения прерассчитанных топов
     private List<Map<String, Object>> getPrecalculatedTops(String type, int limit) {
-        try (Connection conn = DriverManager.getConnection(
-                DB_URL, DB_USERNAME, DB_PASSWORD)) {
+        try (Connection conn = connectionPools.interactive().getConnection()) {
 
             ensurePrecalculatedTopsTableExists(conn);
 
@@ -74,8 +85,7 @@ public class PrecalculatedTopService {
     public void updatePrecalculatedTops() {
         System.out.println("🔄 Обновление прерассчитанных топов...");
 
-        try (Connection conn = DriverManager.getConnection(
-                DB_URL, DB_USERNAME, DB_PASSWORD)) {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
 
             ensurePrecalculatedTopsTableExists(conn);
             clearOldPrecalculatedTops(conn);
@@ -98,31 +108,136 @@ public class PrecalculatedTopService {
         }
     }
 
+    /**
+     * Обновляет топы по скетчам частых значений, собранным при парсинге, без GROUP BY по всей logs.
+     * С точным пересчетом считаются только кандидаты, которые могут входить в топ (url = ANY / username = ANY);
+     * без него сохраняются оценки скетча с погрешностью count_error.
+     */
+    public void updatePrecalculatedTops(LoadStatsAccumulator collected) {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+
+            ensurePrecalculatedTopsTableExists(conn);
+            clearOldPrecalculatedTops(conn);
+
+            HeavyHitterSketch urls = collected.getUrlSketch();
+            HeavyHitterSketch users = collected.getUserSketch();
+
+            List<Map<String, Object>> topUrls100;
+            List<Map<String, Object>> topUsers10;
+            if (exactRecount) {
+                List<String> urlCandidates = values(urls.candidatesFor(100));
+                List<String> userCandidates = values(users.candidatesFor(10));
+                System.out.printf("  Точный пересчет кандидатов: URL %d, пользователей %d%n",
+                        urlCandidates.size(), userCandidates.size());
+                topUrls100 = calculateTopUrls(conn, 100, urlCandidates);
+                topUsers10 = calculateTopUsers(conn, 10, userCandidates);
+            } else {
+                topUrls100 = sketchTopUrls(urls, 100);
+                topUsers10 = sketchTopUsers(users, 10);
+            }
+
+            savePrecalculatedTop(conn, "urls", 100, topUrls100);
+            savePrecalculatedTop(conn, "users", 10, topUsers10);
+            if (exactRecount) {
+                System.out.println("  ✅ Топы URL (лимит: 100) и пользователей (лимит: 10) сохранены по точному пересчету");
+            } else {
+                System.out.printf("  ✅ Топы URL (лимит: 100) и пользователей (лимит: 10) сохранены по оценкам скетча " +
+                        "(погрешность до %,d и %,d)%n", urls.errorBound(), users.errorBound());
+            }
+
+            System.out.println("✅ Все прерассчитанные топы обновлены");
+
+        } catch (Exception e) {
+            System.err.println("❌ Ошибка обновления прерассчитанных топов: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private List<String> values(List<HeavyHitterSketch.Candidate> candidates) {
+        List<String> values = new ArrayList<>();
+        for (HeavyHitterSketch.Candidate candidate : candidates) {
+            values.add(candidate.value);
+        }
+        return values;
+    }
+
+    // Оценки скетча: count - оценка сверху, count_min - нижняя граница, остальное - с момента входа в кандидаты
+    private List<Map<String, Object>> sketchTopUrls(HeavyHitterSketch sketch, int limit) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (HeavyHitterSketch.Candidate candidate : sketch.top(limit)) {
+            Map<String, Object> item = sketchItem(sketch, candidate);
+            item.put("url", candidate.value);
+            item.put("domain", candidate.extra);
+            item.put("last_access", candidate.getLastSeen());
+            result.add(item);
+        }
+        return result;
+    }
+
+    private List<Map<String, Object>> sketchTopUsers(HeavyHitterSketch sketch, int limit) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (HeavyHitterSketch.Candidate candidate : sketch.top(limit)) {
+            Map<String, Object> item = sketchItem(sketch, candidate);
+            item.put("username", candidate.value);
+            item.put("first_seen", candidate.getFirstSeen());
+            item.put("last_seen", candidate.getLastSeen());
+            result.add(item);
+        }
+        return result;
+    }
+
+    private Map<String, Object> sketchItem(HeavyHitterSketch sketch, HeavyHitterSketch.Candidate candidate) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("count", candidate.getEstimate());
+        item.put("count_min", candidate.getObserved());
+        item.put("count_error", sketch.errorBound());
+        item.put("approximate", true);
+        item.put("avg_response_time", candidate.getAvgResponseTime());
+        item.put("total_bytes", candidate.getBytes());
+        item.put("total_mb", Math.round(candidate.getBytes() / (1024.0 * 1024.0) * 100.0) / 100.0);
+        return item;
+    }
+
     // Рассчитывает топ URL
     private List<Map<String, Object>> calculateTopUrls(Connection conn, int limit) throws SQLException {
+        return calculateTopUrls(conn, limit, null);
+    }
+
+    // candidates - считать только эти URL (точный пересчет кандидатов скетча); null - все
+    private List<Map<String, Object>> calculateTopUrls(Connection conn, int limit, Collection<String> candidates)
+            throws SQLException {
+        if (candidates != null && candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+
         String sql = "SELECT " +
                 "url, " +
-                "domain, " +
+                dictionaryService.select("domain") + ", " +
                 "COUNT(*) as request_count, " +
                 "ROUND(AVG(response_time_ms)) as avg_response_time, " +
                 "SUM(response_size_bytes) as total_bytes, " +
                 "MAX(time) as last_access " +
                 "FROM logs " +
                 "WHERE url IS NOT NULL AND url != '-' " +
-                "GROUP BY url, domain " +
+                (candidates != null ? "AND url = ANY(?) " : "") +
+                "GROUP BY url, " + dictionaryService.column("domain") + " " +
                 "ORDER BY request_count DESC " +
                 "LIMIT ?";
 
         List<Map<String, Object>> result = new ArrayList<>();
 
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, limit);
+            int index = 1;
+            if (candidates != null) {
+                ps.setArray(index++, conn.createArrayOf("text", candidates.toArray()));
+            }
+            ps.setInt(index, limit);
 
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     Map<String, Object> item = new HashMap<>();
                     item.put("url", rs.getString("url"));
-                    item.put("domain", rs.getString("domain"));
+                    item.put("domain", dictionaryService.getString(rs, "domain"));
                     item.put("count", rs.getLong("request_count"));
                     item.put("avg_response_time", rs.getLong("avg_response_time"));
                     item.put("total_bytes", rs.getLong("total_bytes"));
@@ -146,9 +261,19 @@ public class PrecalculatedTopService {
 
     // Рассчитывает топ пользователей
     private List<Map<String, Object>> calculateTopUsers(Connection conn, int limit) throws SQLException {
+        return calculateTopUsers(conn, limit, null);
+    }
+
+    // candidates - считать только этих пользователей (точный пересчет кандидатов скетча); null - всех
+    private List<Map<String, Object>> calculateTopUsers(Connection conn, int limit, Collection<String> candidates)
+            throws SQLException {
+        if (candidates != null && candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+
         String sql = "SELECT " +
                 "min(ip) as ip," +
-                "username, " +
+                dictionaryService.select("username") + ", " +
                 "COUNT(*) as request_count, " +
                 "COUNT(DISTINCT ip) as unique_ips, " +
                 "ROUND(AVG(response_time_ms)) as avg_response_time, " +
@@ -156,20 +281,25 @@ public class PrecalculatedTopService {
                 "MIN(time) as first_seen, " +
                 "MAX(time) as last_seen " +
                 "FROM logs " +
-                "WHERE username IS NOT NULL AND username != '-' " +
-                "GROUP BY username " +
+                "WHERE " + dictionaryService.notDash("username") + " " +
+                (candidates != null ? "AND " + dictionaryService.column("username") + " = ANY(?) " : "") +
+                "GROUP BY " + dictionaryService.column("username") + " " +
                 "ORDER BY request_count DESC " +
                 "LIMIT ?";
 
         List<Map<String, Object>> result = new ArrayList<>();
 
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, limit);
+            int index = 1;
+            if (candidates != null) {
+                ps.setArray(index++, dictionaryService.anyArray(conn, "username", candidates));
+            }
+            ps.setInt(index, limit);
 
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     Map<String, Object> item = new HashMap<>();
-                    item.put("username", rs.getString("username"));
+                    item.put("username", dictionaryService.getString(rs, "username"));
                     item.put("ip", rs.getString("ip"));
                     item.put("first_seen", rs.getTimestamp("first_seen"));
                     item.put("last_seen", rs.getTimestamp("last_seen"));
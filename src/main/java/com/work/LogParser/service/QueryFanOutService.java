@@ -0,0 +1,235 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.core.BaseConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Параллельное выполнение независимых запросов одного ответа (страница, число строк, статистика, топы)
+ * на ограниченном пуле потоков: время ответа - самый медленный запрос, а не сумма. Каждая задача
+ * выполняется с областью соединений (ConnectionPools.ConnectionScope): все соединения interactive,
+ * которые она берет - сама (query) или внутри вызванных сервисов (submit), - получают statement_timeout
+ * по остатку ее таймаута и отменяются на сервере вместе с ней. Таймаут задачи отсчитывается от начала
+ * ее выполнения. Задачи, которые к ожиданию (await) еще не взял свободный поток, выполняет сам
+ * вызывающий поток - при занятом пуле запросы ответа идут последовательно, как без параллельного
+ * выполнения, и ожидание очереди не растет с нагрузкой. При ошибке одного запроса или истечении
+ * таймаута остальные отменяются.
+ */
+@Service
+public class QueryFanOutService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    // Потоков на все запросы панели; не больше размера пула соединений
+    @Value("${logparser.query.fanout-threads:4}")
+    private int fanOutThreads;
+
+    // Таймаут одного запроса набора от начала его выполнения (мс), он же statement_timeout его соединений
+    @Value("${logparser.query.timeout-ms:30000}")
+    private long timeoutMs;
+
+    private ExecutorService executor;
+
+    // Запрос на соединении из пула
+    @FunctionalInterface
+    public interface ConnectionQuery<T> {
+        T run(Connection conn) throws Exception;
+    }
+
+    // Задача набора; значение доступно после Batch.await()
+    public static final class Task<T> implements ConnectionPools.ConnectionScope {
+        private final String name;
+        private final List<Connection> connections = new ArrayList<>();
+        private FutureTask<T> future;
+        // Срок задачи (System.nanoTime()); 0 - задача еще ждет свободного потока
+        private volatile long deadline;
+        private boolean cancelled;
+
+        private Task(String name) {
+            this.name = name;
+        }
+
+        public T get() {
+            if (future == null || !future.isDone() || future.isCancelled()) {
+                throw new IllegalStateException("Запрос " + name + " не завершен");
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Запрос " + name + " не выполнен", e);
+            }
+        }
+
+        // Соединение задачи: таймаут по остатку ее срока, отмена вместе с задачей
+        @Override
+        public void opened(Connection conn) throws SQLException {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new SQLTimeoutException("Запрос " + name + " не выполнен за отведенное время");
+            }
+            try (Statement st = conn.createStatement()) {
+                st.execute("SET statement_timeout = " + remainingMs);
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    throw new SQLException("Запрос " + name + " отменен");
+                }
+                connections.add(conn);
+            }
+        }
+
+        @Override
+        public void closing(Connection conn) {
+            synchronized (this) {
+                connections.remove(conn);
+            }
+            try (Statement st = conn.createStatement()) {
+                st.execute("RESET statement_timeout");
+            } catch (SQLException e) {
+                // Соединение, скорее всего, разорвано - Hikari сам исключит его из пула
+                System.err.println("⚠️ Не удалось сбросить statement_timeout: " + e.getMessage());
+            }
+        }
+
+        // Отмена запросов на сервере; соединение отдается в пул только после closing, поэтому чужой запрос не отменится
+        private synchronized void cancelQuery() {
+            cancelled = true;
+            for (Connection connection : connections) {
+                try {
+                    connection.unwrap(BaseConnection.class).cancelQuery();
+                } catch (SQLException e) {
+                    System.err.println("⚠️ Не удалось отменить запрос " + name + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Набор запросов одного ответа
+    public final class Batch implements AutoCloseable {
+        private final List<Task<?>> tasks = new ArrayList<>();
+
+        // Задача с областью соединений: запросы сервисов к interactive идут с таймаутом и отменой задачи
+        public <T> Task<T> submit(String name, Callable<T> callable) {
+            Task<T> task = new Task<>(name);
+            task.future = new FutureTask<>(() -> {
+                task.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                ConnectionPools.bindScope(task);
+                try {
+                    return callable.call();
+                } finally {
+                    ConnectionPools.bindScope(null);
+                }
+            });
+            tasks.add(task);
+            executor().execute(task.future);
+            return task;
+        }
+
+        public <T> Task<T> query(String name, ConnectionQuery<T> query) {
+            return submit(name, () -> {
+                try (Connection conn = connectionPools.interactive().getConnection()) {
+                    return query.run(conn);
+                }
+            });
+        }
+
+        // Ждет все запросы; первая ошибка или истекший таймаут задачи отменяют остальные
+        public void await() throws SQLException {
+            // Задачи из очереди - в вызывающем потоке; FutureTask.run ничего не делает, если задачу уже взял пул
+            for (Task<?> task : tasks) {
+                if (task.deadline == 0) {
+                    task.future.run();
+                }
+            }
+
+            long queuedWait = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            for (Task<?> task : tasks) {
+                try {
+                    while (true) {
+                        long deadline = task.deadline;
+                        // Поток пула уже взял задачу, но еще не задал срок - раньше чем через таймаут он не истечет
+                        long wait = deadline == 0 ? queuedWait : deadline - System.nanoTime();
+                        try {
+                            task.future.get(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                            break;
+                        } catch (TimeoutException e) {
+                            if (deadline != 0) {
+                                throw e;
+                            }
+                        }
+                    }
+                } catch (TimeoutException e) {
+                    cancelAll();
+                    throw new SQLTimeoutException("Запрос " + task.name + " не выполнен за " + timeoutMs + " мс");
+                } catch (InterruptedException e) {
+                    cancelAll();
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Ожидание запроса " + task.name + " прервано", e);
+                } catch (ExecutionException e) {
+                    cancelAll();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    }
+                    throw new SQLException("Ошибка запроса " + task.name + ": " + cause.getMessage(), cause);
+                }
+            }
+        }
+
+        private void cancelAll() {
+            for (Task<?> task : tasks) {
+                if (!task.future.isDone()) {
+                    task.cancelQuery();
+                    task.future.cancel(true);
+                }
+            }
+        }
+
+        // Незавершенные запросы (например, при выходе до await) не должны занимать пул
+        @Override
+        public void close() {
+            cancelAll();
+        }
+    }
+
+    public Batch batch() {
+        return new Batch();
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Math.max(1, fanOutThreads), r -> {
+                Thread t = new Thread(r);
+                t.setName("query-fanout-" + t.getId());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
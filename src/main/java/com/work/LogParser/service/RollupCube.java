@@ -0,0 +1,186 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Свертка строк по ячейкам "интервал времени x status_code x action x пользователь": число запросов и ошибок,
+ * сумма и число времен ответа (> 0) и байты. Заполняется при разборе строк, сливается с кубами других потоков,
+ * сохраняется RollupService в log_rollup. Повтор пользователя или action - хэш-поиск по байтам без создания
+ * строки, повтор ячейки - поиск по переиспользуемому ключу. Не потокобезопасен.
+ */
+public class RollupCube {
+
+    private static final int VALUE_CACHE_SIZE = 65536;
+
+    // Ячейка куба; ключ - интервал (номер от эпохи локального времени), статус, action, пользователь
+    public static final class Key {
+        private long bucket;
+        private int statusCode;
+        private String action;
+        private String username;
+        private int hash;
+
+        private Key set(long bucket, int statusCode, String action, String username) {
+            this.bucket = bucket;
+            this.statusCode = statusCode;
+            this.action = action;
+            this.username = username;
+            this.hash = ((Long.hashCode(bucket) * 31 + statusCode) * 31 + action.hashCode()) * 31 + username.hashCode();
+            return this;
+        }
+
+        private Key copy() {
+            return new Key().set(bucket, statusCode, action, username);
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return bucket == other.bucket && statusCode == other.statusCode
+                    && action.equals(other.action) && username.equals(other.username);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public static final class Cell {
+        private long requests;
+        private long errors;
+        private long responseTimeSum;
+        private long responseTimeSamples;
+        private long bytes;
+
+        private void add(Cell other) {
+            requests += other.requests;
+            errors += other.errors;
+            responseTimeSum += other.responseTimeSum;
+            responseTimeSamples += other.responseTimeSamples;
+            bytes += other.bytes;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getResponseTimeSum() {
+            return responseTimeSum;
+        }
+
+        public long getResponseTimeSamples() {
+            return responseTimeSamples;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private final int bucketMinutes;
+    private final long bucketSeconds;
+    private final Map<Key, Cell> cells = new HashMap<>();
+    private final Key probe = new Key();
+
+    private ByteInternCache<String> actions;
+    private ByteInternCache<String> users;
+
+    // bucketMinutes - длина интервала, делитель 60
+    public RollupCube(int bucketMinutes) {
+        this.bucketMinutes = bucketMinutes;
+        this.bucketSeconds = bucketMinutes * 60L;
+    }
+
+    public void add(LogRecord rec, long localSeconds) {
+        if (actions == null) {
+            actions = new ByteInternCache<>(VALUE_CACHE_SIZE);
+            users = new ByteInternCache<>(VALUE_CACHE_SIZE);
+        }
+        probe.set(Math.floorDiv(localSeconds, bucketSeconds), rec.statusCode,
+                intern(actions, rec.action), intern(users, rec.username));
+
+        Cell cell = cells.get(probe);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(probe.copy(), cell);
+        }
+        cell.requests++;
+        if (rec.statusCode >= 400) {
+            cell.errors++;
+        }
+        if (rec.responseTimeMs > 0) {
+            cell.responseTimeSum += rec.responseTimeMs;
+            cell.responseTimeSamples++;
+        }
+        cell.bytes += rec.responseSizeBytes;
+    }
+
+    private static String intern(ByteInternCache<String> cache, LogRecord.ByteSlice value) {
+        String text = cache.get(value.buf, value.off, value.len);
+        if (text == null) {
+            text = value.toString();
+            cache.put(value.buf, value.off, value.len, text);
+        }
+        return text;
+    }
+
+    public void merge(RollupCube other) {
+        if (other.bucketMinutes != bucketMinutes) {
+            throw new IllegalArgumentException("Разная длина интервала куба: " + bucketMinutes + " и " + other.bucketMinutes);
+        }
+        for (Map.Entry<Key, Cell> entry : other.cells.entrySet()) {
+            Cell cell = cells.get(entry.getKey());
+            if (cell == null) {
+                cell = new Cell();
+                cells.put(entry.getKey(), cell);
+            }
+            cell.add(entry.getValue());
+        }
+    }
+
+    public boolean isEmpty() {
+        return cells.isEmpty();
+    }
+
+    public int size() {
+        return cells.size();
+    }
+
+    public int getBucketMinutes() {
+        return bucketMinutes;
+    }
+
+    public Map<Key, Cell> getCells() {
+        return cells;
+    }
+
+    // Начало интервала ячейки в локальном времени (как колонка time)
+    public LocalDateTime bucketStart(Key key) {
+        return LocalDateTime.ofEpochSecond(key.bucket * bucketSeconds, 0, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,478 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.config.ConnectionPools;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Фильтрованная статистика без прохода по logs. При загрузке строки сворачиваются в куб
+ * "интервал x status_code x action x пользователь" (RollupCube), который хранится в log_rollup.
+ * Итоги, ошибки, группы статусов, распределение по часам, время ответа и трафик для любого сочетания
+ * фильтров по периоду, пользователю, статусу и action суммируются по ячейкам полных интервалов;
+ * неполные интервалы на границах периода дочитываются из logs по индексу времени, поэтому результат точный.
+ * Полная загрузка заменяет куб, дозагрузка и слежение прибавляют свои ячейки, перезагрузка секции
+ * заменяет ячейки своего интервала. Если куб не соответствует logs, покрытие снимается и статистика
+ * считается запросами, как и при фильтрах по IP и поиску.
+ */
+@Service
+public class RollupService {
+
+    @Autowired
+    private ConnectionPools connectionPools;
+
+    private static final int COPY_BATCH_ROWS = 10000;
+
+    @Autowired
+    private LogDictionaryService dictionaryService;
+
+    @Value("${logparser.stats.rollup:true}")
+    private boolean enabled;
+
+    // Длина интервала куба в минутах; делитель 60, иначе используется час
+    @Value("${logparser.stats.rollup-bucket-minutes:60}")
+    private int bucketMinutes;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private int bucketMinutes() {
+        return bucketMinutes > 0 && 60 % bucketMinutes == 0 ? bucketMinutes : 60;
+    }
+
+    // Включает куб в накопителе строк, если он не отключен настройкой
+    public <T extends LogStatsAccumulator> T withRollup(T stats) {
+        if (enabled) {
+            stats.enableRollup(bucketMinutes());
+        }
+        return stats;
+    }
+
+    // Таблицы создает только полная загрузка (replaceAll): остальные пути без таблиц считают, что куба нет.
+    // CREATE INDEX IF NOT EXISTS берет ShareLock на log_rollup, поэтому на чтении и дозагрузке его нет
+    private void ensureTables(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS log_rollup (" +
+                    "bucket_start TIMESTAMP NOT NULL," +
+                    "status_code INT NOT NULL," +
+                    "action TEXT NOT NULL," +
+                    "username TEXT NOT NULL," +
+                    "requests BIGINT NOT NULL," +
+                    "errors BIGINT NOT NULL," +
+                    "response_time_sum BIGINT NOT NULL," +
+                    "response_time_count BIGINT NOT NULL," +
+                    "bytes BIGINT NOT NULL," +
+                    "PRIMARY KEY (bucket_start, status_code, action, username))");
+            st.execute("CREATE INDEX IF NOT EXISTS idx_log_rollup_username ON log_rollup (username, bucket_start)");
+            st.execute("CREATE TABLE IF NOT EXISTS log_rollup_coverage (" +
+                    "id INT PRIMARY KEY," +
+                    "complete BOOLEAN NOT NULL," +
+                    "bucket_minutes INT NOT NULL," +
+                    "updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+        }
+    }
+
+    // ===== ЗАПИСЬ =====
+
+    // Полная загрузка: куб заменяется целиком; null - куба нет, покрытие снимается
+    public void replaceAll(RollupCube cube) throws SQLException {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+            ensureTables(conn);
+            conn.setAutoCommit(false);
+            try {
+                try (Statement st = conn.createStatement()) {
+                    st.execute("TRUNCATE log_rollup");
+                }
+                if (cube != null) {
+                    copyCells(conn, cube);
+                }
+                setCoverage(conn, cube != null, cube != null ? cube.getBucketMinutes() : bucketMinutes());
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        if (cube != null) {
+            System.out.printf("✅ Куб свертки сохранен: %,d ячеек по %d мин%n", cube.size(), cube.getBucketMinutes());
+        }
+    }
+
+    // Куб больше не соответствует logs - фильтрованная статистика считается запросами
+    public void invalidate() {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+            if (!tablesExist(conn)) {
+                return;
+            }
+            setCoverage(conn, false, bucketMinutes());
+        } catch (SQLException e) {
+            System.err.println("❌ Ошибка сброса куба свертки: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Дозагрузка и слежение: ячейки порции прибавляются к сохраненным в транзакции переданного соединения.
+     * null (куб отключен) или другая длина интервала снимают покрытие.
+     */
+    public void mergeCube(Connection conn, RollupCube cube) throws SQLException {
+        Integer storedMinutes = coveredBucketMinutes(conn);
+        if (storedMinutes == null) {
+            return;
+        }
+        if (cube == null || cube.getBucketMinutes() != storedMinutes) {
+            setCoverage(conn, false, storedMinutes);
+            return;
+        }
+        if (cube.isEmpty()) {
+            return;
+        }
+
+        String sql = "INSERT INTO log_rollup (bucket_start, status_code, action, username, requests, errors, " +
+                "response_time_sum, response_time_count, bytes) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (bucket_start, status_code, action, username) DO UPDATE SET " +
+                "requests = log_rollup.requests + EXCLUDED.requests, " +
+                "errors = log_rollup.errors + EXCLUDED.errors, " +
+                "response_time_sum = log_rollup.response_time_sum + EXCLUDED.response_time_sum, " +
+                "response_time_count = log_rollup.response_time_count + EXCLUDED.response_time_count, " +
+                "bytes = log_rollup.bytes + EXCLUDED.bytes";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<RollupCube.Key, RollupCube.Cell> entry : cube.getCells().entrySet()) {
+                RollupCube.Key key = entry.getKey();
+                RollupCube.Cell cell = entry.getValue();
+                ps.setTimestamp(1, Timestamp.valueOf(cube.bucketStart(key)));
+                ps.setInt(2, key.getStatusCode());
+                ps.setString(3, key.getAction());
+                ps.setString(4, key.getUsername());
+                ps.setLong(5, cell.getRequests());
+                ps.setLong(6, cell.getErrors());
+                ps.setLong(7, cell.getResponseTimeSum());
+                ps.setLong(8, cell.getResponseTimeSamples());
+                ps.setLong(9, cell.getBytes());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    // Перезагрузка секции [start, end): ячейки интервала заменяются новыми
+    public void replaceRange(LocalDateTime start, LocalDateTime end, RollupCube cube) throws SQLException {
+        try (Connection conn = connectionPools.maintenance().getConnection()) {
+            Integer storedMinutes = coveredBucketMinutes(conn);
+            if (storedMinutes == null) {
+                return;
+            }
+            if (cube == null || cube.getBucketMinutes() != storedMinutes) {
+                setCoverage(conn, false, storedMinutes);
+                return;
+            }
+
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "DELETE FROM log_rollup WHERE bucket_start >= ? AND bucket_start < ?")) {
+                    ps.setTimestamp(1, Timestamp.valueOf(start));
+                    ps.setTimestamp(2, Timestamp.valueOf(end));
+                    ps.executeUpdate();
+                }
+                copyCells(conn, cube);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Ячейки через COPY порциями по COPY_BATCH_ROWS строк
+    private void copyCells(Connection conn, RollupCube cube) throws SQLException {
+        CopyManager copyManager = new CopyManager(conn.unwrap(BaseConnection.class));
+        String copySql = "COPY log_rollup (bucket_start, status_code, action, username, requests, errors, " +
+                "response_time_sum, response_time_count, bytes) FROM STDIN WITH (FORMAT csv)";
+
+        StringBuilder csv = new StringBuilder();
+        int rows = 0;
+        try {
+            for (Map.Entry<RollupCube.Key, RollupCube.Cell> entry : cube.getCells().entrySet()) {
+                RollupCube.Key key = entry.getKey();
+                RollupCube.Cell cell = entry.getValue();
+                csv.append(cube.bucketStart(key)).append(',')
+                        .append(key.getStatusCode()).append(',');
+                appendQuoted(csv, key.getAction()).append(',');
+                appendQuoted(csv, key.getUsername()).append(',')
+                        .append(cell.getRequests()).append(',')
+                        .append(cell.getErrors()).append(',')
+                        .append(cell.getResponseTimeSum()).append(',')
+                        .append(cell.getResponseTimeSamples()).append(',')
+                        .append(cell.getBytes()).append('\n');
+                if (++rows % COPY_BATCH_ROWS == 0) {
+                    copyManager.copyIn(copySql, new StringReader(csv.toString()));
+                    csv.setLength(0);
+                }
+            }
+            if (csv.length() > 0) {
+                copyManager.copyIn(copySql, new StringReader(csv.toString()));
+            }
+        } catch (IOException e) {
+            throw new SQLException("Ошибка записи куба свертки: " + e.getMessage(), e);
+        }
+    }
+
+    private static StringBuilder appendQuoted(StringBuilder csv, String value) {
+        return csv.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private void setCoverage(Connection conn, boolean complete, int minutes) throws SQLException {
+        String sql = "INSERT INTO log_rollup_coverage (id, complete, bucket_minutes, updated_at) " +
+                "VALUES (1, ?, ?, CURRENT_TIMESTAMP) " +
+                "ON CONFLICT (id) DO UPDATE SET complete = EXCLUDED.complete, " +
+                "bucket_minutes = EXCLUDED.bucket_minutes, updated_at = EXCLUDED.updated_at";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setBoolean(1, complete);
+            ps.setInt(2, minutes);
+            ps.executeUpdate();
+        }
+    }
+
+    // Таблицы куба уже созданы; to_regclass не берет блокировок и не прерывает транзакцию
+    private static boolean tablesExist(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT to_regclass('log_rollup') IS NOT NULL " +
+                     "AND to_regclass('log_rollup_coverage') IS NOT NULL")) {
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    // Длина интервала сохраненного куба, если он покрывает всю logs; иначе (и без таблиц) null
+    private Integer coveredBucketMinutes(Connection conn) throws SQLException {
+        if (!tablesExist(conn)) {
+            return null;
+        }
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT complete, bucket_minutes FROM log_rollup_coverage WHERE id = 1")) {
+            return rs.next() && rs.getBoolean(1) ? rs.getInt(2) : null;
+        }
+    }
+
+    // ===== ЗАПРОСЫ =====
+
+    // Суммы по часу суток и статусу, из которых собирается ответ
+    private static class Totals {
+        long requests;
+        long errors;
+        long responseTimeSum;
+        long responseTimeSamples;
+        long bytes;
+        final long[] statusGroups = new long[LogStatsAccumulator.STATUS_GROUPS.length];
+        final long[] hourly = new long[24];
+
+        void add(ResultSet rs) throws SQLException {
+            int hour = rs.getInt(1);
+            long count = rs.getLong(3);
+            requests += count;
+            errors += rs.getLong(4);
+            responseTimeSum += rs.getLong(5);
+            responseTimeSamples += rs.getLong(6);
+            bytes += rs.getLong(7);
+            statusGroups[LogStatsAccumulator.statusGroup(rs.getInt(2))] += count;
+            if (hour >= 0 && hour < 24) {
+                hourly[hour] += count;
+            }
+        }
+    }
+
+    /**
+     * Статистика за [dateFrom, dateTo] (null - без границы) с необязательными фильтрами
+     * по пользователю, статусу и action - те же показатели, что у StatisticsService.calculateRealTimeStats,
+     * кроме unique_ips. Возвращает null, если куб не покрывает logs.
+     */
+    public Map<String, Object> getStats(LocalDateTime dateFrom, LocalDateTime dateTo,
+                                        String username, Integer statusCode, String action) {
+        Totals totals = collect(dateFrom, dateTo, username, statusCode, action);
+        return totals != null ? toStats(totals) : null;
+    }
+
+    // Точное число строк logs под теми же фильтрами; null - куб не покрывает logs
+    public Long countRequests(LocalDateTime dateFrom, LocalDateTime dateTo,
+                              String username, Integer statusCode, String action) {
+        Totals totals = collect(dateFrom, dateTo, username, statusCode, action);
+        return totals != null ? totals.requests : null;
+    }
+
+    // То же на соединении вызывающего (запрос набора QueryFanOutService) - без второго соединения пула
+    public Long countRequests(Connection conn, LocalDateTime dateFrom, LocalDateTime dateTo,
+                              String username, Integer statusCode, String action) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            Totals totals = collect(conn, dateFrom, dateTo, username, statusCode, action);
+            return totals != null ? totals.requests : null;
+        } catch (SQLException e) {
+            System.err.println("❌ Ошибка статистики по кубу свертки: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Totals collect(LocalDateTime dateFrom, LocalDateTime dateTo,
+                           String username, Integer statusCode, String action) {
+        if (!enabled) {
+            return null;
+        }
+
+        try (Connection conn = connectionPools.interactive().getConnection()) {
+            return collect(conn, dateFrom, dateTo, username, statusCode, action);
+        } catch (SQLException e) {
+            System.err.println("❌ Ошибка статистики по кубу свертки: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Totals collect(Connection conn, LocalDateTime dateFrom, LocalDateTime dateTo,
+                           String username, Integer statusCode, String action) throws SQLException {
+        Integer minutes = coveredBucketMinutes(conn);
+        if (minutes == null) {
+            return null;
+        }
+
+        // Полные интервалы [firstBucket, lastBucket) внутри периода
+        LocalDateTime firstBucket = dateFrom != null ? ceilBucket(dateFrom, minutes) : null;
+        LocalDateTime lastBucket = dateTo != null ? floorBucket(dateTo, minutes) : null;
+
+        Totals totals = new Totals();
+        if (firstBucket != null && lastBucket != null && !firstBucket.isBefore(lastBucket)) {
+            // Период короче интервала куба - только строки logs
+            addRaw(conn, dateFrom, dateTo, true, username, statusCode, action, totals);
+        } else {
+            addRollup(conn, firstBucket, lastBucket, username, statusCode, action, totals);
+            if (dateFrom != null && dateFrom.isBefore(firstBucket)) {
+                addRaw(conn, dateFrom, firstBucket, false, username, statusCode, action, totals);
+            }
+            if (dateTo != null) {
+                addRaw(conn, lastBucket, dateTo, true, username, statusCode, action, totals);
+            }
+        }
+        return totals;
+    }
+
+    private static LocalDateTime floorBucket(LocalDateTime value, int minutes) {
+        LocalDateTime hour = value.truncatedTo(ChronoUnit.HOURS);
+        return hour.plusMinutes(value.getMinute() / minutes * minutes);
+    }
+
+    private static LocalDateTime ceilBucket(LocalDateTime value, int minutes) {
+        LocalDateTime floor = floorBucket(value, minutes);
+        return floor.equals(value) ? value : floor.plusMinutes(minutes);
+    }
+
+    private void addRollup(Connection conn, LocalDateTime from, LocalDateTime to, String username,
+                           Integer statusCode, String action, Totals totals) throws SQLException {
+        StringBuilder sql = new StringBuilder(
+                "SELECT EXTRACT(HOUR FROM bucket_start)::int AS hour, status_code, SUM(requests), SUM(errors), " +
+                        "SUM(response_time_sum), SUM(response_time_count), SUM(bytes) FROM log_rollup WHERE 1=1");
+        List<Object> params = new ArrayList<>();
+        if (from != null) {
+            sql.append(" AND bucket_start >= ?");
+            params.add(Timestamp.valueOf(from));
+        }
+        if (to != null) {
+            sql.append(" AND bucket_start < ?");
+            params.add(Timestamp.valueOf(to));
+        }
+        if (username != null) {
+            sql.append(" AND username = ?");
+            params.add(username);
+        }
+        if (statusCode != null) {
+            sql.append(" AND status_code = ?");
+            params.add(statusCode);
+        }
+        if (action != null) {
+            sql.append(" AND action = ?");
+            params.add(action);
+        }
+        sql.append(" GROUP BY 1, 2");
+        query(conn, sql.toString(), params, totals);
+    }
+
+    // Строки logs за [from, to) или [from, to] - неполные интервалы на границах периода
+    private void addRaw(Connection conn, LocalDateTime from, LocalDateTime to, boolean inclusive, String username,
+                        Integer statusCode, String action, Totals totals) throws SQLException {
+        StringBuilder sql = new StringBuilder(
+                "SELECT EXTRACT(HOUR FROM time)::int AS hour, COALESCE(status_code, 0), COUNT(*), " +
+                        "COUNT(*) FILTER (WHERE status_code >= 400), " +
+                        "COALESCE(SUM(response_time_ms) FILTER (WHERE response_time_ms > 0), 0), " +
+                        "COUNT(*) FILTER (WHERE response_time_ms > 0), " +
+                        "COALESCE(SUM(response_size_bytes), 0) " +
+                        "FROM logs WHERE time >= ? AND time " + (inclusive ? "<=" : "<") + " ?");
+        List<Object> params = new ArrayList<>();
+        params.add(Timestamp.valueOf(from));
+        params.add(Timestamp.valueOf(to));
+        if (username != null) {
+            sql.append(" AND ").append(dictionaryService.equalsParam("username", username, params));
+        }
+        if (statusCode != null) {
+            sql.append(" AND status_code = ?");
+            params.add(statusCode);
+        }
+        if (action != null) {
+            sql.append(" AND ").append(dictionaryService.equalsParam("action", action, params));
+        }
+        sql.append(" GROUP BY 1, 2");
+        query(conn, sql.toString(), params, totals);
+    }
+
+    private void query(Connection conn, String sql, List<Object> params, Totals totals) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.size(); i++) {
+                ps.setObject(i + 1, params.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    totals.add(rs);
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> toStats(Totals totals) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("total_requests", totals.requests);
+        stats.put("error_requests", totals.errors);
+
+        Map<String, Integer> statusDistribution = new HashMap<>();
+        for (int i = 0; i < totals.statusGroups.length; i++) {
+            if (totals.statusGroups[i] > 0) {
+                statusDistribution.put(LogStatsAccumulator.STATUS_GROUPS[i], (int) totals.statusGroups[i]);
+            }
+        }
+        stats.put("status_distribution", statusDistribution);
+
+        int[] hourlyDistribution = new int[24];
+        for (int hour = 0; hour < 24; hour++) {
+            hourlyDistribution[hour] = (int) totals.hourly[hour];
+        }
+        stats.put("hourly_distribution", hourlyDistribution);
+
+        stats.put("avg_response_time", totals.responseTimeSamples > 0
+                ? Math.round((double) totals.responseTimeSum / totals.responseTimeSamples) : 0);
+        stats.put("total_traffic_mb", Math.round(totals.bytes / (1024.0 * 1024.0) * 100.0) / 100.0);
+        return stats;
+    }
+}
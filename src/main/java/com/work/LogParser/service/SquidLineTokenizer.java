@@ -0,0 +1,385 @@
+package com.work.LogParser.service;
+
+import com.work.LogParser.model.LogRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * Однопроходный разбор строки нативного формата Squid по байтам, без регулярных выражений.
+ * Принимает и отбрасывает те же строки, что и LogFileParser.LOG_PATTERN, и заполняет LogRecord
+ * теми же значениями, что и путь через регулярку (parseLineToCSV).
+ * Не потокобезопасен: у каждого потока парсинга свой экземпляр.
+ */
+public class SquidLineTokenizer {
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    private static final byte[] HTTP_PREFIX = "http://".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTPS_PREFIX = "https://".getBytes(StandardCharsets.US_ASCII);
+
+    // Признак невалидного пользователя в кэше
+    private static final byte[] INVALID_USER = new byte[0];
+
+    private final LogParserUtils logParserUtils;
+
+    // Кэши повторяющихся значений: пользователь -> каноничные байты (или INVALID_USER), хост -> домен
+    private final ByteInternCache<byte[]> usernameCache;
+    private final ByteInternCache<byte[]> domainCache;
+
+    private byte[] buf;
+    private int end;
+    private int pos;
+
+    public SquidLineTokenizer(LogParserUtils logParserUtils) {
+        this(logParserUtils, 0);
+    }
+
+    // internCacheSize - максимум записей в каждом кэше, 0 - без кэшей
+    public SquidLineTokenizer(LogParserUtils logParserUtils, int internCacheSize) {
+        this.logParserUtils = logParserUtils;
+        this.usernameCache = internCacheSize > 0 ? new ByteInternCache<>(internCacheSize) : null;
+        this.domainCache = internCacheSize > 0 ? new ByteInternCache<>(internCacheSize) : null;
+    }
+
+    // Разбирает строку buf[start, end). false - строка не подходит под формат или отфильтрована
+    public boolean tokenize(byte[] buf, int start, int end, LogRecord rec) {
+        this.buf = buf;
+        this.end = end;
+        this.pos = start;
+        rec.reset();
+
+        // 1. timestamp: \d+\.\d+
+        int tsStart = pos;
+        int intDigits = skipDigits();
+        if (intDigits == 0 || !expect('.')) return false;
+        int fracDigits = skipDigits();
+        if (fracDigits == 0) return false;
+        int tsEnd = pos;
+        if (!skipWhitespace()) return false;
+
+        // 2. response_time_ms: \d+ (как Integer.parseInt)
+        long responseTime = parseDigits(Integer.MAX_VALUE);
+        if (responseTime < 0 || !skipWhitespace()) return false;
+
+        // 3. client_ip: \d+\.\d+\.\d+\.\d+
+        int ipStart = pos;
+        for (int part = 0; part < 4; part++) {
+            if (part > 0 && !expect('.')) return false;
+            if (skipDigits() == 0) return false;
+        }
+        int ipEnd = pos;
+        if (!skipWhitespace()) return false;
+
+        // 4. action [A-Z_]+ и 5. необязательный /\d{3}
+        int actionStart = pos;
+        while (pos < end && isActionChar(buf[pos])) pos++;
+        int actionEnd = pos;
+        if (actionEnd == actionStart) return false;
+        int statusFromLog = -1;
+        if (pos < end && buf[pos] == '/') {
+            pos++;
+            if (end - pos < 3 || !isDigit(buf[pos]) || !isDigit(buf[pos + 1]) || !isDigit(buf[pos + 2])) {
+                return false;
+            }
+            statusFromLog = (buf[pos] - '0') * 100 + (buf[pos + 1] - '0') * 10 + (buf[pos + 2] - '0');
+            pos += 3;
+        }
+        if (!skipWhitespace()) return false;
+
+        // 6. response_size_bytes: \d+ (как Long.parseLong)
+        long responseSize = parseDigits(Long.MAX_VALUE);
+        if (responseSize < 0 || !skipWhitespace()) return false;
+
+        // 7. http_method, 8. url, 9. username, 10. hierarchy: \S+
+        if (skipToken() == 0 || !skipWhitespace()) return false;
+        int urlStart = pos;
+        if (skipToken() == 0) return false;
+        int urlEnd = pos;
+        if (!skipWhitespace()) return false;
+        int userStart = pos;
+        if (skipToken() == 0) return false;
+        int userEnd = pos;
+        if (!skipWhitespace()) return false;
+        if (skipToken() == 0 || !skipWhitespace()) return false;
+
+        // 11. content_type: \S+
+        if (skipToken() == 0) return false;
+
+        // Не-ASCII байты в выводимых полях: регулярка работает с декодированной строкой
+        // (включая замену некорректного UTF-8), поэтому такие строки отдаем ей целиком
+        if (hasNonAscii(urlStart, urlEnd) || hasNonAscii(userStart, userEnd)) {
+            return parseWithPattern(new String(buf, start, end - start, StandardCharsets.UTF_8), rec);
+        }
+
+        // Пользователь: "-" и невалидные имена отбрасываются, как в parseLineToCSV
+        if (userEnd - userStart == 1 && buf[userStart] == '-') return false;
+        while (userStart < userEnd && (buf[userStart] & 0xFF) <= ' ') userStart++;
+        while (userEnd > userStart && (buf[userEnd - 1] & 0xFF) <= ' ') userEnd--;
+        if (!resolveUsername(userStart, userEnd, rec.username)) return false;
+
+        if (!convertTimestamp(tsStart, tsEnd, intDigits, fracDigits, rec)) return false;
+
+        rec.responseTimeMs = (int) responseTime;
+        rec.responseSizeBytes = responseSize;
+        rec.statusCode = statusFromLog >= 0 ? statusFromLog : statusFromAction(actionStart, actionEnd);
+        rec.ip.set(buf, ipStart, ipEnd - ipStart);
+        rec.action.set(buf, actionStart, actionEnd - actionStart);
+        rec.url.set(buf, urlStart, urlEnd - urlStart);
+        extractDomain(urlStart, urlEnd, rec.domain);
+        return true;
+    }
+
+    // Путь через LOG_PATTERN: используется для строк с не-ASCII символами и для сверки
+    public boolean parseWithPattern(String line, LogRecord rec) {
+        rec.reset();
+        try {
+            Matcher m = LogFileParser.LOG_PATTERN.matcher(line);
+            if (!m.find()) return false;
+
+            int responseTimeMs = Integer.parseInt(m.group(2));
+            long responseSizeBytes = Long.parseLong(m.group(6));
+            String username = m.group(9);
+            if (username == null || username.equals("-") ||
+                    !logParserUtils.isValidUsername(username.trim())) {
+                return false;
+            }
+
+            String rawTime = m.group(1);
+            if (logParserUtils.convertTimestamp(rawTime) == null) return false;
+            double epochSeconds = Double.parseDouble(rawTime);
+            long seconds = (long) epochSeconds;
+            rec.epochSeconds = seconds;
+            rec.nanos = (int) (long) ((epochSeconds - seconds) * 1_000_000_000);
+
+            String action = m.group(4);
+            String statusStr = m.group(5);
+            String url = m.group(8);
+            String domain = logParserUtils.extractDomain(url);
+
+            rec.responseTimeMs = responseTimeMs;
+            rec.responseSizeBytes = responseSizeBytes;
+            rec.statusCode = statusStr != null ? Integer.parseInt(statusStr) : statusFromActionName(action);
+            rec.ip.set(m.group(3));
+            rec.action.set(action);
+            rec.url.set(url);
+            rec.username.set(username.trim());
+            if (domain != null) {
+                rec.domain.set(domain);
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Та же арифметика, что в LogParserUtils.convertTimestamp: double секунд -> секунды + наносекунды.
+    // Если число помещается в 15 цифр, N / 10^k в double дает тот же результат, что Double.parseDouble
+    private boolean convertTimestamp(int tsStart, int tsEnd, int intDigits, int fracDigits, LogRecord rec) {
+        double epochSeconds;
+        if (intDigits + fracDigits <= 15) {
+            long mantissa = 0;
+            for (int i = tsStart; i < tsEnd; i++) {
+                byte b = buf[i];
+                if (b != '.') {
+                    mantissa = mantissa * 10 + (b - '0');
+                }
+            }
+            epochSeconds = (double) mantissa / POW10[fracDigits];
+        } else {
+            // Длинные значения - через строку; convertTimestamp отсекает даты вне диапазона LocalDateTime
+            String rawTime = new String(buf, tsStart, tsEnd - tsStart, StandardCharsets.US_ASCII);
+            if (logParserUtils.convertTimestamp(rawTime) == null) return false;
+            epochSeconds = Double.parseDouble(rawTime);
+        }
+
+        long seconds = (long) epochSeconds;
+        rec.epochSeconds = seconds;
+        rec.nanos = (int) (long) ((epochSeconds - seconds) * 1_000_000_000);
+        return true;
+    }
+
+    // ^(?:https?://)?([^/:]+)(?::\d+)?(?:/.*)?$ из LogParserUtils.extractDomain
+    private void extractDomain(int urlStart, int urlEnd, LogRecord.ByteSlice domain) {
+        if (urlEnd - urlStart == 1 && buf[urlStart] == '-') return;
+
+        int hostStart = urlStart;
+        if (startsWith(urlStart, urlEnd, HTTPS_PREFIX)) {
+            hostStart += HTTPS_PREFIX.length;
+        } else if (startsWith(urlStart, urlEnd, HTTP_PREFIX)) {
+            hostStart += HTTP_PREFIX.length;
+        }
+        // Без префикса "http" всегда упирается в "://", поэтому откат регулярки ничего не находит
+
+        int p = hostStart;
+        while (p < urlEnd && buf[p] != '/' && buf[p] != ':') p++;
+        int hostEnd = p;
+        if (hostEnd == hostStart) return;
+
+        if (p < urlEnd && buf[p] == ':') {
+            p++;
+            int digitsStart = p;
+            while (p < urlEnd && isDigit(buf[p])) p++;
+            if (p == digitsStart) return;
+        }
+        if (p < urlEnd && buf[p] != '/') return;
+
+        int hostLength = hostEnd - hostStart;
+        byte[] cached = domainCache != null ? domainCache.get(buf, hostStart, hostLength) : null;
+        if (cached == null) {
+            if (domainCache == null || domainCache.isFull()) {
+                domain.set(buf, hostStart, hostLength);
+                return;
+            }
+            cached = Arrays.copyOfRange(buf, hostStart, hostEnd);
+            domainCache.put(buf, hostStart, hostLength, cached);
+        }
+        domain.set(cached, 0, cached.length);
+    }
+
+    // Проверка пользователя через кэш; валидный пользователь записывается в username
+    private boolean resolveUsername(int from, int to, LogRecord.ByteSlice username) {
+        byte[] cached = usernameCache != null ? usernameCache.get(buf, from, to - from) : null;
+        if (cached == null) {
+            boolean valid = isValidUsername(from, to);
+            if (usernameCache == null || usernameCache.isFull()) {
+                if (!valid) return false;
+                username.set(buf, from, to - from);
+                return true;
+            }
+            cached = valid ? Arrays.copyOfRange(buf, from, to) : INVALID_USER;
+            usernameCache.put(buf, from, to - from, cached);
+        }
+        if (cached == INVALID_USER) return false;
+        username.set(cached, 0, cached.length);
+        return true;
+    }
+
+    // Статистика кэшей в общий накопитель запуска
+    public void reportCacheStats(InternCacheStats stats) {
+        if (usernameCache != null) {
+            stats.add(usernameCache.getLookups(), usernameCache.getHits(),
+                    domainCache.getLookups(), domainCache.getHits());
+        }
+    }
+
+    // Аналог LogParserUtils.isValidUsername для ASCII: содержит "user" (без учета регистра) или два '_'
+    private boolean isValidUsername(int from, int to) {
+        if (to <= from) return false;
+        int underscores = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buf[i];
+            if (b == '_') underscores++;
+            if (i + 4 <= to && (b | 0x20) == 'u' && (buf[i + 1] | 0x20) == 's'
+                    && (buf[i + 2] | 0x20) == 'e' && (buf[i + 3] | 0x20) == 'r') {
+                return true;
+            }
+        }
+        return underscores >= 2;
+    }
+
+    // Эвристики parseStatusCode для action без кода
+    private int statusFromAction(int from, int to) {
+        if (contains(from, to, "DENIED") || contains(from, to, "DENY")) {
+            return 403;
+        } else if (contains(from, to, "MISS") || contains(from, to, "HIT") ||
+                contains(from, to, "TUNNEL") || contains(from, to, "REFRESH")) {
+            return 200;
+        }
+        return 0;
+    }
+
+    private int statusFromActionName(String action) {
+        if (action.contains("DENIED") || action.contains("DENY")) {
+            return 403;
+        } else if (action.contains("MISS") || action.contains("HIT") ||
+                action.contains("TUNNEL") || action.contains("REFRESH")) {
+            return 200;
+        }
+        return 0;
+    }
+
+    private boolean contains(int from, int to, String needle) {
+        int n = needle.length();
+        outer:
+        for (int i = from; i + n <= to; i++) {
+            for (int j = 0; j < n; j++) {
+                if (buf[i + j] != needle.charAt(j)) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[from + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean hasNonAscii(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] < 0) return true;
+        }
+        return false;
+    }
+
+    private int skipDigits() {
+        int start = pos;
+        while (pos < end && isDigit(buf[pos])) pos++;
+        return pos - start;
+    }
+
+    // Число из цифр с проверкой переполнения; -1 - нет цифр или значение больше max
+    private long parseDigits(long max) {
+        int start = pos;
+        long value = 0;
+        while (pos < end && isDigit(buf[pos])) {
+            int digit = buf[pos] - '0';
+            if (value > (max - digit) / 10) return -1;
+            value = value * 10 + digit;
+            pos++;
+        }
+        return pos == start ? -1 : value;
+    }
+
+    // \S+ - возвращает длину токена
+    private int skipToken() {
+        int start = pos;
+        while (pos < end && !isWhitespace(buf[pos])) pos++;
+        return pos - start;
+    }
+
+    // \s+ - true если пропущен хотя бы один пробельный символ
+    private boolean skipWhitespace() {
+        int start = pos;
+        while (pos < end && isWhitespace(buf[pos])) pos++;
+        return pos > start;
+    }
+
+    private boolean expect(char c) {
+        if (pos < end && buf[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isActionChar(byte b) {
+        return (b >= 'A' && b <= 'Z') || b == '_';
+    }
+
+    // Пробельные символы \s в java.util.regex: [ \t\n\x0B\f\r]
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+}
@@ -1,5 +1,6 @@
 package com.work.LogParser.service;
 
+import com.work.LogParser.config.ConnectionPools;
 import com.work.LogParser.config.DatabaseConfig;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -7,20 +8,123 @@ import org.springframework.stereotype.Service;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
-
-import static com.work.LogParser.config.DatabaseConfig.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Service
 public class StatisticsService {
 
+    @Autowired
+    private ConnectionPools connectionPools;
+
     @Autowired
     private AggregatedStatsService aggregatedStatsService;
 
+    @Autowired
+    private DistinctCountService distinctCountService;
+
+    @Autowired
+    private RollupService rollupService;
+
+    @Autowired
+    private StatsQueryEngine statsQueryEngine;
+
+    @Autowired
+    private ColumnarStoreService columnarStoreService;
+
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    // Фильтр только по периоду, как его строит LogDataRepository
+    private static final Pattern DATE_ONLY_FILTER = Pattern.compile(
+            "WHERE 1=1(?: AND time >= '([^']+)')?(?: AND time <= '([^']+)')?");
+
     public Map<String, Object> getBasicStats(String whereClause) {
+        Map<String, Object> aggregatedStats = findAggregatedStats(whereClause);
+        if (aggregatedStats != null) {
+            return aggregatedStats;
+        }
+
+        // Если агрегированной статистики нет, вычисляем в реальном времени
+        System.out.println("📊 Вычисляем статистику в реальном времени");
+        return calculateRealTimeStats(whereClause);
+    }
+
+    /**
+     * Статистика для фильтров без поиска (значения - как в параметрах запроса, пустые - без фильтра):
+     * агрегированная строка, если фильтр только по периоду и она есть, иначе колоночное хранилище
+     * в памяти, затем куб свертки (без фильтра по IP), и только без них - запросы по logs.
+     */
+    public Map<String, Object> getBasicStats(String whereClause, String dateFrom, String dateTo, String clientIp,
+                                             String username, String status, String action) {
+        boolean withoutIp = isBlank(clientIp);
+        boolean onlyDates = withoutIp && isBlank(username) && isBlank(status) && isBlank(action);
+        if (onlyDates) {
+            Map<String, Object> aggregatedStats = findAggregatedStats(whereClause);
+            if (aggregatedStats != null) {
+                return aggregatedStats;
+            }
+        }
+
+        Map<String, Object> columnarStats = columnarStoreService.getStats(dateFrom, dateTo, clientIp,
+                username, status, action);
+        if (columnarStats != null) {
+            System.out.println("📊 Используем колоночное хранилище");
+            return columnarStats;
+        }
+
+        if (withoutIp) {
+            Map<String, Object> rollupStats = calculateRollupStats(whereClause, dateFrom, dateTo, username, status, action);
+            if (rollupStats != null) {
+                System.out.println("📊 Используем куб свертки");
+                return rollupStats;
+            }
+        }
+
+        System.out.println("📊 Вычисляем статистику в реальном времени");
+        return calculateRealTimeStats(whereClause);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    // Статистика по log_rollup; null - куба нет или значения фильтров не разбираются
+    private Map<String, Object> calculateRollupStats(String whereClause, String dateFrom, String dateTo,
+                                                     String username, String status, String action) {
+        Map<String, Object> stats;
+        try {
+            stats = rollupService.getStats(
+                    isBlank(dateFrom) ? null : parseFilterDate(dateFrom),
+                    isBlank(dateTo) ? null : parseFilterDate(dateTo),
+                    isBlank(username) ? null : username,
+                    isBlank(status) ? null : Integer.valueOf(status.trim()),
+                    isBlank(action) ? null : action);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return null;
+        }
+        if (stats == null) {
+            return null;
+        }
+
+        // Различные IP по кубу не складываются: по скетчам для периода, иначе одним запросом с фильтрами
+        Map<String, Object> distinct = isBlank(username) && isBlank(status) && isBlank(action)
+                ? estimateDistinct(whereClause) : null;
+        if (distinct != null) {
+            stats.put("unique_ips", distinct.get("unique_ips"));
+            stats.put("unique_users", distinct.get("unique_users"));
+            stats.put("unique_relative_error", distinct.get("relative_error"));
+        } else {
+            Long uniqueIps = executeCountQuery("SELECT COUNT(DISTINCT ip) FROM logs " + whereClause);
+            stats.put("unique_ips", uniqueIps != null ? uniqueIps : 0);
+        }
+        return stats;
+    }
+
+    // Подходящая агрегированная статистика или null
+    private Map<String, Object> findAggregatedStats(String whereClause) {
         // Определяем, пустые ли фильтры (дефолтный случай)
         boolean isDefaultFilter = whereClause.isEmpty() || whereClause.equals("WHERE 1=1");
 
@@ -46,10 +150,7 @@ public class StatisticsService {
                 }
             }
         }
-
-        // Если агрегированной статистики нет, вычисляем в реальном времени
-        System.out.println("📊 Вычисляем статистику в реальном времени");
-        return calculateRealTimeStats(whereClause);
+        return null;
     }
 
     // Извлекает дату из WHERE clause
@@ -71,91 +172,45 @@ public class StatisticsService {
         return null;
     }
 
+    // Оценка различных IP и пользователей по скетчам; null - фильтр не только по периоду или скетчей нет
+    private Map<String, Object> estimateDistinct(String whereClause) {
+        if (whereClause.isEmpty()) {
+            return distinctCountService.estimate(null, null);
+        }
+        Matcher matcher = DATE_ONLY_FILTER.matcher(whereClause);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            LocalDateTime dateFrom = matcher.group(1) != null ? parseFilterDate(matcher.group(1)) : null;
+            LocalDateTime dateTo = matcher.group(2) != null ? parseFilterDate(matcher.group(2)) : null;
+            return distinctCountService.estimate(dateFrom, dateTo);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // 2024-01-15 10:30[:00] - так же, как дату разберет PostgreSQL
+    private static LocalDateTime parseFilterDate(String value) {
+        return LocalDateTime.parse(value.trim().replace(' ', 'T'));
+    }
+
     // Вычисляет статистику в реальном времени
     private Map<String, Object> calculateRealTimeStats(String whereClause) {
         Map<String, Object> stats = new HashMap<>();
 
-        try {
-            // Базовый WHERE (уже приходит сформированным)
-            String baseQuery = "FROM logs " + (whereClause.isEmpty() ? "" : whereClause);
-
-            // 1. Общее количество запросов
-            Long totalRequests = executeCountQuery("SELECT COUNT(*) " + baseQuery);
-            stats.put("total_requests", totalRequests != null ? totalRequests : 0);
-
-            // 2. Ошибочные запросы
-            Long errorRequests = executeCountQuery(
-                    "SELECT COUNT(*) FROM logs " +
-                            (whereClause.isEmpty() ? "WHERE" : whereClause + " AND") +
-                            " status_code >= 400"
-            );
-            stats.put("error_requests", errorRequests != null ? errorRequests : 0);
-
-            // 3. Уникальные IP
-            Long uniqueIps = executeCountQuery("SELECT COUNT(DISTINCT ip) " + baseQuery);
-            stats.put("unique_ips", uniqueIps != null ? uniqueIps : 0);
-
-            // 4. Распределение HTTP статусов (группируем по классам)
-            String statusQuery = "SELECT " +
-                    "CASE " +
-                    "  WHEN status_code >= 200 AND status_code < 300 THEN '2xx (Успех)' " +
-                    "  WHEN status_code >= 300 AND status_code < 400 THEN '3xx (Перенаправление)' " +
-                    "  WHEN status_code >= 400 AND status_code < 500 THEN '4xx (Ошибка клиента)' " +
-                    "  WHEN status_code >= 500 THEN '5xx (Ошибка сервера)' " +
-                    "  ELSE 'Другие' " +
-                    "END as status_group, " +
-                    "COUNT(*) as count " +
-                    "FROM logs " + (whereClause.isEmpty() ? "" : whereClause) +
-                    " GROUP BY status_group " +
-                    " ORDER BY count DESC";
-
-            Map<String, Integer> statusDistribution = new HashMap<>();
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-                 Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(statusQuery)) {
-
-                while (rs.next()) {
-                    String statusGroup = rs.getString("status_group");
-                    int count = rs.getInt("count");
-                    statusDistribution.put(statusGroup, count);
-                }
+        // Уникальные IP (и пользователи) - по часовым скетчам, если фильтр только по периоду;
+        // до взятия соединения, чтобы не держать два соединения пула сразу
+        Map<String, Object> distinct = estimateDistinct(whereClause);
+
+        try (Connection conn = connectionPools.interactive().getConnection()) {
+            // Остальные показатели (и IP без скетчей) - одним проходом по logs
+            stats = statsQueryEngine.calculate(conn, whereClause, distinct == null);
+            if (distinct != null) {
+                stats.put("unique_ips", distinct.get("unique_ips"));
+                stats.put("unique_users", distinct.get("unique_users"));
+                stats.put("unique_relative_error", distinct.get("relative_error"));
             }
-            stats.put("status_distribution", statusDistribution);
-
-            // 5. Распределение по часам
-            String hourlyQuery = "SELECT EXTRACT(HOUR FROM time) as hour, COUNT(*) as count " +
-                    "FROM logs " + (whereClause.isEmpty() ? "" : whereClause) +
-                    " GROUP BY EXTRACT(HOUR FROM time) ORDER BY hour";
-
-            int[] hourlyDistribution = new int[24];
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-                 Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(hourlyQuery)) {
-
-                while (rs.next()) {
-                    int hour = rs.getInt("hour");
-                    int count = rs.getInt("count");
-                    if (hour >= 0 && hour < 24) {
-                        hourlyDistribution[hour] = count;
-                    }
-                }
-            }
-            stats.put("hourly_distribution", hourlyDistribution);
-
-            // 6. Среднее время ответа (только для записей с response_time_ms > 0)
-            String avgResponseTimeQuery = "SELECT AVG(response_time_ms) " + baseQuery +
-                    " AND response_time_ms > 0";
-            Double avgResponseTime = executeDoubleQuery(avgResponseTimeQuery);
-            stats.put("avg_response_time",
-                    avgResponseTime != null ? Math.round(avgResponseTime) : 0);
-
-            // 7. Общий трафик в МБ
-            String totalTrafficQuery = "SELECT COALESCE(SUM(response_size_bytes), 0) " + baseQuery;
-            Long totalTrafficBytes = executeLongQuery(totalTrafficQuery);
-            double totalTrafficMB = totalTrafficBytes != null ?
-                    totalTrafficBytes / (1024.0 * 1024.0) : 0;
-            stats.put("total_traffic_mb", Math.round(totalTrafficMB * 100.0) / 100.0);
-
         } catch (Exception e) {
             System.err.println("Ошибка получения статистики: " + e.getMessage());
             stats = getDefaultStats();
@@ -164,38 +219,8 @@ public class StatisticsService {
         return stats;
     }
 
-    public Double executeDoubleQuery(String sql) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            if (rs.next()) {
-                return rs.getDouble(1);
-            }
-            return 0.0;
-        } catch (Exception e) {
-            System.err.println("Ошибка выполнения AVG запроса: " + e.getMessage());
-            return 0.0;
-        }
-    }
-
-    public Long executeLongQuery(String sql) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            if (rs.next()) {
-                return rs.getLong(1);
-            }
-            return 0L;
-        } catch (Exception e) {
-            System.err.println("Ошибка выполнения SUM запроса: " + e.getMessage());
-            return 0L;
-        }
-    }
-
     public Long executeCountQuery(String sql) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
+        try (Connection conn = connectionPools.interactive().getConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
 
@@ -4,6 +4,11 @@ const itemsPerPage = 50;
 let totalPages = 1;
 let allLogs = [];
 let currentSort = { column: 'time', direction: 'desc' };
+// Курсоры соседних страниц из ответа сервера (null - в эту сторону страниц нет)
+let nextCursor = null;
+let prevCursor = null;
+// Колонки, которые сортирует сервер по индексу; остальные сортируются на текущей странице
+const SERVER_SORT_COLUMNS = ['time', 'statusCode', 'responseTime', 'responseSize'];
 let statusChart, timeChart;
 let parsingInterval = null;
 let selectedFile = null;
@@ -283,7 +288,7 @@ function getStageButtonText(stage) {
 }
 
 // Data loading and display
-async function loadData(page = 1) {
+async function loadData(page = 1, cursor = null, direction = null) {
     // Защита от дублирования запросов
     if (isRequestInProgress) {
         showNotification('Уже выполняется другой запрос. Дождитесь завершения.', true);
@@ -324,6 +329,14 @@ async function loadData(page = 1) {
             size: itemsPerPage,
             ...filters
         });
+        if (SERVER_SORT_COLUMNS.includes(currentSort.column)) {
+            params.set('sort', currentSort.column);
+            params.set('order', currentSort.direction);
+        }
+        if (cursor) {
+            params.set('cursor', cursor);
+            params.set('direction', direction);
+        }
         
         const response = await fetch(`${API_ENDPOINTS.LOGS}?${params}`, {
             signal: abortController.signal
@@ -337,9 +350,11 @@ async function loadData(page = 1) {
         
         if (data.success) {
             allLogs = data.logs;
+            nextCursor = data.nextCursor || null;
+            prevCursor = data.prevCursor || null;
             displayLogs(data.logs);
             updateStats(data.stats);
-            updatePagination(data.totalPages, page);
+            updatePagination(data.totalPages, page, data.countExact !== false);
             createCharts(data.stats);
             
             // Успешное завершение с оптимизированным сообщением
@@ -506,7 +521,8 @@ function formatTrafficMB(mb) {
     }
 }
 
-function updatePagination(total, current) {
+// exact = false - число страниц по оценке планировщика
+function updatePagination(total, current, exact = true) {
     totalPages = total;
     currentPage = current;
     
@@ -514,11 +530,11 @@ function updatePagination(total, current) {
     const pageInfo = document.getElementById('pageInfo');
     
     if (total > 1) {
-        pageInfo.textContent = `Страница ${current} из ${total}`;
+        pageInfo.textContent = `Страница ${current} из ${exact ? '' : '~'}${total}`;
         pagination.style.display = 'flex';
         
-        document.querySelector('.pagination button:first-child').disabled = current <= 1;
-        document.querySelector('.pagination button:last-child').disabled = current >= total;
+        document.querySelector('.pagination button:first-child').disabled = !prevCursor;
+        document.querySelector('.pagination button:last-child').disabled = !nextCursor;
     } else {
         pagination.style.display = 'none';
     }
@@ -964,7 +980,7 @@ async function startParsing() {
         // 1. Обновляем UI
         const statusElement = document.getElementById('parsingStatus');
         if (statusElement) {
-            statusElement.textContent = '📊 Подсчет строк (0%)';
+            statusElement.textContent = '🚀 Парсинг данных (0%)';
             statusElement.style.color = 'var(--accent)';
         }
         
@@ -1607,9 +1623,10 @@ function enhanceTimeChart(chart, stats) {
 
 // Пагинация
 function changePage(delta) {
-    const next = currentPage + delta;
-    if (next < 1 || next > totalPages) return;
-    loadData(next);
+    // Соседние страницы выбираются по курсору, без OFFSET
+    const cursor = delta > 0 ? nextCursor : prevCursor;
+    if (!cursor) return;
+    loadData(currentPage + delta, cursor, delta > 0 ? 'next' : 'prev');
 }
 
 // Экспорт
@@ -2094,6 +2111,11 @@ function setupSorting() {
                 currentSort.column = col;
                 currentSort.direction = 'asc';
             }
+            // Колонки с индексом сортирует сервер - с первой страницы
+            if (SERVER_SORT_COLUMNS.includes(col)) {
+                loadData(1);
+                return;
+            }
             // Клиентская сортировка текущей страницы
             const dir = currentSort.direction === 'asc' ? 1 : -1;
             allLogs.sort((a, b) => {